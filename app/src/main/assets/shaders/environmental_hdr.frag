@@ -52,18 +52,37 @@ const int kNumberOfRoughnessLevels = NUMBER_OF_MIPMAP_LEVELS;
 uniform sampler2D u_AlbedoTexture;
 uniform sampler2D u_RoughnessMetallicAmbientOcclusionTexture;
 
-// The intensity of the main directional light.
-uniform vec3 u_LightIntensity;
-
-// The direction of the main directional light in view space.
-uniform vec4 u_ViewLightDirection;
+// Camera matrices shared by every shader during a frame. The layout must match
+// FrameUniforms.java.
+layout(std140) uniform CameraUniforms {
+  mat4 u_View;
+  mat4 u_Projection;
+  mat4 u_ViewProjection;
+  // Inverse view matrix. Used for converting normals back into world
+  // space for environmental radiance calculations.
+  mat4 u_ViewInverse;
+  // The near and far clipping planes.
+  float u_ZNear;
+  float u_ZFar;
+};
 
-// The coefficients for the spherical harmonic function which models the diffuse
-// irradiance of a distant environmental light for a given surface normal in
-// world space. These coefficients must be premultiplied with their
-// corresponding spherical harmonics constants. See
-// HelloArActivity.updateSphericalHarmonicsCoefficients for more information.
-uniform vec3 u_SphericalHarmonicsCoefficients[9];
+// The light estimate, shared by every shader in the virtual scene pass. The
+// layout must match FrameUniforms.java.
+layout(std140) uniform LightingUniforms {
+  // The direction of the main directional light in view space.
+  vec4 u_ViewLightDirection;
+  // The intensity of the main directional light.
+  vec3 u_LightIntensity;
+  // If the current light estimate is valid. Used to short circuit the entire
+  // shader when the light estimate is not valid.
+  bool u_LightEstimateIsValid;
+  // The coefficients for the spherical harmonic function which models the
+  // diffuse irradiance of a distant environmental light for a given surface
+  // normal in world space. These coefficients must be premultiplied with their
+  // corresponding spherical harmonics constants. See
+  // HelloArActivity.updateSphericalHarmonicsCoefficients for more information.
+  vec3 u_SphericalHarmonicsCoefficients[9];
+};
 
 // The filtered cubemap texture which models the LD term (i.e. radiance (L)
 // times distribution function (D)) of the environmental specular calculation as
@@ -75,14 +94,6 @@ uniform samplerCube u_Cubemap;
 // perceptual roughness.
 uniform sampler2D u_DfgTexture;
 
-// Inverse view matrix. Used for converting normals back into world space for
-// environmental radiance calculations.
-uniform mat4 u_ViewInverse;
-
-// If the current light estimate is valid. Used to short circuit the entire
-// shader when the light estimate is not valid.
-uniform bool u_LightEstimateIsValid;
-
 struct MaterialParameters {
   vec3 diffuse;
   float perceptualRoughness;  // perceptually linear roughness
@@ -111,6 +122,10 @@ struct ShadingParameters {
 in vec3 v_ViewPosition;
 in vec3 v_ViewNormal;
 in vec2 v_TexCoord;
+#ifdef USE_INSTANCING
+// The colour of the instance, multiplied with the albedo.
+in vec4 v_InstanceColor;
+#endif
 
 layout(location = 0) out vec4 o_FragColor;
 
@@ -215,6 +230,14 @@ void Pbr_CreateShadingParameters(const in vec3 viewNormal,
       (viewInverse * vec4(reflectDirection, 0.0)).xyz;
 }
 
+vec3 GetAlbedoTint() {
+#ifdef USE_INSTANCING
+  return v_InstanceColor.rgb;
+#else
+  return vec3(1.0);
+#endif
+}
+
 void Pbr_CreateMaterialParameters(const in vec2 texCoord,
                                   const in sampler2D albedoTexture,
                                   const in sampler2D pbrTexture,
@@ -222,7 +245,7 @@ void Pbr_CreateMaterialParameters(const in vec2 texCoord,
                                   const in ShadingParameters shading,
                                   out MaterialParameters material) {
   // Read the material parameters from the textures
-  vec3 albedo = texture(albedoTexture, texCoord).rgb;
+  vec3 albedo = texture(albedoTexture, texCoord).rgb * GetAlbedoTint();
   vec3 roughnessMetallicAmbientOcclusion = texture(pbrTexture, texCoord).rgb;
   // Roughness inputs are perceptually linear; convert them to regular roughness
   // values. Roughness levels approaching 0 will make specular reflections
@@ -270,7 +293,8 @@ void main() {
 
   // Skip all lighting calculations if the estimation is not valid.
   if (!u_LightEstimateIsValid) {
-    o_FragColor = vec4(texture(u_AlbedoTexture, texCoord).rgb, 1.0);
+    o_FragColor =
+        vec4(texture(u_AlbedoTexture, texCoord).rgb * GetAlbedoTint(), 1.0);
     return;
   }
 
@@ -15,20 +15,52 @@
  * limitations under the License.
  */
 
+#ifdef USE_INSTANCING
+// Must match the block declared by the fragment shader.
+layout(std140) uniform CameraUniforms {
+  mat4 u_View;
+  mat4 u_Projection;
+  mat4 u_ViewProjection;
+  mat4 u_ViewInverse;
+  float u_ZNear;
+  float u_ZFar;
+};
+#else
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+#endif
 
 layout(location = 0) in vec4 a_Position;
 layout(location = 1) in vec2 a_TexCoord;
 layout(location = 2) in vec3 a_Normal;
 
+#ifdef USE_INSTANCING
+// Read once per instance rather than per vertex. The matrix takes locations 3
+// to 6, one per column.
+layout(location = 3) in mat4 a_InstanceModelView;
+layout(location = 7) in vec4 a_InstanceColor;
+
+out vec4 v_InstanceColor;
+#endif
+
 out vec3 v_ViewPosition;
 out vec3 v_ViewNormal;
 out vec2 v_TexCoord;
 
 void main() {
-  v_ViewPosition = (u_ModelView * a_Position).xyz;
-  v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
+#ifdef USE_INSTANCING
+  mat4 modelView = a_InstanceModelView;
+  v_InstanceColor = a_InstanceColor;
+#else
+  mat4 modelView = u_ModelView;
+#endif
+  vec4 viewPosition = modelView * a_Position;
+  v_ViewPosition = viewPosition.xyz;
+  v_ViewNormal = normalize((modelView * vec4(a_Normal, 0.0)).xyz);
   v_TexCoord = a_TexCoord;
+#ifdef USE_INSTANCING
+  gl_Position = u_Projection * viewPosition;
+#else
   gl_Position = u_ModelViewProjection * a_Position;
+#endif
 }
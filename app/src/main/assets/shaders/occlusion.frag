@@ -26,13 +26,23 @@ uniform sampler2D u_VirtualSceneColorTexture;
 uniform sampler2D u_CameraDepthTexture;
 // The depth texture for the virtual scene.
 uniform sampler2D u_VirtualSceneDepthTexture;
-// The near and far clipping planes, used to transform the virtual scene depth
-// back into view space to compare with the camera depth texture.
-uniform float u_ZNear;
-uniform float u_ZFar;
 // The aspect ratio of the screen. This is used during to create uniform
 // blurring for occluded objects.
 uniform float u_DepthAspectRatio;
+
+// Camera matrices shared by every shader during a frame. The layout must match
+// FrameUniforms.java.
+layout(std140) uniform CameraUniforms {
+  mat4 u_View;
+  mat4 u_Projection;
+  mat4 u_ViewProjection;
+  // Inverse view matrix.
+  mat4 u_ViewInverse;
+  // The near and far clipping planes. Used to transform the virtual scene
+  // depth back into view space to compare with the camera depth texture.
+  float u_ZNear;
+  float u_ZFar;
+};
 #endif  // USE_OCCLUSION
 
 #if USE_OCCLUSION
@@ -15,12 +15,24 @@
  * limitations under the License.
  */
 
-uniform mat4 u_ModelViewProjection;
+// Camera matrices shared by every shader during a frame. The layout must match
+// FrameUniforms.java.
+layout(std140) uniform CameraUniforms {
+  mat4 u_View;
+  mat4 u_Projection;
+  mat4 u_ViewProjection;
+  // Inverse view matrix.
+  mat4 u_ViewInverse;
+  // The near and far clipping planes.
+  float u_ZNear;
+  float u_ZFar;
+};
+
 uniform float u_PointSize;
 
 layout(location = 0) in vec4 a_Position;
 
 void main() {
-  gl_Position = u_ModelViewProjection * vec4(a_Position.xyz, 1.0);
+  gl_Position = u_ViewProjection * vec4(a_Position.xyz, 1.0);
   gl_PointSize = u_PointSize;
 }
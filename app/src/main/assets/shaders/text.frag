@@ -0,0 +1,31 @@
+#version 300 es
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+precision mediump float;
+
+// Glyph coverage in the red channel.
+uniform sampler2D u_GlyphAtlas;
+uniform vec4 u_Color;
+uniform vec4 u_BackgroundColor;
+
+in vec2 v_TexCoord;
+
+out vec4 o_FragColor;
+
+void main() {
+  float coverage = texture(u_GlyphAtlas, v_TexCoord).r;
+  o_FragColor = mix(u_BackgroundColor, u_Color, coverage);
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.helpers;
+
+import android.util.Log;
+import com.google.ar.core.Config;
+import com.google.ar.core.Frame;
+import com.google.ar.core.Session;
+import com.iboson.objectdetection.common.samplerender.RenderThread;
+import com.iboson.objectdetection.common.samplerender.SampleRender;
+import java.util.concurrent.Executor;
+
+/**
+ * Helper to lower the frame rate while nothing is going on, to save battery and avoid thermal
+ * throttling.
+ *
+ * <p>Rendering is {@link Mode#ACTIVE} while scanning, right after a detection, and while virtual
+ * content is visible. Otherwise it drops to {@link Mode#IDLE} after an idle delay, which renders
+ * every {@link #IDLE_FRAME_INTERVAL} vsyncs and stops the session from blocking on new camera
+ * images. The idle delay starts at {@link #IDLE_DELAY_NANOS}, and doubles up to {@link
+ * #MAX_IDLE_DELAY_NANOS} whenever rendering is reactivated sooner than the delay after going idle,
+ * so that intermittent activity does not flip the mode back and forth. In both modes, frames whose
+ * camera image and display geometry did not change are not redrawn.
+ *
+ * <p>The frame interval changes right away, but the session is reconfigured on the given executor,
+ * typically the UI thread, so that the render thread does not stall on it mid-frame.
+ *
+ * <p>Changing the frame rate requires a {@link SampleRender} driven by a {@link RenderThread};
+ * otherwise only the session update mode changes.
+ */
+public final class FramePacingHelper {
+  private static final String TAG = FramePacingHelper.class.getSimpleName();
+
+  /** How long rendering stays active after the last activity, at first. */
+  public static final long IDLE_DELAY_NANOS = 2_000_000_000L;
+  /** The longest rendering stays active after the last activity. */
+  public static final long MAX_IDLE_DELAY_NANOS = 8_000_000_000L;
+  /** The number of vsyncs between frames while idle. */
+  public static final int IDLE_FRAME_INTERVAL = 4;
+
+  /** A pacing mode. */
+  public enum Mode {
+    /** Renders every vsync, throttled to the camera frame rate. */
+    ACTIVE(/* frameInterval= */ 1, Config.UpdateMode.BLOCKING),
+    /** Renders at a reduced rate, without waiting for new camera images. */
+    IDLE(IDLE_FRAME_INTERVAL, Config.UpdateMode.LATEST_CAMERA_IMAGE);
+
+    private final int frameInterval;
+    private final Config.UpdateMode updateMode;
+
+    Mode(int frameInterval, Config.UpdateMode updateMode) {
+      this.frameInterval = frameInterval;
+      this.updateMode = updateMode;
+    }
+  }
+
+  private static final Mode[] MODES = Mode.values();
+
+  private final RenderThread renderThread;
+  private final Executor sessionExecutor;
+  private final Runnable configureSessionTask = this::configureSession;
+  private volatile boolean scanning;
+  private volatile long lastActivityNanos;
+  // The session and update mode to configure on the session executor. The session is cleared once
+  // closed.
+  private volatile Session session;
+  private volatile Config.UpdateMode updateMode = Mode.ACTIVE.updateMode;
+
+  // Only accessed on the render thread.
+  private Mode mode = Mode.ACTIVE;
+  private long modeStartNanos;
+  private long idleDelayNanos = IDLE_DELAY_NANOS;
+  private long lastUpdateNanos;
+  private final long[] timeInModeNanos = new long[MODES.length];
+  private long lastCameraTimestamp;
+  private long skippedFrameCount;
+
+  /**
+   * @param sessionExecutor Runs the reconfiguration of the session when the mode changes, on the
+   *     thread that also calls {@link #onSessionClosed}.
+   */
+  public FramePacingHelper(SampleRender render, Executor sessionExecutor) {
+    renderThread = render.getRenderThread();
+    this.sessionExecutor = sessionExecutor;
+    long now = System.nanoTime();
+    lastActivityNanos = now;
+    modeStartNanos = now;
+    lastUpdateNanos = now;
+  }
+
+  /** Sets whether a scan is in progress. May be called from any thread. */
+  public void setScanning(boolean scanning) {
+    this.scanning = scanning;
+    onActivity();
+  }
+
+  /**
+   * Notifies of an event the user should see at full frame rate, such as a detection. May be
+   * called from any thread.
+   */
+  public void onActivity() {
+    lastActivityNanos = System.nanoTime();
+  }
+
+  /**
+   * Notifies that the session is about to be closed, so that it is no longer reconfigured. Must be
+   * called on the thread of the session executor.
+   */
+  public void onSessionClosed() {
+    session = null;
+  }
+
+  /**
+   * Returns whether {@code frame} needs to be drawn, that is whether its camera image or display
+   * geometry changed since the last frame drawn. Must be called from {@link
+   * SampleRender.Renderer#onDrawFrame} after {@link Session#update}.
+   */
+  public boolean hasFrameChanged(Frame frame) {
+    long cameraTimestamp = frame.getTimestamp();
+    if (cameraTimestamp == lastCameraTimestamp && !frame.hasDisplayGeometryChanged()) {
+      return false;
+    }
+    lastCameraTimestamp = cameraTimestamp;
+    return true;
+  }
+
+  /**
+   * Notifies that a frame left unchanged was discarded with {@link SampleRender#discardFrame},
+   * rather than drawn. Must be called from {@link SampleRender.Renderer#onDrawFrame}.
+   */
+  public void onFrameDiscarded() {
+    skippedFrameCount++;
+  }
+
+  /**
+   * Updates the pacing mode. Must be called once per frame from {@link
+   * SampleRender.Renderer#onDrawFrame}, including frames that are not drawn.
+   *
+   * @param hasVisibleContent whether virtual content is drawn over the camera image this frame
+   */
+  public void updateMode(Session session, boolean hasVisibleContent) {
+    long now = System.nanoTime();
+    timeInModeNanos[mode.ordinal()] += now - lastUpdateNanos;
+    lastUpdateNanos = now;
+
+    if (scanning || hasVisibleContent) {
+      lastActivityNanos = now;
+    }
+    Mode targetMode = now - lastActivityNanos < idleDelayNanos ? Mode.ACTIVE : Mode.IDLE;
+    if (targetMode == mode) {
+      return;
+    }
+    if (targetMode == Mode.ACTIVE) {
+      // Stay active for longer next time if the idle period was short.
+      idleDelayNanos =
+          now - modeStartNanos < idleDelayNanos
+              ? Math.min(idleDelayNanos * 2, MAX_IDLE_DELAY_NANOS)
+              : IDLE_DELAY_NANOS;
+    }
+    setMode(session, targetMode, now);
+  }
+
+  /** Returns the current pacing mode. */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Returns the total time spent in the given mode, in nanoseconds. */
+  public long getTimeInModeNanos(Mode mode) {
+    return timeInModeNanos[mode.ordinal()];
+  }
+
+  /** Returns the number of frames that were not redrawn since nothing changed. */
+  public long getSkippedFrameCount() {
+    return skippedFrameCount;
+  }
+
+  private void setMode(Session session, Mode mode, long now) {
+    Log.i(
+        TAG,
+        "Switching to " + mode + " after " + (now - modeStartNanos) / 1_000_000 + " ms in "
+            + this.mode);
+    this.mode = mode;
+    modeStartNanos = now;
+    if (renderThread != null) {
+      renderThread.setFrameInterval(mode.frameInterval);
+    }
+    this.session = session;
+    updateMode = mode.updateMode;
+    sessionExecutor.execute(configureSessionTask);
+  }
+
+  /**
+   * Applies the update mode of the latest mode, if the session is still open. If the session
+   * rejects it, the failure is logged and the session keeps its previous update mode, rather than
+   * a pacing change crashing the app.
+   */
+  private void configureSession() {
+    Session session = this.session;
+    if (session == null) {
+      return;
+    }
+    Config.UpdateMode updateMode = this.updateMode;
+    try {
+      Config config = session.getConfig();
+      if (config.getUpdateMode() != updateMode) {
+        config.setUpdateMode(updateMode);
+        session.configure(config);
+      }
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to set the session update mode to " + updateMode, e);
+    }
+  }
+}
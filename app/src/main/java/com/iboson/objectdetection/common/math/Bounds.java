@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Operations on bounding volumes stored in a {@code float[]}: axis-aligned boxes as {@link
+ * #BOX_SIZE} floats {@code (minX, minY, minZ, maxX, maxY, maxZ)}, and spheres as {@link
+ * #SPHERE_SIZE} floats {@code (centerX, centerY, centerZ, radius)}.
+ *
+ * <p>As with {@link Mat4}, results may alias inputs, nothing is allocated, and these methods may be
+ * called from any thread.
+ */
+public final class Bounds {
+  /** The number of floats of a box. */
+  public static final int BOX_SIZE = 6;
+
+  /** The number of floats of a sphere. */
+  public static final int SPHERE_SIZE = 4;
+
+  private Bounds() {}
+
+  /**
+   * Sets {@code box} to the smallest box containing the points of 3 floats in {@code positions},
+   * from its position to its limit. Sets an empty box at the origin if there are none.
+   */
+  public static void setBoxFromPoints(float[] box, FloatBuffer positions) {
+    int start = positions.position();
+    int end = positions.limit() - 2;
+    if (start >= end) {
+      for (int i = 0; i < BOX_SIZE; ++i) {
+        box[i] = 0f;
+      }
+      return;
+    }
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float minZ = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    float maxZ = Float.NEGATIVE_INFINITY;
+    for (int i = start; i < end; i += 3) {
+      float x = positions.get(i);
+      float y = positions.get(i + 1);
+      float z = positions.get(i + 2);
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      minZ = Math.min(minZ, z);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+      maxZ = Math.max(maxZ, z);
+    }
+    box[0] = minX;
+    box[1] = minY;
+    box[2] = minZ;
+    box[3] = maxX;
+    box[4] = maxY;
+    box[5] = maxZ;
+  }
+
+  /**
+   * Sets {@code sphere} to a sphere containing the points of 3 floats in {@code positions}, centered
+   * on their bounding {@code box}. This is tighter than the sphere around the box when the points
+   * do not fill its corners.
+   */
+  public static void setSphereFromPoints(float[] sphere, float[] box, FloatBuffer positions) {
+    float centerX = (box[0] + box[3]) * 0.5f;
+    float centerY = (box[1] + box[4]) * 0.5f;
+    float centerZ = (box[2] + box[5]) * 0.5f;
+    float radiusSquared = 0f;
+    int end = positions.limit() - 2;
+    for (int i = positions.position(); i < end; i += 3) {
+      float dx = positions.get(i) - centerX;
+      float dy = positions.get(i + 1) - centerY;
+      float dz = positions.get(i + 2) - centerZ;
+      radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+    }
+    sphere[0] = centerX;
+    sphere[1] = centerY;
+    sphere[2] = centerZ;
+    sphere[3] = (float) Math.sqrt(radiusSquared);
+  }
+
+  /**
+   * Sets {@code result} to the smallest axis-aligned box containing {@code box} transformed by the
+   * affine transform {@code m}.
+   */
+  public static void transformBox(float[] result, float[] m, int mOffset, float[] box) {
+    float centerX = (box[0] + box[3]) * 0.5f;
+    float centerY = (box[1] + box[4]) * 0.5f;
+    float centerZ = (box[2] + box[5]) * 0.5f;
+    float extentX = (box[3] - box[0]) * 0.5f;
+    float extentY = (box[4] - box[1]) * 0.5f;
+    float extentZ = (box[5] - box[2]) * 0.5f;
+    // The transformed center, and the extents along each world axis of the transformed box.
+    float x =
+        m[mOffset] * centerX + m[mOffset + 4] * centerY + m[mOffset + 8] * centerZ + m[mOffset + 12];
+    float y =
+        m[mOffset + 1] * centerX
+            + m[mOffset + 5] * centerY
+            + m[mOffset + 9] * centerZ
+            + m[mOffset + 13];
+    float z =
+        m[mOffset + 2] * centerX
+            + m[mOffset + 6] * centerY
+            + m[mOffset + 10] * centerZ
+            + m[mOffset + 14];
+    float ex =
+        Math.abs(m[mOffset]) * extentX
+            + Math.abs(m[mOffset + 4]) * extentY
+            + Math.abs(m[mOffset + 8]) * extentZ;
+    float ey =
+        Math.abs(m[mOffset + 1]) * extentX
+            + Math.abs(m[mOffset + 5]) * extentY
+            + Math.abs(m[mOffset + 9]) * extentZ;
+    float ez =
+        Math.abs(m[mOffset + 2]) * extentX
+            + Math.abs(m[mOffset + 6]) * extentY
+            + Math.abs(m[mOffset + 10]) * extentZ;
+    result[0] = x - ex;
+    result[1] = y - ey;
+    result[2] = z - ez;
+    result[3] = x + ex;
+    result[4] = y + ey;
+    result[5] = z + ez;
+  }
+
+  /**
+   * Sets {@code result} to a sphere containing {@code sphere} transformed by the affine transform
+   * {@code m}, whose radius is scaled by the largest scale factor of {@code m}.
+   */
+  public static void transformSphere(float[] result, float[] m, int mOffset, float[] sphere) {
+    float x = sphere[0];
+    float y = sphere[1];
+    float z = sphere[2];
+    float scaleSquared =
+        Math.max(
+            lengthSquared(m[mOffset], m[mOffset + 1], m[mOffset + 2]),
+            Math.max(
+                lengthSquared(m[mOffset + 4], m[mOffset + 5], m[mOffset + 6]),
+                lengthSquared(m[mOffset + 8], m[mOffset + 9], m[mOffset + 10])));
+    result[0] = m[mOffset] * x + m[mOffset + 4] * y + m[mOffset + 8] * z + m[mOffset + 12];
+    result[1] = m[mOffset + 1] * x + m[mOffset + 5] * y + m[mOffset + 9] * z + m[mOffset + 13];
+    result[2] = m[mOffset + 2] * x + m[mOffset + 6] * y + m[mOffset + 10] * z + m[mOffset + 14];
+    result[3] = sphere[3] * (float) Math.sqrt(scaleSquared);
+  }
+
+  private static float lengthSquared(float x, float y, float z) {
+    return x * x + y * y + z * z;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+/**
+ * The six planes of a view frustum, for testing whether {@link Bounds} may be visible.
+ *
+ * <p>Tests are conservative: a volume reported as outside is entirely invisible, but one reported
+ * as intersecting may still be invisible near the corners of the frustum. Not thread safe, but
+ * nothing is allocated after construction.
+ */
+public final class Frustum {
+  private static final int PLANE_COUNT = 6;
+
+  // Normalized planes (a, b, c, d) whose positive half spaces contain the frustum.
+  private final float[] planes = new float[PLANE_COUNT * 4];
+
+  /**
+   * Sets the planes from a view-projection matrix, so that volumes are tested in world space, or
+   * from a model-view-projection matrix to test volumes in model space.
+   */
+  public Frustum set(float[] m, int offset) {
+    // Each plane is the fourth row of the matrix plus or minus one of the others.
+    for (int row = 0; row < 3; ++row) {
+      for (int side = 0; side < 2; ++side) {
+        float sign = side == 0 ? 1f : -1f;
+        int plane = (row * 2 + side) * 4;
+        for (int column = 0; column < 4; ++column) {
+          planes[plane + column] =
+              m[offset + column * 4 + 3] + sign * m[offset + column * 4 + row];
+        }
+        float length =
+            (float)
+                Math.sqrt(
+                    planes[plane] * planes[plane]
+                        + planes[plane + 1] * planes[plane + 1]
+                        + planes[plane + 2] * planes[plane + 2]);
+        if (length > 0f) {
+          for (int column = 0; column < 4; ++column) {
+            planes[plane + column] /= length;
+          }
+        }
+      }
+    }
+    return this;
+  }
+
+  /** Returns whether the sphere of {@link Bounds#SPHERE_SIZE} floats may be visible. */
+  public boolean intersectsSphere(float[] sphere) {
+    float x = sphere[0];
+    float y = sphere[1];
+    float z = sphere[2];
+    float radius = sphere[3];
+    for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+      float distance =
+          planes[plane] * x + planes[plane + 1] * y + planes[plane + 2] * z + planes[plane + 3];
+      if (distance < -radius) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether the axis-aligned box of {@link Bounds#BOX_SIZE} floats may be visible. */
+  public boolean intersectsBox(float[] box) {
+    for (int plane = 0; plane < PLANE_COUNT * 4; plane += 4) {
+      float a = planes[plane];
+      float b = planes[plane + 1];
+      float c = planes[plane + 2];
+      // The corner of the box furthest along the plane normal.
+      float x = a >= 0f ? box[3] : box[0];
+      float y = b >= 0f ? box[4] : box[1];
+      float z = c >= 0f ? box[5] : box[2];
+      if (a * x + b * y + c * z + planes[plane + 3] < 0f) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+/**
+ * Operations on 4x4 matrices stored in column-major order in a {@code float[]} at a given offset,
+ * the layout of {@link android.opengl.Matrix} and of ARCore's {@code toMatrix} methods.
+ *
+ * <p>Unlike {@link android.opengl.Matrix}, every operation reads all of its inputs before writing
+ * its result, so that the result may alias any of the inputs. Nothing is allocated and no state is
+ * shared, so that these methods may be called from any thread.
+ */
+public final class Mat4 {
+  /** The number of floats of a matrix. */
+  public static final int SIZE = 16;
+
+  private Mat4() {}
+
+  /** Sets {@code m} to the identity matrix. */
+  public static void setIdentity(float[] m, int offset) {
+    for (int i = 0; i < SIZE; ++i) {
+      m[offset + i] = 0f;
+    }
+    m[offset] = 1f;
+    m[offset + 5] = 1f;
+    m[offset + 10] = 1f;
+    m[offset + 15] = 1f;
+  }
+
+  /**
+   * Sets {@code m} to the rigid transform of the given pose, whose rotation is the unit quaternion
+   * {@code (qx, qy, qz, qw)} as returned by {@link com.google.ar.core.Pose#getRotationQuaternion}.
+   */
+  public static void setPose(
+      float[] m, int offset, float tx, float ty, float tz, float qx, float qy, float qz, float qw) {
+    float xx = qx * qx;
+    float yy = qy * qy;
+    float zz = qz * qz;
+    float xy = qx * qy;
+    float xz = qx * qz;
+    float yz = qy * qz;
+    float wx = qw * qx;
+    float wy = qw * qy;
+    float wz = qw * qz;
+    m[offset] = 1f - 2f * (yy + zz);
+    m[offset + 1] = 2f * (xy + wz);
+    m[offset + 2] = 2f * (xz - wy);
+    m[offset + 3] = 0f;
+    m[offset + 4] = 2f * (xy - wz);
+    m[offset + 5] = 1f - 2f * (xx + zz);
+    m[offset + 6] = 2f * (yz + wx);
+    m[offset + 7] = 0f;
+    m[offset + 8] = 2f * (xz + wy);
+    m[offset + 9] = 2f * (yz - wx);
+    m[offset + 10] = 1f - 2f * (xx + yy);
+    m[offset + 11] = 0f;
+    m[offset + 12] = tx;
+    m[offset + 13] = ty;
+    m[offset + 14] = tz;
+    m[offset + 15] = 1f;
+  }
+
+  /** Sets {@code result} to {@code lhs * rhs}. */
+  public static void multiply(
+      float[] result, int resultOffset, float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+    float l00 = lhs[lhsOffset];
+    float l10 = lhs[lhsOffset + 1];
+    float l20 = lhs[lhsOffset + 2];
+    float l30 = lhs[lhsOffset + 3];
+    float l01 = lhs[lhsOffset + 4];
+    float l11 = lhs[lhsOffset + 5];
+    float l21 = lhs[lhsOffset + 6];
+    float l31 = lhs[lhsOffset + 7];
+    float l02 = lhs[lhsOffset + 8];
+    float l12 = lhs[lhsOffset + 9];
+    float l22 = lhs[lhsOffset + 10];
+    float l32 = lhs[lhsOffset + 11];
+    float l03 = lhs[lhsOffset + 12];
+    float l13 = lhs[lhsOffset + 13];
+    float l23 = lhs[lhsOffset + 14];
+    float l33 = lhs[lhsOffset + 15];
+    // Each column of the result only depends on the same column of rhs, which is read first.
+    for (int column = 0; column < 16; column += 4) {
+      float r0 = rhs[rhsOffset + column];
+      float r1 = rhs[rhsOffset + column + 1];
+      float r2 = rhs[rhsOffset + column + 2];
+      float r3 = rhs[rhsOffset + column + 3];
+      result[resultOffset + column] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+      result[resultOffset + column + 1] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+      result[resultOffset + column + 2] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+      result[resultOffset + column + 3] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+    }
+  }
+
+  /** Sets the 4 floats of {@code result} to {@code m * v}, where {@code v} has 4 floats. */
+  public static void multiplyVector(
+      float[] result, int resultOffset, float[] m, int mOffset, float[] v, int vOffset) {
+    float x = v[vOffset];
+    float y = v[vOffset + 1];
+    float z = v[vOffset + 2];
+    float w = v[vOffset + 3];
+    result[resultOffset] =
+        m[mOffset] * x + m[mOffset + 4] * y + m[mOffset + 8] * z + m[mOffset + 12] * w;
+    result[resultOffset + 1] =
+        m[mOffset + 1] * x + m[mOffset + 5] * y + m[mOffset + 9] * z + m[mOffset + 13] * w;
+    result[resultOffset + 2] =
+        m[mOffset + 2] * x + m[mOffset + 6] * y + m[mOffset + 10] * z + m[mOffset + 14] * w;
+    result[resultOffset + 3] =
+        m[mOffset + 3] * x + m[mOffset + 7] * y + m[mOffset + 11] * z + m[mOffset + 15] * w;
+  }
+
+  /**
+   * Transforms {@code count} points of 3 floats by the affine transform {@code m}, ignoring its
+   * last row. Points are read from {@code src} and written to {@code dst} every {@code srcStride}
+   * and {@code dstStride} floats, which lets them be interleaved with other attributes, such as the
+   * confidence of ARCore's point cloud. {@code src} and {@code dst} may be the same.
+   */
+  public static void transformPoints(
+      float[] m,
+      int mOffset,
+      float[] src,
+      int srcOffset,
+      int srcStride,
+      float[] dst,
+      int dstOffset,
+      int dstStride,
+      int count) {
+    float m00 = m[mOffset];
+    float m10 = m[mOffset + 1];
+    float m20 = m[mOffset + 2];
+    float m01 = m[mOffset + 4];
+    float m11 = m[mOffset + 5];
+    float m21 = m[mOffset + 6];
+    float m02 = m[mOffset + 8];
+    float m12 = m[mOffset + 9];
+    float m22 = m[mOffset + 10];
+    float m03 = m[mOffset + 12];
+    float m13 = m[mOffset + 13];
+    float m23 = m[mOffset + 14];
+    for (int i = 0; i < count; ++i) {
+      int s = srcOffset + i * srcStride;
+      int d = dstOffset + i * dstStride;
+      float x = src[s];
+      float y = src[s + 1];
+      float z = src[s + 2];
+      dst[d] = m00 * x + m01 * y + m02 * z + m03;
+      dst[d + 1] = m10 * x + m11 * y + m12 * z + m13;
+      dst[d + 2] = m20 * x + m21 * y + m22 * z + m23;
+    }
+  }
+
+  /**
+   * Sets {@code result} to the inverse of the rigid transform {@code m}, such as a view or pose
+   * matrix, whose upper 3x3 is a rotation and whose last row is {@code (0, 0, 0, 1)}. This is
+   * several times cheaper than {@link #invert}, but wrong for any other matrix.
+   */
+  public static void invertRigid(float[] result, int resultOffset, float[] m, int mOffset) {
+    float m00 = m[mOffset];
+    float m10 = m[mOffset + 1];
+    float m20 = m[mOffset + 2];
+    float m01 = m[mOffset + 4];
+    float m11 = m[mOffset + 5];
+    float m21 = m[mOffset + 6];
+    float m02 = m[mOffset + 8];
+    float m12 = m[mOffset + 9];
+    float m22 = m[mOffset + 10];
+    float tx = m[mOffset + 12];
+    float ty = m[mOffset + 13];
+    float tz = m[mOffset + 14];
+    // The inverse rotation is the transpose, and the inverse translation is -transpose * t.
+    result[resultOffset] = m00;
+    result[resultOffset + 1] = m01;
+    result[resultOffset + 2] = m02;
+    result[resultOffset + 3] = 0f;
+    result[resultOffset + 4] = m10;
+    result[resultOffset + 5] = m11;
+    result[resultOffset + 6] = m12;
+    result[resultOffset + 7] = 0f;
+    result[resultOffset + 8] = m20;
+    result[resultOffset + 9] = m21;
+    result[resultOffset + 10] = m22;
+    result[resultOffset + 11] = 0f;
+    result[resultOffset + 12] = -(m00 * tx + m10 * ty + m20 * tz);
+    result[resultOffset + 13] = -(m01 * tx + m11 * ty + m21 * tz);
+    result[resultOffset + 14] = -(m02 * tx + m12 * ty + m22 * tz);
+    result[resultOffset + 15] = 1f;
+  }
+
+  /**
+   * Sets {@code result} to the inverse of {@code m}. Returns false and leaves {@code result}
+   * unchanged if {@code m} is not invertible.
+   */
+  public static boolean invert(float[] result, int resultOffset, float[] m, int mOffset) {
+    // Since the inverse of the transpose is the transpose of the inverse, the matrix is read and
+    // written in row-major order, and the names below refer to rows and columns of its transpose.
+    float a00 = m[mOffset];
+    float a01 = m[mOffset + 1];
+    float a02 = m[mOffset + 2];
+    float a03 = m[mOffset + 3];
+    float a10 = m[mOffset + 4];
+    float a11 = m[mOffset + 5];
+    float a12 = m[mOffset + 6];
+    float a13 = m[mOffset + 7];
+    float a20 = m[mOffset + 8];
+    float a21 = m[mOffset + 9];
+    float a22 = m[mOffset + 10];
+    float a23 = m[mOffset + 11];
+    float a30 = m[mOffset + 12];
+    float a31 = m[mOffset + 13];
+    float a32 = m[mOffset + 14];
+    float a33 = m[mOffset + 15];
+
+    // 2x2 determinants of the upper two rows and of the lower two rows.
+    float s0 = a00 * a11 - a10 * a01;
+    float s1 = a00 * a12 - a10 * a02;
+    float s2 = a00 * a13 - a10 * a03;
+    float s3 = a01 * a12 - a11 * a02;
+    float s4 = a01 * a13 - a11 * a03;
+    float s5 = a02 * a13 - a12 * a03;
+    float c5 = a22 * a33 - a32 * a23;
+    float c4 = a21 * a33 - a31 * a23;
+    float c3 = a21 * a32 - a31 * a22;
+    float c2 = a20 * a33 - a30 * a23;
+    float c1 = a20 * a32 - a30 * a22;
+    float c0 = a20 * a31 - a30 * a21;
+
+    float determinant = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+    if (determinant == 0f) {
+      return false;
+    }
+    float inverseDeterminant = 1f / determinant;
+    result[resultOffset] = (a11 * c5 - a12 * c4 + a13 * c3) * inverseDeterminant;
+    result[resultOffset + 1] = (-a01 * c5 + a02 * c4 - a03 * c3) * inverseDeterminant;
+    result[resultOffset + 2] = (a31 * s5 - a32 * s4 + a33 * s3) * inverseDeterminant;
+    result[resultOffset + 3] = (-a21 * s5 + a22 * s4 - a23 * s3) * inverseDeterminant;
+    result[resultOffset + 4] = (-a10 * c5 + a12 * c2 - a13 * c1) * inverseDeterminant;
+    result[resultOffset + 5] = (a00 * c5 - a02 * c2 + a03 * c1) * inverseDeterminant;
+    result[resultOffset + 6] = (-a30 * s5 + a32 * s2 - a33 * s1) * inverseDeterminant;
+    result[resultOffset + 7] = (a20 * s5 - a22 * s2 + a23 * s1) * inverseDeterminant;
+    result[resultOffset + 8] = (a10 * c4 - a11 * c2 + a13 * c0) * inverseDeterminant;
+    result[resultOffset + 9] = (-a00 * c4 + a01 * c2 - a03 * c0) * inverseDeterminant;
+    result[resultOffset + 10] = (a30 * s4 - a31 * s2 + a33 * s0) * inverseDeterminant;
+    result[resultOffset + 11] = (-a20 * s4 + a21 * s2 - a23 * s0) * inverseDeterminant;
+    result[resultOffset + 12] = (-a10 * c3 + a11 * c1 - a12 * c0) * inverseDeterminant;
+    result[resultOffset + 13] = (a00 * c3 - a01 * c1 + a02 * c0) * inverseDeterminant;
+    result[resultOffset + 14] = (-a30 * s3 + a31 * s1 - a32 * s0) * inverseDeterminant;
+    result[resultOffset + 15] = (a20 * s3 - a21 * s1 + a22 * s0) * inverseDeterminant;
+    return true;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+/**
+ * Operations on quaternions stored as 4 floats {@code (x, y, z, w)} in a {@code float[]} at a
+ * given offset, the layout of {@link com.google.ar.core.Pose#getRotationQuaternion}.
+ *
+ * <p>As with {@link Mat4}, results may alias inputs, nothing is allocated, and these methods may
+ * be called from any thread.
+ */
+public final class Quaternion {
+  /** The number of floats of a quaternion. */
+  public static final int SIZE = 4;
+
+  private Quaternion() {}
+
+  /**
+   * Sets {@code result} to the unit quaternion of the rotation matrix whose element at row {@code
+   * i} and column {@code j} is {@code mij}.
+   */
+  public static void setFromRotationMatrix(
+      float[] result,
+      int offset,
+      float m00,
+      float m01,
+      float m02,
+      float m10,
+      float m11,
+      float m12,
+      float m20,
+      float m21,
+      float m22) {
+    // Derive the largest component from the diagonal first, to avoid dividing by a small value.
+    float trace = m00 + m11 + m22;
+    float x;
+    float y;
+    float z;
+    float w;
+    if (trace > 0f) {
+      float s = 0.5f / (float) Math.sqrt(trace + 1f);
+      w = 0.25f / s;
+      x = (m21 - m12) * s;
+      y = (m02 - m20) * s;
+      z = (m10 - m01) * s;
+    } else if (m00 > m11 && m00 > m22) {
+      float s = 2f * (float) Math.sqrt(1f + m00 - m11 - m22);
+      w = (m21 - m12) / s;
+      x = 0.25f * s;
+      y = (m01 + m10) / s;
+      z = (m02 + m20) / s;
+    } else if (m11 > m22) {
+      float s = 2f * (float) Math.sqrt(1f + m11 - m00 - m22);
+      w = (m02 - m20) / s;
+      x = (m01 + m10) / s;
+      y = 0.25f * s;
+      z = (m12 + m21) / s;
+    } else {
+      float s = 2f * (float) Math.sqrt(1f + m22 - m00 - m11);
+      w = (m10 - m01) / s;
+      x = (m02 + m20) / s;
+      y = (m12 + m21) / s;
+      z = 0.25f * s;
+    }
+    result[offset] = x;
+    result[offset + 1] = y;
+    result[offset + 2] = z;
+    result[offset + 3] = w;
+    normalize(result, offset);
+  }
+
+  /** Sets {@code result} to {@code lhs * rhs}, the rotation by {@code rhs} then by {@code lhs}. */
+  public static void multiply(
+      float[] result, int resultOffset, float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+    float ax = lhs[lhsOffset];
+    float ay = lhs[lhsOffset + 1];
+    float az = lhs[lhsOffset + 2];
+    float aw = lhs[lhsOffset + 3];
+    float bx = rhs[rhsOffset];
+    float by = rhs[rhsOffset + 1];
+    float bz = rhs[rhsOffset + 2];
+    float bw = rhs[rhsOffset + 3];
+    result[resultOffset] = aw * bx + ax * bw + ay * bz - az * by;
+    result[resultOffset + 1] = aw * by - ax * bz + ay * bw + az * bx;
+    result[resultOffset + 2] = aw * bz + ax * by - ay * bx + az * bw;
+    result[resultOffset + 3] = aw * bw - ax * bx - ay * by - az * bz;
+  }
+
+  /** Scales {@code q} to unit length. Leaves a zero quaternion unchanged. */
+  public static void normalize(float[] q, int offset) {
+    float x = q[offset];
+    float y = q[offset + 1];
+    float z = q[offset + 2];
+    float w = q[offset + 3];
+    float lengthSquared = x * x + y * y + z * z + w * w;
+    if (lengthSquared == 0f) {
+      return;
+    }
+    float scale = 1f / (float) Math.sqrt(lengthSquared);
+    q[offset] = x * scale;
+    q[offset + 1] = y * scale;
+    q[offset + 2] = z * scale;
+    q[offset + 3] = w * scale;
+  }
+
+  /** Sets the 3 floats of {@code result} to the vector {@code v} rotated by the unit {@code q}. */
+  public static void rotateVector(
+      float[] result, int resultOffset, float[] q, int qOffset, float[] v, int vOffset) {
+    float qx = q[qOffset];
+    float qy = q[qOffset + 1];
+    float qz = q[qOffset + 2];
+    float qw = q[qOffset + 3];
+    float vx = v[vOffset];
+    float vy = v[vOffset + 1];
+    float vz = v[vOffset + 2];
+    // v + 2w(q x v) + 2q x (q x v), with t = 2(q x v).
+    float tx = 2f * (qy * vz - qz * vy);
+    float ty = 2f * (qz * vx - qx * vz);
+    float tz = 2f * (qx * vy - qy * vx);
+    result[resultOffset] = vx + qw * tx + (qy * tz - qz * ty);
+    result[resultOffset + 1] = vy + qw * ty + (qz * tx - qx * tz);
+    result[resultOffset + 2] = vz + qw * tz + (qx * ty - qy * tx);
+  }
+}
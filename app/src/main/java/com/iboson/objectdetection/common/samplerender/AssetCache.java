@@ -0,0 +1,238 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Loads textures, meshes and shaders from assets on first use, and shares them between users.
+ *
+ * <p>Each {@code acquire} method returns a {@link Handle} holding a reference to the cached
+ * resource, which must be closed once the resource is not needed anymore. Resources without
+ * references stay cached so that they can be acquired again cheaply, until the estimated GPU memory
+ * of the cache exceeds its budget, at which point the least recently used ones are freed. All
+ * unreferenced resources are freed on the frame following {@link #requestTrim}, typically called
+ * from {@link android.content.ComponentCallbacks2#onTrimMemory}.
+ *
+ * <p>A cached {@link Shader} is shared by everyone acquiring the same sources and defines, and so
+ * are the uniform values set on it.
+ *
+ * <p>Apart from {@link #requestTrim}, only accessed on the GL thread. The cache belongs to the GL
+ * context it was created for, and must be created again along with the surface.
+ */
+public class AssetCache {
+  private static final String TAG = AssetCache.class.getSimpleName();
+
+  /** A reference to a cached resource. Closing it releases the reference. */
+  public final class Handle<T extends Closeable> implements Closeable {
+    private final Entry entry;
+    private boolean released;
+
+    private Handle(Entry entry) {
+      this.entry = entry;
+    }
+
+    /** Returns the cached resource, which must not be closed directly. */
+    @SuppressWarnings("unchecked")
+    public T get() {
+      if (released) {
+        throw new IllegalStateException("Handle of " + entry.key + " was released");
+      }
+      return (T) entry.resource;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(entry);
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final Closeable resource;
+    private final long byteCount;
+    private int referenceCount;
+
+    private Entry(String key, Closeable resource, long byteCount) {
+      this.key = key;
+      this.resource = resource;
+      this.byteCount = byteCount;
+    }
+  }
+
+  private interface Loader {
+    Closeable load() throws IOException;
+  }
+
+  private final SampleRender render;
+  private final long budgetByteCount;
+  // Iterated in least recently used order.
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<>(/* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+  private long cachedByteCount;
+  private volatile boolean trimRequested;
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * @param budgetByteCount The estimated GPU memory above which unreferenced resources are freed.
+   */
+  public AssetCache(SampleRender render, long budgetByteCount) {
+    this.render = render;
+    this.budgetByteCount = budgetByteCount;
+  }
+
+  /** Acquires the texture of the given asset, loading it if necessary. */
+  public Handle<Texture> acquireTexture(
+      String assetFileName, Texture.WrapMode wrapMode, Texture.ColorFormat colorFormat)
+      throws IOException {
+    String key = "texture:" + assetFileName + ":" + wrapMode + ":" + colorFormat;
+    return acquire(
+        key, () -> Texture.createFromAsset(render, assetFileName, wrapMode, colorFormat));
+  }
+
+  /** Acquires the mesh of the given Wavefront OBJ asset, loading it if necessary. */
+  public Handle<Mesh> acquireMesh(String assetFileName) throws IOException {
+    return acquire("mesh:" + assetFileName, () -> Mesh.createFromAsset(render, assetFileName));
+  }
+
+  /**
+   * Acquires the shader built from the given assets and defines, loading it if necessary.
+   *
+   * @param defines A map of shader precompiler symbols to be defined with the given names and
+   *     values, or null
+   */
+  public Handle<Shader> acquireShader(
+      String vertexShaderFileName, String fragmentShaderFileName, Map<String, String> defines)
+      throws IOException {
+    // Sort the defines so that equal maps make equal keys.
+    String key =
+        "shader:"
+            + vertexShaderFileName
+            + ":"
+            + fragmentShaderFileName
+            + ":"
+            + (defines == null ? "{}" : new TreeMap<>(defines).toString());
+    return acquire(
+        key,
+        () ->
+            Shader.createFromAssets(render, vertexShaderFileName, fragmentShaderFileName, defines));
+  }
+
+  /**
+   * Requests that every unreferenced resource be freed on the next call to {@link #update}. May be
+   * called from any thread.
+   */
+  public void requestTrim() {
+    trimRequested = true;
+  }
+
+  /** Handles a trim requested since the last call. Must be called once per frame. */
+  public void update() {
+    if (trimRequested) {
+      trimRequested = false;
+      int count = evict(/* targetByteCount= */ 0, /* all= */ true);
+      Log.i(TAG, "Trimmed " + count + " unreferenced assets");
+    }
+  }
+
+  /** Returns the estimated GPU memory of the cached resources, in bytes. */
+  public long getCachedByteCount() {
+    return cachedByteCount;
+  }
+
+  /** Returns the number of cached resources, referenced or not. */
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  /** Returns the number of acquisitions served from the cache. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of acquisitions that loaded a resource. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  private <T extends Closeable> Handle<T> acquire(String key, Loader loader) throws IOException {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      Closeable resource = loader.load();
+      entry = new Entry(key, resource, getEstimatedByteCount(resource));
+      entries.put(key, entry);
+      cachedByteCount += entry.byteCount;
+      // Reference the new entry first so that it is not evicted right away.
+      entry.referenceCount++;
+      evict(budgetByteCount, /* all= */ false);
+    } else {
+      hitCount++;
+      entry.referenceCount++;
+    }
+    return new Handle<>(entry);
+  }
+
+  private void release(Entry entry) {
+    entry.referenceCount--;
+    evict(budgetByteCount, /* all= */ false);
+  }
+
+  /**
+   * Frees unreferenced resources, least recently used first, until the cache fits in {@code
+   * targetByteCount}, or every one of them if {@code all} is set. Returns the number of freed
+   * resources.
+   */
+  private int evict(long targetByteCount, boolean all) {
+    int count = 0;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while ((all || cachedByteCount > targetByteCount) && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.referenceCount > 0) {
+        continue;
+      }
+      iterator.remove();
+      cachedByteCount -= entry.byteCount;
+      try {
+        entry.resource.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to free " + entry.key, e);
+      }
+      count++;
+    }
+    return count;
+  }
+
+  private static long getEstimatedByteCount(Closeable resource) {
+    if (resource instanceof Texture) {
+      return ((Texture) resource).getEstimatedByteCount();
+    }
+    if (resource instanceof Mesh) {
+      return ((Mesh) resource).getEstimatedByteCount();
+    }
+    return 0;
+  }
+}
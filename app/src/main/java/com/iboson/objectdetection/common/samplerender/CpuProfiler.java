@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.os.Process;
+import android.os.Trace;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records scoped CPU timings of any thread, and exports them in the Chrome trace event format,
+ * which can be opened in Perfetto or chrome://tracing.
+ *
+ * <p>Scopes are delimited by {@link #begin} and {@link #end}, which also emit {@link Trace}
+ * sections for systrace and Perfetto captures. Each thread records its completed scopes into its
+ * own preallocated ring of the last {@link #RING_CAPACITY} events, which is written without locks
+ * and read by {@link #writeChromeTrace} from any thread. Recording does not allocate, except once
+ * per thread on its first event.
+ *
+ * <p>Scope names are stored by reference, and should be constants.
+ */
+public final class CpuProfiler {
+  /** The number of events kept per thread. */
+  public static final int RING_CAPACITY = 4096;
+
+  private static final int RING_MASK = RING_CAPACITY - 1;
+  private static final int MAX_DEPTH = 32;
+  private static final long INSTANT = -1;
+
+  private static final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<>();
+  private static final ThreadLocal<Ring> threadRing = ThreadLocal.withInitial(CpuProfiler::register);
+  private static volatile boolean enabled = true;
+
+  /** The events of a single thread. Only the owning thread writes to it. */
+  private static final class Ring {
+    private final int threadId;
+    private final String threadName;
+    private final String[] names = new String[RING_CAPACITY];
+    private final long[] startNanos = new long[RING_CAPACITY];
+    private final long[] durationNanos = new long[RING_CAPACITY];
+    // The number of events ever written. Written last, so that readers see complete events.
+    private volatile long writeCount;
+
+    // The scopes currently open on the thread.
+    private final String[] openNames = new String[MAX_DEPTH];
+    private final long[] openStartNanos = new long[MAX_DEPTH];
+    private int depth;
+
+    private Ring(int threadId, String threadName) {
+      this.threadId = threadId;
+      this.threadName = threadName;
+    }
+
+    private void write(String name, long start, long duration) {
+      long count = writeCount;
+      int index = (int) count & RING_MASK;
+      names[index] = name;
+      startNanos[index] = start;
+      durationNanos[index] = duration;
+      writeCount = count + 1;
+    }
+  }
+
+  private CpuProfiler() {}
+
+  /** Sets whether events are recorded. {@link Trace} sections are emitted regardless. */
+  public static void setEnabled(boolean enabled) {
+    CpuProfiler.enabled = enabled;
+  }
+
+  /** Opens a scope on the calling thread. Must be matched by a call to {@link #end}. */
+  public static void begin(String name) {
+    Trace.beginSection(name);
+    Ring ring = threadRing.get();
+    if (ring.depth < MAX_DEPTH) {
+      ring.openNames[ring.depth] = name;
+      ring.openStartNanos[ring.depth] = System.nanoTime();
+    }
+    ring.depth++;
+  }
+
+  /** Closes the innermost scope opened by the calling thread. */
+  public static void end() {
+    long now = System.nanoTime();
+    Ring ring = threadRing.get();
+    if (ring.depth == 0) {
+      throw new IllegalStateException("No scope is open on " + ring.threadName);
+    }
+    ring.depth--;
+    if (enabled && ring.depth < MAX_DEPTH) {
+      long start = ring.openStartNanos[ring.depth];
+      ring.write(ring.openNames[ring.depth], start, now - start);
+      ring.openNames[ring.depth] = null;
+    }
+    Trace.endSection();
+  }
+
+  /** Records an instantaneous event on the calling thread. */
+  public static void instant(String name) {
+    if (enabled) {
+      threadRing.get().write(name, System.nanoTime(), INSTANT);
+    }
+  }
+
+  /**
+   * Writes the events of every thread as a Chrome trace JSON object. May be called from any thread
+   * while events are being recorded; events overwritten while exporting are left out. Allocates.
+   */
+  public static void writeChromeTrace(Writer writer) throws IOException {
+    int processId = Process.myPid();
+    String[] names = new String[RING_CAPACITY];
+    long[] starts = new long[RING_CAPACITY];
+    long[] durations = new long[RING_CAPACITY];
+    boolean first = true;
+    writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    for (Ring ring : rings) {
+      writer.write(first ? "\n" : ",\n");
+      first = false;
+      writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":");
+      writer.write(Integer.toString(processId));
+      writer.write(",\"tid\":");
+      writer.write(Integer.toString(ring.threadId));
+      writer.write(",\"args\":{\"name\":");
+      writeString(writer, ring.threadName);
+      writer.write("}}");
+
+      // Copy the ring, then drop the events the owner may have overwritten during the copy.
+      long endCount = ring.writeCount;
+      long startCount = Math.max(0, endCount - RING_CAPACITY);
+      for (long i = startCount; i < endCount; ++i) {
+        int index = (int) i & RING_MASK;
+        names[index] = ring.names[index];
+        starts[index] = ring.startNanos[index];
+        durations[index] = ring.durationNanos[index];
+      }
+      long validCount = Math.max(startCount, ring.writeCount - RING_CAPACITY);
+      for (long i = validCount; i < endCount; ++i) {
+        int index = (int) i & RING_MASK;
+        writer.write(",\n{\"name\":");
+        writeString(writer, names[index]);
+        if (durations[index] == INSTANT) {
+          writer.write(",\"ph\":\"i\",\"s\":\"t\"");
+        } else {
+          writer.write(",\"ph\":\"X\",\"dur\":");
+          writeMicros(writer, durations[index]);
+        }
+        writer.write(",\"ts\":");
+        writeMicros(writer, starts[index]);
+        writer.write(",\"pid\":");
+        writer.write(Integer.toString(processId));
+        writer.write(",\"tid\":");
+        writer.write(Integer.toString(ring.threadId));
+        writer.write("}");
+      }
+    }
+    writer.write("\n]}\n");
+    writer.flush();
+  }
+
+  private static Ring register() {
+    Ring ring = new Ring(Process.myTid(), Thread.currentThread().getName());
+    rings.add(ring);
+    return ring;
+  }
+
+  private static void writeMicros(Writer writer, long nanos) throws IOException {
+    writer.write(Long.toString(nanos / 1000));
+    writer.write('.');
+    long fraction = nanos % 1000;
+    if (fraction < 100) {
+      writer.write('0');
+    }
+    if (fraction < 10) {
+      writer.write('0');
+    }
+    writer.write(Long.toString(fraction));
+  }
+
+  private static void writeString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        writer.write('\\');
+        writer.write(c);
+      } else if (c < 0x20) {
+        writer.write(String.format("\\u%04x", (int) c));
+      } else {
+        writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+}
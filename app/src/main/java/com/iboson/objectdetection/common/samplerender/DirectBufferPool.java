@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pool of direct {@link ByteBuffer}s, for staging data on its way to the GPU or to
+ * native code.
+ *
+ * <p>Buffers are handed out in power-of-two size classes from {@link #MIN_BYTE_COUNT} to {@link
+ * #MAX_BYTE_COUNT} bytes, in native byte order so that {@link ByteBuffer#asFloatBuffer} and similar
+ * views can be passed to GL directly. Released buffers are kept in a small cache of the releasing
+ * thread, then in a shared pool of at most {@link #MAX_SHARED_BYTE_COUNT} bytes, and are otherwise
+ * left to the garbage collector. Larger requests are allocated directly and never pooled.
+ *
+ * <p>A released buffer, and every view of it, must not be used anymore. May be used from any
+ * thread.
+ */
+public final class DirectBufferPool {
+  private static final int MIN_SHIFT = 6;
+  private static final int MAX_SHIFT = 24;
+
+  /** The capacity of the smallest size class. */
+  public static final int MIN_BYTE_COUNT = 1 << MIN_SHIFT;
+
+  /** The capacity of the largest size class. */
+  public static final int MAX_BYTE_COUNT = 1 << MAX_SHIFT;
+
+  /** The total capacity of the buffers kept in the shared pool. */
+  public static final long MAX_SHARED_BYTE_COUNT = 16L << 20;
+
+  // The number of buffers of each size class kept by each thread.
+  private static final int THREAD_CACHE_SIZE = 2;
+
+  private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+  private static final ThreadLocal<ByteBuffer[][]> threadCaches =
+      ThreadLocal.withInitial(() -> new ByteBuffer[CLASS_COUNT][THREAD_CACHE_SIZE]);
+  private static final ConcurrentLinkedQueue<ByteBuffer>[] sharedPools = createSharedPools();
+  private static final AtomicLong sharedByteCount = new AtomicLong();
+
+  private static final AtomicLong acquiredByteCount = new AtomicLong();
+  private static final AtomicLong highWaterByteCount = new AtomicLong();
+  private static final AtomicLong allocatedByteCount = new AtomicLong();
+  private static final AtomicLong acquireCount = new AtomicLong();
+  private static final AtomicLong allocationCount = new AtomicLong();
+
+  private DirectBufferPool() {}
+
+  /**
+   * Returns a direct buffer in native byte order, whose position is 0 and whose limit is {@code
+   * byteCount}. Its capacity may be larger. Its contents are undefined. It should be given back
+   * with {@link #release} once not needed anymore.
+   */
+  public static ByteBuffer acquire(int byteCount) {
+    if (byteCount < 0) {
+      throw new IllegalArgumentException("Negative byte count: " + byteCount);
+    }
+    ByteBuffer buffer;
+    if (byteCount > MAX_BYTE_COUNT) {
+      buffer = allocate(byteCount);
+    } else {
+      int sizeClass = getSizeClass(byteCount);
+      buffer = takeCached(sizeClass);
+      if (buffer == null) {
+        buffer = allocate(MIN_BYTE_COUNT << sizeClass);
+      }
+    }
+    acquireCount.incrementAndGet();
+    long acquired = acquiredByteCount.addAndGet(buffer.capacity());
+    long highWater = highWaterByteCount.get();
+    while (acquired > highWater && !highWaterByteCount.compareAndSet(highWater, acquired)) {
+      highWater = highWaterByteCount.get();
+    }
+    buffer.clear();
+    buffer.limit(byteCount);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  /** Gives back a buffer returned by {@link #acquire}. Does nothing if {@code buffer} is null. */
+  public static void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    acquiredByteCount.addAndGet(-capacity);
+    if (capacity < MIN_BYTE_COUNT
+        || capacity > MAX_BYTE_COUNT
+        || Integer.bitCount(capacity) != 1) {
+      // Not from a size class.
+      return;
+    }
+    int sizeClass = getSizeClass(capacity);
+    ByteBuffer[] threadCache = threadCaches.get()[sizeClass];
+    for (int i = 0; i < THREAD_CACHE_SIZE; ++i) {
+      if (threadCache[i] == null) {
+        threadCache[i] = buffer;
+        return;
+      }
+    }
+    if (sharedByteCount.addAndGet(capacity) <= MAX_SHARED_BYTE_COUNT) {
+      sharedPools[sizeClass].offer(buffer);
+    } else {
+      sharedByteCount.addAndGet(-capacity);
+    }
+  }
+
+  /** Returns the total capacity of the buffers currently acquired, in bytes. */
+  public static long getAcquiredByteCount() {
+    return acquiredByteCount.get();
+  }
+
+  /** Returns the highest total capacity of the buffers acquired at once, in bytes. */
+  public static long getHighWaterByteCount() {
+    return highWaterByteCount.get();
+  }
+
+  /** Returns the total capacity of the buffers ever allocated by the pool, in bytes. */
+  public static long getAllocatedByteCount() {
+    return allocatedByteCount.get();
+  }
+
+  /** Returns the number of calls to {@link #acquire}. */
+  public static long getAcquireCount() {
+    return acquireCount.get();
+  }
+
+  /** Returns the number of buffers allocated because none could be reused. */
+  public static long getAllocationCount() {
+    return allocationCount.get();
+  }
+
+  /** Returns a human readable summary of the pool. Allocates. */
+  public static String getSummary() {
+    return "Direct buffers: acquired "
+        + getAcquiredByteCount() / 1024
+        + " KB, high water "
+        + getHighWaterByteCount() / 1024
+        + " KB, allocated "
+        + getAllocatedByteCount() / 1024
+        + " KB in "
+        + getAllocationCount()
+        + " of "
+        + getAcquireCount()
+        + " acquisitions";
+  }
+
+  /** Returns the index of the smallest size class holding {@code byteCount} bytes. */
+  private static int getSizeClass(int byteCount) {
+    if (byteCount <= MIN_BYTE_COUNT) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(byteCount - 1) - MIN_SHIFT;
+  }
+
+  private static ByteBuffer takeCached(int sizeClass) {
+    ByteBuffer[] threadCache = threadCaches.get()[sizeClass];
+    for (int i = THREAD_CACHE_SIZE - 1; i >= 0; --i) {
+      ByteBuffer buffer = threadCache[i];
+      if (buffer != null) {
+        threadCache[i] = null;
+        return buffer;
+      }
+    }
+    ByteBuffer buffer = sharedPools[sizeClass].poll();
+    if (buffer != null) {
+      sharedByteCount.addAndGet(-buffer.capacity());
+    }
+    return buffer;
+  }
+
+  private static ByteBuffer allocate(int capacity) {
+    allocationCount.incrementAndGet();
+    allocatedByteCount.addAndGet(capacity);
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static ConcurrentLinkedQueue<ByteBuffer>[] createSharedPools() {
+    ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[CLASS_COUNT];
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      pools[i] = new ConcurrentLinkedQueue<>();
+    }
+    return pools;
+  }
+}
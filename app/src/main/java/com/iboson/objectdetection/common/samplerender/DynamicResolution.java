@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+/**
+ * Chooses the render scale of a {@link Framebuffer} from the measured GPU time of the passes
+ * drawing to it or reading it, to keep that time under a target. Passes whose cost does not depend
+ * on the scale should not be measured, since lowering the scale cannot bring them under target.
+ *
+ * <p>Times are smoothed with an exponential moving average. When the average exceeds the
+ * target, the scale is lowered in proportion to the excess, assuming the GPU time scales with the
+ * number of pixels. When it falls below {@link #RAISE_THRESHOLD} of the target, the scale is
+ * raised by one {@link #SCALE_STEP}. After each change, the scale is held for {@link
+ * #HOLD_SAMPLE_COUNT} samples so that the effect of the change can be measured.
+ */
+public class DynamicResolution {
+  /** The granularity of the scale. */
+  public static final float SCALE_STEP = 0.05f;
+  /** The fraction of the target below which the scale is raised. */
+  public static final float RAISE_THRESHOLD = 0.75f;
+  /** The number of samples the scale is held for after a change. */
+  public static final int HOLD_SAMPLE_COUNT = 15;
+
+  private static final float SMOOTHING_FACTOR = 0.1f;
+
+  private final float minScale;
+  private final float maxScale;
+  private final long targetGpuTimeNanos;
+  private float scale;
+  private float averageGpuTimeNanos = 0f;
+  private int holdSamplesRemaining = 0;
+
+  /**
+   * @param minScale The lowest scale, greater than 0.
+   * @param maxScale The highest scale, at most 1. The scale starts there.
+   * @param targetGpuTimeNanos The GPU time of the scaled passes to stay under.
+   */
+  public DynamicResolution(float minScale, float maxScale, long targetGpuTimeNanos) {
+    if (!(minScale > 0f && minScale <= maxScale && maxScale <= 1f)) {
+      throw new IllegalArgumentException(
+          "Scales must satisfy 0 < minScale <= maxScale <= 1: " + minScale + ", " + maxScale);
+    }
+    this.minScale = minScale;
+    this.maxScale = maxScale;
+    this.targetGpuTimeNanos = targetGpuTimeNanos;
+    scale = maxScale;
+  }
+
+  /**
+   * Updates the scale with a new GPU time of the scaled passes. Frames where they did not run
+   * should be skipped.
+   *
+   * @return whether the scale changed
+   */
+  public boolean update(long gpuTimeNanos) {
+    if (averageGpuTimeNanos == 0f) {
+      averageGpuTimeNanos = gpuTimeNanos;
+    } else {
+      averageGpuTimeNanos += SMOOTHING_FACTOR * (gpuTimeNanos - averageGpuTimeNanos);
+    }
+    if (holdSamplesRemaining > 0) {
+      holdSamplesRemaining--;
+      return false;
+    }
+
+    float newScale = scale;
+    if (averageGpuTimeNanos > targetGpuTimeNanos) {
+      // The pixel count, and thus the GPU time, is proportional to the square of the scale.
+      newScale =
+          quantizeDown(scale * (float) Math.sqrt(targetGpuTimeNanos / averageGpuTimeNanos));
+      // Always lower the scale by at least a step when over the target.
+      newScale = Math.min(newScale, scale - SCALE_STEP);
+    } else if (averageGpuTimeNanos < targetGpuTimeNanos * RAISE_THRESHOLD) {
+      newScale = scale + SCALE_STEP;
+    }
+    newScale = Math.max(minScale, Math.min(maxScale, newScale));
+    if (Math.abs(newScale - scale) < SCALE_STEP / 2) {
+      return false;
+    }
+    scale = newScale;
+    holdSamplesRemaining = HOLD_SAMPLE_COUNT;
+    return true;
+  }
+
+  /** Returns the current scale. */
+  public float getScale() {
+    return scale;
+  }
+
+  /** Returns the smoothed GPU time of the scaled passes, in nanoseconds. */
+  public long getAverageGpuTimeNanos() {
+    return (long) averageGpuTimeNanos;
+  }
+
+  private static float quantizeDown(float scale) {
+    return (float) Math.floor(scale / SCALE_STEP + 1e-3f) * SCALE_STEP;
+  }
+}
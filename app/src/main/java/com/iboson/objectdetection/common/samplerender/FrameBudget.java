@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+/**
+ * Per-frame limits on the GL work recorded by a {@link RecordingGL} and on the uniform storage
+ * allocated by {@link Shader}s, used to catch regressions in the render loop.
+ *
+ * <p>Limits default to unbounded. A frame exceeding any limit is reported by {@link #check}.
+ */
+public class FrameBudget {
+  private static final int UNBOUNDED = -1;
+  private static final RecordingGL.Category[] CATEGORIES = RecordingGL.Category.values();
+  private static final String[] CATEGORY_LIMIT_NAMES = new String[CATEGORIES.length];
+
+  static {
+    for (RecordingGL.Category category : CATEGORIES) {
+      CATEGORY_LIMIT_NAMES[category.ordinal()] = category.name() + " calls";
+    }
+  }
+
+  private final long[] maxCallCounts = new long[CATEGORIES.length];
+  private long maxTotalCallCount = UNBOUNDED;
+  private long maxUploadedByteCount = UNBOUNDED;
+  private long maxUniformAllocationCount = UNBOUNDED;
+
+  public FrameBudget() {
+    for (int i = 0; i < maxCallCounts.length; ++i) {
+      maxCallCounts[i] = UNBOUNDED;
+    }
+  }
+
+  /** Limits the number of GL calls of the given category per frame. */
+  public FrameBudget setMaxCallCount(RecordingGL.Category category, long maxCallCount) {
+    maxCallCounts[category.ordinal()] = maxCallCount;
+    return this;
+  }
+
+  /** Limits the total number of GL calls per frame. */
+  public FrameBudget setMaxCallCount(long maxCallCount) {
+    maxTotalCallCount = maxCallCount;
+    return this;
+  }
+
+  /** Limits the number of bytes uploaded to the driver per frame. */
+  public FrameBudget setMaxUploadedByteCount(long maxUploadedByteCount) {
+    this.maxUploadedByteCount = maxUploadedByteCount;
+    return this;
+  }
+
+  /**
+   * Limits the number of uniform storage allocations per frame, as reported by {@link
+   * SampleRender#getFrameUniformAllocationCount}.
+   */
+  public FrameBudget setMaxUniformAllocationCount(long maxUniformAllocationCount) {
+    this.maxUniformAllocationCount = maxUniformAllocationCount;
+    return this;
+  }
+
+  /**
+   * Checks the last frame recorded by {@code gl} and {@code render} against this budget.
+   *
+   * @return null if the frame is within budget, or a description of every exceeded limit
+   *     otherwise. Only the failure path allocates.
+   */
+  public String check(RecordingGL gl, SampleRender render) {
+    StringBuilder builder = null;
+    for (RecordingGL.Category category : CATEGORIES) {
+      builder =
+          checkLimit(
+              builder,
+              CATEGORY_LIMIT_NAMES[category.ordinal()],
+              gl.getFrameCallCount(category),
+              maxCallCounts[category.ordinal()]);
+    }
+    builder = checkLimit(builder, "GL calls", gl.getFrameCallCount(), maxTotalCallCount);
+    builder =
+        checkLimit(
+            builder, "uploaded bytes", gl.getFrameUploadedByteCount(), maxUploadedByteCount);
+    builder =
+        checkLimit(
+            builder,
+            "uniform allocations",
+            render.getFrameUniformAllocationCount(),
+            maxUniformAllocationCount);
+    return builder == null ? null : builder.toString();
+  }
+
+  private static StringBuilder checkLimit(
+      StringBuilder builder, String name, long value, long limit) {
+    if (limit == UNBOUNDED || value <= limit) {
+      return builder;
+    }
+    if (builder == null) {
+      builder = new StringBuilder("Frame over budget: ");
+    } else {
+      builder.append(", ");
+    }
+    return builder.append(name).append(' ').append(value).append(" > ").append(limit);
+  }
+}
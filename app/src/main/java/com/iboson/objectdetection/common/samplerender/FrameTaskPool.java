@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.os.Process;
+import android.util.Log;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Worker threads running the CPU work of a frame in parallel with the GL thread.
+ *
+ * <p>Once the inputs of a frame are snapshotted, the GL thread {@link #submit}s the tasks that
+ * compute from them, goes on with its own uploads, then calls {@link #await} before consuming the
+ * results. Tasks must not make GL calls, and must only touch state that the GL thread leaves alone
+ * until {@link #await} returns; {@link #submit} and {@link #await} order the memory accesses of
+ * both sides. An exception thrown by a task is rethrown by {@link #await}.
+ *
+ * <p>Tasks are meant to be created once and submitted every frame, so that nothing is allocated per
+ * frame. Without worker threads, tasks run on the submitting thread instead.
+ */
+public class FrameTaskPool implements Closeable {
+  private static final String TAG = FrameTaskPool.class.getSimpleName();
+
+  /** The maximum number of tasks submitted and not yet awaited. */
+  public static final int MAX_PENDING_TASKS = 16;
+
+  private final Thread[] threads;
+  private final ArrayBlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(MAX_PENDING_TASKS);
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private int pendingCount;
+  private Throwable failure;
+
+  /**
+   * Starts {@code threadCount} worker threads, which may be zero.
+   *
+   * @see #getDefaultThreadCount
+   */
+  public FrameTaskPool(String name, int threadCount) {
+    threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; ++i) {
+      threads[i] = new Thread(this::runWorker, name + " " + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Returns the number of worker threads worth starting to run {@code taskCount} tasks per frame,
+   * leaving a core to the GL thread. Returns zero on single core devices.
+   */
+  public static int getDefaultThreadCount(int taskCount) {
+    return Math.max(0, Math.min(taskCount, Runtime.getRuntime().availableProcessors() - 1));
+  }
+
+  /** Returns the number of worker threads. */
+  public int getThreadCount() {
+    return threads.length;
+  }
+
+  /** Runs {@code task} on a worker thread, or right away if there are none. */
+  public void submit(Runnable task) {
+    if (threads.length == 0) {
+      task.run();
+      return;
+    }
+    synchronized (lock) {
+      if (pendingCount == MAX_PENDING_TASKS) {
+        throw new IllegalStateException(
+            "At most " + MAX_PENDING_TASKS + " tasks may be pending at once");
+      }
+      pendingCount++;
+    }
+    // Cannot block: the queue holds at most as many tasks as are pending.
+    tasks.add(task);
+  }
+
+  /**
+   * Waits for every task submitted so far to complete, then rethrows the first exception thrown by
+   * any of them.
+   */
+  public void await() {
+    boolean interrupted = false;
+    Throwable taskFailure;
+    synchronized (lock) {
+      while (pendingCount > 0) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          // The results of the tasks are needed regardless; restore the flag once they are done.
+          interrupted = true;
+        }
+      }
+      taskFailure = failure;
+      failure = null;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (taskFailure instanceof RuntimeException) {
+      throw (RuntimeException) taskFailure;
+    } else if (taskFailure instanceof Error) {
+      throw (Error) taskFailure;
+    }
+  }
+
+  /** Stops the worker threads. Tasks still pending may not run. */
+  @Override
+  public void close() {
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+  }
+
+  private void runWorker() {
+    try {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+    } catch (IllegalArgumentException | SecurityException e) {
+      Log.w(TAG, "Failed to raise worker thread priority", e);
+    }
+    while (true) {
+      Runnable task;
+      try {
+        task = tasks.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      Throwable taskFailure = null;
+      try {
+        task.run();
+      } catch (RuntimeException | Error e) {
+        taskFailure = e;
+      }
+      synchronized (lock) {
+        if (failure == null) {
+          failure = taskFailure;
+        }
+        if (--pendingCount == 0) {
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+}
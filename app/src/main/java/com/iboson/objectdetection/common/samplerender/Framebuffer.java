@@ -23,11 +23,15 @@ import java.io.Closeable;
 public class Framebuffer implements Closeable {
   private static final String TAG = Framebuffer.class.getSimpleName();
 
+  private final GL gl;
+  private final GLState glState;
   private final int[] framebufferId = {0};
+  private final ResourceRegistry.Registration registration;
   private final Texture colorTexture;
   private final Texture depthTexture;
   private int width = -1;
   private int height = -1;
+  private float renderScale = 1f;
 
   /**
    * Constructs a {@link Framebuffer} which renders internally to a texture.
@@ -36,6 +40,9 @@ public class Framebuffer implements Closeable {
    * Framebuffer)}.
    */
   public Framebuffer(SampleRender render, int width, int height) {
+    gl = render.getGl();
+    glState = render.getGlState();
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.FRAMEBUFFER);
     try {
       colorTexture =
           new Texture(
@@ -51,24 +58,22 @@ public class Framebuffer implements Closeable {
               /*useMipmaps=*/ false);
 
       // Set parameters of the depth texture so that it's readable by shaders.
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind depth texture", "glBindTexture");
-      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_COMPARE_MODE, GLES30.GL_NONE);
+      glState.bindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
+      gl.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_COMPARE_MODE, GLES30.GL_NONE);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
-      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+      gl.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
-      GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+      gl.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
 
       // Set initial dimensions.
       resize(width, height);
 
       // Create framebuffer object and bind to the color and depth textures.
-      GLES30.glGenFramebuffers(1, framebufferId, 0);
+      gl.glGenFramebuffers(1, framebufferId, 0);
       GLError.maybeThrowGLException("Framebuffer creation failed", "glGenFramebuffers");
-      GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId[0]);
-      GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
-      GLES30.glFramebufferTexture2D(
+      glState.bindFramebuffer(framebufferId[0]);
+      gl.glFramebufferTexture2D(
           GLES30.GL_FRAMEBUFFER,
           GLES30.GL_COLOR_ATTACHMENT0,
           GLES30.GL_TEXTURE_2D,
@@ -76,7 +81,7 @@ public class Framebuffer implements Closeable {
           /*level=*/ 0);
       GLError.maybeThrowGLException(
           "Failed to bind color texture to framebuffer", "glFramebufferTexture2D");
-      GLES30.glFramebufferTexture2D(
+      gl.glFramebufferTexture2D(
           GLES30.GL_FRAMEBUFFER,
           GLES30.GL_DEPTH_ATTACHMENT,
           GLES30.GL_TEXTURE_2D,
@@ -85,7 +90,7 @@ public class Framebuffer implements Closeable {
       GLError.maybeThrowGLException(
           "Failed to bind depth texture to framebuffer", "glFramebufferTexture2D");
 
-      int status = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+      int status = gl.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
       if (status != GLES30.GL_FRAMEBUFFER_COMPLETE) {
         throw new IllegalStateException("Framebuffer construction not complete: code " + status);
       }
@@ -97,13 +102,22 @@ public class Framebuffer implements Closeable {
 
   @Override
   public void close() {
+    boolean ownedByContext = registration.unregister();
     if (framebufferId[0] != 0) {
-      GLES30.glDeleteFramebuffers(1, framebufferId, 0);
-      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free framebuffer", "glDeleteFramebuffers");
+      if (ownedByContext) {
+        gl.glDeleteFramebuffers(1, framebufferId, 0);
+        GLError.maybeLogGLError(
+            Log.WARN, TAG, "Failed to free framebuffer", "glDeleteFramebuffers");
+        glState.onFramebufferDeleted(framebufferId[0]);
+      }
       framebufferId[0] = 0;
     }
-    colorTexture.close();
-    depthTexture.close();
+    if (colorTexture != null) {
+      colorTexture.close();
+    }
+    if (depthTexture != null) {
+      depthTexture.close();
+    }
   }
 
   /** Resizes the framebuffer to the given dimensions. */
@@ -115,9 +129,8 @@ public class Framebuffer implements Closeable {
     this.height = height;
 
     // Color texture
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, colorTexture.getTextureId());
-    GLError.maybeThrowGLException("Failed to bind color texture", "glBindTexture");
-    GLES30.glTexImage2D(
+    glState.bindTexture(GLES30.GL_TEXTURE_2D, colorTexture.getTextureId());
+    gl.glTexImage2D(
         GLES30.GL_TEXTURE_2D,
         /*level=*/ 0,
         GLES30.GL_RGBA,
@@ -130,9 +143,8 @@ public class Framebuffer implements Closeable {
     GLError.maybeThrowGLException("Failed to specify color texture format", "glTexImage2D");
 
     // Depth texture
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
-    GLError.maybeThrowGLException("Failed to bind depth texture", "glBindTexture");
-    GLES30.glTexImage2D(
+    glState.bindTexture(GLES30.GL_TEXTURE_2D, depthTexture.getTextureId());
+    gl.glTexImage2D(
         GLES30.GL_TEXTURE_2D,
         /*level=*/ 0,
         GLES30.GL_DEPTH_COMPONENT32F,
@@ -143,6 +155,28 @@ public class Framebuffer implements Closeable {
         GLES30.GL_FLOAT,
         /*pixels=*/ null);
     GLError.maybeThrowGLException("Failed to specify depth texture format", "glTexImage2D");
+
+    colorTexture.setEstimatedByteCount(4L * width * height);
+    depthTexture.setEstimatedByteCount(4L * width * height);
+  }
+
+  /**
+   * Restricts rendering to the bottom left part of the attachments, scaled by {@code renderScale}
+   * in both dimensions, without reallocating them. Readers of the attachments must scale their
+   * texture coordinates accordingly.
+   *
+   * @param renderScale The scale, greater than 0 and at most 1.
+   */
+  public void setRenderScale(float renderScale) {
+    if (!(renderScale > 0f && renderScale <= 1f)) {
+      throw new IllegalArgumentException("Render scale must be in (0, 1]: " + renderScale);
+    }
+    this.renderScale = renderScale;
+  }
+
+  /** Returns the render scale set with {@link #setRenderScale}. */
+  public float getRenderScale() {
+    return renderScale;
   }
 
   /** Returns the color texture associated with this framebuffer. */
@@ -165,6 +199,16 @@ public class Framebuffer implements Closeable {
     return height;
   }
 
+  /** Returns the width of the part of the framebuffer rendered to, given the render scale. */
+  public int getViewportWidth() {
+    return Math.max(1, Math.round(width * renderScale));
+  }
+
+  /** Returns the height of the part of the framebuffer rendered to, given the render scale. */
+  public int getViewportHeight() {
+    return Math.max(1, Math.round(height * renderScale));
+  }
+
   /* package-private */
   int getFramebufferId() {
     return framebufferId[0];
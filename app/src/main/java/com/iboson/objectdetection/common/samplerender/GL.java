@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 3.0 entry points used by samplerender.
+ *
+ * <p>Every GL call made by samplerender goes through an implementation of this interface, obtained
+ * from {@link SampleRender#getGl()}, rather than through {@link android.opengl.GLES30} directly.
+ * This allows the renderer to run against a GL other than the one of a {@link
+ * android.opengl.GLSurfaceView}, such as an offscreen context or a recording implementation.
+ *
+ * <p>Methods mirror their {@link android.opengl.GLES30} counterparts exactly, and enum values are
+ * the {@code GLES30} constants.
+ */
+public interface GL {
+  /** Receives messages from {@link #glDebugMessageCallbackKHR}. */
+  public static interface DebugProc {
+    public void onMessage(int source, int type, int id, int severity, String message);
+  }
+
+  public void glActiveTexture(int texture);
+
+  public void glAttachShader(int program, int shader);
+
+  public void glBeginQuery(int target, int id);
+
+  public void glBindBuffer(int target, int buffer);
+
+  public void glBindBufferRange(int target, int index, int buffer, int offset, int size);
+
+  public void glBindFramebuffer(int target, int framebuffer);
+
+  public void glBindTexture(int target, int texture);
+
+  public void glBindVertexArray(int array);
+
+  public void glBlendFuncSeparate(int srcRGB, int dstRGB, int srcAlpha, int dstAlpha);
+
+  public void glBufferData(int target, int size, Buffer data, int usage);
+
+  public void glBufferSubData(int target, int offset, int size, Buffer data);
+
+  public int glCheckFramebufferStatus(int target);
+
+  public void glClear(int mask);
+
+  public void glClearColor(float red, float green, float blue, float alpha);
+
+  public int glClientWaitSync(long sync, int flags, long timeout);
+
+  public void glCompileShader(int shader);
+
+  public int glCreateProgram();
+
+  public int glCreateShader(int type);
+
+  public void glDebugMessageCallbackKHR(DebugProc callback);
+
+  public void glDebugMessageControlKHR(
+      int source, int type, int severity, int count, int[] ids, int offset, boolean enabled);
+
+  public void glDeleteBuffers(int n, int[] buffers, int offset);
+
+  public void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+  public void glDeleteProgram(int program);
+
+  public void glDeleteQueries(int n, int[] ids, int offset);
+
+  public void glDeleteShader(int shader);
+
+  public void glDeleteSync(long sync);
+
+  public void glDeleteTextures(int n, int[] textures, int offset);
+
+  public void glDeleteVertexArrays(int n, int[] arrays, int offset);
+
+  public void glDepthMask(boolean flag);
+
+  public void glDisable(int cap);
+
+  public void glDrawArrays(int mode, int first, int count);
+
+  public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount);
+
+  public void glDrawBuffers(int n, int[] bufs, int offset);
+
+  public void glDrawElements(int mode, int count, int type, int offset);
+
+  public void glDrawElementsInstanced(
+      int mode, int count, int type, int offset, int instanceCount);
+
+  public void glEnable(int cap);
+
+  public void glEnableVertexAttribArray(int index);
+
+  public void glEndQuery(int target);
+
+  public long glFenceSync(int condition, int flags);
+
+  public void glFramebufferTexture2D(
+      int target, int attachment, int textarget, int texture, int level);
+
+  public void glGenBuffers(int n, int[] buffers, int offset);
+
+  public void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+  public void glGenQueries(int n, int[] ids, int offset);
+
+  public void glGenTextures(int n, int[] textures, int offset);
+
+  public void glGenVertexArrays(int n, int[] arrays, int offset);
+
+  public void glGenerateMipmap(int target);
+
+  public String glGetActiveUniform(
+      int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+
+  public int glGetDebugMessageLogKHR(
+      int count,
+      int bufSize,
+      int[] sources,
+      int sourcesOffset,
+      int[] types,
+      int typesOffset,
+      int[] ids,
+      int idsOffset,
+      int[] severities,
+      int severitiesOffset,
+      int[] lengths,
+      int lengthsOffset,
+      byte[] messageLog,
+      int messageLogOffset);
+
+  public int glGetError();
+
+  public void glGetIntegerv(int pname, int[] params, int offset);
+
+  public String glGetProgramInfoLog(int program);
+
+  public void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+  public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset);
+
+  public String glGetShaderInfoLog(int shader);
+
+  public void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+  public String glGetString(int name);
+
+  public int glGetUniformBlockIndex(int program, String uniformBlockName);
+
+  public int glGetUniformLocation(int program, String name);
+
+  public void glInvalidateFramebuffer(
+      int target, int numAttachments, int[] attachments, int offset);
+
+  public void glLinkProgram(int program);
+
+  public Buffer glMapBufferRange(int target, int offset, int length, int access);
+
+  public void glShaderSource(int shader, String string);
+
+  public void glTexImage2D(
+      int target,
+      int level,
+      int internalformat,
+      int width,
+      int height,
+      int border,
+      int format,
+      int type,
+      Buffer pixels);
+
+  public void glTexParameteri(int target, int pname, int param);
+
+  public void glUniform1fv(int location, int count, float[] v, int offset);
+
+  public void glUniform1i(int location, int x);
+
+  public void glUniform1iv(int location, int count, int[] v, int offset);
+
+  public void glUniform2fv(int location, int count, float[] v, int offset);
+
+  public void glUniform3fv(int location, int count, float[] v, int offset);
+
+  public void glUniform4fv(int location, int count, float[] v, int offset);
+
+  public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding);
+
+  public void glUniformMatrix2fv(
+      int location, int count, boolean transpose, float[] value, int offset);
+
+  public void glUniformMatrix3fv(
+      int location, int count, boolean transpose, float[] value, int offset);
+
+  public void glUniformMatrix4fv(
+      int location, int count, boolean transpose, float[] value, int offset);
+
+  public boolean glUnmapBuffer(int target);
+
+  public void glUseProgram(int program);
+
+  public void glVertexAttribDivisor(int index, int divisor);
+
+  public void glVertexAttribPointer(
+      int index, int size, int type, boolean normalized, int stride, int offset);
+
+  public void glViewport(int x, int y, int width, int height);
+}
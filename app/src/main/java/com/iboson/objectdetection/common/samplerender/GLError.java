@@ -16,17 +16,72 @@
 package com.iboson.objectdetection.common.samplerender;
 
 import android.opengl.GLES30;
+import android.opengl.GLES31Ext;
 import android.opengl.GLException;
 import android.opengl.GLU;
 import android.util.Log;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-/** Module for handling OpenGL errors. */
+/**
+ * Module for handling OpenGL errors.
+ *
+ * <p>How often errors are checked for is controlled by a {@link CheckPolicy}, set through {@link
+ * SampleRender#setGlErrorCheckPolicy}. Every check with {@code glGetError} may stall the driver, so
+ * release builds should prefer {@link CheckPolicy#PER_FRAME} over the default of {@link
+ * CheckPolicy#FULL}.
+ */
 public class GLError {
+  private static final String TAG = GLError.class.getSimpleName();
+
+  /** How often GL errors are checked for. */
+  public static enum CheckPolicy {
+    /** Check after every GL call, throwing a {@link GLException} from the call that failed. */
+    FULL,
+    /**
+     * Check once at the end of every frame. When an error shows up, it is logged and every call is
+     * checked again for the following frames, so that the call raising it throws if it recurs.
+     */
+    PER_FRAME,
+    /**
+     * Like {@link #PER_FRAME}, but also collects the driver's description of each error through
+     * {@code KHR_debug}. Falls back to {@link #PER_FRAME} if the extension is not available.
+     */
+    DEBUG_OUTPUT
+  }
+
+  // Number of frames to check every call for after an error is found at the end of a frame.
+  private static final int NARROWING_FRAME_COUNT = 30;
+  // Number of debug messages retrieved at once when polling the debug message log.
+  private static final int DEBUG_MESSAGE_BATCH_SIZE = 4;
+  private static final int[] NO_IDS = {};
+
+  // The GL to query for errors. Error state belongs to whichever context is current, so this is
+  // shared by every SampleRender rather than held per instance.
+  private static GL gl = new AndroidGL();
+
+  private static CheckPolicy checkPolicy = CheckPolicy.FULL;
+  private static boolean checkEveryCall = true;
+  private static int narrowingFramesRemaining = 0;
+
+  // KHR_debug state. Messages either arrive through a callback, or are polled from the log on
+  // platform versions where the callback binding is not implemented.
+  private static boolean pollDebugMessageLog = false;
+  private static String pendingDebugMessage;
+  private static int[] debugMessageSources;
+  private static int[] debugMessageTypes;
+  private static int[] debugMessageIds;
+  private static int[] debugMessageSeverities;
+  private static int[] debugMessageLengths;
+  private static byte[] debugMessageLog;
+
   /** Throws a {@link GLException} if a GL error occurred. */
   public static void maybeThrowGLException(String reason, String api) {
+    if (!checkEveryCall) {
+      return;
+    }
     List<Integer> errorCodes = getGlErrors();
     if (errorCodes != null) {
       throw new GLException(errorCodes.get(0), formatErrorMessage(reason, api, errorCodes));
@@ -35,12 +90,154 @@ public class GLError {
 
   /** Logs a message with the given logcat priority if a GL error occurred. */
   public static void maybeLogGLError(int priority, String tag, String reason, String api) {
+    if (!checkEveryCall) {
+      return;
+    }
     List<Integer> errorCodes = getGlErrors();
     if (errorCodes != null) {
       Log.println(priority, tag, formatErrorMessage(reason, api, errorCodes));
     }
   }
 
+  /* package-private */
+  static void setGl(GL gl) {
+    GLError.gl = gl;
+  }
+
+  /**
+   * Applies the given policy, returning the policy actually in effect. Must be called on the GL
+   * thread.
+   */
+  /* package-private */
+  static CheckPolicy setCheckPolicy(CheckPolicy policy) {
+    if (checkPolicy == CheckPolicy.DEBUG_OUTPUT) {
+      gl.glDisable(GLES31Ext.GL_DEBUG_OUTPUT_KHR);
+      pendingDebugMessage = null;
+    }
+    if (policy == CheckPolicy.DEBUG_OUTPUT && !enableDebugOutput()) {
+      Log.w(TAG, "KHR_debug is not available, checking GL errors once per frame instead");
+      policy = CheckPolicy.PER_FRAME;
+    }
+    checkPolicy = policy;
+    checkEveryCall = policy == CheckPolicy.FULL;
+    narrowingFramesRemaining = 0;
+    return policy;
+  }
+
+  /**
+   * Checks for errors raised during the frame that were not checked for at the call site. Must be
+   * called on the GL thread at the end of every frame.
+   */
+  /* package-private */
+  static void endFrame() {
+    if (checkPolicy == CheckPolicy.FULL) {
+      return;
+    }
+    List<Integer> errorCodes = getGlErrors();
+    String debugMessage = takeDebugMessage();
+    if (errorCodes == null && debugMessage == null) {
+      if (narrowingFramesRemaining > 0 && --narrowingFramesRemaining == 0) {
+        checkEveryCall = false;
+      }
+      return;
+    }
+    StringBuilder builder = new StringBuilder("GL error during frame");
+    if (errorCodes != null) {
+      builder.append(": ").append(formatErrorMessage("Deferred check", "glGetError", errorCodes));
+    }
+    if (debugMessage != null) {
+      builder.append(": ").append(debugMessage);
+    }
+    Log.e(TAG, builder.toString());
+    // Check every call for a while, so that the call raising the error throws if it recurs.
+    checkEveryCall = true;
+    narrowingFramesRemaining = NARROWING_FRAME_COUNT;
+  }
+
+  private static boolean enableDebugOutput() {
+    String extensions = gl.glGetString(GLES30.GL_EXTENSIONS);
+    if (extensions == null || !extensions.contains("GL_KHR_debug")) {
+      return false;
+    }
+    gl.glEnable(GLES31Ext.GL_DEBUG_OUTPUT_KHR);
+    // Synchronous output reports errors from within the call that raised them.
+    gl.glEnable(GLES31Ext.GL_DEBUG_OUTPUT_SYNCHRONOUS_KHR);
+    // Only errors are of interest here; performance hints and markers are discarded.
+    gl.glDebugMessageControlKHR(
+        GLES30.GL_DONT_CARE, GLES30.GL_DONT_CARE, GLES30.GL_DONT_CARE, 0, NO_IDS, 0, false);
+    gl.glDebugMessageControlKHR(
+        GLES30.GL_DONT_CARE,
+        GLES31Ext.GL_DEBUG_TYPE_ERROR_KHR,
+        GLES30.GL_DONT_CARE,
+        0,
+        NO_IDS,
+        0,
+        true);
+    try {
+      gl.glDebugMessageCallbackKHR(
+          (source, type, id, severity, message) -> {
+            if (pendingDebugMessage == null) {
+              pendingDebugMessage = message;
+            }
+          });
+      pollDebugMessageLog = false;
+    } catch (UnsupportedOperationException e) {
+      pollDebugMessageLog = true;
+      final int[] maxMessageLength = new int[1];
+      gl.glGetIntegerv(GLES31Ext.GL_MAX_DEBUG_MESSAGE_LENGTH_KHR, maxMessageLength, 0);
+      debugMessageSources = new int[DEBUG_MESSAGE_BATCH_SIZE];
+      debugMessageTypes = new int[DEBUG_MESSAGE_BATCH_SIZE];
+      debugMessageIds = new int[DEBUG_MESSAGE_BATCH_SIZE];
+      debugMessageSeverities = new int[DEBUG_MESSAGE_BATCH_SIZE];
+      debugMessageLengths = new int[DEBUG_MESSAGE_BATCH_SIZE];
+      debugMessageLog = new byte[DEBUG_MESSAGE_BATCH_SIZE * maxMessageLength[0]];
+      try {
+        pollDebugMessages();
+      } catch (UnsupportedOperationException unsupported) {
+        gl.glDisable(GLES31Ext.GL_DEBUG_OUTPUT_KHR);
+        return false;
+      }
+    }
+    // Drain any errors raised by the setup above, e.g. on drivers exposing a partial extension.
+    return getGlErrors() == null;
+  }
+
+  private static String takeDebugMessage() {
+    if (checkPolicy != CheckPolicy.DEBUG_OUTPUT) {
+      return null;
+    }
+    if (pollDebugMessageLog) {
+      int count = pollDebugMessages();
+      if (count > 0) {
+        // The length includes the null terminator.
+        return new String(
+            debugMessageLog, 0, Math.max(debugMessageLengths[0] - 1, 0), StandardCharsets.UTF_8);
+      }
+      return null;
+    }
+    String message = pendingDebugMessage;
+    pendingDebugMessage = null;
+    return message;
+  }
+
+  private static int pollDebugMessages() {
+    return gl.glGetDebugMessageLogKHR(
+        DEBUG_MESSAGE_BATCH_SIZE,
+        debugMessageLog.length,
+        debugMessageSources,
+        0,
+        debugMessageTypes,
+        0,
+        debugMessageIds,
+        0,
+        debugMessageSeverities,
+        0,
+        debugMessageLengths,
+        0,
+        debugMessageLog,
+        0);
+  }
+
   private static String formatErrorMessage(String reason, String api, List<Integer> errorCodes) {
     StringBuilder builder = new StringBuilder(String.format("%s: %s: ", reason, api));
     Iterator<Integer> iterator = errorCodes.iterator();
@@ -55,7 +252,7 @@ public class GLError {
   }
 
   private static List<Integer> getGlErrors() {
-    int errorCode = GLES30.glGetError();
+    int errorCode = gl.glGetError();
     // Shortcut for no errors
     if (errorCode == GLES30.GL_NO_ERROR) {
       return null;
@@ -63,7 +260,7 @@ public class GLError {
     List<Integer> errorCodes = new ArrayList<>();
     errorCodes.add(errorCode);
     while (true) {
-      errorCode = GLES30.glGetError();
+      errorCode = gl.glGetError();
       if (errorCode == GLES30.GL_NO_ERROR) {
         break;
       }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+
+/**
+ * A shadow copy of the GL state set through a {@link SampleRender}, used to skip calls that would
+ * not change anything.
+ *
+ * <p>Code that changes any of the tracked state should do so through the methods of this class,
+ * which are available from {@link SampleRender#getGlState()}. If GL state is changed behind its
+ * back, call {@link #invalidate()} so that the next call of each kind is issued unconditionally.
+ *
+ * <p>Bindings of {@link Texture.Target#TEXTURE_EXTERNAL_OES} textures are never cached, since
+ * ARCore rebinds the camera texture itself when a frame is updated. All tracked state is also
+ * forgotten at the start of every frame.
+ */
+public class GLState {
+  private static final int UNKNOWN = -1;
+
+  // Texture bindings are tracked for this many units; higher units are always issued.
+  private static final int MAX_TRACKED_TEXTURE_UNITS = 32;
+  private static final int TEXTURE_2D_INDEX = 0;
+  private static final int TEXTURE_CUBE_MAP_INDEX = 1;
+  private static final int NUMBER_OF_TRACKED_TARGETS = 2;
+
+  private final GL gl;
+
+  private int program;
+  private int framebuffer;
+  private int viewportX;
+  private int viewportY;
+  private int viewportWidth;
+  private int viewportHeight;
+  private int vertexArray;
+  private int sourceRgbBlend;
+  private int destRgbBlend;
+  private int sourceAlphaBlend;
+  private int destAlphaBlend;
+  private int depthMask;
+  private int depthTest;
+  private int cullFace;
+  private int blend;
+  private int activeTextureUnit;
+  private final int[] boundTextures =
+      new int[MAX_TRACKED_TEXTURE_UNITS * NUMBER_OF_TRACKED_TARGETS];
+
+  private int issuedCallCount;
+  private int skippedCallCount;
+  private int frameIssuedCallCount;
+  private int frameSkippedCallCount;
+
+  /* package-private */
+  GLState(GL gl) {
+    this.gl = gl;
+    invalidate();
+  }
+
+  /** Forgets all tracked state, so that the next call of each kind is issued. */
+  public void invalidate() {
+    program = UNKNOWN;
+    framebuffer = UNKNOWN;
+    viewportX = UNKNOWN;
+    viewportY = UNKNOWN;
+    viewportWidth = UNKNOWN;
+    viewportHeight = UNKNOWN;
+    vertexArray = UNKNOWN;
+    sourceRgbBlend = UNKNOWN;
+    destRgbBlend = UNKNOWN;
+    sourceAlphaBlend = UNKNOWN;
+    destAlphaBlend = UNKNOWN;
+    depthMask = UNKNOWN;
+    depthTest = UNKNOWN;
+    cullFace = UNKNOWN;
+    blend = UNKNOWN;
+    activeTextureUnit = UNKNOWN;
+    for (int i = 0; i < boundTextures.length; ++i) {
+      boundTextures[i] = UNKNOWN;
+    }
+  }
+
+  /** Returns the number of state changing GL calls issued during the last frame. */
+  public int getFrameIssuedCallCount() {
+    return frameIssuedCallCount;
+  }
+
+  /** Returns the number of redundant GL calls skipped during the last frame. */
+  public int getFrameSkippedCallCount() {
+    return frameSkippedCallCount;
+  }
+
+  /** Calls {@code glUseProgram} if the state differs from the tracked state. */
+  public void useProgram(int programId) {
+    if (!shouldIssue(program == programId)) {
+      return;
+    }
+    gl.glUseProgram(programId);
+    GLError.maybeThrowGLException("Failed to use shader program", "glUseProgram");
+    program = programId;
+  }
+
+  /** Binds the given framebuffer to {@code GL_FRAMEBUFFER}. */
+  public void bindFramebuffer(int framebufferId) {
+    if (!shouldIssue(framebuffer == framebufferId)) {
+      return;
+    }
+    gl.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId);
+    GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
+    framebuffer = framebufferId;
+  }
+
+  /** Calls {@code glViewport} if the state differs from the tracked state. */
+  public void viewport(int x, int y, int width, int height) {
+    if (!shouldIssue(
+        viewportX == x && viewportY == y && viewportWidth == width && viewportHeight == height)) {
+      return;
+    }
+    gl.glViewport(x, y, width, height);
+    GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
+    viewportX = x;
+    viewportY = y;
+    viewportWidth = width;
+    viewportHeight = height;
+  }
+
+  /** Calls {@code glBindVertexArray} if the state differs from the tracked state. */
+  public void bindVertexArray(int vertexArrayId) {
+    if (!shouldIssue(vertexArray == vertexArrayId)) {
+      return;
+    }
+    gl.glBindVertexArray(vertexArrayId);
+    GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
+    vertexArray = vertexArrayId;
+  }
+
+  /** Calls {@code glBlendFuncSeparate} if the state differs from the tracked state. */
+  public void blendFuncSeparate(
+      int sourceRgbBlend, int destRgbBlend, int sourceAlphaBlend, int destAlphaBlend) {
+    if (!shouldIssue(
+        this.sourceRgbBlend == sourceRgbBlend
+            && this.destRgbBlend == destRgbBlend
+            && this.sourceAlphaBlend == sourceAlphaBlend
+            && this.destAlphaBlend == destAlphaBlend)) {
+      return;
+    }
+    gl.glBlendFuncSeparate(sourceRgbBlend, destRgbBlend, sourceAlphaBlend, destAlphaBlend);
+    GLError.maybeThrowGLException("Failed to set blend mode", "glBlendFuncSeparate");
+    this.sourceRgbBlend = sourceRgbBlend;
+    this.destRgbBlend = destRgbBlend;
+    this.sourceAlphaBlend = sourceAlphaBlend;
+    this.destAlphaBlend = destAlphaBlend;
+  }
+
+  /** Calls {@code glDepthMask} if the state differs from the tracked state. */
+  public void depthMask(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (!shouldIssue(depthMask == value)) {
+      return;
+    }
+    gl.glDepthMask(enabled);
+    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
+    depthMask = value;
+  }
+
+  /** Enables or disables {@code GL_DEPTH_TEST}. */
+  public void setDepthTest(boolean enabled) {
+    depthTest =
+        setCapability(
+            GLES30.GL_DEPTH_TEST,
+            depthTest,
+            enabled,
+            "Failed to enable depth test",
+            "Failed to disable depth test");
+  }
+
+  /** Enables or disables {@code GL_CULL_FACE}. */
+  public void setCullFace(boolean enabled) {
+    cullFace =
+        setCapability(
+            GLES30.GL_CULL_FACE,
+            cullFace,
+            enabled,
+            "Failed to enable backface culling",
+            "Failed to disable backface culling");
+  }
+
+  /** Enables or disables {@code GL_BLEND}. */
+  public void setBlend(boolean enabled) {
+    blend =
+        setCapability(
+            GLES30.GL_BLEND,
+            blend,
+            enabled,
+            "Failed to enable blending",
+            "Failed to disable blending");
+  }
+
+  /** Selects the active texture unit, counting from zero rather than from {@code GL_TEXTURE0}. */
+  public void activeTexture(int textureUnit) {
+    if (!shouldIssue(activeTextureUnit == textureUnit)) {
+      return;
+    }
+    gl.glActiveTexture(GLES30.GL_TEXTURE0 + textureUnit);
+    GLError.maybeThrowGLException("Failed to set active texture", "glActiveTexture");
+    activeTextureUnit = textureUnit;
+  }
+
+  /** Binds a texture to the given target of the active texture unit. */
+  public void bindTexture(int target, int textureId) {
+    int index = getTextureBindingIndex(activeTextureUnit, target);
+    if (index != UNKNOWN && !shouldIssue(boundTextures[index] == textureId)) {
+      return;
+    }
+    if (index == UNKNOWN) {
+      issuedCallCount++;
+    }
+    gl.glBindTexture(target, textureId);
+    GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
+    if (index != UNKNOWN) {
+      boundTextures[index] = textureId;
+    }
+  }
+
+  /* package-private */
+  void beginFrame() {
+    invalidate();
+    issuedCallCount = 0;
+    skippedCallCount = 0;
+  }
+
+  /* package-private */
+  void endFrame() {
+    frameIssuedCallCount = issuedCallCount;
+    frameSkippedCallCount = skippedCallCount;
+  }
+
+  /** Must be called after deleting a program object without going through {@link Shader}. */
+  public void onProgramDeleted(int programId) {
+    if (program == programId) {
+      program = UNKNOWN;
+    }
+  }
+
+  /** Must be called after deleting a framebuffer without going through {@link Framebuffer}. */
+  public void onFramebufferDeleted(int framebufferId) {
+    // Deleting the bound framebuffer reverts the binding to the default framebuffer.
+    if (framebuffer == framebufferId) {
+      framebuffer = 0;
+    }
+  }
+
+  /** Must be called after deleting a vertex array without going through {@link Mesh}. */
+  public void onVertexArrayDeleted(int vertexArrayId) {
+    if (vertexArray == vertexArrayId) {
+      vertexArray = 0;
+    }
+  }
+
+  /** Must be called after deleting a texture without going through {@link Texture}. */
+  public void onTextureDeleted(int textureId) {
+    // Deleting a texture unbinds it from every texture unit.
+    for (int i = 0; i < boundTextures.length; ++i) {
+      if (boundTextures[i] == textureId) {
+        boundTextures[i] = 0;
+      }
+    }
+  }
+
+  private int setCapability(
+      int capability, int current, boolean enabled, String enableReason, String disableReason) {
+    int value = enabled ? 1 : 0;
+    if (!shouldIssue(current == value)) {
+      return current;
+    }
+    if (enabled) {
+      gl.glEnable(capability);
+      GLError.maybeThrowGLException(enableReason, "glEnable");
+    } else {
+      gl.glDisable(capability);
+      GLError.maybeThrowGLException(disableReason, "glDisable");
+    }
+    return value;
+  }
+
+  private boolean shouldIssue(boolean unchanged) {
+    if (unchanged) {
+      skippedCallCount++;
+      return false;
+    }
+    issuedCallCount++;
+    return true;
+  }
+
+  private static int getTextureBindingIndex(int textureUnit, int target) {
+    if (textureUnit < 0 || textureUnit >= MAX_TRACKED_TEXTURE_UNITS) {
+      return UNKNOWN;
+    }
+    switch (target) {
+      case GLES30.GL_TEXTURE_2D:
+        return textureUnit * NUMBER_OF_TRACKED_TARGETS + TEXTURE_2D_INDEX;
+      case GLES30.GL_TEXTURE_CUBE_MAP:
+        return textureUnit * NUMBER_OF_TRACKED_TARGETS + TEXTURE_CUBE_MAP_INDEX;
+      default:
+        return UNKNOWN;
+    }
+  }
+}
@@ -18,7 +18,20 @@ package com.iboson.objectdetection.common.samplerender;
 import android.opengl.GLES30;
 import android.util.Log;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
+/**
+ * A GPU buffer object, replaced in full by {@link #set}.
+ *
+ * <p>A buffer created with more than one region streams instead: the buffer object holds that many
+ * regions, and each {@link #set} writes the next region through an unsynchronized mapping rather
+ * than overwriting data the GPU may still be reading. A fence inserted when moving on from a region
+ * guards its reuse; if the GPU has not passed it yet, the storage is orphaned rather than waited
+ * for. Regions grow geometrically. Draws must read the data from {@link #getDrawOffset}.
+ */
 /* package-private */
 class GpuBuffer {
   private static final String TAG = GpuBuffer.class.getSimpleName();
@@ -27,13 +40,37 @@ class GpuBuffer {
   public static final int INT_SIZE = 4;
   public static final int FLOAT_SIZE = 4;
 
+  // Incremented by the size of every upload; see getUploadedByteCount.
+  private static long uploadedByteCount = 0;
+
+  private final GL gl;
+  private final GLState glState;
   private final int target;
   private final int numberOfBytesPerEntry;
   private final int[] bufferId = {0};
+  private final ResourceRegistry.Registration registration;
   private int size;
+  // The capacity of the buffer, or of each region when streaming, in entries.
   private int capacity;
 
-  public GpuBuffer(int target, int numberOfBytesPerEntry, Buffer entries) {
+  private final int regionCount;
+  private final long[] regionFences;
+  private int region;
+  private int drawOffset;
+
+  public GpuBuffer(SampleRender render, int target, int numberOfBytesPerEntry, Buffer entries) {
+    this(render, target, numberOfBytesPerEntry, entries, /* regionCount= */ 1);
+  }
+
+  public GpuBuffer(
+      SampleRender render,
+      int target,
+      int numberOfBytesPerEntry,
+      Buffer entries,
+      int regionCount) {
+    if (regionCount < 1) {
+      throw new IllegalArgumentException("A buffer must have at least one region");
+    }
     if (entries != null) {
       if (!entries.isDirect()) {
         throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
@@ -45,8 +82,18 @@ class GpuBuffer {
       }
     }
 
+    this.gl = render.getGl();
+    this.glState = render.getGlState();
     this.target = target;
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.BUFFER);
     this.numberOfBytesPerEntry = numberOfBytesPerEntry;
+    this.regionCount = regionCount;
+    regionFences = new long[regionCount];
+    Buffer initialEntries = entries;
+    if (regionCount > 1) {
+      // Streaming buffers allocate their regions on the first set.
+      entries = null;
+    }
     if (entries == null) {
       this.size = 0;
       this.capacity = 0;
@@ -57,21 +104,25 @@ class GpuBuffer {
 
     try {
       // Clear VAO to prevent unintended state change.
-      GLES30.glBindVertexArray(0);
-      GLError.maybeThrowGLException("Failed to unbind vertex array", "glBindVertexArray");
+      glState.bindVertexArray(0);
 
-      GLES30.glGenBuffers(1, bufferId, 0);
+      gl.glGenBuffers(1, bufferId, 0);
       GLError.maybeThrowGLException("Failed to generate buffers", "glGenBuffers");
 
-      GLES30.glBindBuffer(target, bufferId[0]);
+      gl.glBindBuffer(target, bufferId[0]);
       GLError.maybeThrowGLException("Failed to bind buffer object", "glBindBuffer");
 
       if (entries != null) {
         entries.rewind();
-        GLES30.glBufferData(
+        gl.glBufferData(
             target, entries.limit() * numberOfBytesPerEntry, entries, GLES30.GL_DYNAMIC_DRAW);
+        uploadedByteCount += entries.limit() * numberOfBytesPerEntry;
+        registration.setByteCount((long) capacity * numberOfBytesPerEntry);
       }
       GLError.maybeThrowGLException("Failed to populate buffer object", "glBufferData");
+      if (regionCount > 1 && initialEntries != null) {
+        set(initialEntries);
+      }
     } catch (Throwable t) {
       free();
       throw t;
@@ -88,28 +139,40 @@ class GpuBuffer {
     if (!entries.isDirect()) {
       throw new IllegalArgumentException("If non-null, entries buffer must be a direct buffer");
     }
-    GLES30.glBindBuffer(target, bufferId[0]);
+    if (target == GLES30.GL_ELEMENT_ARRAY_BUFFER) {
+      // The element array binding is part of the VAO state, so clear the VAO first.
+      glState.bindVertexArray(0);
+    }
+    gl.glBindBuffer(target, bufferId[0]);
     GLError.maybeThrowGLException("Failed to bind vertex buffer object", "glBindBuffer");
 
     entries.rewind();
 
-    if (entries.limit() <= capacity) {
-      GLES30.glBufferSubData(target, 0, entries.limit() * numberOfBytesPerEntry, entries);
+    if (regionCount > 1) {
+      stream(entries);
+    } else if (entries.limit() <= capacity) {
+      gl.glBufferSubData(target, 0, entries.limit() * numberOfBytesPerEntry, entries);
       GLError.maybeThrowGLException("Failed to populate vertex buffer object", "glBufferSubData");
       size = entries.limit();
     } else {
-      GLES30.glBufferData(
+      gl.glBufferData(
           target, entries.limit() * numberOfBytesPerEntry, entries, GLES30.GL_DYNAMIC_DRAW);
       GLError.maybeThrowGLException("Failed to populate vertex buffer object", "glBufferData");
       size = entries.limit();
       capacity = entries.limit();
+      registration.setByteCount((long) capacity * numberOfBytesPerEntry);
     }
+    uploadedByteCount += entries.limit() * numberOfBytesPerEntry;
   }
 
   public void free() {
+    boolean ownedByContext = registration.unregister();
     if (bufferId[0] != 0) {
-      GLES30.glDeleteBuffers(1, bufferId, 0);
-      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free buffer object", "glDeleteBuffers");
+      if (ownedByContext) {
+        deleteFences();
+        gl.glDeleteBuffers(1, bufferId, 0);
+        GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free buffer object", "glDeleteBuffers");
+      }
       bufferId[0] = 0;
     }
   }
@@ -121,4 +184,104 @@ class GpuBuffer {
   public int getSize() {
     return size;
   }
+
+  /** Returns the byte offset of the data given to the last {@link #set}, to draw from. */
+  public int getDrawOffset() {
+    return drawOffset;
+  }
+
+  public long getEstimatedByteCount() {
+    return registration.getByteCount();
+  }
+
+  /** Returns the number of bytes uploaded by all buffers since the process started. */
+  public static long getUploadedByteCount() {
+    return uploadedByteCount;
+  }
+
+  /** Writes {@code entries} to the next free region. The buffer must be bound. */
+  private void stream(Buffer entries) {
+    if (entries.limit() > capacity) {
+      capacity = Math.max(entries.limit(), capacity * 2);
+      allocateRegions();
+    } else {
+      // Every command reading the current region has been issued by now.
+      regionFences[region] = gl.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+      GLError.maybeThrowGLException("Failed to insert buffer region fence", "glFenceSync");
+      region = (region + 1) % regionCount;
+      if (!isRegionFree(region)) {
+        // Let the driver hand out new storage instead of stalling until the GPU catches up.
+        allocateRegions();
+      }
+    }
+
+    int byteCount = entries.limit() * numberOfBytesPerEntry;
+    drawOffset = region * capacity * numberOfBytesPerEntry;
+    Buffer mapping =
+        gl.glMapBufferRange(
+            target,
+            drawOffset,
+            byteCount,
+            GLES30.GL_MAP_WRITE_BIT
+                | GLES30.GL_MAP_INVALIDATE_RANGE_BIT
+                | GLES30.GL_MAP_UNSYNCHRONIZED_BIT);
+    GLError.maybeThrowGLException("Failed to map buffer region", "glMapBufferRange");
+    if (mapping == null) {
+      gl.glBufferSubData(target, drawOffset, byteCount, entries);
+      GLError.maybeThrowGLException("Failed to populate buffer region", "glBufferSubData");
+    } else {
+      ByteBuffer bytes = ((ByteBuffer) mapping).order(ByteOrder.nativeOrder());
+      if (entries instanceof FloatBuffer) {
+        bytes.asFloatBuffer().put((FloatBuffer) entries);
+      } else if (entries instanceof IntBuffer) {
+        bytes.asIntBuffer().put((IntBuffer) entries);
+      } else {
+        bytes.put((ByteBuffer) entries);
+      }
+      if (!gl.glUnmapBuffer(target)) {
+        // The contents of the buffer were lost while mapped, so write them again.
+        entries.rewind();
+        gl.glBufferSubData(target, drawOffset, byteCount, entries);
+        GLError.maybeThrowGLException("Failed to populate buffer region", "glBufferSubData");
+      }
+    }
+    size = entries.limit();
+  }
+
+  /** Allocates new storage for every region, and starts over from the first. */
+  private void allocateRegions() {
+    deleteFences();
+    gl.glBufferData(
+        target,
+        capacity * numberOfBytesPerEntry * regionCount,
+        /* data= */ null,
+        GLES30.GL_STREAM_DRAW);
+    GLError.maybeThrowGLException("Failed to allocate buffer regions", "glBufferData");
+    region = 0;
+    registration.setByteCount((long) capacity * numberOfBytesPerEntry * regionCount);
+  }
+
+  /** Returns whether the GPU is done with {@code region}, without waiting for it. */
+  private boolean isRegionFree(int region) {
+    long fence = regionFences[region];
+    if (fence == 0) {
+      return true;
+    }
+    int status = gl.glClientWaitSync(fence, /* flags= */ 0, /* timeout= */ 0);
+    if (status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED) {
+      gl.glDeleteSync(fence);
+      regionFences[region] = 0;
+      return true;
+    }
+    return false;
+  }
+
+  private void deleteFences() {
+    for (int i = 0; i < regionCount; ++i) {
+      if (regionFences[i] != 0) {
+        gl.glDeleteSync(regionFences[i]);
+        regionFences[i] = 0;
+      }
+    }
+  }
 }
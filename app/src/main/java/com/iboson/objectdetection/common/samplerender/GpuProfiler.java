@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.Closeable;
+
+/**
+ * Measures the GPU time of named scopes, such as the passes of a {@link RenderGraph}, with {@code
+ * EXT_disjoint_timer_query}, and keeps rolling statistics of them.
+ *
+ * <p>Queries are kept in a ring of {@link #QUERY_LATENCY_FRAMES} frames, and a result is only read
+ * once the GPU reports it available, so that measuring never stalls the pipeline. Scopes may not
+ * be nested or overlap, as only one elapsed time query may be active at a time, and each scope may
+ * be measured at most once per frame.
+ *
+ * <p>The GPU time of a frame is the sum of its scopes. It is only reported for frames whose every
+ * measured scope had a result available in time, and no result is reported for frames during
+ * which a disjoint event, such as a GPU frequency change, occurred.
+ *
+ * <p>If the extension is not supported, every method is a no-op and no result is ever reported.
+ */
+public class GpuProfiler implements Closeable {
+  private static final String TAG = GpuProfiler.class.getSimpleName();
+
+  /** The number of frames after which the results of a frame are read. */
+  public static final int QUERY_LATENCY_FRAMES = 4;
+  /** The number of samples of each scope the statistics are computed over. */
+  public static final int STATISTICS_WINDOW = 60;
+
+  private static final String EXTENSION_NAME = "GL_EXT_disjoint_timer_query";
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+  private final GL gl;
+  private final String[] scopeNames;
+  private final int scopeCount;
+  private final boolean supported;
+  private final int[] queryIds;
+  private final boolean[] issued;
+  private final int[] queryResult = new int[1];
+  private int frameSlot = 0;
+  private int activeScope = -1;
+
+  // Rolling statistics of each scope, over the last STATISTICS_WINDOW samples.
+  private final long[][] samples;
+  private final int[] sampleCounts;
+  private final int[] nextSampleIndices;
+  private final long[] sampleSums;
+  private final long[] lastTimesNanos;
+  private final boolean[] hasNewResult;
+
+  private long lastFrameTimeNanos;
+  private boolean hasNewFrameTime;
+  private long disjointFrameCount;
+
+  /**
+   * Creates the queries of the given scopes, which are identified by their index in {@code
+   * scopeNames}. Must be called during a {@link SampleRender.Renderer} callback.
+   */
+  public GpuProfiler(SampleRender render, String... scopeNames) {
+    gl = render.getGl();
+    this.scopeNames = scopeNames.clone();
+    scopeCount = scopeNames.length;
+    samples = new long[scopeCount][STATISTICS_WINDOW];
+    sampleCounts = new int[scopeCount];
+    nextSampleIndices = new int[scopeCount];
+    sampleSums = new long[scopeCount];
+    lastTimesNanos = new long[scopeCount];
+    hasNewResult = new boolean[scopeCount];
+
+    String extensions = gl.glGetString(GLES30.GL_EXTENSIONS);
+    supported = extensions != null && extensions.contains(EXTENSION_NAME);
+    if (!supported) {
+      Log.i(TAG, EXTENSION_NAME + " is not supported, GPU times will not be measured");
+      queryIds = new int[0];
+      issued = new boolean[0];
+      return;
+    }
+    queryIds = new int[QUERY_LATENCY_FRAMES * scopeCount];
+    issued = new boolean[queryIds.length];
+    gl.glGenQueries(queryIds.length, queryIds, 0);
+    GLError.maybeThrowGLException("Failed to create queries", "glGenQueries");
+    // Clear any disjoint event that occurred before the first frame.
+    gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+  }
+
+  @Override
+  public void close() {
+    if (queryIds.length > 0 && queryIds[0] != 0) {
+      gl.glDeleteQueries(queryIds.length, queryIds, 0);
+      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free queries", "glDeleteQueries");
+      queryIds[0] = 0;
+    }
+  }
+
+  /** Returns whether GPU times can be measured on this device. */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Reads back the available results of the frame issued {@link #QUERY_LATENCY_FRAMES} frames
+   * earlier, and starts a new frame. Must be called once per frame before any scope.
+   */
+  public void beginFrame() {
+    hasNewFrameTime = false;
+    for (int scope = 0; scope < scopeCount; ++scope) {
+      hasNewResult[scope] = false;
+    }
+    if (!supported) {
+      return;
+    }
+    frameSlot = (frameSlot + 1) % QUERY_LATENCY_FRAMES;
+    gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+    boolean disjoint = queryResult[0] != 0;
+    if (disjoint) {
+      disjointFrameCount++;
+    }
+    boolean complete = true;
+    boolean hasResult = false;
+    long frameTimeNanos = 0;
+    for (int scope = 0; scope < scopeCount; ++scope) {
+      int index = frameSlot * scopeCount + scope;
+      if (!issued[index]) {
+        continue;
+      }
+      issued[index] = false;
+      if (disjoint) {
+        continue;
+      }
+      gl.glGetQueryObjectuiv(queryIds[index], GLES30.GL_QUERY_RESULT_AVAILABLE, queryResult, 0);
+      if (queryResult[0] == 0) {
+        // Reissuing the query discards the late result.
+        complete = false;
+        continue;
+      }
+      gl.glGetQueryObjectuiv(queryIds[index], GLES30.GL_QUERY_RESULT, queryResult, 0);
+      // Results are unsigned 32-bit nanoseconds, which covers scopes of up to four seconds.
+      long timeNanos = queryResult[0] & 0xFFFFFFFFL;
+      addSample(scope, timeNanos);
+      frameTimeNanos += timeNanos;
+      hasResult = true;
+    }
+    if (hasResult && complete) {
+      lastFrameTimeNanos = frameTimeNanos;
+      hasNewFrameTime = true;
+    }
+  }
+
+  /** Starts measuring {@code scope}. */
+  public void begin(int scope) {
+    if (!supported) {
+      return;
+    }
+    if (activeScope != -1) {
+      throw new IllegalStateException("Scope " + scopeNames[activeScope] + " has not ended");
+    }
+    int index = frameSlot * scopeCount + scope;
+    gl.glBeginQuery(GL_TIME_ELAPSED_EXT, queryIds[index]);
+    GLError.maybeThrowGLException("Failed to begin query", "glBeginQuery");
+    issued[index] = true;
+    activeScope = scope;
+  }
+
+  /** Stops measuring the current scope. */
+  public void end() {
+    if (!supported) {
+      return;
+    }
+    gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+    GLError.maybeThrowGLException("Failed to end query", "glEndQuery");
+    activeScope = -1;
+  }
+
+  /** Returns the number of scopes. */
+  public int getScopeCount() {
+    return scopeCount;
+  }
+
+  /** Returns the name of {@code scope}. */
+  public String getScopeName(int scope) {
+    return scopeNames[scope];
+  }
+
+  /** Returns whether {@link #beginFrame} read a new result for {@code scope}. */
+  public boolean hasNewResult(int scope) {
+    return hasNewResult[scope];
+  }
+
+  /** Returns the last GPU time measured for {@code scope}, in nanoseconds, or 0 if none. */
+  public long getLastTimeNanos(int scope) {
+    return lastTimesNanos[scope];
+  }
+
+  /** Returns the average GPU time of {@code scope} over the statistics window, or 0 if none. */
+  public long getAverageTimeNanos(int scope) {
+    return sampleCounts[scope] == 0 ? 0 : sampleSums[scope] / sampleCounts[scope];
+  }
+
+  /** Returns the highest GPU time of {@code scope} over the statistics window, or 0 if none. */
+  public long getMaxTimeNanos(int scope) {
+    long max = 0;
+    for (int i = 0; i < sampleCounts[scope]; ++i) {
+      max = Math.max(max, samples[scope][i]);
+    }
+    return max;
+  }
+
+  /** Returns whether {@link #beginFrame} read the complete GPU time of a frame. */
+  public boolean hasNewFrameTime() {
+    return hasNewFrameTime;
+  }
+
+  /** Returns the last complete GPU time of a frame, in nanoseconds, or 0 if none. */
+  public long getLastFrameTimeNanos() {
+    return lastFrameTimeNanos;
+  }
+
+  /** Returns the number of frames whose results were discarded due to a disjoint event. */
+  public long getDisjointFrameCount() {
+    return disjointFrameCount;
+  }
+
+  /** Returns a human readable summary of the statistics of every scope. Allocates. */
+  public String getSummary() {
+    if (!supported) {
+      return "GPU times not supported";
+    }
+    StringBuilder builder = new StringBuilder("GPU times (avg/max us):");
+    for (int scope = 0; scope < scopeCount; ++scope) {
+      builder
+          .append(' ')
+          .append(scopeNames[scope])
+          .append(' ')
+          .append(getAverageTimeNanos(scope) / 1000)
+          .append('/')
+          .append(getMaxTimeNanos(scope) / 1000);
+    }
+    return builder.toString();
+  }
+
+  private void addSample(int scope, long timeNanos) {
+    int index = nextSampleIndices[scope];
+    if (sampleCounts[scope] == STATISTICS_WINDOW) {
+      sampleSums[scope] -= samples[scope][index];
+    } else {
+      sampleCounts[scope]++;
+    }
+    samples[scope][index] = timeNanos;
+    sampleSums[scope] += timeNanos;
+    nextSampleIndices[scope] = (index + 1) % STATISTICS_WINDOW;
+    lastTimesNanos[scope] = timeNanos;
+    hasNewResult[scope] = true;
+  }
+}
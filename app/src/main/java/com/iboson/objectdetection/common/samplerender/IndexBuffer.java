@@ -42,7 +42,22 @@ public class IndexBuffer implements Closeable {
    * instead.
    */
   public IndexBuffer(SampleRender render, IntBuffer entries) {
-    buffer = new GpuBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, GpuBuffer.INT_SIZE, entries);
+    this(render, entries, /* streamingRegionCount= */ 1);
+  }
+
+  /**
+   * Construct an {@link IndexBuffer} meant to be {@link #set} often, streaming through {@code
+   * streamingRegionCount} regions as described by {@link VertexBuffer#VertexBuffer(SampleRender,
+   * int, FloatBuffer, int)}.
+   */
+  public IndexBuffer(SampleRender render, IntBuffer entries, int streamingRegionCount) {
+    buffer =
+        new GpuBuffer(
+            render,
+            GLES30.GL_ELEMENT_ARRAY_BUFFER,
+            GpuBuffer.INT_SIZE,
+            entries,
+            streamingRegionCount);
   }
 
   /**
@@ -70,6 +85,16 @@ public class IndexBuffer implements Closeable {
     return buffer.getBufferId();
   }
 
+  /* package-private */
+  int getDrawOffset() {
+    return buffer.getDrawOffset();
+  }
+
+  /* package-private */
+  long getEstimatedByteCount() {
+    return buffer.getEstimatedByteCount();
+  }
+
   /* package-private */
   int getSize() {
     return buffer.getSize();
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import android.util.Log;
+import java.io.Closeable;
+import java.nio.FloatBuffer;
+
+/**
+ * Per-instance attribute data stored GPU-side, for drawing many copies of a {@link Mesh} in a
+ * single draw with {@link SampleRender#drawInstanced}.
+ *
+ * <p>The attributes of an instance are interleaved, and follow the vertex attributes of the mesh:
+ * attribute {@code i} of the instance is bound to location {@code n + i}, where {@code n} is the
+ * number of vertex buffers of the mesh. A mat4 attribute is given as four vec4 attributes, one per
+ * column, matching the four locations a mat4 takes in shader code.
+ *
+ * <p>The instance data is meant to be replaced with {@link #set} every frame, usually through
+ * streaming regions so that frames still in flight keep reading theirs. The buffer keeps its own
+ * vertex array object referencing the buffers of the mesh, so the vertex array of the mesh
+ * itself is left untouched and may still be drawn without instancing.
+ *
+ * @see <a
+ *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glVertexAttribDivisor.xhtml">glVertexAttribDivisor</a>
+ */
+public class InstanceBuffer implements Closeable {
+  private static final String TAG = InstanceBuffer.class.getSimpleName();
+
+  private final GL gl;
+  private final GLState glState;
+  private final Mesh mesh;
+  private final GpuBuffer buffer;
+  private final int numberOfEntriesPerInstance;
+  private final int[] numberOfEntriesPerAttribute;
+  private final int[] vertexArrayId = {0};
+  // The offsets the vertex attributes of the vertex array point at, as in Mesh.
+  private final int[] vertexAttributeOffsets;
+  // The offset the instance attributes of the vertex array point at.
+  private int instanceAttributeOffset;
+  private final ResourceRegistry.Registration registration;
+
+  /**
+   * Constructs an empty {@link InstanceBuffer} for {@code mesh}.
+   *
+   * @param numberOfEntriesPerAttribute The number of floats of each attribute of an instance,
+   *     between 1 and 4, in location order.
+   */
+  public InstanceBuffer(SampleRender render, Mesh mesh, int[] numberOfEntriesPerAttribute) {
+    this(render, mesh, numberOfEntriesPerAttribute, /* streamingRegionCount= */ 1);
+  }
+
+  /**
+   * Constructs an empty {@link InstanceBuffer} for {@code mesh}, cycling through {@code
+   * streamingRegionCount} regions as a streaming {@link VertexBuffer} does. Enough regions for the
+   * number of sets per frame times {@link RenderThread#MAX_FRAMES_IN_FLIGHT}, plus one, avoid
+   * reallocations. A count of 1 constructs a regular buffer.
+   *
+   * @param numberOfEntriesPerAttribute The number of floats of each attribute of an instance,
+   *     between 1 and 4, in location order.
+   */
+  public InstanceBuffer(
+      SampleRender render, Mesh mesh, int[] numberOfEntriesPerAttribute, int streamingRegionCount) {
+    if (numberOfEntriesPerAttribute.length == 0) {
+      throw new IllegalArgumentException("Must pass at least one instance attribute");
+    }
+    int numberOfEntries = 0;
+    for (int entries : numberOfEntriesPerAttribute) {
+      if (entries < 1 || entries > 4) {
+        throw new IllegalArgumentException("Instance attributes must have 1 to 4 entries");
+      }
+      numberOfEntries += entries;
+    }
+
+    this.gl = render.getGl();
+    this.glState = render.getGlState();
+    this.mesh = mesh;
+    this.numberOfEntriesPerInstance = numberOfEntries;
+    this.numberOfEntriesPerAttribute = numberOfEntriesPerAttribute.clone();
+    vertexAttributeOffsets = new int[mesh.getVertexBuffers().length];
+    buffer =
+        new GpuBuffer(
+            render,
+            GLES30.GL_ARRAY_BUFFER,
+            GpuBuffer.FLOAT_SIZE,
+            /*entries=*/ null,
+            streamingRegionCount);
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.MESH);
+
+    try {
+      gl.glGenVertexArrays(1, vertexArrayId, 0);
+      GLError.maybeThrowGLException("Failed to generate a vertex array", "glGenVertexArrays");
+      glState.bindVertexArray(vertexArrayId[0]);
+
+      // Per-vertex attributes, bound as in the vertex array of the mesh.
+      IndexBuffer indexBuffer = mesh.getIndexBuffer();
+      if (indexBuffer != null) {
+        gl.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
+      }
+      VertexBuffer[] vertexBuffers = mesh.getVertexBuffers();
+      for (int i = 0; i < vertexBuffers.length; ++i) {
+        gl.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffers[i].getBufferId());
+        GLError.maybeThrowGLException("Failed to bind vertex buffer", "glBindBuffer");
+        gl.glVertexAttribPointer(
+            i,
+            vertexBuffers[i].getNumberOfEntriesPerVertex(),
+            GLES30.GL_FLOAT,
+            false,
+            0,
+            vertexBuffers[i].getDrawOffset());
+        GLError.maybeThrowGLException(
+            "Failed to associate vertex buffer with vertex array", "glVertexAttribPointer");
+        gl.glEnableVertexAttribArray(i);
+        GLError.maybeThrowGLException(
+            "Failed to enable vertex buffer", "glEnableVertexAttribArray");
+        vertexAttributeOffsets[i] = vertexBuffers[i].getDrawOffset();
+      }
+
+      // Per-instance attributes, interleaved in a single buffer.
+      setInstanceAttributePointers(instanceAttributeOffset);
+      for (int i = 0; i < numberOfEntriesPerAttribute.length; ++i) {
+        int location = vertexBuffers.length + i;
+        gl.glVertexAttribDivisor(location, 1);
+        GLError.maybeThrowGLException(
+            "Failed to set instance attribute divisor", "glVertexAttribDivisor");
+        gl.glEnableVertexAttribArray(location);
+        GLError.maybeThrowGLException(
+            "Failed to enable instance buffer", "glEnableVertexAttribArray");
+      }
+    } catch (Throwable t) {
+      close();
+      throw t;
+    }
+  }
+
+  /**
+   * Populate with new instance data.
+   *
+   * <p>The entire buffer is replaced by the contents of the <i>direct</i> buffer {@code entries}
+   * from its beginning to its limit, which must be a multiple of the number of entries per
+   * instance. The GPU buffer is reallocated automatically if necessary.
+   */
+  public void set(FloatBuffer entries) {
+    if (entries != null && entries.limit() % numberOfEntriesPerInstance != 0) {
+      throw new IllegalArgumentException(
+          "If non-null, instance buffer data must be divisible by the number of entries per"
+              + " instance");
+    }
+    buffer.set(entries);
+  }
+
+  /** Returns the number of floats of an instance. */
+  public int getNumberOfEntriesPerInstance() {
+    return numberOfEntriesPerInstance;
+  }
+
+  /** Returns the number of instances given to the last call to {@link #set}. */
+  public int getNumberOfInstances() {
+    return buffer.getSize() / numberOfEntriesPerInstance;
+  }
+
+  /** Returns the mesh drawn by this buffer. */
+  public Mesh getMesh() {
+    return mesh;
+  }
+
+  /** Frees the vertex array object and the instance buffer. The mesh is not closed. */
+  @Override
+  public void close() {
+    boolean ownedByContext = registration.unregister();
+    if (vertexArrayId[0] != 0) {
+      if (ownedByContext) {
+        gl.glDeleteVertexArrays(1, vertexArrayId, 0);
+        GLError.maybeLogGLError(
+            Log.WARN, TAG, "Failed to free vertex array object", "glDeleteVertexArrays");
+        glState.onVertexArrayDeleted(vertexArrayId[0]);
+      }
+      vertexArrayId[0] = 0;
+    }
+    buffer.free();
+  }
+
+  /* package-private */
+  int getVertexArrayId() {
+    return vertexArrayId[0];
+  }
+
+  /* package-private */
+  int[] getVertexAttributeOffsets() {
+    return vertexAttributeOffsets;
+  }
+
+  /**
+   * Points the instance attributes of the bound vertex array at the data last {@link #set}, which
+   * moves with each set of a streaming buffer.
+   */
+  /* package-private */
+  void updateInstanceAttributeOffset() {
+    int offset = buffer.getDrawOffset();
+    if (offset != instanceAttributeOffset) {
+      setInstanceAttributePointers(offset);
+      instanceAttributeOffset = offset;
+    }
+  }
+
+  /** Points the instance attributes of the bound vertex array at the instances at {@code base}. */
+  private void setInstanceAttributePointers(int base) {
+    gl.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffer.getBufferId());
+    GLError.maybeThrowGLException("Failed to bind instance buffer", "glBindBuffer");
+    int location = mesh.getVertexBuffers().length;
+    int stride = numberOfEntriesPerInstance * GpuBuffer.FLOAT_SIZE;
+    int offset = base;
+    for (int entries : numberOfEntriesPerAttribute) {
+      gl.glVertexAttribPointer(location, entries, GLES30.GL_FLOAT, false, stride, offset);
+      GLError.maybeThrowGLException(
+          "Failed to associate instance buffer with vertex array", "glVertexAttribPointer");
+      location++;
+      offset += entries * GpuBuffer.FLOAT_SIZE;
+    }
+  }
+}
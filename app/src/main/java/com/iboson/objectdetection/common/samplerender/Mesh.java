@@ -17,6 +17,7 @@ package com.iboson.objectdetection.common.samplerender;
 
 import android.opengl.GLES30;
 import android.util.Log;
+import com.iboson.objectdetection.common.math.Bounds;
 import de.javagl.obj.Obj;
 import de.javagl.obj.ObjData;
 import de.javagl.obj.ObjReader;
@@ -30,7 +31,8 @@ import java.nio.IntBuffer;
 /**
  * A collection of vertices, faces, and other attributes that define how to render a 3D object.
  *
- * <p>To render the mesh, use {@link SampleRender#draw()}.
+ * <p>To render the mesh, use {@link SampleRender#draw()}, or {@link SampleRender#drawInstanced} to
+ * render many copies of it at once.
  */
 public class Mesh implements Closeable {
   private static final String TAG = Mesh.class.getSimpleName();
@@ -59,10 +61,18 @@ public class Mesh implements Closeable {
     }
   }
 
+  private final GL gl;
+  private final GLState glState;
   private final int[] vertexArrayId = {0};
   private final PrimitiveMode primitiveMode;
   private final IndexBuffer indexBuffer;
   private final VertexBuffer[] vertexBuffers;
+  // The offsets the attributes of the vertex array point at, updated for streaming buffers.
+  private final int[] attributeOffsets;
+  private final ResourceRegistry.Registration registration;
+  private final float[] boundingBox = new float[Bounds.BOX_SIZE];
+  private final float[] boundingSphere = new float[Bounds.SPHERE_SIZE];
+  private boolean hasBounds;
 
   /**
    * Construct a {@link Mesh}.
@@ -75,6 +85,8 @@ public class Mesh implements Closeable {
    * correspond to their attribute locations, which must be taken into account in shader code. The
    * <a href="https://www.khronos.org/opengl/wiki/Layout_Qualifier_(GLSL)">layout qualifier</a> must
    * be used in the vertex shader code to explicitly associate attributes with these indices.
+   *
+   * <p>The {@link Mesh} takes ownership of the given buffers, which are closed along with it.
    */
   public Mesh(
       SampleRender render,
@@ -85,32 +97,35 @@ public class Mesh implements Closeable {
       throw new IllegalArgumentException("Must pass at least one vertex buffer");
     }
 
+    this.gl = render.getGl();
+    this.glState = render.getGlState();
     this.primitiveMode = primitiveMode;
     this.indexBuffer = indexBuffer;
     this.vertexBuffers = vertexBuffers;
+    attributeOffsets = new int[vertexBuffers.length];
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.MESH);
 
     try {
       // Create vertex array
-      GLES30.glGenVertexArrays(1, vertexArrayId, 0);
+      gl.glGenVertexArrays(1, vertexArrayId, 0);
       GLError.maybeThrowGLException("Failed to generate a vertex array", "glGenVertexArrays");
 
       // Bind vertex array
-      GLES30.glBindVertexArray(vertexArrayId[0]);
-      GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
+      glState.bindVertexArray(vertexArrayId[0]);
 
       if (indexBuffer != null) {
-        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
+        gl.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
       }
 
       for (int i = 0; i < vertexBuffers.length; ++i) {
         // Bind each vertex buffer to vertex array
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffers[i].getBufferId());
+        gl.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffers[i].getBufferId());
         GLError.maybeThrowGLException("Failed to bind vertex buffer", "glBindBuffer");
-        GLES30.glVertexAttribPointer(
+        gl.glVertexAttribPointer(
             i, vertexBuffers[i].getNumberOfEntriesPerVertex(), GLES30.GL_FLOAT, false, 0, 0);
         GLError.maybeThrowGLException(
             "Failed to associate vertex buffer with vertex array", "glVertexAttribPointer");
-        GLES30.glEnableVertexAttribArray(i);
+        gl.glEnableVertexAttribArray(i);
         GLError.maybeThrowGLException(
             "Failed to enable vertex buffer", "glEnableVertexAttribArray");
       }
@@ -145,17 +160,104 @@ public class Mesh implements Closeable {
 
       IndexBuffer indexBuffer = new IndexBuffer(render, vertexIndices);
 
-      return new Mesh(render, Mesh.PrimitiveMode.TRIANGLES, indexBuffer, vertexBuffers);
+      return new Mesh(render, Mesh.PrimitiveMode.TRIANGLES, indexBuffer, vertexBuffers)
+          .setBoundsFromPositions(localCoordinates);
     }
   }
 
+  /** Frees the vertex array object, along with the index and vertex buffers of the mesh. */
   @Override
   public void close() {
+    boolean ownedByContext = registration.unregister();
     if (vertexArrayId[0] != 0) {
-      GLES30.glDeleteVertexArrays(1, vertexArrayId, 0);
-      GLError.maybeLogGLError(
-          Log.WARN, TAG, "Failed to free vertex array object", "glDeleteVertexArrays");
+      if (ownedByContext) {
+        gl.glDeleteVertexArrays(1, vertexArrayId, 0);
+        GLError.maybeLogGLError(
+            Log.WARN, TAG, "Failed to free vertex array object", "glDeleteVertexArrays");
+        glState.onVertexArrayDeleted(vertexArrayId[0]);
+      }
+      vertexArrayId[0] = 0;
+    }
+    if (indexBuffer != null) {
+      indexBuffer.close();
     }
+    for (VertexBuffer vertexBuffer : vertexBuffers) {
+      vertexBuffer.close();
+    }
+  }
+
+  /**
+   * Computes the bounding box and sphere of the mesh from its vertex positions of 3 floats, from
+   * the position to the limit of {@code positions}. Must be called again if the positions change.
+   * Meshes created by {@link #createFromAsset} have their bounds computed already.
+   */
+  public Mesh setBoundsFromPositions(FloatBuffer positions) {
+    Bounds.setBoxFromPoints(boundingBox, positions);
+    Bounds.setSphereFromPoints(boundingSphere, boundingBox, positions);
+    hasBounds = true;
+    return this;
+  }
+
+  /** Returns whether the bounds of the mesh are known, and may be used for culling. */
+  public boolean hasBounds() {
+    return hasBounds;
+  }
+
+  /**
+   * Returns the bounding box of the mesh in model space, as {@link Bounds#BOX_SIZE} floats. The
+   * array must not be modified.
+   */
+  public float[] getBoundingBox() {
+    return boundingBox;
+  }
+
+  /**
+   * Returns the bounding sphere of the mesh in model space, as {@link Bounds#SPHERE_SIZE} floats.
+   * The array must not be modified.
+   */
+  public float[] getBoundingSphere() {
+    return boundingSphere;
+  }
+
+  /* package-private */
+  IndexBuffer getIndexBuffer() {
+    return indexBuffer;
+  }
+
+  /* package-private */
+  VertexBuffer[] getVertexBuffers() {
+    return vertexBuffers;
+  }
+
+  /**
+   * Points the attributes of the bound vertex array at the data last set on each streaming vertex
+   * buffer, given the offsets they point at in {@code attributeOffsets}, which is updated.
+   */
+  /* package-private */
+  void updateAttributeOffsets(int[] attributeOffsets) {
+    for (int i = 0; i < vertexBuffers.length; ++i) {
+      int offset = vertexBuffers[i].getDrawOffset();
+      if (offset == attributeOffsets[i]) {
+        continue;
+      }
+      gl.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBuffers[i].getBufferId());
+      GLError.maybeThrowGLException("Failed to bind vertex buffer", "glBindBuffer");
+      gl.glVertexAttribPointer(
+          i, vertexBuffers[i].getNumberOfEntriesPerVertex(), GLES30.GL_FLOAT, false, 0, offset);
+      GLError.maybeThrowGLException(
+          "Failed to associate vertex buffer with vertex array", "glVertexAttribPointer");
+      attributeOffsets[i] = offset;
+    }
+  }
+
+  /** Returns the estimated GPU memory of the buffers of the mesh, in bytes. */
+  /* package-private */
+  long getEstimatedByteCount() {
+    long byteCount = indexBuffer == null ? 0 : indexBuffer.getEstimatedByteCount();
+    for (VertexBuffer vertexBuffer : vertexBuffers) {
+      byteCount += vertexBuffer.getEstimatedByteCount();
+    }
+    return byteCount;
   }
 
   /**
@@ -167,8 +269,8 @@ public class Mesh implements Closeable {
       throw new IllegalStateException("Tried to draw a freed Mesh");
     }
 
-    GLES30.glBindVertexArray(vertexArrayId[0]);
-    GLError.maybeThrowGLException("Failed to bind vertex array object", "glBindVertexArray");
+    glState.bindVertexArray(vertexArrayId[0]);
+    updateAttributeOffsets(attributeOffsets);
     if (indexBuffer == null) {
       // Sanity check for debugging
       int vertexCount = vertexBuffers[0].getNumberOfVertices();
@@ -182,13 +284,53 @@ public class Mesh implements Closeable {
                   vertexCount, i, iterCount));
         }
       }
-      GLES30.glDrawArrays(primitiveMode.glesEnum, 0, vertexCount);
+      gl.glDrawArrays(primitiveMode.glesEnum, 0, vertexCount);
       GLError.maybeThrowGLException("Failed to draw vertex array object", "glDrawArrays");
     } else {
-      GLES30.glDrawElements(
-          primitiveMode.glesEnum, indexBuffer.getSize(), GLES30.GL_UNSIGNED_INT, 0);
+      gl.glDrawElements(
+          primitiveMode.glesEnum,
+          indexBuffer.getSize(),
+          GLES30.GL_UNSIGNED_INT,
+          indexBuffer.getDrawOffset());
       GLError.maybeThrowGLException(
           "Failed to draw vertex array object with indices", "glDrawElements");
     }
   }
+
+  /**
+   * Draws one copy of the mesh per instance of {@code instances}, which must have been created for
+   * this mesh. Don't call this directly unless you are doing low level OpenGL code; instead, prefer
+   * {@link SampleRender#drawInstanced}.
+   */
+  public void lowLevelDrawInstanced(InstanceBuffer instances) {
+    if (vertexArrayId[0] == 0 || instances.getVertexArrayId() == 0) {
+      throw new IllegalStateException("Tried to draw a freed Mesh or InstanceBuffer");
+    }
+    if (instances.getMesh() != this) {
+      throw new IllegalArgumentException("The instance buffer belongs to another mesh");
+    }
+    int instanceCount = instances.getNumberOfInstances();
+    if (instanceCount == 0) {
+      return;
+    }
+
+    glState.bindVertexArray(instances.getVertexArrayId());
+    updateAttributeOffsets(instances.getVertexAttributeOffsets());
+    instances.updateInstanceAttributeOffset();
+    if (indexBuffer == null) {
+      gl.glDrawArraysInstanced(
+          primitiveMode.glesEnum, 0, vertexBuffers[0].getNumberOfVertices(), instanceCount);
+      GLError.maybeThrowGLException(
+          "Failed to draw instanced vertex array object", "glDrawArraysInstanced");
+    } else {
+      gl.glDrawElementsInstanced(
+          primitiveMode.glesEnum,
+          indexBuffer.getSize(),
+          GLES30.GL_UNSIGNED_INT,
+          indexBuffer.getDrawOffset(),
+          instanceCount);
+      GLError.maybeThrowGLException(
+          "Failed to draw instanced vertex array object with indices", "glDrawElementsInstanced");
+    }
+  }
 }
@@ -0,0 +1,623 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import java.nio.Buffer;
+
+/**
+ * A {@link GL} that counts the calls made through it before forwarding them to another {@link GL}.
+ *
+ * <p>Calls are counted by {@link Category}, along with the number of bytes handed to the driver by
+ * buffer, texture and uniform uploads. Counts accumulate until {@link #endFrame} is called, which
+ * makes them available through the {@code getFrame*} methods and starts counting the next frame.
+ * Counting does not allocate, so it can be left on in debug builds and compared against a {@link
+ * FrameBudget}.
+ */
+public class RecordingGL implements GL {
+  /** The kind of work a GL call represents. */
+  public static enum Category {
+    /** Draw calls. */
+    DRAW,
+    /** Binding objects and setting fixed-function or vertex array state. */
+    STATE,
+    /** Uploading buffer and texture data, generating mipmaps and clearing. */
+    UPLOAD,
+    /** Setting values of default block uniforms. */
+    UNIFORM,
+    /** Reading state or results back from the driver, including glGetError. */
+    QUERY,
+    /** Creating, compiling and deleting objects. */
+    RESOURCE
+  }
+
+  private static final int INT_SIZE = 4;
+  private static final int FLOAT_SIZE = 4;
+  private static final Category[] CATEGORIES = Category.values();
+
+  private final GL delegate;
+  private final int[] callCounts = new int[CATEGORIES.length];
+  private final int[] frameCallCounts = new int[CATEGORIES.length];
+  private long uploadedByteCount;
+  private long frameUploadedByteCount;
+
+  /** Constructs a {@link RecordingGL} forwarding every call to {@code delegate}. */
+  public RecordingGL(GL delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Ends the current frame: the counts since the last call become the frame counts, and counting
+   * restarts from zero. Must be called on the GL thread, typically at the end of {@link
+   * SampleRender.Renderer#onDrawFrame}.
+   */
+  public void endFrame() {
+    for (int i = 0; i < callCounts.length; ++i) {
+      frameCallCounts[i] = callCounts[i];
+      callCounts[i] = 0;
+    }
+    frameUploadedByteCount = uploadedByteCount;
+    uploadedByteCount = 0;
+  }
+
+  /** Returns the number of calls of the given category made during the last frame. */
+  public int getFrameCallCount(Category category) {
+    return frameCallCounts[category.ordinal()];
+  }
+
+  /** Returns the total number of GL calls made during the last frame. */
+  public int getFrameCallCount() {
+    int total = 0;
+    for (int count : frameCallCounts) {
+      total += count;
+    }
+    return total;
+  }
+
+  /** Returns the number of bytes uploaded to the driver during the last frame. */
+  public long getFrameUploadedByteCount() {
+    return frameUploadedByteCount;
+  }
+
+  private void record(Category category) {
+    callCounts[category.ordinal()]++;
+  }
+
+  private void record(Category category, long uploadedBytes) {
+    callCounts[category.ordinal()]++;
+    uploadedByteCount += uploadedBytes;
+  }
+
+  @Override
+  public void glActiveTexture(int texture) {
+    record(Category.STATE);
+    delegate.glActiveTexture(texture);
+  }
+
+  @Override
+  public void glAttachShader(int program, int shader) {
+    record(Category.RESOURCE);
+    delegate.glAttachShader(program, shader);
+  }
+
+  @Override
+  public void glBeginQuery(int target, int id) {
+    record(Category.QUERY);
+    delegate.glBeginQuery(target, id);
+  }
+
+  @Override
+  public void glBindBuffer(int target, int buffer) {
+    record(Category.STATE);
+    delegate.glBindBuffer(target, buffer);
+  }
+
+  @Override
+  public void glBindBufferRange(int target, int index, int buffer, int offset, int size) {
+    record(Category.STATE);
+    delegate.glBindBufferRange(target, index, buffer, offset, size);
+  }
+
+  @Override
+  public void glBindFramebuffer(int target, int framebuffer) {
+    record(Category.STATE);
+    delegate.glBindFramebuffer(target, framebuffer);
+  }
+
+  @Override
+  public void glBindTexture(int target, int texture) {
+    record(Category.STATE);
+    delegate.glBindTexture(target, texture);
+  }
+
+  @Override
+  public void glBindVertexArray(int array) {
+    record(Category.STATE);
+    delegate.glBindVertexArray(array);
+  }
+
+  @Override
+  public void glBlendFuncSeparate(int srcRGB, int dstRGB, int srcAlpha, int dstAlpha) {
+    record(Category.STATE);
+    delegate.glBlendFuncSeparate(srcRGB, dstRGB, srcAlpha, dstAlpha);
+  }
+
+  @Override
+  public void glBufferData(int target, int size, Buffer data, int usage) {
+    record(Category.UPLOAD, size);
+    delegate.glBufferData(target, size, data, usage);
+  }
+
+  @Override
+  public void glBufferSubData(int target, int offset, int size, Buffer data) {
+    record(Category.UPLOAD, size);
+    delegate.glBufferSubData(target, offset, size, data);
+  }
+
+  @Override
+  public int glCheckFramebufferStatus(int target) {
+    record(Category.QUERY);
+    return delegate.glCheckFramebufferStatus(target);
+  }
+
+  @Override
+  public void glClear(int mask) {
+    record(Category.UPLOAD);
+    delegate.glClear(mask);
+  }
+
+  @Override
+  public void glClearColor(float red, float green, float blue, float alpha) {
+    record(Category.STATE);
+    delegate.glClearColor(red, green, blue, alpha);
+  }
+
+  @Override
+  public int glClientWaitSync(long sync, int flags, long timeout) {
+    record(Category.QUERY);
+    return delegate.glClientWaitSync(sync, flags, timeout);
+  }
+
+  @Override
+  public void glCompileShader(int shader) {
+    record(Category.RESOURCE);
+    delegate.glCompileShader(shader);
+  }
+
+  @Override
+  public int glCreateProgram() {
+    record(Category.RESOURCE);
+    return delegate.glCreateProgram();
+  }
+
+  @Override
+  public int glCreateShader(int type) {
+    record(Category.RESOURCE);
+    return delegate.glCreateShader(type);
+  }
+
+  @Override
+  public void glDebugMessageCallbackKHR(DebugProc callback) {
+    record(Category.STATE);
+    delegate.glDebugMessageCallbackKHR(callback);
+  }
+
+  @Override
+  public void glDebugMessageControlKHR(
+      int source, int type, int severity, int count, int[] ids, int offset, boolean enabled) {
+    record(Category.STATE);
+    delegate.glDebugMessageControlKHR(source, type, severity, count, ids, offset, enabled);
+  }
+
+  @Override
+  public void glDeleteBuffers(int n, int[] buffers, int offset) {
+    record(Category.RESOURCE);
+    delegate.glDeleteBuffers(n, buffers, offset);
+  }
+
+  @Override
+  public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+    record(Category.RESOURCE);
+    delegate.glDeleteFramebuffers(n, framebuffers, offset);
+  }
+
+  @Override
+  public void glDeleteProgram(int program) {
+    record(Category.RESOURCE);
+    delegate.glDeleteProgram(program);
+  }
+
+  @Override
+  public void glDeleteQueries(int n, int[] ids, int offset) {
+    record(Category.RESOURCE);
+    delegate.glDeleteQueries(n, ids, offset);
+  }
+
+  @Override
+  public void glDeleteShader(int shader) {
+    record(Category.RESOURCE);
+    delegate.glDeleteShader(shader);
+  }
+
+  @Override
+  public void glDeleteSync(long sync) {
+    record(Category.RESOURCE);
+    delegate.glDeleteSync(sync);
+  }
+
+  @Override
+  public void glDeleteTextures(int n, int[] textures, int offset) {
+    record(Category.RESOURCE);
+    delegate.glDeleteTextures(n, textures, offset);
+  }
+
+  @Override
+  public void glDeleteVertexArrays(int n, int[] arrays, int offset) {
+    record(Category.RESOURCE);
+    delegate.glDeleteVertexArrays(n, arrays, offset);
+  }
+
+  @Override
+  public void glDepthMask(boolean flag) {
+    record(Category.STATE);
+    delegate.glDepthMask(flag);
+  }
+
+  @Override
+  public void glDisable(int cap) {
+    record(Category.STATE);
+    delegate.glDisable(cap);
+  }
+
+  @Override
+  public void glDrawArrays(int mode, int first, int count) {
+    record(Category.DRAW);
+    delegate.glDrawArrays(mode, first, count);
+  }
+
+  @Override
+  public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+    record(Category.DRAW);
+    delegate.glDrawArraysInstanced(mode, first, count, instanceCount);
+  }
+
+  @Override
+  public void glDrawBuffers(int n, int[] bufs, int offset) {
+    record(Category.STATE);
+    delegate.glDrawBuffers(n, bufs, offset);
+  }
+
+  @Override
+  public void glDrawElements(int mode, int count, int type, int offset) {
+    record(Category.DRAW);
+    delegate.glDrawElements(mode, count, type, offset);
+  }
+
+  @Override
+  public void glDrawElementsInstanced(
+      int mode, int count, int type, int offset, int instanceCount) {
+    record(Category.DRAW);
+    delegate.glDrawElementsInstanced(mode, count, type, offset, instanceCount);
+  }
+
+  @Override
+  public void glEnable(int cap) {
+    record(Category.STATE);
+    delegate.glEnable(cap);
+  }
+
+  @Override
+  public void glEnableVertexAttribArray(int index) {
+    record(Category.STATE);
+    delegate.glEnableVertexAttribArray(index);
+  }
+
+  @Override
+  public void glEndQuery(int target) {
+    record(Category.QUERY);
+    delegate.glEndQuery(target);
+  }
+
+  @Override
+  public long glFenceSync(int condition, int flags) {
+    record(Category.RESOURCE);
+    return delegate.glFenceSync(condition, flags);
+  }
+
+  @Override
+  public void glFramebufferTexture2D(
+      int target, int attachment, int textarget, int texture, int level) {
+    record(Category.RESOURCE);
+    delegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+  }
+
+  @Override
+  public void glGenBuffers(int n, int[] buffers, int offset) {
+    record(Category.RESOURCE);
+    delegate.glGenBuffers(n, buffers, offset);
+  }
+
+  @Override
+  public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+    record(Category.RESOURCE);
+    delegate.glGenFramebuffers(n, framebuffers, offset);
+  }
+
+  @Override
+  public void glGenQueries(int n, int[] ids, int offset) {
+    record(Category.RESOURCE);
+    delegate.glGenQueries(n, ids, offset);
+  }
+
+  @Override
+  public void glGenTextures(int n, int[] textures, int offset) {
+    record(Category.RESOURCE);
+    delegate.glGenTextures(n, textures, offset);
+  }
+
+  @Override
+  public void glGenVertexArrays(int n, int[] arrays, int offset) {
+    record(Category.RESOURCE);
+    delegate.glGenVertexArrays(n, arrays, offset);
+  }
+
+  @Override
+  public void glGenerateMipmap(int target) {
+    record(Category.UPLOAD);
+    delegate.glGenerateMipmap(target);
+  }
+
+  @Override
+  public String glGetActiveUniform(
+      int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+    record(Category.QUERY);
+    return delegate.glGetActiveUniform(program, index, size, sizeOffset, type, typeOffset);
+  }
+
+  @Override
+  public int glGetDebugMessageLogKHR(
+      int count,
+      int bufSize,
+      int[] sources,
+      int sourcesOffset,
+      int[] types,
+      int typesOffset,
+      int[] ids,
+      int idsOffset,
+      int[] severities,
+      int severitiesOffset,
+      int[] lengths,
+      int lengthsOffset,
+      byte[] messageLog,
+      int messageLogOffset) {
+    record(Category.QUERY);
+    return delegate.glGetDebugMessageLogKHR(
+        count,
+        bufSize,
+        sources,
+        sourcesOffset,
+        types,
+        typesOffset,
+        ids,
+        idsOffset,
+        severities,
+        severitiesOffset,
+        lengths,
+        lengthsOffset,
+        messageLog,
+        messageLogOffset);
+  }
+
+  @Override
+  public int glGetError() {
+    record(Category.QUERY);
+    return delegate.glGetError();
+  }
+
+  @Override
+  public void glGetIntegerv(int pname, int[] params, int offset) {
+    record(Category.QUERY);
+    delegate.glGetIntegerv(pname, params, offset);
+  }
+
+  @Override
+  public String glGetProgramInfoLog(int program) {
+    record(Category.QUERY);
+    return delegate.glGetProgramInfoLog(program);
+  }
+
+  @Override
+  public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+    record(Category.QUERY);
+    delegate.glGetProgramiv(program, pname, params, offset);
+  }
+
+  @Override
+  public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+    record(Category.QUERY);
+    delegate.glGetQueryObjectuiv(id, pname, params, offset);
+  }
+
+  @Override
+  public String glGetShaderInfoLog(int shader) {
+    record(Category.QUERY);
+    return delegate.glGetShaderInfoLog(shader);
+  }
+
+  @Override
+  public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+    record(Category.QUERY);
+    delegate.glGetShaderiv(shader, pname, params, offset);
+  }
+
+  @Override
+  public String glGetString(int name) {
+    record(Category.QUERY);
+    return delegate.glGetString(name);
+  }
+
+  @Override
+  public int glGetUniformBlockIndex(int program, String uniformBlockName) {
+    record(Category.QUERY);
+    return delegate.glGetUniformBlockIndex(program, uniformBlockName);
+  }
+
+  @Override
+  public int glGetUniformLocation(int program, String name) {
+    record(Category.QUERY);
+    return delegate.glGetUniformLocation(program, name);
+  }
+
+  @Override
+  public void glInvalidateFramebuffer(
+      int target, int numAttachments, int[] attachments, int offset) {
+    record(Category.STATE);
+    delegate.glInvalidateFramebuffer(target, numAttachments, attachments, offset);
+  }
+
+  @Override
+  public void glLinkProgram(int program) {
+    record(Category.RESOURCE);
+    delegate.glLinkProgram(program);
+  }
+
+  @Override
+  public Buffer glMapBufferRange(int target, int offset, int length, int access) {
+    record(Category.UPLOAD, length);
+    return delegate.glMapBufferRange(target, offset, length, access);
+  }
+
+  @Override
+  public void glShaderSource(int shader, String string) {
+    record(Category.RESOURCE);
+    delegate.glShaderSource(shader, string);
+  }
+
+  @Override
+  public void glTexImage2D(
+      int target,
+      int level,
+      int internalformat,
+      int width,
+      int height,
+      int border,
+      int format,
+      int type,
+      Buffer pixels) {
+    record(Category.UPLOAD, pixels == null ? 0 : pixels.remaining());
+    delegate.glTexImage2D(
+        target, level, internalformat, width, height, border, format, type, pixels);
+  }
+
+  @Override
+  public void glTexParameteri(int target, int pname, int param) {
+    record(Category.STATE);
+    delegate.glTexParameteri(target, pname, param);
+  }
+
+  @Override
+  public void glUniform1fv(int location, int count, float[] v, int offset) {
+    record(Category.UNIFORM, count * FLOAT_SIZE);
+    delegate.glUniform1fv(location, count, v, offset);
+  }
+
+  @Override
+  public void glUniform1i(int location, int x) {
+    record(Category.UNIFORM, INT_SIZE);
+    delegate.glUniform1i(location, x);
+  }
+
+  @Override
+  public void glUniform1iv(int location, int count, int[] v, int offset) {
+    record(Category.UNIFORM, count * INT_SIZE);
+    delegate.glUniform1iv(location, count, v, offset);
+  }
+
+  @Override
+  public void glUniform2fv(int location, int count, float[] v, int offset) {
+    record(Category.UNIFORM, 2 * count * FLOAT_SIZE);
+    delegate.glUniform2fv(location, count, v, offset);
+  }
+
+  @Override
+  public void glUniform3fv(int location, int count, float[] v, int offset) {
+    record(Category.UNIFORM, 3 * count * FLOAT_SIZE);
+    delegate.glUniform3fv(location, count, v, offset);
+  }
+
+  @Override
+  public void glUniform4fv(int location, int count, float[] v, int offset) {
+    record(Category.UNIFORM, 4 * count * FLOAT_SIZE);
+    delegate.glUniform4fv(location, count, v, offset);
+  }
+
+  @Override
+  public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding) {
+    record(Category.STATE);
+    delegate.glUniformBlockBinding(program, uniformBlockIndex, uniformBlockBinding);
+  }
+
+  @Override
+  public void glUniformMatrix2fv(
+      int location, int count, boolean transpose, float[] value, int offset) {
+    record(Category.UNIFORM, 4 * count * FLOAT_SIZE);
+    delegate.glUniformMatrix2fv(location, count, transpose, value, offset);
+  }
+
+  @Override
+  public void glUniformMatrix3fv(
+      int location, int count, boolean transpose, float[] value, int offset) {
+    record(Category.UNIFORM, 9 * count * FLOAT_SIZE);
+    delegate.glUniformMatrix3fv(location, count, transpose, value, offset);
+  }
+
+  @Override
+  public void glUniformMatrix4fv(
+      int location, int count, boolean transpose, float[] value, int offset) {
+    record(Category.UNIFORM, 16 * count * FLOAT_SIZE);
+    delegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+  }
+
+  @Override
+  public boolean glUnmapBuffer(int target) {
+    record(Category.UPLOAD);
+    return delegate.glUnmapBuffer(target);
+  }
+
+  @Override
+  public void glUseProgram(int program) {
+    record(Category.STATE);
+    delegate.glUseProgram(program);
+  }
+
+  @Override
+  public void glVertexAttribDivisor(int index, int divisor) {
+    record(Category.STATE);
+    delegate.glVertexAttribDivisor(index, divisor);
+  }
+
+  @Override
+  public void glVertexAttribPointer(
+      int index, int size, int type, boolean normalized, int stride, int offset) {
+    record(Category.STATE);
+    delegate.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+  }
+
+  @Override
+  public void glViewport(int x, int y, int width, int height) {
+    record(Category.STATE);
+    delegate.glViewport(x, y, width, height);
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import java.util.ArrayList;
+
+/**
+ * An ordered list of render passes executed once per frame, which skips passes without work and
+ * invalidates attachments whose contents are not needed anymore.
+ *
+ * <p>Each pass renders to a target {@link Framebuffer}, or to the default framebuffer, and may read
+ * attachments of framebuffers rendered by earlier passes. When executed, a pass is skipped if it
+ * reports no work, or if it reads a framebuffer whose passes were all skipped during the frame.
+ *
+ * <p>Attachments declared transient with {@link #setTransientAttachments} are invalidated with
+ * {@code glInvalidateFramebuffer} right after the last pass of the frame rendering to or reading
+ * them, so that tile-based GPUs do not write them back to memory.
+ *
+ * <p>The CPU time of each pass is recorded by {@link CpuProfiler} under the name of the pass, and
+ * its GPU time may be measured with {@link #enableGpuProfiling}.
+ *
+ * <p>Passes are added once, typically in {@link SampleRender.Renderer#onSurfaceCreated}. Executing
+ * the graph does not allocate.
+ */
+public class RenderGraph {
+  /** The color attachment of a framebuffer. */
+  public static final int COLOR = 1;
+  /** The depth attachment of a framebuffer. */
+  public static final int DEPTH = 2;
+
+  private static final int ALL_ATTACHMENTS = COLOR | DEPTH;
+
+  /** Issues the GL work of a pass. */
+  public static interface Callback {
+    public void execute(SampleRender render);
+  }
+
+  /** Tells whether a pass has work to do during the current frame. */
+  public static interface WorkPredicate {
+    public boolean hasWork();
+  }
+
+  /** A pass of a {@link RenderGraph}. */
+  public static final class Pass {
+    private final String name;
+    private final boolean hasTarget;
+    private final Framebuffer target;
+    private final Callback callback;
+    private WorkPredicate workPredicate;
+    private boolean clear;
+    private final float[] clearColor = new float[4];
+    private final ArrayList<Framebuffer> readFramebuffers = new ArrayList<>();
+    private final ArrayList<int[]> readAttachments = new ArrayList<>();
+
+    private Pass(String name, boolean hasTarget, Framebuffer target, Callback callback) {
+      this.name = name;
+      this.hasTarget = hasTarget;
+      this.target = target;
+      this.callback = callback;
+    }
+
+    /** Returns the name of the pass. */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Sets the predicate evaluated at the start of each frame to determine whether the pass has
+     * work. Passes without a predicate always have work.
+     */
+    public Pass setWorkPredicate(WorkPredicate workPredicate) {
+      this.workPredicate = workPredicate;
+      return this;
+    }
+
+    /** Clears the target to the given color before executing the pass. */
+    public Pass setClearColor(float r, float g, float b, float a) {
+      if (!hasTarget) {
+        throw new IllegalStateException("Pass " + name + " has no target to clear");
+      }
+      clear = true;
+      clearColor[0] = r;
+      clearColor[1] = g;
+      clearColor[2] = b;
+      clearColor[3] = a;
+      return this;
+    }
+
+    /**
+     * Declares the attachments of {@code framebuffer} read by the pass, replacing any earlier
+     * declaration for the same framebuffer. May be changed between frames, for example when a
+     * shader stops sampling the depth attachment.
+     *
+     * @param attachments A combination of {@link #COLOR} and {@link #DEPTH}, or 0 to stop reading
+     *     the framebuffer.
+     */
+    public Pass setReadAttachments(Framebuffer framebuffer, int attachments) {
+      int index = readFramebuffers.indexOf(framebuffer);
+      if (index < 0) {
+        readFramebuffers.add(framebuffer);
+        readAttachments.add(new int[] {attachments});
+      } else {
+        readAttachments.get(index)[0] = attachments;
+      }
+      return this;
+    }
+
+    private boolean rendersTo(Framebuffer framebuffer) {
+      return hasTarget && target == framebuffer;
+    }
+
+    /** Returns the attachments of {@code framebuffer} used by this pass, as a target or as input. */
+    private int getUsedAttachments(Framebuffer framebuffer) {
+      if (rendersTo(framebuffer)) {
+        return ALL_ATTACHMENTS;
+      }
+      int index = readFramebuffers.indexOf(framebuffer);
+      return index < 0 ? 0 : readAttachments.get(index)[0];
+    }
+  }
+
+  private final ArrayList<Pass> passes = new ArrayList<>();
+  private final ArrayList<Framebuffer> transientFramebuffers = new ArrayList<>();
+  private final ArrayList<int[]> transientAttachments = new ArrayList<>();
+  private boolean[] executed = new boolean[0];
+  private final int[] invalidatedAttachments = new int[2];
+  private GpuProfiler gpuProfiler;
+
+  private int lastExecutedPassCount;
+  private int lastInvalidatedAttachmentCount;
+
+  /**
+   * Appends a pass rendering to {@code target}.
+   *
+   * <p>The {@code target} argument may be null, in which case the pass renders to the default
+   * framebuffer.
+   */
+  public Pass addPass(String name, Framebuffer target, Callback callback) {
+    return addPass(new Pass(name, /* hasTarget= */ true, target, callback));
+  }
+
+  /**
+   * Appends a pass managing its own framebuffers, such as {@link
+   * com.iboson.objectdetection.common.samplerender.arcore.SpecularCubemapFilter}. Such a pass never
+   * prevents another pass from being skipped, nor attachments from being invalidated.
+   */
+  public Pass addPass(String name, Callback callback) {
+    return addPass(new Pass(name, /* hasTarget= */ false, /* target= */ null, callback));
+  }
+
+  /**
+   * Declares attachments of {@code framebuffer} whose contents are not needed after the passes of
+   * the frame using them, replacing any earlier declaration for the same framebuffer.
+   *
+   * <p>The {@code framebuffer} argument may be null to refer to the default framebuffer, in which
+   * case only {@link #DEPTH} may be declared transient, since the color attachment is displayed.
+   *
+   * @param attachments A combination of {@link #COLOR} and {@link #DEPTH}.
+   */
+  public RenderGraph setTransientAttachments(Framebuffer framebuffer, int attachments) {
+    if (framebuffer == null && (attachments & COLOR) != 0) {
+      throw new IllegalArgumentException("The default framebuffer color cannot be transient");
+    }
+    int index = transientFramebuffers.indexOf(framebuffer);
+    if (index < 0) {
+      transientFramebuffers.add(framebuffer);
+      transientAttachments.add(new int[] {attachments});
+    } else {
+      transientAttachments.get(index)[0] = attachments;
+    }
+    return this;
+  }
+
+  /**
+   * Measures the GPU time of every executed pass, including its clear, with a new {@link
+   * GpuProfiler} whose scopes are the passes in the order they were added. Must be called once
+   * every pass has been added, during a {@link SampleRender.Renderer} callback.
+   */
+  public GpuProfiler enableGpuProfiling(SampleRender render) {
+    if (gpuProfiler != null) {
+      throw new IllegalStateException("GPU profiling is already enabled");
+    }
+    String[] passNames = new String[passes.size()];
+    for (int i = 0; i < passNames.length; ++i) {
+      passNames[i] = passes.get(i).name;
+    }
+    gpuProfiler = new GpuProfiler(render, passNames);
+    return gpuProfiler;
+  }
+
+  /** Returns the {@link GpuProfiler} scope measuring {@code pass}, once profiling is enabled. */
+  public int getGpuProfilerScope(Pass pass) {
+    int scope = passes.indexOf(pass);
+    if (scope < 0) {
+      throw new IllegalArgumentException("Pass " + pass.name + " is not part of this graph");
+    }
+    return scope;
+  }
+
+  /** Executes the passes with work in order, invalidating transient attachments after use. */
+  public void execute(SampleRender render) {
+    if (gpuProfiler != null) {
+      gpuProfiler.beginFrame();
+    }
+    int passCount = passes.size();
+    lastExecutedPassCount = 0;
+    lastInvalidatedAttachmentCount = 0;
+    for (int i = 0; i < passCount; ++i) {
+      executed[i] = isLive(i);
+      if (executed[i]) {
+        lastExecutedPassCount++;
+      }
+    }
+    for (int i = 0; i < passCount; ++i) {
+      if (!executed[i]) {
+        continue;
+      }
+      Pass pass = passes.get(i);
+      CpuProfiler.begin(pass.name);
+      if (gpuProfiler != null) {
+        gpuProfiler.begin(i);
+      }
+      if (pass.clear) {
+        render.clear(
+            pass.target,
+            pass.clearColor[0],
+            pass.clearColor[1],
+            pass.clearColor[2],
+            pass.clearColor[3]);
+      }
+      pass.callback.execute(render);
+      if (gpuProfiler != null) {
+        gpuProfiler.end();
+      }
+      invalidateUnusedAttachments(render, i);
+      CpuProfiler.end();
+    }
+  }
+
+  /** Returns the number of passes executed by the last call to {@link #execute}. */
+  public int getLastExecutedPassCount() {
+    return lastExecutedPassCount;
+  }
+
+  /** Returns the number of attachments invalidated by the last call to {@link #execute}. */
+  public int getLastInvalidatedAttachmentCount() {
+    return lastInvalidatedAttachmentCount;
+  }
+
+  private Pass addPass(Pass pass) {
+    if (gpuProfiler != null) {
+      throw new IllegalStateException("Passes cannot be added once GPU profiling is enabled");
+    }
+    passes.add(pass);
+    executed = new boolean[passes.size()];
+    return pass;
+  }
+
+  /** Returns whether the pass has work and every framebuffer it reads was rendered. */
+  private boolean isLive(int passIndex) {
+    Pass pass = passes.get(passIndex);
+    if (pass.workPredicate != null && !pass.workPredicate.hasWork()) {
+      return false;
+    }
+    for (int i = 0; i < pass.readFramebuffers.size(); ++i) {
+      if (pass.readAttachments.get(i)[0] == 0) {
+        continue;
+      }
+      Framebuffer framebuffer = pass.readFramebuffers.get(i);
+      boolean hasProducer = false;
+      boolean hasExecutedProducer = false;
+      for (int j = 0; j < passIndex; ++j) {
+        if (passes.get(j).rendersTo(framebuffer)) {
+          hasProducer = true;
+          hasExecutedProducer |= executed[j];
+        }
+      }
+      // Framebuffers rendered outside of the graph are assumed to hold valid contents.
+      if (hasProducer && !hasExecutedProducer) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Invalidates transient attachments used by the pass and by no later pass of the frame. */
+  private void invalidateUnusedAttachments(SampleRender render, int passIndex) {
+    Pass pass = passes.get(passIndex);
+    for (int i = 0; i < transientFramebuffers.size(); ++i) {
+      Framebuffer framebuffer = transientFramebuffers.get(i);
+      int attachments = transientAttachments.get(i)[0] & pass.getUsedAttachments(framebuffer);
+      for (int j = passIndex + 1; j < passes.size() && attachments != 0; ++j) {
+        if (executed[j]) {
+          attachments &= ~passes.get(j).getUsedAttachments(framebuffer);
+        }
+      }
+      if (attachments != 0) {
+        invalidate(render, framebuffer, attachments);
+      }
+    }
+  }
+
+  private void invalidate(SampleRender render, Framebuffer framebuffer, int attachments) {
+    int count = 0;
+    if ((attachments & COLOR) != 0) {
+      invalidatedAttachments[count++] = GLES30.GL_COLOR_ATTACHMENT0;
+    }
+    if ((attachments & DEPTH) != 0) {
+      // The default framebuffer names its attachments differently.
+      invalidatedAttachments[count++] =
+          framebuffer == null ? GLES30.GL_DEPTH : GLES30.GL_DEPTH_ATTACHMENT;
+    }
+    render.getGlState().bindFramebuffer(framebuffer == null ? 0 : framebuffer.getFramebufferId());
+    render
+        .getGl()
+        .glInvalidateFramebuffer(GLES30.GL_FRAMEBUFFER, count, invalidatedAttachments, 0);
+    GLError.maybeThrowGLException("Failed to invalidate framebuffer", "glInvalidateFramebuffer");
+    lastInvalidatedAttachmentCount += count;
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+/**
+ * Records draws and submits them sorted to minimize program, texture and framebuffer switches.
+ *
+ * <p>Each draw is recorded with {@link #add} as a {@link Packet} with a 64-bit sort key made of,
+ * from most to least significant: the pass (4 bits), the framebuffer (8 bits), the shader program
+ * (12 bits), the shader's textures (16 bits), and the depth (24 bits). {@link #flush} radix sorts
+ * the packets by key and draws them in order with {@link SampleRender#draw}. Passes therefore run
+ * in increasing order, and within a framebuffer and shader, draws are submitted front to back.
+ *
+ * <p>Since draws are deferred, uniforms that vary per draw must be recorded on the packet with
+ * {@link Packet#setMat4} rather than set on the shader directly, and a packet drawing many copies
+ * of a mesh with {@link Packet#setInstances} counts as a single draw. Framebuffers must be cleared
+ * before calling {@link #flush}.
+ *
+ * <p>Recording and flushing do not allocate once the queue has grown to the number of packets
+ * recorded per frame.
+ */
+public class RenderQueue {
+  /** The highest pass number that can be given to {@link #add}. */
+  public static final int MAX_PASS = 15;
+
+  private static final int MAX_UNIFORMS_PER_PACKET = 4;
+  private static final int MAT4_SIZE = 16;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final int PASS_SHIFT = 60;
+  private static final int FRAMEBUFFER_SHIFT = 52;
+  private static final int PROGRAM_SHIFT = 40;
+  private static final int TEXTURE_SHIFT = 24;
+  private static final long FRAMEBUFFER_MASK = 0xFFL;
+  private static final long PROGRAM_MASK = 0xFFFL;
+  private static final long TEXTURE_MASK = 0xFFFFL;
+  private static final long DEPTH_MASK = 0xFFFFFFL;
+
+  private static final int RADIX_BITS = 8;
+  private static final int RADIX = 1 << RADIX_BITS;
+  private static final int RADIX_PASSES = Long.SIZE / RADIX_BITS;
+
+  /** A draw recorded in a {@link RenderQueue}. */
+  public static final class Packet {
+    private Mesh mesh;
+    private Shader shader;
+    private Framebuffer framebuffer;
+    private final Shader.UniformHandle[] mat4Handles =
+        new Shader.UniformHandle[MAX_UNIFORMS_PER_PACKET];
+    private final float[][] mat4Values = new float[MAX_UNIFORMS_PER_PACKET][MAT4_SIZE];
+    private int mat4Count;
+    private InstanceBuffer instances;
+
+    private Packet() {}
+
+    /**
+     * Sets a mat4 uniform of the packet's shader for this draw only. The values are copied, so the
+     * array may be reused right away.
+     */
+    public Packet setMat4(Shader.UniformHandle handle, float[] values) {
+      if (values.length != MAT4_SIZE) {
+        throw new IllegalArgumentException("Value array length must be 16");
+      }
+      if (mat4Count == MAX_UNIFORMS_PER_PACKET) {
+        throw new IllegalStateException(
+            "A packet holds at most " + MAX_UNIFORMS_PER_PACKET + " uniforms");
+      }
+      mat4Handles[mat4Count] = handle;
+      System.arraycopy(values, 0, mat4Values[mat4Count], 0, MAT4_SIZE);
+      mat4Count++;
+      return this;
+    }
+
+    /**
+     * Draws every instance of {@code instances}, an {@link InstanceBuffer} of the packet's mesh, in
+     * a single draw instead of the mesh alone. The instance data is read when the queue is flushed.
+     */
+    public Packet setInstances(InstanceBuffer instances) {
+      if (instances.getMesh() != mesh) {
+        throw new IllegalArgumentException("The instance buffer belongs to another mesh");
+      }
+      this.instances = instances;
+      return this;
+    }
+
+    private void submit(SampleRender render) {
+      for (int i = 0; i < mat4Count; ++i) {
+        shader.setMat4(mat4Handles[i], mat4Values[i]);
+      }
+      if (instances == null) {
+        render.draw(mesh, shader, framebuffer);
+      } else {
+        render.drawInstanced(mesh, shader, framebuffer, instances);
+      }
+    }
+
+    private void clear() {
+      mesh = null;
+      shader = null;
+      framebuffer = null;
+      for (int i = 0; i < mat4Count; ++i) {
+        mat4Handles[i] = null;
+      }
+      mat4Count = 0;
+      instances = null;
+    }
+  }
+
+  private final SampleRender render;
+  private Packet[] packets = new Packet[0];
+  private long[] keys = new long[0];
+  private int[] order = new int[0];
+  private long[] scratchKeys = new long[0];
+  private int[] scratchOrder = new int[0];
+  private final int[] counts = new int[RADIX];
+  private int size = 0;
+
+  private int lastDrawCount;
+  private int lastProgramChangeCount;
+  private int lastFramebufferChangeCount;
+  private int lastTextureChangeCount;
+
+  public RenderQueue(SampleRender render) {
+    this.render = render;
+    grow(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Records a draw of {@code mesh} with {@code shader} to {@code framebuffer}.
+   *
+   * <p>The {@code framebuffer} argument may be null, in which case the default framebuffer is used.
+   *
+   * @param pass The pass of the draw, between 0 and {@link #MAX_PASS}. Lower passes are drawn
+   *     first.
+   * @param depth The distance of the draw from the camera, used to order draws front to back
+   *     within a pass. Negative values are treated as zero.
+   * @return The recorded packet, which remains valid until the next call to {@link #flush}.
+   */
+  public Packet add(Mesh mesh, Shader shader, Framebuffer framebuffer, int pass, float depth) {
+    if (pass < 0 || pass > MAX_PASS) {
+      throw new IllegalArgumentException("Pass must be between 0 and " + MAX_PASS);
+    }
+    if (size == packets.length) {
+      grow(packets.length * 2);
+    }
+    int framebufferId = framebuffer == null ? 0 : framebuffer.getFramebufferId();
+    keys[size] =
+        ((long) pass << PASS_SHIFT)
+            | ((framebufferId & FRAMEBUFFER_MASK) << FRAMEBUFFER_SHIFT)
+            | ((shader.getProgramId() & PROGRAM_MASK) << PROGRAM_SHIFT)
+            | ((shader.getTextureKey() & TEXTURE_MASK) << TEXTURE_SHIFT)
+            | quantizeDepth(depth);
+    order[size] = size;
+    Packet packet = packets[size];
+    packet.mesh = mesh;
+    packet.shader = shader;
+    packet.framebuffer = framebuffer;
+    size++;
+    return packet;
+  }
+
+  /** Sorts and draws every recorded packet, then empties the queue. */
+  public void flush() {
+    sort();
+    long previousKey = 0;
+    lastDrawCount = size;
+    lastProgramChangeCount = 0;
+    lastFramebufferChangeCount = 0;
+    lastTextureChangeCount = 0;
+    for (int i = 0; i < size; ++i) {
+      long key = keys[i];
+      if (i == 0 || differs(key, previousKey, FRAMEBUFFER_SHIFT, FRAMEBUFFER_MASK)) {
+        lastFramebufferChangeCount++;
+      }
+      if (i == 0 || differs(key, previousKey, PROGRAM_SHIFT, PROGRAM_MASK)) {
+        lastProgramChangeCount++;
+      }
+      if (i == 0 || differs(key, previousKey, TEXTURE_SHIFT, TEXTURE_MASK)) {
+        lastTextureChangeCount++;
+      }
+      previousKey = key;
+      packets[order[i]].submit(render);
+    }
+    for (int i = 0; i < size; ++i) {
+      packets[i].clear();
+    }
+    size = 0;
+  }
+
+  /** Returns the number of draws submitted by the last {@link #flush}. */
+  public int getLastDrawCount() {
+    return lastDrawCount;
+  }
+
+  /** Returns the number of shader program changes made by the last {@link #flush}. */
+  public int getLastProgramChangeCount() {
+    return lastProgramChangeCount;
+  }
+
+  /** Returns the number of framebuffer changes made by the last {@link #flush}. */
+  public int getLastFramebufferChangeCount() {
+    return lastFramebufferChangeCount;
+  }
+
+  /** Returns the number of texture set changes made by the last {@link #flush}. */
+  public int getLastTextureChangeCount() {
+    return lastTextureChangeCount;
+  }
+
+  /** Sorts keys and order by unsigned key with a least significant digit first radix sort. */
+  private void sort() {
+    for (int radixPass = 0; radixPass < RADIX_PASSES; ++radixPass) {
+      int shift = radixPass * RADIX_BITS;
+      for (int i = 0; i < RADIX; ++i) {
+        counts[i] = 0;
+      }
+      for (int i = 0; i < size; ++i) {
+        counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+      }
+      // Skip digits shared by every key, which is most of them for small queues.
+      if (size == 0 || counts[(int) (keys[0] >>> shift) & (RADIX - 1)] == size) {
+        continue;
+      }
+      int offset = 0;
+      for (int i = 0; i < RADIX; ++i) {
+        int count = counts[i];
+        counts[i] = offset;
+        offset += count;
+      }
+      for (int i = 0; i < size; ++i) {
+        int digit = (int) (keys[i] >>> shift) & (RADIX - 1);
+        int destination = counts[digit]++;
+        scratchKeys[destination] = keys[i];
+        scratchOrder[destination] = order[i];
+      }
+      long[] swapKeys = keys;
+      keys = scratchKeys;
+      scratchKeys = swapKeys;
+      int[] swapOrder = order;
+      order = scratchOrder;
+      scratchOrder = swapOrder;
+    }
+  }
+
+  private void grow(int capacity) {
+    Packet[] newPackets = new Packet[capacity];
+    System.arraycopy(packets, 0, newPackets, 0, size);
+    for (int i = size; i < capacity; ++i) {
+      newPackets[i] = new Packet();
+    }
+    packets = newPackets;
+    keys = copyOf(keys, capacity);
+    order = copyOf(order, capacity);
+    scratchKeys = new long[capacity];
+    scratchOrder = new int[capacity];
+  }
+
+  private long[] copyOf(long[] array, int capacity) {
+    long[] result = new long[capacity];
+    System.arraycopy(array, 0, result, 0, size);
+    return result;
+  }
+
+  private int[] copyOf(int[] array, int capacity) {
+    int[] result = new int[capacity];
+    System.arraycopy(array, 0, result, 0, size);
+    return result;
+  }
+
+  private static boolean differs(long key, long otherKey, int shift, long mask) {
+    return ((key >>> shift) & mask) != ((otherKey >>> shift) & mask);
+  }
+
+  private static long quantizeDepth(float depth) {
+    if (!(depth > 0f)) {
+      return 0;
+    }
+    // The bit patterns of positive floats sort in the same order as their values, so keeping the
+    // top 24 bits below the sign bit preserves the ordering.
+    return (Float.floatToRawIntBits(depth) >>> 7) & DEPTH_MASK;
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.EGL14;
+import android.opengl.EGL15;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.EGLSync;
+import android.opengl.GLUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A render loop driving a {@link SampleRender} on a dedicated thread, as an alternative to {@link
+ * android.opengl.GLSurfaceView}.
+ *
+ * <p>Frames are started by {@link Choreographer} on vsync. An EGL fence is inserted after each
+ * frame, and a frame only waits for the fence of the frame submitted {@link
+ * #MAX_FRAMES_IN_FLIGHT} frames earlier, so that the CPU work of a frame overlaps the GPU work of
+ * the previous one without letting the driver queue up frames and latency.
+ *
+ * <p>The EGL context is preserved while paused and while the surface is destroyed, as with {@link
+ * android.opengl.GLSurfaceView#setPreserveEGLContextOnPause}.
+ */
+public class RenderThread implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+  private static final String TAG = RenderThread.class.getSimpleName();
+
+  /** The number of frames whose GPU work may still be pending when a new frame is started. */
+  public static final int MAX_FRAMES_IN_FLIGHT = 2;
+
+  // Bounds the wait on a frame fence, so that a lost context cannot hang the render thread.
+  private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+
+  private static final int[] CONFIG_ATTRIBUTES = {
+    EGL14.EGL_RED_SIZE, 8,
+    EGL14.EGL_GREEN_SIZE, 8,
+    EGL14.EGL_BLUE_SIZE, 8,
+    EGL14.EGL_ALPHA_SIZE, 8,
+    EGL14.EGL_DEPTH_SIZE, 16,
+    EGL14.EGL_STENCIL_SIZE, 0,
+    EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+    EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT,
+    EGL14.EGL_NONE
+  };
+  private static final int[] CONTEXT_ATTRIBUTES = {
+    EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE
+  };
+  private static final int[] SURFACE_ATTRIBUTES = {EGL14.EGL_NONE};
+  private static final long[] FENCE_ATTRIBUTES = {EGL14.EGL_NONE};
+
+  private final SampleRender render;
+  private final SurfaceHolder surfaceHolder;
+  private final HandlerThread thread;
+  private final Handler handler;
+
+  // Only accessed on the render thread.
+  private Choreographer choreographer;
+  private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+  private EGLConfig config;
+  private EGLContext context = EGL14.EGL_NO_CONTEXT;
+  private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+  private final EGLSync[] frameFences = new EGLSync[MAX_FRAMES_IN_FLIGHT];
+  private Surface surface;
+  private int surfaceWidth;
+  private int surfaceHeight;
+  private boolean surfaceSizeChanged;
+  private boolean resumed;
+  private boolean frameCallbackPending;
+  private long frameNumber;
+  private long previousFrameTimeNanos;
+  private int vsyncsSinceLastFrame;
+
+  private volatile int frameInterval = 1;
+
+  // Timings of the last frame, readable from any thread.
+  private volatile long lastFrameIntervalNanos;
+  private volatile long lastFrameStartLatencyNanos;
+  private volatile long lastFenceWaitNanos;
+  private volatile long lastFrameCpuTimeNanos;
+
+  /* package-private */
+  RenderThread(SurfaceView surfaceView, SampleRender render) {
+    this.render = render;
+    thread = new HandlerThread("SampleRender");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    handler.post(
+        () -> {
+          try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+          } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to raise render thread priority", e);
+          }
+          choreographer = Choreographer.getInstance();
+        });
+    surfaceHolder = surfaceView.getHolder();
+    surfaceHolder.addCallback(this);
+  }
+
+  /** Starts rendering frames, once a surface is available. */
+  public void onResume() {
+    handler.post(
+        () -> {
+          resumed = true;
+          scheduleFrame();
+        });
+  }
+
+  /** Stops rendering frames. Returns once the frame in progress, if any, has been submitted. */
+  public void onPause() {
+    runAndWait(
+        () -> {
+          resumed = false;
+          if (frameCallbackPending) {
+            choreographer.removeFrameCallback(this);
+            frameCallbackPending = false;
+          }
+        });
+  }
+
+  /** Destroys the EGL context and stops the thread. The render thread cannot be used afterwards. */
+  public void release() {
+    surfaceHolder.removeCallback(this);
+    runAndWait(
+        () -> {
+          resumed = false;
+          if (frameCallbackPending) {
+            choreographer.removeFrameCallback(this);
+            frameCallbackPending = false;
+          }
+          releaseContext();
+        });
+    thread.quitSafely();
+  }
+
+  /**
+   * Renders a frame every {@code frameInterval} vsyncs, e.g. 2 to render at half the display
+   * refresh rate. May be called from any thread.
+   */
+  public void setFrameInterval(int frameInterval) {
+    if (frameInterval < 1) {
+      throw new IllegalArgumentException("Frame interval must be at least 1");
+    }
+    this.frameInterval = frameInterval;
+  }
+
+  /** Returns the number of vsyncs between frames. */
+  public int getFrameInterval() {
+    return frameInterval;
+  }
+
+  /** Returns the time between the vsyncs of the last two frames, in nanoseconds. */
+  public long getLastFrameIntervalNanos() {
+    return lastFrameIntervalNanos;
+  }
+
+  /** Returns the delay between the vsync of the last frame and the start of its work. */
+  public long getLastFrameStartLatencyNanos() {
+    return lastFrameStartLatencyNanos;
+  }
+
+  /** Returns the time the last frame waited for the GPU to finish an earlier frame. */
+  public long getLastFenceWaitNanos() {
+    return lastFenceWaitNanos;
+  }
+
+  /** Returns the CPU time spent preparing and submitting the last frame, excluding fence waits. */
+  public long getLastFrameCpuTimeNanos() {
+    return lastFrameCpuTimeNanos;
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    runAndWait(() -> surface = holder.getSurface());
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    runAndWait(
+        () -> {
+          surface = holder.getSurface();
+          surfaceWidth = width;
+          surfaceHeight = height;
+          surfaceSizeChanged = true;
+          scheduleFrame();
+        });
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    // The surface must not be used anymore once this returns.
+    runAndWait(
+        () -> {
+          releaseSurface();
+          surface = null;
+        });
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    frameCallbackPending = false;
+    if (!resumed || surface == null) {
+      return;
+    }
+    // Request the next vsync first, so that a long frame only skips the vsyncs it overlaps.
+    scheduleFrame();
+    if (++vsyncsSinceLastFrame < frameInterval) {
+      return;
+    }
+    vsyncsSinceLastFrame = 0;
+
+    long startNanos = System.nanoTime();
+    if (!makeCurrent()) {
+      return;
+    }
+    int fenceIndex = (int) (frameNumber % MAX_FRAMES_IN_FLIGHT);
+    waitForFence(fenceIndex);
+    long fenceWaitEndNanos = System.nanoTime();
+
+    render.dispatchDrawFrame();
+    if (render.isFrameDiscarded()) {
+      // Keep presenting the previous frame.
+      lastFrameCpuTimeNanos = System.nanoTime() - fenceWaitEndNanos;
+      return;
+    }
+    frameFences[fenceIndex] =
+        EGL15.eglCreateSync(display, EGL15.EGL_SYNC_FENCE, FENCE_ATTRIBUTES, 0);
+    if (frameFences[fenceIndex] == EGL15.EGL_NO_SYNC) {
+      Log.w(TAG, "Failed to create frame fence: " + getEglErrorString());
+      frameFences[fenceIndex] = null;
+    }
+    if (!EGL14.eglSwapBuffers(display, eglSurface)) {
+      handleSwapError(EGL14.eglGetError());
+    }
+    long endNanos = System.nanoTime();
+
+    lastFrameIntervalNanos =
+        previousFrameTimeNanos == 0 ? 0 : frameTimeNanos - previousFrameTimeNanos;
+    lastFrameStartLatencyNanos = startNanos - frameTimeNanos;
+    lastFenceWaitNanos = fenceWaitEndNanos - startNanos;
+    lastFrameCpuTimeNanos = endNanos - fenceWaitEndNanos;
+    previousFrameTimeNanos = frameTimeNanos;
+    frameNumber++;
+  }
+
+  private void scheduleFrame() {
+    if (!frameCallbackPending && resumed && surface != null) {
+      choreographer.postFrameCallback(this);
+      frameCallbackPending = true;
+    }
+  }
+
+  /**
+   * Creates whichever EGL objects are missing and makes the context current, dispatching the
+   * {@link SampleRender.Renderer} surface callbacks as needed.
+   *
+   * @return false if the window surface could not be created
+   */
+  private boolean makeCurrent() {
+    boolean contextCreated = false;
+    if (display == EGL14.EGL_NO_DISPLAY) {
+      display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+      if (display == EGL14.EGL_NO_DISPLAY) {
+        throw new IllegalStateException("eglGetDisplay failed: " + getEglErrorString());
+      }
+      int[] version = new int[2];
+      if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+        display = EGL14.EGL_NO_DISPLAY;
+        throw new IllegalStateException("eglInitialize failed: " + getEglErrorString());
+      }
+      EGLConfig[] configs = new EGLConfig[1];
+      int[] numConfigs = new int[1];
+      if (!EGL14.eglChooseConfig(
+              display, CONFIG_ATTRIBUTES, 0, configs, 0, configs.length, numConfigs, 0)
+          || numConfigs[0] == 0) {
+        throw new IllegalStateException("eglChooseConfig failed: " + getEglErrorString());
+      }
+      config = configs[0];
+    }
+    if (context == EGL14.EGL_NO_CONTEXT) {
+      context =
+          EGL14.eglCreateContext(display, config, EGL14.EGL_NO_CONTEXT, CONTEXT_ATTRIBUTES, 0);
+      if (context == EGL14.EGL_NO_CONTEXT) {
+        throw new IllegalStateException("eglCreateContext failed: " + getEglErrorString());
+      }
+      contextCreated = true;
+    }
+    if (eglSurface == EGL14.EGL_NO_SURFACE) {
+      eglSurface =
+          EGL14.eglCreateWindowSurface(display, config, surface, SURFACE_ATTRIBUTES, 0);
+      if (eglSurface == EGL14.EGL_NO_SURFACE) {
+        Log.w(TAG, "eglCreateWindowSurface failed: " + getEglErrorString());
+        return false;
+      }
+      if (!EGL14.eglMakeCurrent(display, eglSurface, eglSurface, context)) {
+        throw new IllegalStateException("eglMakeCurrent failed: " + getEglErrorString());
+      }
+    }
+    if (contextCreated) {
+      render.dispatchSurfaceCreated();
+      surfaceSizeChanged = true;
+    }
+    if (surfaceSizeChanged) {
+      render.dispatchSurfaceChanged(surfaceWidth, surfaceHeight);
+      surfaceSizeChanged = false;
+    }
+    return true;
+  }
+
+  private void waitForFence(int fenceIndex) {
+    EGLSync fence = frameFences[fenceIndex];
+    if (fence == null) {
+      return;
+    }
+    int result =
+        EGL15.eglClientWaitSync(
+            display, fence, EGL15.EGL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+    if (result == EGL15.EGL_TIMEOUT_EXPIRED) {
+      Log.w(TAG, "Timed out waiting for frame " + (frameNumber - MAX_FRAMES_IN_FLIGHT));
+    } else if (result != EGL15.EGL_CONDITION_SATISFIED) {
+      Log.w(TAG, "eglClientWaitSync failed: " + getEglErrorString());
+    }
+    EGL15.eglDestroySync(display, fence);
+    frameFences[fenceIndex] = null;
+  }
+
+  private void handleSwapError(int error) {
+    if (error == EGL14.EGL_CONTEXT_LOST) {
+      // Every GL object is gone, so start over with a new context.
+      Log.w(TAG, "EGL context lost, recreating it");
+      releaseContext();
+    } else {
+      // The window is most likely going away. Wait for the next surface callbacks.
+      Log.w(TAG, "eglSwapBuffers failed: " + GLUtils.getEGLErrorString(error));
+      releaseSurface();
+    }
+  }
+
+  private void releaseSurface() {
+    if (eglSurface == EGL14.EGL_NO_SURFACE) {
+      return;
+    }
+    EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, context);
+    EGL14.eglDestroySurface(display, eglSurface);
+    eglSurface = EGL14.EGL_NO_SURFACE;
+  }
+
+  private void releaseContext() {
+    if (display == EGL14.EGL_NO_DISPLAY) {
+      return;
+    }
+    for (int i = 0; i < frameFences.length; ++i) {
+      if (frameFences[i] != null) {
+        EGL15.eglDestroySync(display, frameFences[i]);
+        frameFences[i] = null;
+      }
+    }
+    releaseSurface();
+    EGL14.eglMakeCurrent(
+        display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    if (context != EGL14.EGL_NO_CONTEXT) {
+      EGL14.eglDestroyContext(display, context);
+      context = EGL14.EGL_NO_CONTEXT;
+    }
+    EGL14.eglTerminate(display);
+    display = EGL14.EGL_NO_DISPLAY;
+    previousFrameTimeNanos = 0;
+  }
+
+  /** Runs {@code runnable} on the render thread and waits for it to complete. */
+  private void runAndWait(Runnable runnable) {
+    CountDownLatch latch = new CountDownLatch(1);
+    boolean posted =
+        handler.post(
+            () -> {
+              try {
+                runnable.run();
+              } finally {
+                latch.countDown();
+              }
+            });
+    if (!posted) {
+      // The thread has been released.
+      return;
+    }
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String getEglErrorString() {
+    return GLUtils.getEGLErrorString(EGL14.eglGetError());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.util.Log;
+import java.util.ArrayList;
+
+/**
+ * Keeps track of the live GL resources of a {@link SampleRender} context, and of the GPU memory
+ * they are estimated to use.
+ *
+ * <p>Every {@link Texture}, buffer, {@link Framebuffer}, {@link Shader} and {@link Mesh} registers
+ * itself on creation and unregisters when closed. Resources still registered when the surface is
+ * created again belong to a GL context that is gone: they are reported as leaked, and closing them
+ * afterwards does not issue any GL call, since their names may have been reused by the new context.
+ *
+ * <p>Only accessed on the GL thread.
+ */
+public class ResourceRegistry {
+  private static final String TAG = ResourceRegistry.class.getSimpleName();
+
+  // The number of leaked resources whose allocation site is logged.
+  private static final int MAX_LOGGED_ALLOCATION_SITES = 8;
+
+  /** A kind of resource. */
+  public enum Type {
+    BUFFER,
+    FRAMEBUFFER,
+    MESH,
+    SHADER,
+    TEXTURE,
+  }
+
+  private static final Type[] TYPES = Type.values();
+
+  /** The registration of a single resource. */
+  /* package-private */
+  final class Registration {
+    private final Type type;
+    private final int generation;
+    private final Throwable allocationSite;
+    private long byteCount;
+    private int index = -1;
+
+    private Registration(Type type, Throwable allocationSite) {
+      this.type = type;
+      this.generation = ResourceRegistry.this.generation;
+      this.allocationSite = allocationSite;
+    }
+
+    /** Updates the estimated GPU memory of the resource. */
+    /* package-private */
+    void setByteCount(long byteCount) {
+      if (index >= 0) {
+        liveByteCounts[type.ordinal()] += byteCount - this.byteCount;
+      }
+      this.byteCount = byteCount;
+    }
+
+    /** Returns the estimated GPU memory of the resource, in bytes. */
+    /* package-private */
+    long getByteCount() {
+      return byteCount;
+    }
+
+    /**
+     * Unregisters the resource when it is closed. Returns whether its GL objects belong to the
+     * current context and should be deleted. Does nothing if already unregistered.
+     */
+    /* package-private */
+    boolean unregister() {
+      if (index < 0) {
+        return generation == ResourceRegistry.this.generation;
+      }
+      remove(this);
+      return true;
+    }
+  }
+
+  private final ArrayList<Registration> registrations = new ArrayList<>();
+  private final int[] liveCounts = new int[TYPES.length];
+  private final long[] liveByteCounts = new long[TYPES.length];
+  private int generation = 0;
+  private int leakedCount = 0;
+  private boolean recordAllocationSites = false;
+
+  /* package-private */
+  ResourceRegistry() {}
+
+  /**
+   * Sets whether the allocation site of each resource is recorded, to be logged if it leaks. This
+   * captures a stack trace per resource, and is meant for debug builds.
+   */
+  public ResourceRegistry setRecordAllocationSites(boolean recordAllocationSites) {
+    this.recordAllocationSites = recordAllocationSites;
+    return this;
+  }
+
+  /** Returns the number of live resources of the given type. */
+  public int getLiveCount(Type type) {
+    return liveCounts[type.ordinal()];
+  }
+
+  /** Returns the estimated GPU memory of the live resources of the given type, in bytes. */
+  public long getLiveByteCount(Type type) {
+    return liveByteCounts[type.ordinal()];
+  }
+
+  /** Returns the estimated GPU memory of all live resources, in bytes. */
+  public long getTotalLiveByteCount() {
+    long total = 0;
+    for (long byteCount : liveByteCounts) {
+      total += byteCount;
+    }
+    return total;
+  }
+
+  /** Returns the number of resources that were not closed before their context was lost. */
+  public int getLeakedCount() {
+    return leakedCount;
+  }
+
+  /** Returns a human readable summary of the live resources. Allocates. */
+  public String getSummary() {
+    StringBuilder builder = new StringBuilder("GPU resources:");
+    for (Type type : TYPES) {
+      builder
+          .append(' ')
+          .append(type.name().toLowerCase())
+          .append(' ')
+          .append(liveCounts[type.ordinal()])
+          .append(" (")
+          .append(liveByteCounts[type.ordinal()] / 1024)
+          .append(" KB)");
+    }
+    return builder.append(", leaked ").append(leakedCount).toString();
+  }
+
+  /* package-private */
+  Registration register(Type type) {
+    Registration registration =
+        new Registration(
+            type, recordAllocationSites ? new Throwable(type + " allocated here") : null);
+    registration.index = registrations.size();
+    registrations.add(registration);
+    liveCounts[type.ordinal()]++;
+    return registration;
+  }
+
+  /**
+   * Starts a new context. Resources of the previous one are reported as leaked and forgotten. Must
+   * be called before the {@link SampleRender.Renderer} creates its resources.
+   */
+  /* package-private */
+  void onSurfaceCreated() {
+    int count = registrations.size();
+    if (count > 0) {
+      Log.w(TAG, count + " resources leaked by the previous GL context. " + getSummary());
+      for (int i = 0; i < count && i < MAX_LOGGED_ALLOCATION_SITES; ++i) {
+        Throwable allocationSite = registrations.get(i).allocationSite;
+        if (allocationSite != null) {
+          Log.w(TAG, "Leaked resource", allocationSite);
+        }
+      }
+      leakedCount += count;
+      while (!registrations.isEmpty()) {
+        remove(registrations.get(registrations.size() - 1));
+      }
+    }
+    generation++;
+  }
+
+  private void remove(Registration registration) {
+    // Swap with the last registration to remove in constant time.
+    Registration last = registrations.remove(registrations.size() - 1);
+    if (last != registration) {
+      registrations.set(registration.index, last);
+      last.index = registration.index;
+    }
+    registration.index = -1;
+    liveCounts[registration.type.ordinal()]--;
+    liveByteCounts[registration.type.ordinal()] -= registration.byteCount;
+  }
+}
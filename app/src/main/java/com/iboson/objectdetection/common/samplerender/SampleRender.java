@@ -18,6 +18,7 @@ package com.iboson.objectdetection.common.samplerender;
 import android.content.res.AssetManager;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
+import android.view.SurfaceView;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -25,10 +26,26 @@ import javax.microedition.khronos.opengles.GL10;
 public class SampleRender {
   private static final String TAG = SampleRender.class.getSimpleName();
 
+  private final GL gl;
+  private final GLState glState;
+  private final ResourceRegistry resourceRegistry = new ResourceRegistry();
+  private final Renderer renderer;
   private final AssetManager assetManager;
+  private GLSurfaceView glSurfaceView;
+  private RenderThread renderThread;
 
   private int viewportWidth = 1;
   private int viewportHeight = 1;
+  private long frameUniformAllocationCount = 0;
+  private long frameUploadedByteCount = 0;
+  private long externalUploadedByteCount = 0;
+  private boolean frameDiscarded;
+  // Set until the default framebuffer is first used in a frame, so that discarded frames, which
+  // leave the previous frame on screen, skip clearing it.
+  private boolean defaultFramebufferClearPending;
+  private volatile GLError.CheckPolicy requestedGlErrorCheckPolicy = GLError.CheckPolicy.FULL;
+  private GLError.CheckPolicy appliedGlErrorCheckPolicy;
+  private GLError.CheckPolicy glErrorCheckPolicy;
 
   /**
    * Constructs a SampleRender object and instantiates GLSurfaceView parameters.
@@ -38,36 +55,182 @@ public class SampleRender {
    * @param assetManager AssetManager for loading Android resources
    */
   public SampleRender(GLSurfaceView glSurfaceView, Renderer renderer, AssetManager assetManager) {
-    this.assetManager = assetManager;
+    this(glSurfaceView, new AndroidGL(), renderer, assetManager);
+  }
+
+  /**
+   * Constructs a SampleRender object issuing GL calls through {@code gl}, which must forward them
+   * to the context of the GLSurfaceView, e.g. a {@link RecordingGL} wrapping an {@link AndroidGL}.
+   *
+   * @param glSurfaceView Android GLSurfaceView
+   * @param gl The GL implementation for the GLSurfaceView's context
+   * @param renderer Renderer implementation to receive callbacks
+   * @param assetManager AssetManager for loading Android resources
+   */
+  public SampleRender(
+      GLSurfaceView glSurfaceView, GL gl, Renderer renderer, AssetManager assetManager) {
+    this(gl, renderer, assetManager);
+    this.glSurfaceView = glSurfaceView;
     glSurfaceView.setPreserveEGLContextOnPause(true);
     glSurfaceView.setEGLContextClientVersion(3);
     glSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
     glSurfaceView.setRenderer(
         new GLSurfaceView.Renderer() {
           @Override
-          public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-            GLES30.glEnable(GLES30.GL_BLEND);
-            GLError.maybeThrowGLException("Failed to enable blending", "glEnable");
-            renderer.onSurfaceCreated(SampleRender.this);
+          public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+            dispatchSurfaceCreated();
           }
 
           @Override
-          public void onSurfaceChanged(GL10 gl, int w, int h) {
-            viewportWidth = w;
-            viewportHeight = h;
-            renderer.onSurfaceChanged(SampleRender.this, w, h);
+          public void onSurfaceChanged(GL10 unused, int w, int h) {
+            dispatchSurfaceChanged(w, h);
           }
 
           @Override
-          public void onDrawFrame(GL10 gl) {
-            clear(/*framebuffer=*/ null, 0f, 0f, 0f, 1f);
-            renderer.onDrawFrame(SampleRender.this);
+          public void onDrawFrame(GL10 unused) {
+            dispatchDrawFrame();
           }
         });
     glSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
     glSurfaceView.setWillNotDraw(false);
   }
 
+  /**
+   * Constructs a SampleRender object rendering to a plain SurfaceView from a dedicated {@link
+   * RenderThread}, which pipelines the CPU and GPU work of consecutive frames.
+   *
+   * <p>{@link #onResume}, {@link #onPause} and {@link #release} must be called from the
+   * corresponding Activity callbacks.
+   *
+   * @param surfaceView Android SurfaceView
+   * @param renderer Renderer implementation to receive callbacks
+   * @param assetManager AssetManager for loading Android resources
+   */
+  public SampleRender(SurfaceView surfaceView, Renderer renderer, AssetManager assetManager) {
+    this(surfaceView, new AndroidGL(), renderer, assetManager);
+  }
+
+  /**
+   * Constructs a SampleRender object rendering to a plain SurfaceView from a dedicated {@link
+   * RenderThread}, issuing GL calls through {@code gl}.
+   *
+   * @param surfaceView Android SurfaceView
+   * @param gl The GL implementation for the render thread's context
+   * @param renderer Renderer implementation to receive callbacks
+   * @param assetManager AssetManager for loading Android resources
+   */
+  public SampleRender(
+      SurfaceView surfaceView, GL gl, Renderer renderer, AssetManager assetManager) {
+    this(gl, renderer, assetManager);
+    renderThread = new RenderThread(surfaceView, this);
+  }
+
+  /**
+   * Constructs a SampleRender object for a GL context managed by the caller, such as an offscreen
+   * EGL context used for benchmarking.
+   *
+   * <p>The caller is responsible for making the context current on the calling thread, and for
+   * calling {@link #dispatchSurfaceCreated}, {@link #dispatchSurfaceChanged} and {@link
+   * #dispatchDrawFrame} in the same order as {@link GLSurfaceView} would.
+   *
+   * @param gl The GL implementation for the context
+   * @param renderer Renderer implementation to receive callbacks
+   * @param assetManager AssetManager for loading Android resources
+   */
+  public SampleRender(GL gl, Renderer renderer, AssetManager assetManager) {
+    this.gl = gl;
+    this.glState = new GLState(gl);
+    this.renderer = renderer;
+    this.assetManager = assetManager;
+    GLError.setGl(gl);
+  }
+
+  /** Resumes rendering. Must be called from the Activity's onResume. */
+  public void onResume() {
+    if (glSurfaceView != null) {
+      glSurfaceView.onResume();
+    } else if (renderThread != null) {
+      renderThread.onResume();
+    }
+  }
+
+  /**
+   * Pauses rendering. Must be called from the Activity's onPause. Returns once the frame in
+   * progress, if any, has completed.
+   */
+  public void onPause() {
+    if (glSurfaceView != null) {
+      glSurfaceView.onPause();
+    } else if (renderThread != null) {
+      renderThread.onPause();
+    }
+  }
+
+  /**
+   * Releases the render thread and its EGL context, if any. Must be called from the Activity's
+   * onDestroy.
+   */
+  public void release() {
+    if (renderThread != null) {
+      renderThread.release();
+    }
+  }
+
+  /**
+   * Returns the render thread driving this context, or null if it is driven by a GLSurfaceView or
+   * by the caller.
+   */
+  public RenderThread getRenderThread() {
+    return renderThread;
+  }
+
+  /** Forwards {@link GLSurfaceView.Renderer#onSurfaceCreated} to the {@link Renderer}. */
+  public void dispatchSurfaceCreated() {
+    // A new context starts without debug output, so reapply the policy.
+    applyGlErrorCheckPolicy();
+    glState.invalidate();
+    glState.setBlend(true);
+    resourceRegistry.onSurfaceCreated();
+    renderer.onSurfaceCreated(this);
+  }
+
+  /** Forwards {@link GLSurfaceView.Renderer#onSurfaceChanged} to the {@link Renderer}. */
+  public void dispatchSurfaceChanged(int width, int height) {
+    viewportWidth = width;
+    viewportHeight = height;
+    renderer.onSurfaceChanged(this, width, height);
+  }
+
+  /** Forwards {@link GLSurfaceView.Renderer#onDrawFrame} to the {@link Renderer}. */
+  public void dispatchDrawFrame() {
+    if (requestedGlErrorCheckPolicy != appliedGlErrorCheckPolicy) {
+      applyGlErrorCheckPolicy();
+    }
+    long uniformAllocationCount = Shader.getUniformAllocationCount();
+    long uploadedByteCount = GpuBuffer.getUploadedByteCount();
+    externalUploadedByteCount = 0;
+    frameDiscarded = false;
+    glState.beginFrame();
+    glState.setBlend(true);
+    defaultFramebufferClearPending = true;
+    CpuProfiler.begin("onDrawFrame");
+    try {
+      renderer.onDrawFrame(this);
+    } finally {
+      CpuProfiler.end();
+    }
+    if (defaultFramebufferClearPending && !frameDiscarded) {
+      // Nothing was drawn to the screen, which is presented cleared.
+      clear(/*framebuffer=*/ null, 0f, 0f, 0f, 1f);
+    }
+    defaultFramebufferClearPending = false;
+    glState.endFrame();
+    GLError.endFrame();
+    frameUniformAllocationCount = Shader.getUniformAllocationCount() - uniformAllocationCount;
+    frameUploadedByteCount =
+        GpuBuffer.getUploadedByteCount() - uploadedByteCount + externalUploadedByteCount;
+  }
+
   /** Draw a {@link Mesh} with the specified {@link Shader}. */
   public void draw(Mesh mesh, Shader shader) {
     draw(mesh, shader, /*framebuffer=*/ null);
@@ -84,6 +247,19 @@ public class SampleRender {
     mesh.lowLevelDraw();
   }
 
+  /**
+   * Draw every instance of an {@link InstanceBuffer} of {@code mesh} with the specified {@link
+   * Shader} to the given {@link Framebuffer}, in a single draw call.
+   *
+   * <p>The {@code framebuffer} argument may be null, in which case the default framebuffer is used.
+   */
+  public void drawInstanced(
+      Mesh mesh, Shader shader, Framebuffer framebuffer, InstanceBuffer instances) {
+    useFramebuffer(framebuffer);
+    shader.lowLevelUse();
+    mesh.lowLevelDrawInstanced(instances);
+  }
+
   /**
    * Clear the given framebuffer.
    *
@@ -91,15 +267,100 @@ public class SampleRender {
    * cleared.
    */
   public void clear(Framebuffer framebuffer, float r, float g, float b, float a) {
+    if (framebuffer == null) {
+      defaultFramebufferClearPending = false;
+    }
     useFramebuffer(framebuffer);
-    GLES30.glClearColor(r, g, b, a);
+    gl.glClearColor(r, g, b, a);
     GLError.maybeThrowGLException("Failed to set clear color", "glClearColor");
-    GLES30.glDepthMask(true);
-    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
-    GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
+    glState.depthMask(true);
+    gl.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
     GLError.maybeThrowGLException("Failed to clear framebuffer", "glClear");
   }
 
+  /**
+   * Discards the frame being drawn, leaving the previous frame on screen. May only be called from
+   * {@link Renderer#onDrawFrame}.
+   *
+   * @return false if frames cannot be discarded, which is the case unless this context is driven
+   *     by a {@link RenderThread}. The frame is then presented, and must be drawn completely.
+   */
+  public boolean discardFrame() {
+    if (renderThread == null) {
+      return false;
+    }
+    frameDiscarded = true;
+    return true;
+  }
+
+  /**
+   * Returns the number of uniform storage allocations made by {@link Shader}s during the last
+   * frame. This is expected to be zero once every uniform has been set at least once.
+   */
+  public long getFrameUniformAllocationCount() {
+    return frameUniformAllocationCount;
+  }
+
+  /**
+   * Accounts for {@code byteCount} bytes uploaded to the GPU during the current frame by code
+   * issuing GL calls outside of samplerender, such as texture uploads.
+   */
+  public void addUploadedByteCount(long byteCount) {
+    externalUploadedByteCount += byteCount;
+  }
+
+  /**
+   * Returns the number of bytes uploaded to the GPU during the last frame, by buffers and by code
+   * reporting uploads with {@link #addUploadedByteCount}.
+   */
+  public long getFrameUploadedByteCount() {
+    return frameUploadedByteCount;
+  }
+
+  /** Returns the width of the default framebuffer, in pixels. */
+  public int getViewportWidth() {
+    return viewportWidth;
+  }
+
+  /** Returns the height of the default framebuffer, in pixels. */
+  public int getViewportHeight() {
+    return viewportHeight;
+  }
+
+  /**
+   * Sets how often GL errors are checked for. May be called from any thread; the policy is applied
+   * on the GL thread before the next frame.
+   */
+  public void setGlErrorCheckPolicy(GLError.CheckPolicy policy) {
+    requestedGlErrorCheckPolicy = policy;
+  }
+
+  /**
+   * Returns the GL error check policy in effect, which may differ from the requested one if it is
+   * not supported by the device. Returns null until the surface is created.
+   */
+  public GLError.CheckPolicy getGlErrorCheckPolicy() {
+    return glErrorCheckPolicy;
+  }
+
+  /** Returns the registry of the GL resources created for this context. */
+  public ResourceRegistry getResourceRegistry() {
+    return resourceRegistry;
+  }
+
+  /** Returns the GL implementation that every GL call of this context must go through. */
+  public GL getGl() {
+    return gl;
+  }
+
+  /**
+   * Returns the shadow GL state of this context. Code issuing GL calls outside of samplerender
+   * should change the tracked state through it, so that the cache stays accurate.
+   */
+  public GLState getGlState() {
+    return glState;
+  }
+
   /** Interface to be implemented for rendering callbacks. */
   public static interface Renderer {
     /**
@@ -124,27 +385,39 @@ public class SampleRender {
     public void onDrawFrame(SampleRender render);
   }
 
+  /* package-private */
+  boolean isFrameDiscarded() {
+    return frameDiscarded;
+  }
+
   /* package-private */
   AssetManager getAssets() {
     return assetManager;
   }
 
+  private void applyGlErrorCheckPolicy() {
+    appliedGlErrorCheckPolicy = requestedGlErrorCheckPolicy;
+    glErrorCheckPolicy = GLError.setCheckPolicy(appliedGlErrorCheckPolicy);
+  }
+
   private void useFramebuffer(Framebuffer framebuffer) {
     int framebufferId;
     int viewportWidth;
     int viewportHeight;
     if (framebuffer == null) {
+      if (defaultFramebufferClearPending) {
+        // Clears, then binds and sets the viewport below again, which GLState skips.
+        clear(/*framebuffer=*/ null, 0f, 0f, 0f, 1f);
+      }
       framebufferId = 0;
       viewportWidth = this.viewportWidth;
       viewportHeight = this.viewportHeight;
     } else {
       framebufferId = framebuffer.getFramebufferId();
-      viewportWidth = framebuffer.getWidth();
-      viewportHeight = framebuffer.getHeight();
+      viewportWidth = framebuffer.getViewportWidth();
+      viewportHeight = framebuffer.getViewportHeight();
     }
-    GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferId);
-    GLError.maybeThrowGLException("Failed to bind framebuffer", "glBindFramebuffer");
-    GLES30.glViewport(0, 0, viewportWidth, viewportHeight);
-    GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
+    glState.bindFramebuffer(framebufferId);
+    glState.viewport(0, 0, viewportWidth, viewportHeight);
   }
 }
@@ -18,6 +18,7 @@ package com.iboson.objectdetection.common.samplerender;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import android.content.res.AssetManager;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES30;
 import android.opengl.GLException;
 import android.util.Log;
@@ -66,13 +67,17 @@ public class Shader implements Closeable {
     }
   }
 
+  // Incremented whenever uniform storage is allocated; see getUniformAllocationCount.
+  private static long uniformAllocationCount = 0;
+
+  private final GL gl;
+  private final GLState glState;
+  private final ResourceRegistry.Registration registration;
   private int programId = 0;
-  private final Map<Integer, Uniform> uniforms = new HashMap<>();
+  private final ArrayList<Uniform> uniforms = new ArrayList<>();
+  private final Map<String, Uniform> uniformsByName = new HashMap<>();
   private int maxTextureUnit = 0;
 
-  private final Map<String, Integer> uniformLocations = new HashMap<>();
-  private final Map<Integer, String> uniformNames = new HashMap<>();
-
   private boolean depthTest = true;
   private boolean depthWrite = true;
   private boolean cullFace = true;
@@ -92,45 +97,53 @@ public class Shader implements Closeable {
       String vertexShaderCode,
       String fragmentShaderCode,
       Map<String, String> defines) {
+    gl = render.getGl();
+    glState = render.getGlState();
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.SHADER);
     int vertexShaderId = 0;
     int fragmentShaderId = 0;
     String definesCode = createShaderDefinesCode(defines);
     try {
       vertexShaderId =
           createShader(
-              GLES30.GL_VERTEX_SHADER, insertShaderDefinesCode(vertexShaderCode, definesCode));
+              gl,
+              GLES30.GL_VERTEX_SHADER,
+              insertShaderDefinesCode(vertexShaderCode, definesCode));
       fragmentShaderId =
           createShader(
-              GLES30.GL_FRAGMENT_SHADER, insertShaderDefinesCode(fragmentShaderCode, definesCode));
+              gl,
+              GLES30.GL_FRAGMENT_SHADER,
+              insertShaderDefinesCode(fragmentShaderCode, definesCode));
 
-      programId = GLES30.glCreateProgram();
+      programId = gl.glCreateProgram();
       GLError.maybeThrowGLException("Shader program creation failed", "glCreateProgram");
-      GLES30.glAttachShader(programId, vertexShaderId);
+      gl.glAttachShader(programId, vertexShaderId);
       GLError.maybeThrowGLException("Failed to attach vertex shader", "glAttachShader");
-      GLES30.glAttachShader(programId, fragmentShaderId);
+      gl.glAttachShader(programId, fragmentShaderId);
       GLError.maybeThrowGLException("Failed to attach fragment shader", "glAttachShader");
-      GLES30.glLinkProgram(programId);
+      gl.glLinkProgram(programId);
       GLError.maybeThrowGLException("Failed to link shader program", "glLinkProgram");
 
       final int[] linkStatus = new int[1];
-      GLES30.glGetProgramiv(programId, GLES30.GL_LINK_STATUS, linkStatus, 0);
+      gl.glGetProgramiv(programId, GLES30.GL_LINK_STATUS, linkStatus, 0);
       if (linkStatus[0] == GLES30.GL_FALSE) {
-        String infoLog = GLES30.glGetProgramInfoLog(programId);
+        String infoLog = gl.glGetProgramInfoLog(programId);
         GLError.maybeLogGLError(
             Log.WARN, TAG, "Failed to retrieve shader program info log", "glGetProgramInfoLog");
         throw new GLException(0, "Shader link failed: " + infoLog);
       }
+      resolveActiveUniforms();
     } catch (Throwable t) {
       close();
       throw t;
     } finally {
       // Shader objects can be flagged for deletion immediately after program creation.
       if (vertexShaderId != 0) {
-        GLES30.glDeleteShader(vertexShaderId);
+        gl.glDeleteShader(vertexShaderId);
         GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free vertex shader", "glDeleteShader");
       }
       if (fragmentShaderId != 0) {
-        GLES30.glDeleteShader(fragmentShaderId);
+        gl.glDeleteShader(fragmentShaderId);
         GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free fragment shader", "glDeleteShader");
       }
     }
@@ -160,8 +173,12 @@ public class Shader implements Closeable {
 
   @Override
   public void close() {
+    boolean ownedByContext = registration.unregister();
     if (programId != 0) {
-      GLES30.glDeleteProgram(programId);
+      if (ownedByContext) {
+        gl.glDeleteProgram(programId);
+        glState.onProgramDeleted(programId);
+      }
       programId = 0;
     }
   }
@@ -231,169 +248,298 @@ public class Shader implements Closeable {
     return this;
   }
 
+  /** Returns whether the program has an active uniform block with the given name. */
+  public boolean hasUniformBlock(String blockName) {
+    return getUniformBlockIndex(blockName) != GLES30.GL_INVALID_INDEX;
+  }
+
+  /**
+   * Sources the named uniform block from whatever {@link UniformBuffer} range is bound to {@code
+   * bindingPoint} at draw time. This is program state, so it only needs to be set once.
+   *
+   * @see <a
+   *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glUniformBlockBinding.xhtml">glUniformBlockBinding</a>
+   */
+  public Shader setUniformBlock(String blockName, int bindingPoint) {
+    int blockIndex = getUniformBlockIndex(blockName);
+    if (blockIndex == GLES30.GL_INVALID_INDEX) {
+      throw new IllegalArgumentException("Shader uniform block does not exist: " + blockName);
+    }
+    gl.glUniformBlockBinding(programId, blockIndex, bindingPoint);
+    GLError.maybeThrowGLException("Failed to set uniform block binding", "glUniformBlockBinding");
+    return this;
+  }
+
+  /**
+   * Returns a handle to the named uniform, which can be passed to the handle overloads of the
+   * setters to skip the name lookup. Handles are only valid for the shader that created them.
+   *
+   * <p>Active uniforms are enumerated when the program is linked, so this throws immediately if the
+   * uniform does not exist. Setting a handle with a value of the wrong type or with more elements
+   * than the declared array size throws from the setter rather than failing later at draw time.
+   */
+  public UniformHandle getUniformHandle(String name) {
+    return getUniform(name).handle;
+  }
+
   /** Sets a texture uniform. */
   public Shader setTexture(String name, Texture texture) {
+    return setTexture(getUniformHandle(name), texture);
+  }
+
+  /** Sets a texture uniform. */
+  public Shader setTexture(UniformHandle handle, Texture texture) {
     // Special handling for Textures. If replacing an existing texture uniform, reuse the texture
     // unit.
-    int location = getUniformLocation(name);
-    Uniform uniform = uniforms.get(location);
-    int textureUnit;
-    if (!(uniform instanceof UniformTexture)) {
-      textureUnit = maxTextureUnit++;
-    } else {
-      UniformTexture uniformTexture = (UniformTexture) uniform;
-      textureUnit = uniformTexture.getTextureUnit();
+    Uniform uniform = getUniform(handle, UniformType.TEXTURE, 1);
+    if (uniform.type != UniformType.TEXTURE) {
+      uniform.type = UniformType.TEXTURE;
+      uniform.textureUnit = maxTextureUnit++;
+      uniform.dirty = true;
     }
-    uniforms.put(location, new UniformTexture(textureUnit, texture));
+    uniform.texture = texture;
     return this;
   }
 
   /** Sets a {@code bool} uniform. */
   public Shader setBool(String name, boolean v0) {
-    int[] values = {v0 ? 1 : 0};
-    uniforms.put(getUniformLocation(name), new UniformInt(values));
+    return setBool(getUniformHandle(name), v0);
+  }
+
+  /** Sets a {@code bool} uniform. */
+  public Shader setBool(UniformHandle handle, boolean v0) {
+    getUniform(handle, UniformType.INT, 1).prepareInts(UniformType.INT, 1)[0] = v0 ? 1 : 0;
     return this;
   }
 
   /** Sets an {@code int} uniform. */
   public Shader setInt(String name, int v0) {
-    int[] values = {v0};
-    uniforms.put(getUniformLocation(name), new UniformInt(values));
+    return setInt(getUniformHandle(name), v0);
+  }
+
+  /** Sets an {@code int} uniform. */
+  public Shader setInt(UniformHandle handle, int v0) {
+    getUniform(handle, UniformType.INT, 1).prepareInts(UniformType.INT, 1)[0] = v0;
     return this;
   }
 
   /** Sets a {@code float} uniform. */
   public Shader setFloat(String name, float v0) {
-    float[] values = {v0};
-    uniforms.put(getUniformLocation(name), new Uniform1f(values));
+    return setFloat(getUniformHandle(name), v0);
+  }
+
+  /** Sets a {@code float} uniform. */
+  public Shader setFloat(UniformHandle handle, float v0) {
+    getUniform(handle, UniformType.FLOAT, 1).prepareFloats(UniformType.FLOAT, 1)[0] = v0;
     return this;
   }
 
   /** Sets a {@code vec2} uniform. */
   public Shader setVec2(String name, float[] values) {
+    return setVec2(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec2} uniform. */
+  public Shader setVec2(UniformHandle handle, float[] values) {
     if (values.length != 2) {
       throw new IllegalArgumentException("Value array length must be 2");
     }
-    uniforms.put(getUniformLocation(name), new Uniform2f(values.clone()));
+    setFloats(handle, UniformType.VEC2, values);
     return this;
   }
+
   /** Sets a {@code vec3} uniform. */
   public Shader setVec3(String name, float[] values) {
+    return setVec3(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec3} uniform. */
+  public Shader setVec3(UniformHandle handle, float[] values) {
     if (values.length != 3) {
       throw new IllegalArgumentException("Value array length must be 3");
     }
-    uniforms.put(getUniformLocation(name), new Uniform3f(values.clone()));
+    setFloats(handle, UniformType.VEC3, values);
     return this;
   }
 
   /** Sets a {@code vec4} uniform. */
   public Shader setVec4(String name, float[] values) {
+    return setVec4(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec4} uniform. */
+  public Shader setVec4(UniformHandle handle, float[] values) {
     if (values.length != 4) {
       throw new IllegalArgumentException("Value array length must be 4");
     }
-    uniforms.put(getUniformLocation(name), new Uniform4f(values.clone()));
+    setFloats(handle, UniformType.VEC4, values);
     return this;
   }
 
   /** Sets a {@code mat2} uniform. */
   public Shader setMat2(String name, float[] values) {
+    return setMat2(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat2} uniform. */
+  public Shader setMat2(UniformHandle handle, float[] values) {
     if (values.length != 4) {
       throw new IllegalArgumentException("Value array length must be 4 (2x2)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix2f(values.clone()));
+    setFloats(handle, UniformType.MAT2, values);
     return this;
   }
 
   /** Sets a {@code mat3} uniform. */
   public Shader setMat3(String name, float[] values) {
+    return setMat3(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat3} uniform. */
+  public Shader setMat3(UniformHandle handle, float[] values) {
     if (values.length != 9) {
       throw new IllegalArgumentException("Value array length must be 9 (3x3)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix3f(values.clone()));
+    setFloats(handle, UniformType.MAT3, values);
     return this;
   }
 
   /** Sets a {@code mat4} uniform. */
   public Shader setMat4(String name, float[] values) {
+    return setMat4(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat4} uniform. */
+  public Shader setMat4(UniformHandle handle, float[] values) {
     if (values.length != 16) {
       throw new IllegalArgumentException("Value array length must be 16 (4x4)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix4f(values.clone()));
+    setFloats(handle, UniformType.MAT4, values);
     return this;
   }
 
   /** Sets a {@code bool} array uniform. */
   public Shader setBoolArray(String name, boolean[] values) {
-    int[] intValues = new int[values.length];
+    return setBoolArray(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code bool} array uniform. */
+  public Shader setBoolArray(UniformHandle handle, boolean[] values) {
+    int[] intValues =
+        getUniform(handle, UniformType.INT, values.length)
+            .prepareInts(UniformType.INT, values.length);
     for (int i = 0; i < values.length; ++i) {
       intValues[i] = values[i] ? 1 : 0;
     }
-    uniforms.put(getUniformLocation(name), new UniformInt(intValues));
     return this;
   }
 
   /** Sets an {@code int} array uniform. */
   public Shader setIntArray(String name, int[] values) {
-    uniforms.put(getUniformLocation(name), new UniformInt(values.clone()));
+    return setIntArray(getUniformHandle(name), values);
+  }
+
+  /** Sets an {@code int} array uniform. */
+  public Shader setIntArray(UniformHandle handle, int[] values) {
+    int[] intValues =
+        getUniform(handle, UniformType.INT, values.length)
+            .prepareInts(UniformType.INT, values.length);
+    System.arraycopy(values, 0, intValues, 0, values.length);
     return this;
   }
 
   /** Sets a {@code float} array uniform. */
   public Shader setFloatArray(String name, float[] values) {
-    uniforms.put(getUniformLocation(name), new Uniform1f(values.clone()));
+    return setFloatArray(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code float} array uniform. */
+  public Shader setFloatArray(UniformHandle handle, float[] values) {
+    setFloats(handle, UniformType.FLOAT, values);
     return this;
   }
 
   /** Sets a {@code vec2} array uniform. */
   public Shader setVec2Array(String name, float[] values) {
+    return setVec2Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec2} array uniform. */
+  public Shader setVec2Array(UniformHandle handle, float[] values) {
     if (values.length % 2 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 2");
     }
-    uniforms.put(getUniformLocation(name), new Uniform2f(values.clone()));
+    setFloats(handle, UniformType.VEC2, values);
     return this;
   }
+
   /** Sets a {@code vec3} array uniform. */
   public Shader setVec3Array(String name, float[] values) {
+    return setVec3Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec3} array uniform. */
+  public Shader setVec3Array(UniformHandle handle, float[] values) {
     if (values.length % 3 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 3");
     }
-    uniforms.put(getUniformLocation(name), new Uniform3f(values.clone()));
+    setFloats(handle, UniformType.VEC3, values);
     return this;
   }
 
   /** Sets a {@code vec4} array uniform. */
   public Shader setVec4Array(String name, float[] values) {
+    return setVec4Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code vec4} array uniform. */
+  public Shader setVec4Array(UniformHandle handle, float[] values) {
     if (values.length % 4 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 4");
     }
-    uniforms.put(getUniformLocation(name), new Uniform4f(values.clone()));
+    setFloats(handle, UniformType.VEC4, values);
     return this;
   }
 
   /** Sets a {@code mat2} array uniform. */
   public Shader setMat2Array(String name, float[] values) {
+    return setMat2Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat2} array uniform. */
+  public Shader setMat2Array(UniformHandle handle, float[] values) {
     if (values.length % 4 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 4 (2x2)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix2f(values.clone()));
+    setFloats(handle, UniformType.MAT2, values);
     return this;
   }
 
   /** Sets a {@code mat3} array uniform. */
   public Shader setMat3Array(String name, float[] values) {
+    return setMat3Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat3} array uniform. */
+  public Shader setMat3Array(UniformHandle handle, float[] values) {
     if (values.length % 9 != 0) {
       throw new IllegalArgumentException("Values array length must be divisible by 9 (3x3)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix3f(values.clone()));
+    setFloats(handle, UniformType.MAT3, values);
     return this;
   }
 
   /** Sets a {@code mat4} uniform. */
   public Shader setMat4Array(String name, float[] values) {
+    return setMat4Array(getUniformHandle(name), values);
+  }
+
+  /** Sets a {@code mat4} uniform. */
+  public Shader setMat4Array(UniformHandle handle, float[] values) {
     if (values.length % 16 != 0) {
       throw new IllegalArgumentException("Value array length must be divisible by 16 (4x4)");
     }
-    uniforms.put(getUniformLocation(name), new UniformMatrix4f(values.clone()));
+    setFloats(handle, UniformType.MAT4, values);
     return this;
   }
 
@@ -406,225 +552,334 @@ public class Shader implements Closeable {
     if (programId == 0) {
       throw new IllegalStateException("Attempted to use freed shader");
     }
-    GLES30.glUseProgram(programId);
-    GLError.maybeThrowGLException("Failed to use shader program", "glUseProgram");
-    GLES30.glBlendFuncSeparate(
+    glState.useProgram(programId);
+    glState.blendFuncSeparate(
         sourceRgbBlend.glesEnum,
         destRgbBlend.glesEnum,
         sourceAlphaBlend.glesEnum,
         destAlphaBlend.glesEnum);
-    GLError.maybeThrowGLException("Failed to set blend mode", "glBlendFuncSeparate");
-    GLES30.glDepthMask(depthWrite);
-    GLError.maybeThrowGLException("Failed to set depth write mask", "glDepthMask");
-    if (depthTest) {
-      GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-      GLError.maybeThrowGLException("Failed to enable depth test", "glEnable");
-    } else {
-      GLES30.glDisable(GLES30.GL_DEPTH_TEST);
-      GLError.maybeThrowGLException("Failed to disable depth test", "glDisable");
-    }
-    if (cullFace) {
-      GLES30.glEnable(GLES30.GL_CULL_FACE);
-      GLError.maybeThrowGLException("Failed to enable backface culling", "glEnable");
-    } else {
-      GLES30.glDisable(GLES30.GL_CULL_FACE);
-      GLError.maybeThrowGLException("Failed to disable backface culling", "glDisable");
-    }
+    glState.depthMask(depthWrite);
+    glState.setDepthTest(depthTest);
+    glState.setCullFace(cullFace);
     try {
-      // Remove all non-texture uniforms from the map after setting them, since they're stored as
-      // part of the program.
-      ArrayList<Integer> obsoleteEntries = new ArrayList<>(uniforms.size());
-      for (Map.Entry<Integer, Uniform> entry : uniforms.entrySet()) {
+      // Non-texture uniforms are stored as part of the program, so only upload the ones that
+      // changed since the last use. Texture units are global state and must be rebound every time.
+      for (int i = 0; i < uniforms.size(); ++i) {
+        Uniform uniform = uniforms.get(i);
+        if (!uniform.dirty && uniform.type != UniformType.TEXTURE) {
+          continue;
+        }
         try {
-          entry.getValue().use(entry.getKey());
-          if (!(entry.getValue() instanceof UniformTexture)) {
-            obsoleteEntries.add(entry.getKey());
-          }
+          uniform.use(gl, glState);
         } catch (GLException e) {
-          String name = uniformNames.get(entry.getKey());
-          throw new IllegalArgumentException("Error setting uniform `" + name + "'", e);
+          throw new IllegalArgumentException("Error setting uniform `" + uniform.name + "'", e);
         }
       }
-      uniforms.keySet().removeAll(obsoleteEntries);
     } finally {
-      GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
-      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to set active texture", "glActiveTexture");
+      glState.activeTexture(0);
     }
   }
 
-  private static interface Uniform {
-    public void use(int location);
+  /* package-private */
+  int getProgramId() {
+    return programId;
   }
 
-  private static class UniformTexture implements Uniform {
-    private final int textureUnit;
-    private final Texture texture;
-
-    public UniformTexture(int textureUnit, Texture texture) {
-      this.textureUnit = textureUnit;
-      this.texture = texture;
-    }
-
-    public int getTextureUnit() {
-      return textureUnit;
-    }
-
-    @Override
-    public void use(int location) {
-      if (texture.getTextureId() == 0) {
-        throw new IllegalStateException("Tried to draw with freed texture");
+  /**
+   * Returns a value identifying the set of textures currently assigned to the shader's texture
+   * uniforms. Shaders with equal keys are likely to share texture bindings.
+   */
+  /* package-private */
+  int getTextureKey() {
+    int key = 0;
+    for (int i = 0; i < uniforms.size(); ++i) {
+      Uniform uniform = uniforms.get(i);
+      if (uniform.type == UniformType.TEXTURE && uniform.texture != null) {
+        key = key * 31 + uniform.texture.getTextureId();
       }
-      GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + textureUnit);
-      GLError.maybeThrowGLException("Failed to set active texture", "glActiveTexture");
-      GLES30.glBindTexture(texture.getTarget().glesEnum, texture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
-      GLES30.glUniform1i(location, textureUnit);
-      GLError.maybeThrowGLException("Failed to set shader texture uniform", "glUniform1i");
-    }
-  }
-
-  private static class UniformInt implements Uniform {
-    private final int[] values;
-
-    public UniformInt(int[] values) {
-      this.values = values;
-    }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform1iv(location, values.length, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 1i", "glUniform1iv");
     }
+    return key;
   }
 
-  private static class Uniform1f implements Uniform {
-    private final float[] values;
-
-    public Uniform1f(float[] values) {
-      this.values = values;
-    }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform1fv(location, values.length, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 1f", "glUniform1fv");
+  /**
+   * Returns the number of uniform storage allocations made by all shaders since the GL surface was
+   * created. In steady state, setting and flushing uniforms does not allocate, so this should only
+   * grow while shaders are being set up.
+   */
+  public static long getUniformAllocationCount() {
+    return uniformAllocationCount;
+  }
+
+  private static enum UniformType {
+    TEXTURE(1),
+    INT(1),
+    FLOAT(1),
+    VEC2(2),
+    VEC3(3),
+    VEC4(4),
+    MAT2(4),
+    MAT3(9),
+    MAT4(16);
+
+    final int componentsPerEntry;
+
+    private UniformType(int componentsPerEntry) {
+      this.componentsPerEntry = componentsPerEntry;
+    }
+
+    /** Returns the setter type matching a type reported by glGetActiveUniform, or null. */
+    static UniformType fromGlesEnum(int glesEnum) {
+      switch (glesEnum) {
+        case GLES30.GL_SAMPLER_2D:
+        case GLES30.GL_SAMPLER_3D:
+        case GLES30.GL_SAMPLER_CUBE:
+        case GLES30.GL_SAMPLER_2D_SHADOW:
+        case GLES30.GL_SAMPLER_2D_ARRAY:
+        case GLES11Ext.GL_SAMPLER_EXTERNAL_OES:
+          return TEXTURE;
+        case GLES30.GL_INT:
+        case GLES30.GL_BOOL:
+          return INT;
+        case GLES30.GL_FLOAT:
+          return FLOAT;
+        case GLES30.GL_FLOAT_VEC2:
+          return VEC2;
+        case GLES30.GL_FLOAT_VEC3:
+          return VEC3;
+        case GLES30.GL_FLOAT_VEC4:
+          return VEC4;
+        case GLES30.GL_FLOAT_MAT2:
+          return MAT2;
+        case GLES30.GL_FLOAT_MAT3:
+          return MAT3;
+        case GLES30.GL_FLOAT_MAT4:
+          return MAT4;
+        default:
+          return null;
+      }
     }
   }
 
-  private static class Uniform2f implements Uniform {
-    private final float[] values;
-
-    public Uniform2f(float[] values) {
-      this.values = values;
-    }
+  /**
+   * A uniform of a particular {@link Shader}, resolved when the program was linked.
+   *
+   * <p>Obtain one with {@link Shader#getUniformHandle} once, then pass it to the setters every
+   * frame instead of the uniform name.
+   */
+  public static final class UniformHandle {
+    private final Shader shader;
+    private final int index;
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniform2fv(location, values.length / 2, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 2f", "glUniform2fv");
+    private UniformHandle(Shader shader, int index) {
+      this.shader = shader;
+      this.index = index;
     }
   }
 
-  private static class Uniform3f implements Uniform {
-    private final float[] values;
-
-    public Uniform3f(float[] values) {
-      this.values = values;
-    }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniform3fv(location, values.length / 3, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 3f", "glUniform3fv");
+  /**
+   * Preallocated storage for a single uniform location. Values are copied into the slot when set,
+   * and uploaded to the program by {@link #use} only when dirty.
+   */
+  private static class Uniform {
+    final String name;
+    final int location;
+    final UniformHandle handle;
+    // The type and array size declared in the shader, or null and 0 if they are unknown.
+    final UniformType declaredType;
+    final int declaredSize;
+    UniformType type;
+    boolean dirty;
+
+    // Storage for non-texture uniforms; grown only when a larger array is set.
+    float[] floatValues;
+    int[] intValues;
+    int length;
+
+    // Storage for texture uniforms.
+    int textureUnit;
+    Texture texture;
+
+    Uniform(
+        String name, int location, UniformHandle handle, UniformType declaredType, int declaredSize) {
+      this.name = name;
+      this.location = location;
+      this.handle = handle;
+      this.declaredType = declaredType;
+      this.declaredSize = declaredSize;
+    }
+
+    float[] prepareFloats(UniformType type, int length) {
+      this.type = type;
+      if (floatValues == null || floatValues.length < length) {
+        floatValues = new float[length];
+        uniformAllocationCount++;
+      }
+      this.length = length;
+      dirty = true;
+      return floatValues;
     }
-  }
 
-  private static class Uniform4f implements Uniform {
-    private final float[] values;
-
-    public Uniform4f(float[] values) {
-      this.values = values;
+    int[] prepareInts(UniformType type, int length) {
+      this.type = type;
+      if (intValues == null || intValues.length < length) {
+        intValues = new int[length];
+        uniformAllocationCount++;
+      }
+      this.length = length;
+      dirty = true;
+      return intValues;
     }
 
-    @Override
-    public void use(int location) {
-      GLES30.glUniform4fv(location, values.length / 4, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform 4f", "glUniform4fv");
+    void use(GL gl, GLState glState) {
+      int count = length / type.componentsPerEntry;
+      switch (type) {
+        case TEXTURE:
+          if (texture.getTextureId() == 0) {
+            throw new IllegalStateException("Tried to draw with freed texture");
+          }
+          glState.activeTexture(textureUnit);
+          glState.bindTexture(texture.getTarget().glesEnum, texture.getTextureId());
+          if (dirty) {
+            gl.glUniform1i(location, textureUnit);
+            GLError.maybeThrowGLException("Failed to set shader texture uniform", "glUniform1i");
+          }
+          break;
+        case INT:
+          gl.glUniform1iv(location, count, intValues, 0);
+          GLError.maybeThrowGLException("Failed to set shader uniform 1i", "glUniform1iv");
+          break;
+        case FLOAT:
+          gl.glUniform1fv(location, count, floatValues, 0);
+          GLError.maybeThrowGLException("Failed to set shader uniform 1f", "glUniform1fv");
+          break;
+        case VEC2:
+          gl.glUniform2fv(location, count, floatValues, 0);
+          GLError.maybeThrowGLException("Failed to set shader uniform 2f", "glUniform2fv");
+          break;
+        case VEC3:
+          gl.glUniform3fv(location, count, floatValues, 0);
+          GLError.maybeThrowGLException("Failed to set shader uniform 3f", "glUniform3fv");
+          break;
+        case VEC4:
+          gl.glUniform4fv(location, count, floatValues, 0);
+          GLError.maybeThrowGLException("Failed to set shader uniform 4f", "glUniform4fv");
+          break;
+        case MAT2:
+          gl.glUniformMatrix2fv(location, count, /*transpose=*/ false, floatValues, 0);
+          GLError.maybeThrowGLException(
+              "Failed to set shader uniform matrix 2f", "glUniformMatrix2fv");
+          break;
+        case MAT3:
+          gl.glUniformMatrix3fv(location, count, /*transpose=*/ false, floatValues, 0);
+          GLError.maybeThrowGLException(
+              "Failed to set shader uniform matrix 3f", "glUniformMatrix3fv");
+          break;
+        case MAT4:
+          gl.glUniformMatrix4fv(location, count, /*transpose=*/ false, floatValues, 0);
+          GLError.maybeThrowGLException(
+              "Failed to set shader uniform matrix 4f", "glUniformMatrix4fv");
+          break;
+      }
+      dirty = false;
     }
   }
 
-  private static class UniformMatrix2f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix2f(float[] values) {
-      this.values = values;
-    }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix2fv(location, values.length / 4, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 2f", "glUniformMatrix2fv");
-    }
+  private void setFloats(UniformHandle handle, UniformType type, float[] values) {
+    int entries = values.length / type.componentsPerEntry;
+    float[] floatValues = getUniform(handle, type, entries).prepareFloats(type, values.length);
+    System.arraycopy(values, 0, floatValues, 0, values.length);
   }
 
-  private static class UniformMatrix3f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix3f(float[] values) {
-      this.values = values;
+  private Uniform getUniform(UniformHandle handle, UniformType type, int entries) {
+    if (handle.shader != this) {
+      throw new IllegalArgumentException("Uniform handle belongs to a different shader");
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix3fv(location, values.length / 9, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 3f", "glUniformMatrix3fv");
+    Uniform uniform = uniforms.get(handle.index);
+    if (uniform.declaredType == null) {
+      return uniform;
     }
-  }
-
-  private static class UniformMatrix4f implements Uniform {
-    private final float[] values;
-
-    public UniformMatrix4f(float[] values) {
-      this.values = values;
+    if (uniform.declaredType != type) {
+      throw new IllegalArgumentException(
+          "Shader uniform `" + uniform.name + "' is declared as " + uniform.declaredType
+              + ", not " + type);
     }
-
-    @Override
-    public void use(int location) {
-      GLES30.glUniformMatrix4fv(location, values.length / 16, /*transpose=*/ false, values, 0);
-      GLError.maybeThrowGLException("Failed to set shader uniform matrix 4f", "glUniformMatrix4fv");
+    if (entries > uniform.declaredSize) {
+      throw new IllegalArgumentException(
+          "Shader uniform `" + uniform.name + "' holds " + uniform.declaredSize
+              + " elements, not " + entries);
     }
+    return uniform;
   }
 
-  private int getUniformLocation(String name) {
-    Integer locationObject = uniformLocations.get(name);
-    if (locationObject != null) {
-      return locationObject;
+  private Uniform getUniform(String name) {
+    Uniform uniform = uniformsByName.get(name);
+    if (uniform != null) {
+      return uniform;
     }
-    int location = GLES30.glGetUniformLocation(programId, name);
+    // Individual elements of arrays (e.g. "u_Array[3]") are not enumerated as active uniforms, so
+    // resolve them lazily without type information.
+    int location = gl.glGetUniformLocation(programId, name);
     GLError.maybeThrowGLException("Failed to find uniform", "glGetUniformLocation");
     if (location == -1) {
       throw new IllegalArgumentException("Shader uniform does not exist: " + name);
     }
-    uniformLocations.put(name, Integer.valueOf(location));
-    uniformNames.put(Integer.valueOf(location), name);
-    return location;
+    return addUniform(name, location, /*declaredType=*/ null, /*declaredSize=*/ 0);
+  }
+
+  private Uniform addUniform(String name, int location, UniformType declaredType, int declaredSize) {
+    Uniform uniform =
+        new Uniform(
+            name, location, new UniformHandle(this, uniforms.size()), declaredType, declaredSize);
+    uniformsByName.put(name, uniform);
+    uniforms.add(uniform);
+    uniformAllocationCount++;
+    return uniform;
+  }
+
+  private int getUniformBlockIndex(String blockName) {
+    int blockIndex = gl.glGetUniformBlockIndex(programId, blockName);
+    GLError.maybeThrowGLException("Failed to find uniform block", "glGetUniformBlockIndex");
+    return blockIndex;
+  }
+
+  private void resolveActiveUniforms() {
+    final int[] activeUniforms = new int[1];
+    gl.glGetProgramiv(programId, GLES30.GL_ACTIVE_UNIFORMS, activeUniforms, 0);
+    GLError.maybeThrowGLException("Failed to query number of active uniforms", "glGetProgramiv");
+    final int[] size = new int[1];
+    final int[] type = new int[1];
+    for (int i = 0; i < activeUniforms[0]; ++i) {
+      String name = gl.glGetActiveUniform(programId, i, size, 0, type, 0);
+      GLError.maybeThrowGLException("Failed to query active uniform", "glGetActiveUniform");
+      int location = gl.glGetUniformLocation(programId, name);
+      GLError.maybeThrowGLException("Failed to find uniform", "glGetUniformLocation");
+      if (location == -1) {
+        // Members of uniform blocks have no location.
+        continue;
+      }
+      Uniform uniform = addUniform(name, location, UniformType.fromGlesEnum(type[0]), size[0]);
+      // Arrays are reported with a "[0]" suffix, but are usually set by their bare name.
+      if (name.endsWith("[0]")) {
+        uniformsByName.put(name.substring(0, name.length() - 3), uniform);
+      }
+    }
   }
 
-  private static int createShader(int type, String code) {
-    int shaderId = GLES30.glCreateShader(type);
+  private static int createShader(GL gl, int type, String code) {
+    int shaderId = gl.glCreateShader(type);
     GLError.maybeThrowGLException("Shader creation failed", "glCreateShader");
-    GLES30.glShaderSource(shaderId, code);
+    gl.glShaderSource(shaderId, code);
     GLError.maybeThrowGLException("Shader source failed", "glShaderSource");
-    GLES30.glCompileShader(shaderId);
+    gl.glCompileShader(shaderId);
     GLError.maybeThrowGLException("Shader compilation failed", "glCompileShader");
 
     final int[] compileStatus = new int[1];
-    GLES30.glGetShaderiv(shaderId, GLES30.GL_COMPILE_STATUS, compileStatus, 0);
+    gl.glGetShaderiv(shaderId, GLES30.GL_COMPILE_STATUS, compileStatus, 0);
     if (compileStatus[0] == GLES30.GL_FALSE) {
-      String infoLog = GLES30.glGetShaderInfoLog(shaderId);
+      String infoLog = gl.glGetShaderInfoLog(shaderId);
       GLError.maybeLogGLError(
           Log.WARN, TAG, "Failed to retrieve shader info log", "glGetShaderInfoLog");
-      GLES30.glDeleteShader(shaderId);
+      gl.glDeleteShader(shaderId);
       GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free shader", "glDeleteShader");
       throw new GLException(0, "Shader compilation failed: " + infoLog);
     }
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES30;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws screen-space text in a monospace font with a single draw call.
+ *
+ * <p>The printable ASCII characters are baked once into a glyph atlas texture. Text is built with
+ * the {@code append} methods, which do not allocate, and laid out into a batched {@link Mesh} of
+ * one quad per character when next drawn. Each quad covers a whole character cell and is filled
+ * with a background color behind the glyph, so that the text stays readable over the camera image.
+ * Characters outside of the printable ASCII range are drawn as {@code '?'}.
+ */
+public class TextRenderer implements Closeable {
+  private static final String VERTEX_SHADER_NAME = "shaders/text.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/text.frag";
+
+  private static final char FIRST_CHARACTER = ' ';
+  private static final char LAST_CHARACTER = '~';
+  private static final int ATLAS_COLUMNS = 16;
+  private static final int ATLAS_ROWS =
+      (LAST_CHARACTER - FIRST_CHARACTER + ATLAS_COLUMNS) / ATLAS_COLUMNS;
+  private static final int VERTICES_PER_CHARACTER = 6;
+  private static final int ENTRIES_PER_VERTEX = 2;
+
+  private final int cellWidth;
+  private final int cellHeight;
+  private final float atlasWidth;
+  private final float atlasHeight;
+  private final Texture atlasTexture;
+  private final Shader shader;
+  private final Mesh mesh;
+  private final VertexBuffer positionsVertexBuffer;
+  private final VertexBuffer texCoordsVertexBuffer;
+  private final FloatBuffer positions;
+  private final FloatBuffer texCoords;
+
+  private final char[] text;
+  private final char[] digits = new char[20];
+  private final float[] viewportSize = new float[2];
+  private final float[] origin = new float[2];
+  private int length;
+  // Starts set so that the first draw lays out, and flips, the empty positions.
+  private boolean dirty = true;
+
+  /**
+   * Bakes the glyph atlas and allocates room for {@code maxCharacterCount} characters. Must be
+   * called during a {@link SampleRender.Renderer} callback.
+   *
+   * @param textSize The height of the text, in pixels.
+   */
+  public TextRenderer(SampleRender render, float textSize, int maxCharacterCount)
+      throws IOException {
+    text = new char[maxCharacterCount];
+
+    Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    paint.setTypeface(Typeface.MONOSPACE);
+    paint.setTextSize(textSize);
+    paint.setColor(0xFFFFFFFF);
+    Paint.FontMetrics fontMetrics = paint.getFontMetrics();
+    cellWidth = (int) Math.ceil(paint.measureText("M"));
+    cellHeight = (int) Math.ceil(fontMetrics.descent - fontMetrics.ascent);
+
+    // Keep rows a multiple of 4 bytes, the default unpack alignment.
+    int width = (ATLAS_COLUMNS * cellWidth + 3) & ~3;
+    int height = ATLAS_ROWS * cellHeight;
+    atlasWidth = width;
+    atlasHeight = height;
+    atlasTexture =
+        new Texture(
+            render, Texture.Target.TEXTURE_2D, Texture.WrapMode.CLAMP_TO_EDGE, /*useMipmaps=*/ false);
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+    ByteBuffer pixels = null;
+    try {
+      Canvas canvas = new Canvas(bitmap);
+      char[] character = new char[1];
+      for (char c = FIRST_CHARACTER; c <= LAST_CHARACTER; ++c) {
+        int cell = c - FIRST_CHARACTER;
+        character[0] = c;
+        canvas.drawText(
+            character,
+            0,
+            1,
+            (cell % ATLAS_COLUMNS) * cellWidth,
+            (cell / ATLAS_COLUMNS) * cellHeight - fontMetrics.ascent,
+            paint);
+      }
+      pixels = DirectBufferPool.acquire(bitmap.getByteCount());
+      bitmap.copyPixelsToBuffer(pixels);
+      pixels.rewind();
+      render.getGlState().bindTexture(GLES30.GL_TEXTURE_2D, atlasTexture.getTextureId());
+      render
+          .getGl()
+          .glTexImage2D(
+              GLES30.GL_TEXTURE_2D,
+              /*level=*/ 0,
+              GLES30.GL_R8,
+              width,
+              height,
+              /*border=*/ 0,
+              GLES30.GL_RED,
+              GLES30.GL_UNSIGNED_BYTE,
+              pixels);
+      GLError.maybeThrowGLException("Failed to populate glyph atlas", "glTexImage2D");
+      atlasTexture.setEstimatedByteCount((long) width * height);
+    } catch (Throwable t) {
+      atlasTexture.close();
+      throw t;
+    } finally {
+      bitmap.recycle();
+      DirectBufferPool.release(pixels);
+    }
+
+    int entryCount = maxCharacterCount * VERTICES_PER_CHARACTER * ENTRIES_PER_VERTEX;
+    positions =
+        ByteBuffer.allocateDirect(entryCount * Float.BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    texCoords =
+        ByteBuffer.allocateDirect(entryCount * Float.BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    // The mesh closes its vertex buffers, so only those created before it are closed on failure.
+    VertexBuffer newPositionsVertexBuffer = null;
+    VertexBuffer newTexCoordsVertexBuffer = null;
+    Mesh newMesh = null;
+    try {
+      newPositionsVertexBuffer = new VertexBuffer(render, ENTRIES_PER_VERTEX, /*entries=*/ null);
+      newTexCoordsVertexBuffer = new VertexBuffer(render, ENTRIES_PER_VERTEX, /*entries=*/ null);
+      newMesh =
+          new Mesh(
+              render,
+              Mesh.PrimitiveMode.TRIANGLES,
+              /*indexBuffer=*/ null,
+              new VertexBuffer[] {newPositionsVertexBuffer, newTexCoordsVertexBuffer});
+      shader =
+          Shader.createFromAssets(
+                  render, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, /*defines=*/ null)
+              .setTexture("u_GlyphAtlas", atlasTexture)
+              .setDepthTest(false)
+              .setDepthWrite(false)
+              .setBlend(Shader.BlendFactor.SRC_ALPHA, Shader.BlendFactor.ONE_MINUS_SRC_ALPHA);
+    } catch (Throwable t) {
+      if (newMesh != null) {
+        newMesh.close();
+      } else {
+        if (newPositionsVertexBuffer != null) {
+          newPositionsVertexBuffer.close();
+        }
+        if (newTexCoordsVertexBuffer != null) {
+          newTexCoordsVertexBuffer.close();
+        }
+      }
+      atlasTexture.close();
+      throw t;
+    }
+    positionsVertexBuffer = newPositionsVertexBuffer;
+    texCoordsVertexBuffer = newTexCoordsVertexBuffer;
+    mesh = newMesh;
+    setColor(1f, 1f, 1f, 1f);
+    setBackgroundColor(0f, 0f, 0f, 0.6f);
+  }
+
+  @Override
+  public void close() {
+    mesh.close();
+    shader.close();
+    atlasTexture.close();
+  }
+
+  /** Sets the color of the glyphs. */
+  public TextRenderer setColor(float r, float g, float b, float a) {
+    shader.setVec4("u_Color", new float[] {r, g, b, a});
+    return this;
+  }
+
+  /** Sets the color of the character cells behind the glyphs. */
+  public TextRenderer setBackgroundColor(float r, float g, float b, float a) {
+    shader.setVec4("u_BackgroundColor", new float[] {r, g, b, a});
+    return this;
+  }
+
+  /** Sets the position of the top left corner of the text, in pixels from the top left corner. */
+  public TextRenderer setOrigin(float x, float y) {
+    origin[0] = x;
+    origin[1] = y;
+    dirty = true;
+    return this;
+  }
+
+  /** Returns the height of a line of text, in pixels. */
+  public int getLineHeight() {
+    return cellHeight;
+  }
+
+  /** Removes all text. */
+  public TextRenderer clear() {
+    length = 0;
+    dirty = true;
+    return this;
+  }
+
+  /** Appends {@code value}, dropping the characters that do not fit. */
+  public TextRenderer append(String value) {
+    for (int i = 0; i < value.length(); ++i) {
+      append(value.charAt(i));
+    }
+    return this;
+  }
+
+  /** Appends {@code c}, unless the text is full. A {@code '\n'} starts a new line. */
+  public TextRenderer append(char c) {
+    if (length < text.length) {
+      text[length++] = c;
+      dirty = true;
+    }
+    return this;
+  }
+
+  /** Appends the decimal representation of {@code value}. */
+  public TextRenderer append(long value) {
+    if (value < 0) {
+      append('-');
+      // Long.MIN_VALUE stays negative, so digits are computed from negative remainders.
+    } else {
+      value = -value;
+    }
+    int count = 0;
+    do {
+      digits[count++] = (char) ('0' - value % 10);
+      value /= 10;
+    } while (value != 0);
+    while (count > 0) {
+      append(digits[--count]);
+    }
+    return this;
+  }
+
+  /** Appends {@code value} rounded to {@code fractionDigits} digits after the decimal point. */
+  public TextRenderer append(float value, int fractionDigits) {
+    long scale = 1;
+    for (int i = 0; i < fractionDigits; ++i) {
+      scale *= 10;
+    }
+    long scaled = Math.round(Math.abs(value) * (double) scale);
+    if (value < 0 && scaled != 0) {
+      append('-');
+    }
+    append(scaled / scale);
+    if (fractionDigits > 0) {
+      append('.');
+      long fraction = scaled % scale;
+      for (long divisor = scale / 10; divisor > 0; divisor /= 10) {
+        append((char) ('0' + fraction / divisor % 10));
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Draws the text to {@code framebuffer}, or to the default framebuffer if null, uploading its
+   * layout first if it changed since it was last drawn.
+   */
+  public void draw(SampleRender render, Framebuffer framebuffer) {
+    if (dirty) {
+      layout();
+      dirty = false;
+    }
+    if (positions.limit() == 0) {
+      return;
+    }
+    if (framebuffer == null) {
+      viewportSize[0] = render.getViewportWidth();
+      viewportSize[1] = render.getViewportHeight();
+    } else {
+      viewportSize[0] = framebuffer.getViewportWidth();
+      viewportSize[1] = framebuffer.getViewportHeight();
+    }
+    shader.setVec2("u_ViewportSize", viewportSize);
+    render.draw(mesh, shader, framebuffer);
+  }
+
+  private void layout() {
+    positions.clear();
+    texCoords.clear();
+    float x = origin[0];
+    float y = origin[1];
+    for (int i = 0; i < length; ++i) {
+      char c = text[i];
+      if (c == '\n') {
+        x = origin[0];
+        y += cellHeight;
+        continue;
+      }
+      if (c < FIRST_CHARACTER || c > LAST_CHARACTER) {
+        c = '?';
+      }
+      int cell = c - FIRST_CHARACTER;
+      float u = (cell % ATLAS_COLUMNS) * cellWidth / atlasWidth;
+      float v = (cell / ATLAS_COLUMNS) * cellHeight / atlasHeight;
+      addQuad(positions, x, y, x + cellWidth, y + cellHeight);
+      addQuad(texCoords, u, v, u + cellWidth / atlasWidth, v + cellHeight / atlasHeight);
+      x += cellWidth;
+    }
+    positions.flip();
+    texCoords.flip();
+    positionsVertexBuffer.set(positions);
+    texCoordsVertexBuffer.set(texCoords);
+  }
+
+  /** Adds the two triangles of the given rectangle, whose y axis points down. */
+  private static void addQuad(FloatBuffer buffer, float left, float top, float right, float bottom) {
+    buffer.put(left).put(top);
+    buffer.put(left).put(bottom);
+    buffer.put(right).put(top);
+    buffer.put(right).put(top);
+    buffer.put(left).put(bottom);
+    buffer.put(right).put(bottom);
+  }
+}
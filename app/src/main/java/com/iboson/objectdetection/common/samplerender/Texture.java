@@ -28,8 +28,11 @@ import java.nio.ByteBuffer;
 public class Texture implements Closeable {
   private static final String TAG = Texture.class.getSimpleName();
 
+  private final GL gl;
+  private final GLState glState;
   private final int[] textureId = {0};
   private final Target target;
+  private final ResourceRegistry.Registration registration;
 
   /**
    * Describes the way the texture's edges are rendered.
@@ -97,24 +100,26 @@ public class Texture implements Closeable {
   }
 
   public Texture(SampleRender render, Target target, WrapMode wrapMode, boolean useMipmaps) {
+    this.gl = render.getGl();
+    this.glState = render.getGlState();
     this.target = target;
+    registration = render.getResourceRegistry().register(ResourceRegistry.Type.TEXTURE);
 
-    GLES30.glGenTextures(1, textureId, 0);
+    gl.glGenTextures(1, textureId, 0);
     GLError.maybeThrowGLException("Texture creation failed", "glGenTextures");
 
     int minFilter = useMipmaps ? GLES30.GL_LINEAR_MIPMAP_LINEAR : GLES30.GL_LINEAR;
 
     try {
-      GLES30.glBindTexture(target.glesEnum, textureId[0]);
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
-      GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MIN_FILTER, minFilter);
+      glState.bindTexture(target.glesEnum, textureId[0]);
+      gl.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MIN_FILTER, minFilter);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
-      GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+      gl.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
 
-      GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_WRAP_S, wrapMode.glesEnum);
+      gl.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_WRAP_S, wrapMode.glesEnum);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
-      GLES30.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_WRAP_T, wrapMode.glesEnum);
+      gl.glTexParameteri(target.glesEnum, GLES30.GL_TEXTURE_WRAP_T, wrapMode.glesEnum);
       GLError.maybeThrowGLException("Failed to set texture parameter", "glTexParameteri");
     } catch (Throwable t) {
       close();
@@ -128,6 +133,7 @@ public class Texture implements Closeable {
       throws IOException {
     Texture texture = new Texture(render, Target.TEXTURE_2D, wrapMode);
     Bitmap bitmap = null;
+    ByteBuffer buffer = null;
     try {
       // The following lines up to glTexImage2D could technically be replaced with
       // GLUtils.texImage2d, but this method does not allow for loading sRGB images.
@@ -138,13 +144,12 @@ public class Texture implements Closeable {
           convertBitmapToConfig(
               BitmapFactory.decodeStream(render.getAssets().open(assetFileName)),
               Bitmap.Config.ARGB_8888);
-      ByteBuffer buffer = ByteBuffer.allocateDirect(bitmap.getByteCount());
+      buffer = DirectBufferPool.acquire(bitmap.getByteCount());
       bitmap.copyPixelsToBuffer(buffer);
       buffer.rewind();
 
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind texture", "glBindTexture");
-      GLES30.glTexImage2D(
+      render.getGlState().bindTexture(GLES30.GL_TEXTURE_2D, texture.getTextureId());
+      render.getGl().glTexImage2D(
           GLES30.GL_TEXTURE_2D,
           /*level=*/ 0,
           colorFormat.glesEnum,
@@ -155,8 +160,10 @@ public class Texture implements Closeable {
           GLES30.GL_UNSIGNED_BYTE,
           buffer);
       GLError.maybeThrowGLException("Failed to populate texture data", "glTexImage2D");
-      GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_2D);
+      render.getGl().glGenerateMipmap(GLES30.GL_TEXTURE_2D);
       GLError.maybeThrowGLException("Failed to generate mipmaps", "glGenerateMipmap");
+      // The mipmap chain adds a third to the base level.
+      texture.setEstimatedByteCount(4L * bitmap.getWidth() * bitmap.getHeight() * 4 / 3);
     } catch (Throwable t) {
       texture.close();
       throw t;
@@ -164,19 +171,37 @@ public class Texture implements Closeable {
       if (bitmap != null) {
         bitmap.recycle();
       }
+      DirectBufferPool.release(buffer);
     }
     return texture;
   }
 
   @Override
   public void close() {
+    boolean ownedByContext = registration.unregister();
     if (textureId[0] != 0) {
-      GLES30.glDeleteTextures(1, textureId, 0);
-      GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free texture", "glDeleteTextures");
+      if (ownedByContext) {
+        gl.glDeleteTextures(1, textureId, 0);
+        GLError.maybeLogGLError(Log.WARN, TAG, "Failed to free texture", "glDeleteTextures");
+        glState.onTextureDeleted(textureId[0]);
+      }
       textureId[0] = 0;
     }
   }
 
+  /**
+   * Sets the GPU memory used by the images of the texture, as reported by {@link
+   * ResourceRegistry}. Must be called by code specifying the images outside of this class.
+   */
+  public void setEstimatedByteCount(long byteCount) {
+    registration.setByteCount(byteCount);
+  }
+
+  /* package-private */
+  long getEstimatedByteCount() {
+    return registration.getByteCount();
+  }
+
   /** Retrieve the native texture ID. */
   public int getTextureId() {
     return textureId[0];
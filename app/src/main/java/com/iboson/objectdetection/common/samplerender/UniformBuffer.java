@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import java.io.Closeable;
+import java.nio.FloatBuffer;
+
+/**
+ * A block of uniform data stored GPU-side, shared by every {@link Shader} that declares a matching
+ * uniform block.
+ *
+ * <p>The layout of the data is up to the caller, and will usually follow the {@code std140} rules
+ * so that it does not depend on the driver. Ranges of the buffer are attached to indexed binding
+ * points with {@link #bindRange}, and shaders are pointed at those binding points with {@link
+ * Shader#setUniformBlock}.
+ *
+ * @see <a
+ *     href="https://www.khronos.org/registry/OpenGL-Refpages/es3.0/html/glBindBufferRange.xhtml">glBindBufferRange</a>
+ */
+public class UniformBuffer implements Closeable {
+  private final GL gl;
+  private final GpuBuffer buffer;
+
+  /**
+   * Construct a {@link UniformBuffer} populated with initial data.
+   *
+   * <p>The GPU buffer will be filled with the data in the <i>direct</i> buffer {@code entries},
+   * starting from the beginning of the buffer (not the current cursor position).
+   *
+   * <p>The {@code entries} buffer may be null, in which case an empty buffer is constructed
+   * instead.
+   */
+  public UniformBuffer(SampleRender render, FloatBuffer entries) {
+    this(render, entries, /* streamingRegionCount= */ 1);
+  }
+
+  /**
+   * Construct a {@link UniformBuffer} meant to be {@link #set} often, such as every frame.
+   *
+   * <p>The buffer cycles through {@code streamingRegionCount} regions, so that setting new data
+   * does not stall on draws still reading the previous data. A count of 1 constructs a regular
+   * buffer. When streaming, the size of {@code entries} in bytes must be a multiple of {@link
+   * #getOffsetAlignment}, so that every region starts suitably aligned for {@link #bindRange}.
+   */
+  public UniformBuffer(SampleRender render, FloatBuffer entries, int streamingRegionCount) {
+    gl = render.getGl();
+    buffer =
+        new GpuBuffer(
+            render,
+            GLES30.GL_UNIFORM_BUFFER,
+            GpuBuffer.FLOAT_SIZE,
+            entries,
+            streamingRegionCount);
+  }
+
+  /**
+   * Populate with new data.
+   *
+   * <p>The entire buffer is replaced by the contents of the <i>direct</i> buffer {@code entries}
+   * starting from the beginning of the buffer, not the current cursor position. Ranges bound with
+   * {@link #bindRange} remain bound, but to the previous data of a streaming buffer, so they must
+   * be bound again.
+   */
+  public void set(FloatBuffer entries) {
+    buffer.set(entries);
+  }
+
+  /**
+   * Binds {@code size} bytes of the data last {@link #set} starting at byte {@code offset} to the
+   * given uniform buffer binding point. The offset must be a multiple of {@link
+   * #getOffsetAlignment}.
+   */
+  public void bindRange(int bindingPoint, int offset, int size) {
+    gl.glBindBufferRange(
+        GLES30.GL_UNIFORM_BUFFER,
+        bindingPoint,
+        buffer.getBufferId(),
+        buffer.getDrawOffset() + offset,
+        size);
+    GLError.maybeThrowGLException("Failed to bind uniform buffer range", "glBindBufferRange");
+  }
+
+  @Override
+  public void close() {
+    buffer.free();
+  }
+
+  /** Returns the alignment required of offsets passed to {@link #bindRange}, in bytes. */
+  public static int getOffsetAlignment(SampleRender render) {
+    final int[] result = new int[1];
+    render.getGl().glGetIntegerv(GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, result, 0);
+    GLError.maybeThrowGLException(
+        "Failed to get uniform buffer offset alignment", "glGetIntegerv");
+    return result[0];
+  }
+}
@@ -47,6 +47,22 @@ public class VertexBuffer implements Closeable {
    * instead.
    */
   public VertexBuffer(SampleRender render, int numberOfEntriesPerVertex, FloatBuffer entries) {
+    this(render, numberOfEntriesPerVertex, entries, /* streamingRegionCount= */ 1);
+  }
+
+  /**
+   * Construct a {@link VertexBuffer} meant to be {@link #set} often, such as every frame.
+   *
+   * <p>The buffer cycles through {@code streamingRegionCount} regions, so that setting new data
+   * does not stall on draws still reading the previous data. Enough regions for the number of sets
+   * per frame times {@link RenderThread#MAX_FRAMES_IN_FLIGHT}, plus one, avoid reallocations. A
+   * count of 1 constructs a regular buffer.
+   */
+  public VertexBuffer(
+      SampleRender render,
+      int numberOfEntriesPerVertex,
+      FloatBuffer entries,
+      int streamingRegionCount) {
     if (entries != null && entries.limit() % numberOfEntriesPerVertex != 0) {
       throw new IllegalArgumentException(
           "If non-null, vertex buffer data must be divisible by the number of data points per"
@@ -54,7 +70,13 @@ public class VertexBuffer implements Closeable {
     }
 
     this.numberOfEntriesPerVertex = numberOfEntriesPerVertex;
-    buffer = new GpuBuffer(GLES30.GL_ARRAY_BUFFER, GpuBuffer.FLOAT_SIZE, entries);
+    buffer =
+        new GpuBuffer(
+            render,
+            GLES30.GL_ARRAY_BUFFER,
+            GpuBuffer.FLOAT_SIZE,
+            entries,
+            streamingRegionCount);
   }
 
   /**
@@ -89,6 +111,16 @@ public class VertexBuffer implements Closeable {
     return buffer.getBufferId();
   }
 
+  /* package-private */
+  int getDrawOffset() {
+    return buffer.getDrawOffset();
+  }
+
+  /* package-private */
+  long getEstimatedByteCount() {
+    return buffer.getEstimatedByteCount();
+  }
+
   /* package-private */
   int getNumberOfEntriesPerVertex() {
     return numberOfEntriesPerVertex;
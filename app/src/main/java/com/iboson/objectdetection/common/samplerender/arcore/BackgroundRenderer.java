@@ -20,6 +20,8 @@ import android.opengl.GLES30;
 import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
 import com.iboson.objectdetection.common.samplerender.Framebuffer;
+import com.iboson.objectdetection.common.samplerender.GL;
+import com.iboson.objectdetection.common.samplerender.GLState;
 import com.iboson.objectdetection.common.samplerender.Mesh;
 import com.iboson.objectdetection.common.samplerender.SampleRender;
 import com.iboson.objectdetection.common.samplerender.Shader;
@@ -62,6 +64,9 @@ public class BackgroundRenderer {
   private final FloatBuffer cameraTexCoords =
       ByteBuffer.allocateDirect(COORDS_BUFFER_SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
 
+  private final SampleRender render;
+  private final GL gl;
+  private final GLState glState;
   private final Mesh mesh;
   private final VertexBuffer cameraTexCoordsVertexBuffer;
   private Shader backgroundShader;
@@ -74,12 +79,18 @@ public class BackgroundRenderer {
   private boolean useOcclusion;
   private float aspectRatio;
 
+  // Temporary vector allocated here to reduce number of allocations for each frame.
+  private final float[] virtualSceneUvScale = new float[2];
+
   /**
    * Allocates and initializes OpenGL resources needed by the background renderer. Must be called
    * during a {@link SampleRender.Renderer} callback, typically in {@link
    * SampleRender.Renderer#onSurfaceCreated()}.
    */
   public BackgroundRenderer(SampleRender render) {
+    this.render = render;
+    gl = render.getGl();
+    glState = render.getGlState();
     cameraColorTexture =
         new Texture(
             render,
@@ -121,6 +132,10 @@ public class BackgroundRenderer {
       }
       backgroundShader.close();
       backgroundShader = null;
+      if (depthColorPaletteTexture != null) {
+        depthColorPaletteTexture.close();
+        depthColorPaletteTexture = null;
+      }
       this.useDepthVisualization = useDepthVisualization;
     }
     if (useDepthVisualization) {
@@ -174,7 +189,7 @@ public class BackgroundRenderer {
             .setDepthWrite(false)
             .setBlend(Shader.BlendFactor.SRC_ALPHA, Shader.BlendFactor.ONE_MINUS_SRC_ALPHA);
     if (useOcclusion) {
-      occlusionShader
+      FrameUniforms.bind(occlusionShader)
           .setTexture("u_CameraDepthTexture", cameraDepthTexture)
           .setFloat("u_DepthAspectRatio", aspectRatio);
     }
@@ -202,8 +217,9 @@ public class BackgroundRenderer {
   /** Update depth texture with Image contents. */
   public void updateCameraDepthTexture(Image image) {
     // SampleRender abstraction leaks here
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, cameraDepthTexture.getTextureId());
-    GLES30.glTexImage2D(
+    glState.bindTexture(GLES30.GL_TEXTURE_2D, cameraDepthTexture.getTextureId());
+    ByteBuffer depthData = image.getPlanes()[0].getBuffer();
+    gl.glTexImage2D(
         GLES30.GL_TEXTURE_2D,
         0,
         GLES30.GL_RG8,
@@ -212,7 +228,9 @@ public class BackgroundRenderer {
         0,
         GLES30.GL_RG,
         GLES30.GL_UNSIGNED_BYTE,
-        image.getPlanes()[0].getBuffer());
+        depthData);
+    render.addUploadedByteCount(depthData.remaining());
+    cameraDepthTexture.setEstimatedByteCount(2L * image.getWidth() * image.getHeight());
     if (useOcclusion) {
       aspectRatio = (float) image.getWidth() / (float) image.getHeight();
       occlusionShader.setFloat("u_DepthAspectRatio", aspectRatio);
@@ -235,17 +253,23 @@ public class BackgroundRenderer {
    *
    * <p>Virtual content should be rendered using the matrices provided by {@link
    * com.google.ar.core.Camera#getViewMatrix(float[], int)} and {@link
-   * com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}.
+   * com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}. When using depth
+   * for occlusion, the clipping planes are read from the frame's {@link FrameUniforms}, which must
+   * have been uploaded beforehand.
+   *
+   * <p>If the framebuffer has a render scale below 1, its rendered part is upsampled to the screen.
    */
-  public void drawVirtualScene(
-      SampleRender render, Framebuffer virtualSceneFramebuffer, float zNear, float zFar) {
+  public void drawVirtualScene(SampleRender render, Framebuffer virtualSceneFramebuffer) {
+    virtualSceneUvScale[0] =
+        (float) virtualSceneFramebuffer.getViewportWidth() / virtualSceneFramebuffer.getWidth();
+    virtualSceneUvScale[1] =
+        (float) virtualSceneFramebuffer.getViewportHeight() / virtualSceneFramebuffer.getHeight();
+    occlusionShader.setVec2("u_VirtualSceneUvScale", virtualSceneUvScale);
     occlusionShader.setTexture(
         "u_VirtualSceneColorTexture", virtualSceneFramebuffer.getColorTexture());
     if (useOcclusion) {
-      occlusionShader
-          .setTexture("u_VirtualSceneDepthTexture", virtualSceneFramebuffer.getDepthTexture())
-          .setFloat("u_ZNear", zNear)
-          .setFloat("u_ZFar", zFar);
+      occlusionShader.setTexture(
+          "u_VirtualSceneDepthTexture", virtualSceneFramebuffer.getDepthTexture());
     }
     render.draw(mesh, occlusionShader);
   }
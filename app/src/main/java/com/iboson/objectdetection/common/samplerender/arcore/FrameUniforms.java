@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender.arcore;
+
+import com.iboson.objectdetection.common.math.Mat4;
+import com.iboson.objectdetection.common.samplerender.RenderThread;
+import com.iboson.objectdetection.common.samplerender.SampleRender;
+import com.iboson.objectdetection.common.samplerender.Shader;
+import com.iboson.objectdetection.common.samplerender.UniformBuffer;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Uniform data shared by every shader during a frame: the camera matrices, and the ARCore light
+ * estimate used while rendering the virtual scene.
+ *
+ * <p>Both blocks are written into a single direct buffer with the {@code std140} layout and are
+ * uploaded with one call to {@link #upload} per frame. Shaders access them through the following
+ * uniform blocks, which must be declared exactly like this:
+ *
+ * <pre>
+ * layout(std140) uniform CameraUniforms {
+ *   mat4 u_View;
+ *   mat4 u_Projection;
+ *   mat4 u_ViewProjection;
+ *   mat4 u_ViewInverse;
+ *   float u_ZNear;
+ *   float u_ZFar;
+ * };
+ *
+ * layout(std140) uniform LightingUniforms {
+ *   vec4 u_ViewLightDirection;
+ *   vec3 u_LightIntensity;
+ *   bool u_LightEstimateIsValid;
+ *   vec3 u_SphericalHarmonicsCoefficients[9];
+ * };
+ * </pre>
+ *
+ * <p>Use {@link #bind} to attach a shader's blocks to this object's binding points.
+ */
+public class FrameUniforms implements Closeable {
+  /** The name of the uniform block holding the camera matrices. */
+  public static final String CAMERA_BLOCK_NAME = "CameraUniforms";
+  /** The name of the uniform block holding the light estimate. */
+  public static final String LIGHTING_BLOCK_NAME = "LightingUniforms";
+
+  /** The uniform buffer binding point of the camera block. */
+  public static final int CAMERA_BINDING_POINT = 0;
+  /** The uniform buffer binding point of the lighting block. */
+  public static final int LIGHTING_BINDING_POINT = 1;
+
+  private static final int FLOAT_SIZE = 4;
+  private static final int NUMBER_OF_SPHERICAL_HARMONICS_COEFFICIENTS = 9;
+
+  // std140 offsets of the camera block, in floats.
+  private static final int VIEW_OFFSET = 0;
+  private static final int PROJECTION_OFFSET = 16;
+  private static final int VIEW_PROJECTION_OFFSET = 32;
+  private static final int VIEW_INVERSE_OFFSET = 48;
+  private static final int Z_NEAR_OFFSET = 64;
+  private static final int Z_FAR_OFFSET = 65;
+  private static final int CAMERA_BLOCK_SIZE = 68;
+
+  // std140 offsets of the lighting block, in floats, relative to the start of the block. Arrays of
+  // vec3 are padded to a stride of four floats.
+  private static final int VIEW_LIGHT_DIRECTION_OFFSET = 0;
+  private static final int LIGHT_INTENSITY_OFFSET = 4;
+  private static final int LIGHT_ESTIMATE_IS_VALID_OFFSET = 7;
+  private static final int SPHERICAL_HARMONICS_COEFFICIENTS_OFFSET = 8;
+  private static final int SPHERICAL_HARMONICS_COEFFICIENTS_STRIDE = 4;
+  private static final int LIGHTING_BLOCK_SIZE =
+      SPHERICAL_HARMONICS_COEFFICIENTS_OFFSET
+          + NUMBER_OF_SPHERICAL_HARMONICS_COEFFICIENTS * SPHERICAL_HARMONICS_COEFFICIENTS_STRIDE;
+
+  private final ByteBuffer data;
+  private final FloatBuffer floatData;
+  private final int lightingOffset;
+  private final UniformBuffer uniformBuffer;
+
+  // Temporary matrices allocated here to reduce number of allocations for each frame.
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] viewInverseMatrix = new float[16];
+
+  /**
+   * Allocates the uniform buffer. Must be called during a {@link SampleRender.Renderer} callback,
+   * typically in {@link SampleRender.Renderer#onSurfaceCreated}.
+   */
+  public FrameUniforms(SampleRender render) {
+    // The lighting block, and the data of each frame, must start at offsets suitably aligned for
+    // glBindBufferRange.
+    int alignment = UniformBuffer.getOffsetAlignment(render) / FLOAT_SIZE;
+    lightingOffset = alignUp(CAMERA_BLOCK_SIZE, alignment);
+    int floatCount = alignUp(lightingOffset + LIGHTING_BLOCK_SIZE, alignment);
+    data = ByteBuffer.allocateDirect(floatCount * FLOAT_SIZE).order(ByteOrder.nativeOrder());
+    floatData = data.asFloatBuffer();
+    // Each frame writes its own region, so that frames still in flight keep reading theirs.
+    uniformBuffer = new UniformBuffer(render, floatData, RenderThread.MAX_FRAMES_IN_FLIGHT + 1);
+  }
+
+  @Override
+  public void close() {
+    uniformBuffer.close();
+  }
+
+  /**
+   * Attaches whichever of the frame's uniform blocks the shader declares to this object's binding
+   * points.
+   */
+  public static Shader bind(Shader shader) {
+    if (shader.hasUniformBlock(CAMERA_BLOCK_NAME)) {
+      shader.setUniformBlock(CAMERA_BLOCK_NAME, CAMERA_BINDING_POINT);
+    }
+    if (shader.hasUniformBlock(LIGHTING_BLOCK_NAME)) {
+      shader.setUniformBlock(LIGHTING_BLOCK_NAME, LIGHTING_BINDING_POINT);
+    }
+    return shader;
+  }
+
+  /**
+   * Sets the camera matrices, as returned by {@link com.google.ar.core.Camera#getViewMatrix} and
+   * {@link com.google.ar.core.Camera#getProjectionMatrix}, and the clipping planes used to create
+   * the projection.
+   */
+  public void setCamera(float[] viewMatrix, float[] projectionMatrix, float zNear, float zFar) {
+    Mat4.multiply(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+    Mat4.invertRigid(viewInverseMatrix, 0, viewMatrix, 0);
+    putFloats(VIEW_OFFSET, viewMatrix, 16);
+    putFloats(PROJECTION_OFFSET, projectionMatrix, 16);
+    putFloats(VIEW_PROJECTION_OFFSET, viewProjectionMatrix, 16);
+    putFloats(VIEW_INVERSE_OFFSET, viewInverseMatrix, 16);
+    floatData.put(Z_NEAR_OFFSET, zNear);
+    floatData.put(Z_FAR_OFFSET, zFar);
+  }
+
+  /** Sets whether the light estimate is valid. The remaining lighting values are ignored if not. */
+  public void setLightEstimateIsValid(boolean lightEstimateIsValid) {
+    data.putInt(
+        (lightingOffset + LIGHT_ESTIMATE_IS_VALID_OFFSET) * FLOAT_SIZE,
+        lightEstimateIsValid ? 1 : 0);
+  }
+
+  /** Sets the direction of the main light in view space, as a vec4 with a w component of 0. */
+  public void setViewLightDirection(float[] viewLightDirection) {
+    putFloats(lightingOffset + VIEW_LIGHT_DIRECTION_OFFSET, viewLightDirection, 4);
+  }
+
+  /** Sets the intensity of the main light. */
+  public void setLightIntensity(float[] lightIntensity) {
+    putFloats(lightingOffset + LIGHT_INTENSITY_OFFSET, lightIntensity, 3);
+  }
+
+  /**
+   * Sets the 27 premultiplied spherical harmonics coefficients, as 9 tightly packed RGB triples.
+   */
+  public void setSphericalHarmonicsCoefficients(float[] coefficients) {
+    if (coefficients.length != NUMBER_OF_SPHERICAL_HARMONICS_COEFFICIENTS * 3) {
+      throw new IllegalArgumentException("Value array length must be 27 (9x3)");
+    }
+    for (int i = 0; i < NUMBER_OF_SPHERICAL_HARMONICS_COEFFICIENTS; ++i) {
+      int offset =
+          lightingOffset
+              + SPHERICAL_HARMONICS_COEFFICIENTS_OFFSET
+              + i * SPHERICAL_HARMONICS_COEFFICIENTS_STRIDE;
+      floatData.put(offset, coefficients[i * 3]);
+      floatData.put(offset + 1, coefficients[i * 3 + 1]);
+      floatData.put(offset + 2, coefficients[i * 3 + 2]);
+    }
+  }
+
+  /**
+   * Uploads both blocks with a single buffer update, and binds them to their binding points. Must
+   * be called on the GL thread once per frame, after setting the frame's values and before drawing
+   * with them.
+   */
+  public void upload() {
+    uniformBuffer.set(floatData);
+    uniformBuffer.bindRange(CAMERA_BINDING_POINT, 0, CAMERA_BLOCK_SIZE * FLOAT_SIZE);
+    uniformBuffer.bindRange(
+        LIGHTING_BINDING_POINT, lightingOffset * FLOAT_SIZE, LIGHTING_BLOCK_SIZE * FLOAT_SIZE);
+  }
+
+  private static int alignUp(int value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+
+  private void putFloats(int offset, float[] values, int count) {
+    for (int i = 0; i < count; ++i) {
+      floatData.put(offset + i, values[i]);
+    }
+  }
+}
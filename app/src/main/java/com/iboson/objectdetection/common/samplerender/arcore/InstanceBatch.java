@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender.arcore;
+
+import com.iboson.objectdetection.common.samplerender.DirectBufferPool;
+import com.iboson.objectdetection.common.samplerender.Framebuffer;
+import com.iboson.objectdetection.common.samplerender.InstanceBuffer;
+import com.iboson.objectdetection.common.samplerender.Mesh;
+import com.iboson.objectdetection.common.samplerender.RenderQueue;
+import com.iboson.objectdetection.common.samplerender.RenderThread;
+import com.iboson.objectdetection.common.samplerender.SampleRender;
+import com.iboson.objectdetection.common.samplerender.Shader;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * A mesh and material shared by several {@link SceneNode}s, drawn for all of them with a single
+ * instanced draw.
+ *
+ * <p>Each frame, {@link Scene#draw} streams the model-view matrix and colour of every visible node
+ * of the batch to an {@link InstanceBuffer}, and queues one packet for the batch. The shader must
+ * read the model-view matrix of the instance as a mat4 at the location following the vertex
+ * attributes of the mesh, and its colour as a vec4 at the location after the matrix, as {@code
+ * environmental_hdr} does when {@code USE_INSTANCING} is defined. The projection matrix is left to
+ * the shader, so that it is not streamed per instance.
+ *
+ * <p>Only accessed by one thread at a time, as with {@link Scene}.
+ */
+public class InstanceBatch implements Closeable {
+  // The model-view matrix as four columns, then the colour.
+  private static final int[] ENTRIES_PER_ATTRIBUTE = {4, 4, 4, 4, 4};
+  private static final int INSTANCE_SIZE = 20;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Mesh mesh;
+  // Read by the scene and its nodes.
+  final Shader shader;
+  final int pass;
+  private final InstanceBuffer instanceBuffer;
+  // Staging for the instances of the frame, from the DirectBufferPool.
+  private ByteBuffer bytes;
+  private FloatBuffer instances;
+  private int capacity;
+  private int count;
+  private float nearestDepth;
+
+  // Whether the batch has instances queued by the scene this frame.
+  boolean active;
+
+  /**
+   * Constructs a batch drawing {@code mesh} with {@code shader} in the given {@link RenderQueue}
+   * pass. The mesh and shader are not closed along with the batch.
+   */
+  public InstanceBatch(SampleRender render, Mesh mesh, Shader shader, int pass) {
+    this.mesh = mesh;
+    this.shader = shader;
+    this.pass = pass;
+    // The instances are set once per frame, each frame into its own region.
+    instanceBuffer =
+        new InstanceBuffer(
+            render, mesh, ENTRIES_PER_ATTRIBUTE, RenderThread.MAX_FRAMES_IN_FLIGHT + 1);
+    grow(INITIAL_CAPACITY);
+  }
+
+  /** Returns the mesh drawn by the batch. */
+  public Mesh getMesh() {
+    return mesh;
+  }
+
+  /** Frees the instance buffer and its staging memory. */
+  @Override
+  public void close() {
+    instanceBuffer.close();
+    if (bytes != null) {
+      DirectBufferPool.release(bytes);
+      bytes = null;
+      instances = null;
+    }
+  }
+
+  /** Appends an instance, whose model-view matrix is at {@code depth} from the camera. */
+  /* package-private */
+  void add(float[] modelViewMatrix, float[] color, float depth) {
+    if (count == capacity) {
+      grow(capacity * 2);
+    }
+    instances.put(modelViewMatrix, 0, 16);
+    instances.put(color, 0, 4);
+    nearestDepth = count == 0 ? depth : Math.min(nearestDepth, depth);
+    count++;
+  }
+
+  /** Discards the instances appended since the last call to {@link #queue}. */
+  /* package-private */
+  void reset() {
+    instances.clear();
+    count = 0;
+  }
+
+  /** Uploads the instances appended since the last call, and queues their draw. */
+  /* package-private */
+  void queue(RenderQueue renderQueue, Framebuffer framebuffer) {
+    instances.flip();
+    instanceBuffer.set(instances);
+    instances.clear();
+    renderQueue
+        .add(mesh, shader, framebuffer, pass, nearestDepth)
+        .setInstances(instanceBuffer);
+    count = 0;
+  }
+
+  private void grow(int newCapacity) {
+    ByteBuffer newBytes = DirectBufferPool.acquire(newCapacity * INSTANCE_SIZE * Float.BYTES);
+    newBytes.limit(newBytes.capacity());
+    FloatBuffer newInstances = newBytes.asFloatBuffer();
+    if (instances != null) {
+      instances.flip();
+      newInstances.put(instances);
+      DirectBufferPool.release(bytes);
+    }
+    bytes = newBytes;
+    instances = newInstances;
+    capacity = newInstances.capacity() / INSTANCE_SIZE;
+  }
+}
@@ -15,13 +15,17 @@
  */
 package com.iboson.objectdetection.common.samplerender.arcore;
 
-import android.opengl.Matrix;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
 import com.google.ar.core.TrackingState;
+import com.iboson.objectdetection.common.math.Bounds;
+import com.iboson.objectdetection.common.math.Frustum;
+import com.iboson.objectdetection.common.math.Mat4;
+import com.iboson.objectdetection.common.samplerender.DirectBufferPool;
 import com.iboson.objectdetection.common.samplerender.IndexBuffer;
 import com.iboson.objectdetection.common.samplerender.Mesh;
+import com.iboson.objectdetection.common.samplerender.RenderThread;
 import com.iboson.objectdetection.common.samplerender.SampleRender;
 import com.iboson.objectdetection.common.samplerender.Shader;
 import com.iboson.objectdetection.common.samplerender.Shader.BlendFactor;
@@ -29,7 +33,6 @@ import com.iboson.objectdetection.common.samplerender.Texture;
 import com.iboson.objectdetection.common.samplerender.VertexBuffer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
@@ -66,6 +69,10 @@ public class PlaneRenderer {
           * INDICES_PER_BOUNDARY_VERT
           * INITIAL_BUFFER_BOUNDARY_VERTS;
 
+  // The buffers are set once per plane drawn. Enough regions for a few planes per frame over the
+  // frames in flight; drawing more orphans the buffers rather than stalling.
+  private static final int STREAMING_REGION_COUNT = 4 * (RenderThread.MAX_FRAMES_IN_FLIGHT + 1);
+
   private static final float FADE_RADIUS_M = 0.25f;
   private static final float DOTS_PER_METER = 10.0f;
   private static final float EQUILATERAL_TRIANGLE_SCALE = (float) (1 / Math.sqrt(3));
@@ -81,15 +88,16 @@ public class PlaneRenderer {
   private final IndexBuffer indexBufferObject;
   private final VertexBuffer vertexBufferObject;
   private final Shader shader;
+  private final Shader.UniformHandle modelUniform;
+  private final Shader.UniformHandle modelViewProjectionUniform;
+  private final Shader.UniformHandle planeUvMatrixUniform;
+  private final Shader.UniformHandle normalUniform;
 
-  private FloatBuffer vertexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_VERTEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asFloatBuffer();
-  private IntBuffer indexBuffer =
-      ByteBuffer.allocateDirect(INITIAL_INDEX_BUFFER_SIZE_BYTES)
-          .order(ByteOrder.nativeOrder())
-          .asIntBuffer();
+  // Pooled storage of vertexBuffer and indexBuffer, given back when they grow.
+  private ByteBuffer vertexBytes = DirectBufferPool.acquire(INITIAL_VERTEX_BUFFER_SIZE_BYTES);
+  private ByteBuffer indexBytes = DirectBufferPool.acquire(INITIAL_INDEX_BUFFER_SIZE_BYTES);
+  private FloatBuffer vertexBuffer = vertexBytes.asFloatBuffer();
+  private IntBuffer indexBuffer = indexBytes.asIntBuffer();
 
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
   private final float[] viewMatrix = new float[16];
@@ -99,6 +107,12 @@ public class PlaneRenderer {
   private final float[] planeAngleUvMatrix =
       new float[4]; // 2x2 rotation matrix applied to uv coords.
   private final float[] normalVector = new float[3];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] planeBoundingBox = new float[Bounds.BOX_SIZE];
+  private final Frustum frustum = new Frustum();
+
+  private int lastVisibleCount;
+  private int lastCulledCount;
 
   private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
 
@@ -108,9 +122,15 @@ public class PlaneRenderer {
    * SampleRender.Renderer#onSurfaceCreated}.
    */
   public PlaneRenderer(SampleRender render) throws IOException {
-    Texture texture =
+    this(
+        render,
         Texture.createFromAsset(
-            render, TEXTURE_NAME, Texture.WrapMode.REPEAT, Texture.ColorFormat.LINEAR);
+            render, TEXTURE_NAME, Texture.WrapMode.REPEAT, Texture.ColorFormat.LINEAR));
+  }
+
+  /** Constructs a plane renderer drawing the grid {@code texture}, which must repeat. */
+  /* package-private */
+  PlaneRenderer(SampleRender render, Texture texture) throws IOException {
     shader =
         Shader.createFromAssets(render, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, /*defines=*/ null)
             .setTexture("u_Texture", texture)
@@ -121,17 +141,20 @@ public class PlaneRenderer {
                 BlendFactor.ZERO, // ALPHA (src)
                 BlendFactor.ONE_MINUS_SRC_ALPHA) // ALPHA (dest)
             .setDepthWrite(false);
-
-    indexBufferObject = new IndexBuffer(render, /*entries=*/ null);
-    vertexBufferObject = new VertexBuffer(render, COORDS_PER_VERTEX, /*entries=*/ null);
+    modelUniform = shader.getUniformHandle("u_Model");
+    modelViewProjectionUniform = shader.getUniformHandle("u_ModelViewProjection");
+    planeUvMatrixUniform = shader.getUniformHandle("u_PlaneUvMatrix");
+    normalUniform = shader.getUniformHandle("u_Normal");
+
+    indexBufferObject = new IndexBuffer(render, /*entries=*/ null, STREAMING_REGION_COUNT);
+    vertexBufferObject =
+        new VertexBuffer(render, COORDS_PER_VERTEX, /*entries=*/ null, STREAMING_REGION_COUNT);
     VertexBuffer[] vertexBuffers = {vertexBufferObject};
     mesh = new Mesh(render, Mesh.PrimitiveMode.TRIANGLE_STRIP, indexBufferObject, vertexBuffers);
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /** Updates the plane vertices and indices from its extents and boundary polygon. */
+  private void updatePlaneParameters(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -151,28 +174,21 @@ public class PlaneRenderer {
     // drawn as GL_TRIANGLE_STRIP with 3n-2 triangles (n-2 for fill, 2n for perimeter).
     numIndices = boundaryVertices * INDICES_PER_BOUNDARY_VERT;
 
+    // The pool rounds sizes up to a power of two, so that buffers double as they grow.
     if (vertexBuffer.capacity() < numVertices * COORDS_PER_VERTEX) {
-      int size = vertexBuffer.capacity();
-      while (size < numVertices * COORDS_PER_VERTEX) {
-        size *= 2;
-      }
-      vertexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_FLOAT * size)
-              .order(ByteOrder.nativeOrder())
-              .asFloatBuffer();
+      DirectBufferPool.release(vertexBytes);
+      vertexBytes = DirectBufferPool.acquire(BYTES_PER_FLOAT * numVertices * COORDS_PER_VERTEX);
+      vertexBytes.limit(vertexBytes.capacity());
+      vertexBuffer = vertexBytes.asFloatBuffer();
     }
     vertexBuffer.rewind();
     vertexBuffer.limit(numVertices * COORDS_PER_VERTEX);
 
     if (indexBuffer.capacity() < numIndices) {
-      int size = indexBuffer.capacity();
-      while (size < numIndices) {
-        size *= 2;
-      }
-      indexBuffer =
-          ByteBuffer.allocateDirect(BYTES_PER_INT * size)
-              .order(ByteOrder.nativeOrder())
-              .asIntBuffer();
+      DirectBufferPool.release(indexBytes);
+      indexBytes = DirectBufferPool.acquire(BYTES_PER_INT * numIndices);
+      indexBytes.limit(indexBytes.capacity());
+      indexBuffer = indexBytes.asIntBuffer();
     }
     indexBuffer.rewind();
     indexBuffer.limit(numIndices);
@@ -224,21 +240,44 @@ public class PlaneRenderer {
    */
   public void drawPlanes(
       SampleRender render, Collection<Plane> allPlanes, Pose cameraPose, float[] cameraProjection) {
+    cameraPose.toMatrix(viewMatrix, 0);
+    Mat4.invertRigid(viewMatrix, 0, viewMatrix, 0);
+    Mat4.multiply(viewProjectionMatrix, 0, cameraProjection, 0, viewMatrix, 0);
+    frustum.set(viewProjectionMatrix, 0);
+
     // Planes must be sorted by distance from camera so that we draw closer planes first, and
     // they occlude the farther planes.
     List<SortablePlane> sortedPlanes = new ArrayList<>();
 
+    lastCulledCount = 0;
     for (Plane plane : allPlanes) {
       if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
+      Pose centerPose = plane.getCenterPose();
+      float distance = calculateDistanceToPlane(centerPose, cameraPose);
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
+      // Leave out planes whose extents are entirely off screen.
+      centerPose.toMatrix(modelMatrix, 0);
+      float halfExtentX = plane.getExtentX() * 0.5f;
+      float halfExtentZ = plane.getExtentZ() * 0.5f;
+      planeBoundingBox[0] = -halfExtentX;
+      planeBoundingBox[1] = 0f;
+      planeBoundingBox[2] = -halfExtentZ;
+      planeBoundingBox[3] = halfExtentX;
+      planeBoundingBox[4] = 0f;
+      planeBoundingBox[5] = halfExtentZ;
+      Bounds.transformBox(planeBoundingBox, modelMatrix, 0, planeBoundingBox);
+      if (!frustum.intersectsBox(planeBoundingBox)) {
+        lastCulledCount++;
+        continue;
+      }
       sortedPlanes.add(new SortablePlane(distance, plane));
     }
+    lastVisibleCount = sortedPlanes.size();
     Collections.sort(
         sortedPlanes,
         new Comparator<SortablePlane>() {
@@ -248,18 +287,15 @@ public class PlaneRenderer {
           }
         });
 
-    cameraPose.inverse().toMatrix(viewMatrix, 0);
-
     for (SortablePlane sortedPlane : sortedPlanes) {
       Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
+      Pose centerPose = plane.getCenterPose();
+      centerPose.toMatrix(modelMatrix, 0);
 
       // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normalVector, 0);
+      centerPose.getTransformedAxis(1, 1.0f, normalVector, 0);
 
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+      updatePlaneParameters(plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
 
       // Get plane index. Keep a map to assign same indices to same planes.
       Integer planeIndex = planeIndexMap.get(plane);
@@ -280,14 +316,14 @@ public class PlaneRenderer {
 
       // Build the ModelView and ModelViewProjection matrices
       // for calculating cube position and light.
-      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraProjection, 0, modelViewMatrix, 0);
+      Mat4.multiply(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+      Mat4.multiply(modelViewProjectionMatrix, 0, cameraProjection, 0, modelViewMatrix, 0);
 
       // Populate the shader uniforms for this frame.
-      shader.setMat4("u_Model", modelMatrix);
-      shader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      shader.setMat2("u_PlaneUvMatrix", planeAngleUvMatrix);
-      shader.setVec3("u_Normal", normalVector);
+      shader.setMat4(modelUniform, modelMatrix);
+      shader.setMat4(modelViewProjectionUniform, modelViewProjectionMatrix);
+      shader.setMat2(planeUvMatrixUniform, planeAngleUvMatrix);
+      shader.setVec3(normalUniform, normalVector);
 
       // Set the position of the plane
       vertexBufferObject.set(vertexBuffer);
@@ -297,6 +333,16 @@ public class PlaneRenderer {
     }
   }
 
+  /** Returns the number of planes drawn by the last {@link #drawPlanes}. */
+  public int getLastVisibleCount() {
+    return lastVisibleCount;
+  }
+
+  /** Returns the number of tracking planes culled as off screen by the last {@link #drawPlanes}. */
+  public int getLastCulledCount() {
+    return lastCulledCount;
+  }
+
   private static class SortablePlane {
     final float distance;
     final Plane plane;
@@ -310,15 +356,21 @@ public class PlaneRenderer {
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
-    float[] normal = new float[3];
     float cameraX = cameraPose.tx();
     float cameraY = cameraPose.ty();
     float cameraZ = cameraPose.tz();
-    // Get transformed Y axis of plane's coordinate system.
-    planePose.getTransformedAxis(1, 1.0f, normal, 0);
+    // Get transformed Y axis of plane's coordinate system, the second column of its rotation
+    // matrix, without allocating.
+    float qx = planePose.qx();
+    float qy = planePose.qy();
+    float qz = planePose.qz();
+    float qw = planePose.qw();
+    float normalX = 2f * (qx * qy - qw * qz);
+    float normalY = 1f - 2f * (qx * qx + qz * qz);
+    float normalZ = 2f * (qy * qz + qw * qx);
     // Compute dot product of plane's normal with vector from camera to plane center.
-    return (cameraX - planePose.tx()) * normal[0]
-        + (cameraY - planePose.ty()) * normal[1]
-        + (cameraZ - planePose.tz()) * normal[2];
+    return (cameraX - planePose.tx()) * normalX
+        + (cameraY - planePose.ty()) * normalY
+        + (cameraZ - planePose.tz()) * normalZ;
   }
 }
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender.arcore;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import com.iboson.objectdetection.common.math.Bounds;
+import com.iboson.objectdetection.common.math.Frustum;
+import com.iboson.objectdetection.common.math.Mat4;
+import com.iboson.objectdetection.common.samplerender.Framebuffer;
+import com.iboson.objectdetection.common.samplerender.Mesh;
+import com.iboson.objectdetection.common.samplerender.RenderQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A hierarchy of {@link SceneNode}s, some of which follow ARCore anchors, drawn through a {@link
+ * RenderQueue}.
+ *
+ * <p>Changes are tracked rather than recomputed every frame: {@link #update} polls the anchors,
+ * then computes the world matrix of the nodes that changed and of their descendants only, and
+ * {@link #draw} computes the model-view matrices of a node only when its world matrix or the camera
+ * changed. An anchor node is removed once its anchor stops tracking for good.
+ *
+ * <p>Nodes whose mesh {@link Mesh#hasBounds has bounds} are culled against the view frustum before
+ * anything is computed or queued for them, so that the cost of drawing the scene follows what is on
+ * screen. Nodes sharing an {@link InstanceBatch} are drawn together in a single instanced draw.
+ *
+ * <p>{@link #update} and {@link #prepareDraw} make no GL calls, and may run on a {@link
+ * com.iboson.objectdetection.common.samplerender.FrameTaskPool} worker while the GL thread does
+ * other work. The scene must only be accessed by one thread at a time, and {@link #draw} must be
+ * called on the GL thread.
+ */
+public class Scene {
+  private final ArrayList<SceneNode> roots = new ArrayList<>();
+  private final HashMap<Anchor, SceneNode> anchorNodes = new HashMap<>();
+  private final ArrayList<SceneNode> renderables = new ArrayList<>();
+  private final ArrayList<SceneNode> dirtyNodes = new ArrayList<>();
+  private final ArrayList<InstanceBatch> activeBatches = new ArrayList<>();
+
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private int cameraVersion;
+  private final float[] viewProjectionMatrix = new float[16];
+  private final Frustum frustum = new Frustum();
+  private final float[] pose = new float[7];
+
+  private int lastWorldUpdateCount;
+  private int lastModelViewUpdateCount;
+  private int lastVisibleCount;
+  private int lastCulledCount;
+  private int lastDrawCount;
+  // Whether prepareDraw ran since the last update.
+  private boolean prepared;
+
+  /** Creates a root node, whose transform is relative to the world. */
+  public SceneNode createNode() {
+    SceneNode node = new SceneNode(this, /* parent= */ null, /* anchor= */ null);
+    roots.add(node);
+    markWorldDirty(node);
+    return node;
+  }
+
+  /** Creates a node whose transform is relative to {@code parent}. */
+  public SceneNode createNode(SceneNode parent) {
+    if (parent.scene != this || parent.removed) {
+      throw new IllegalArgumentException("The parent does not belong to this scene");
+    }
+    SceneNode node = new SceneNode(this, parent, /* anchor= */ null);
+    parent.children.add(node);
+    markWorldDirty(node);
+    return node;
+  }
+
+  /**
+   * Creates a root node whose transform is relative to {@code anchor}. There may be at most one
+   * node per anchor.
+   */
+  public SceneNode createAnchorNode(Anchor anchor) {
+    if (anchorNodes.containsKey(anchor)) {
+      throw new IllegalArgumentException("The anchor already has a node");
+    }
+    SceneNode node = new SceneNode(this, /* parent= */ null, anchor);
+    roots.add(node);
+    anchorNodes.put(anchor, node);
+    readAnchorPose(node);
+    markWorldDirty(node);
+    return node;
+  }
+
+  /** Returns the node of {@code anchor}, or null if it has none. */
+  public SceneNode getAnchorNode(Anchor anchor) {
+    return anchorNodes.get(anchor);
+  }
+
+  /** Removes every node, after which the batches they used may be closed. */
+  public void clear() {
+    while (!roots.isEmpty()) {
+      remove(roots.get(roots.size() - 1));
+    }
+    resetBatches();
+    prepared = false;
+  }
+
+  /**
+   * Polls the anchors, brings the world matrices up to date, and culls the nodes outside of the
+   * view frustum. Must be called once per frame before {@link #draw}, with the camera matrices of
+   * the frame.
+   */
+  public void update(float[] viewMatrix, float[] projectionMatrix) {
+    if (!Arrays.equals(this.viewMatrix, viewMatrix)
+        || !Arrays.equals(this.projectionMatrix, projectionMatrix)) {
+      System.arraycopy(viewMatrix, 0, this.viewMatrix, 0, 16);
+      System.arraycopy(projectionMatrix, 0, this.projectionMatrix, 0, 16);
+      Mat4.multiply(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+      frustum.set(viewProjectionMatrix, 0);
+      cameraVersion++;
+    }
+
+    for (int i = roots.size() - 1; i >= 0; --i) {
+      SceneNode root = roots.get(i);
+      if (root.anchor == null) {
+        continue;
+      }
+      if (root.anchor.getTrackingState() == TrackingState.STOPPED) {
+        remove(root);
+      } else if (readAnchorPose(root)) {
+        markWorldDirty(root);
+      }
+    }
+
+    lastWorldUpdateCount = 0;
+    for (int i = 0; i < dirtyNodes.size(); ++i) {
+      SceneNode node = dirtyNodes.get(i);
+      if (node.removed || !node.worldDirty) {
+        // Removed, or already updated along with a dirty ancestor.
+        continue;
+      }
+      while (node.parent != null && node.parent.worldDirty) {
+        node = node.parent;
+      }
+      updateWorld(node);
+    }
+    dirtyNodes.clear();
+
+    lastVisibleCount = 0;
+    lastCulledCount = 0;
+    for (int i = 0; i < renderables.size(); ++i) {
+      SceneNode node = renderables.get(i);
+      // The sphere test is cheaper and rejects most, the box test is tighter for elongated meshes.
+      node.visible =
+          node.tracking
+              && (!node.mesh.hasBounds()
+                  || (frustum.intersectsSphere(node.worldBoundingSphere)
+                      && frustum.intersectsBox(node.worldBoundingBox)));
+      if (node.visible) {
+        lastVisibleCount++;
+      } else if (node.tracking) {
+        lastCulledCount++;
+      }
+    }
+    prepared = false;
+  }
+
+  /**
+   * Computes the model-view matrices of the nodes found visible by the last {@link #update}, and
+   * stages the instances of their batches. Called by {@link #draw} if not called since the last
+   * {@link #update}; calling it earlier takes this work off the GL thread.
+   */
+  public void prepareDraw() {
+    // Drop the instances staged by a frame whose draw was skipped.
+    resetBatches();
+
+    lastModelViewUpdateCount = 0;
+    for (int i = 0; i < renderables.size(); ++i) {
+      SceneNode node = renderables.get(i);
+      if (!node.visible) {
+        continue;
+      }
+      if (node.modelViewWorldVersion != node.worldVersion
+          || node.modelViewCameraVersion != cameraVersion) {
+        Mat4.multiply(node.modelViewMatrix, 0, viewMatrix, 0, node.worldMatrix, 0);
+        // Instanced shaders apply the projection themselves.
+        if (node.batch == null) {
+          Mat4.multiply(
+              node.modelViewProjectionMatrix, 0, projectionMatrix, 0, node.modelViewMatrix, 0);
+        }
+        node.modelViewWorldVersion = node.worldVersion;
+        node.modelViewCameraVersion = cameraVersion;
+        lastModelViewUpdateCount++;
+      }
+      if (node.batch != null) {
+        if (!node.batch.active) {
+          node.batch.active = true;
+          activeBatches.add(node.batch);
+        }
+        node.batch.add(node.modelViewMatrix, node.color, -node.modelViewMatrix[14]);
+      }
+    }
+    prepared = true;
+  }
+
+  /**
+   * Queues a draw of every node with a mesh that is tracking and not culled, to {@code
+   * framebuffer}, or to the default framebuffer if null. Draws are ordered front to back within
+   * their pass, batches by their nearest instance.
+   */
+  public void draw(RenderQueue renderQueue, Framebuffer framebuffer) {
+    if (!prepared) {
+      prepareDraw();
+    }
+    prepared = false;
+    lastDrawCount = 0;
+    for (int i = 0; i < renderables.size(); ++i) {
+      SceneNode node = renderables.get(i);
+      if (!node.visible || node.batch != null) {
+        continue;
+      }
+      lastDrawCount++;
+      RenderQueue.Packet packet =
+          renderQueue.add(
+              node.mesh,
+              node.shader,
+              framebuffer,
+              node.pass,
+              /* depth= */ -node.modelViewMatrix[14]);
+      if (node.modelViewUniform != null) {
+        packet.setMat4(node.modelViewUniform, node.modelViewMatrix);
+      }
+      if (node.modelViewProjectionUniform != null) {
+        packet.setMat4(node.modelViewProjectionUniform, node.modelViewProjectionMatrix);
+      }
+    }
+    for (int i = 0; i < activeBatches.size(); ++i) {
+      InstanceBatch batch = activeBatches.get(i);
+      batch.queue(renderQueue, framebuffer);
+      batch.active = false;
+      lastDrawCount++;
+    }
+    activeBatches.clear();
+  }
+
+  /** Returns whether {@link #draw} has anything to draw, as of the last {@link #update}. */
+  public boolean hasVisibleRenderables() {
+    return lastVisibleCount > 0;
+  }
+
+  /** Returns the number of world matrices computed by the last {@link #update}. */
+  public int getLastWorldUpdateCount() {
+    return lastWorldUpdateCount;
+  }
+
+  /** Returns the number of model-view matrices computed by the last {@link #prepareDraw}. */
+  public int getLastModelViewUpdateCount() {
+    return lastModelViewUpdateCount;
+  }
+
+  /** Returns the number of nodes found visible by the last {@link #update}, and drawn. */
+  public int getLastVisibleCount() {
+    return lastVisibleCount;
+  }
+
+  /**
+   * Returns the number of draws queued by the last {@link #draw}, counting each batch as a single
+   * draw.
+   */
+  public int getLastDrawCount() {
+    return lastDrawCount;
+  }
+
+  /** Returns the number of tracking nodes culled by the last {@link #update}. */
+  public int getLastCulledCount() {
+    return lastCulledCount;
+  }
+
+  /* package-private */
+  void markWorldDirty(SceneNode node) {
+    if (!node.worldDirty) {
+      node.worldDirty = true;
+      dirtyNodes.add(node);
+    }
+  }
+
+  /* package-private */
+  void addRenderable(SceneNode node) {
+    renderables.add(node);
+  }
+
+  /* package-private */
+  void remove(SceneNode node) {
+    if (node.parent != null) {
+      node.parent.children.remove(node);
+      node.parent = null;
+    } else {
+      roots.remove(node);
+    }
+    markRemoved(node);
+  }
+
+  private void resetBatches() {
+    for (int i = 0; i < activeBatches.size(); ++i) {
+      InstanceBatch batch = activeBatches.get(i);
+      batch.reset();
+      batch.active = false;
+    }
+    activeBatches.clear();
+  }
+
+  private void markRemoved(SceneNode node) {
+    node.removed = true;
+    if (node.anchor != null) {
+      anchorNodes.remove(node.anchor);
+    }
+    if (node.mesh != null) {
+      renderables.remove(node);
+    }
+    for (int i = 0; i < node.children.size(); ++i) {
+      markRemoved(node.children.get(i));
+    }
+  }
+
+  /**
+   * Reads the tracking state and pose of the anchor of {@code node}, and returns whether either
+   * changed since the last call.
+   */
+  private boolean readAnchorPose(SceneNode node) {
+    boolean tracking = node.anchor.getTrackingState() == TrackingState.TRACKING;
+    boolean changed = tracking != node.anchorTracking;
+    node.anchorTracking = tracking;
+    if (tracking) {
+      Pose anchorPose = node.anchor.getPose();
+      anchorPose.getTranslation(pose, 0);
+      anchorPose.getRotationQuaternion(pose, 3);
+      if (!Arrays.equals(pose, node.anchorPose)) {
+        System.arraycopy(pose, 0, node.anchorPose, 0, pose.length);
+        Mat4.setPose(
+            node.anchorMatrix, 0, pose[0], pose[1], pose[2], pose[3], pose[4], pose[5], pose[6]);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /** Computes the world matrix of {@code node} and of its descendants. */
+  private void updateWorld(SceneNode node) {
+    SceneNode parent = node.parent;
+    if (parent != null) {
+      node.tracking = parent.tracking;
+      Mat4.multiply(node.worldMatrix, 0, parent.worldMatrix, 0, node.localMatrix, 0);
+    } else if (node.anchor != null) {
+      node.tracking = node.anchorTracking;
+      Mat4.multiply(node.worldMatrix, 0, node.anchorMatrix, 0, node.localMatrix, 0);
+    } else {
+      node.tracking = true;
+      System.arraycopy(node.localMatrix, 0, node.worldMatrix, 0, 16);
+    }
+    if (node.mesh != null && node.mesh.hasBounds()) {
+      Bounds.transformBox(node.worldBoundingBox, node.worldMatrix, 0, node.mesh.getBoundingBox());
+      Bounds.transformSphere(
+          node.worldBoundingSphere, node.worldMatrix, 0, node.mesh.getBoundingSphere());
+    }
+    node.worldDirty = false;
+    node.worldVersion++;
+    lastWorldUpdateCount++;
+    for (int i = 0; i < node.children.size(); ++i) {
+      updateWorld(node.children.get(i));
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender.arcore;
+
+import com.google.ar.core.Anchor;
+import com.iboson.objectdetection.common.math.Bounds;
+import com.iboson.objectdetection.common.math.Mat4;
+import com.iboson.objectdetection.common.samplerender.Mesh;
+import com.iboson.objectdetection.common.samplerender.Shader;
+import java.util.ArrayList;
+
+/**
+ * A node of a {@link Scene}, with a transform relative to its parent, or to its anchor for the
+ * root nodes created by {@link Scene#createAnchorNode}, and optionally a mesh to draw.
+ *
+ * <p>The world matrix of a node is cached, and only computed again during {@link Scene#update}
+ * after its local transform, an ancestor, or its anchor changed. The model-view and
+ * model-view-projection matrices of a drawn node are likewise only computed again when its world
+ * matrix or the camera changed, and not at all while it is culled.
+ *
+ * <p>Only accessed by one thread at a time, as with {@link Scene}.
+ */
+public class SceneNode {
+  // Maintained by the scene.
+  final Scene scene;
+  final Anchor anchor;
+  SceneNode parent;
+  final ArrayList<SceneNode> children = new ArrayList<>();
+  boolean removed;
+
+  final float[] localMatrix = new float[16];
+  final float[] worldMatrix = new float[16];
+  // The pose of the anchor as of the last update as a translation and a quaternion, and as a
+  // matrix, for anchor nodes only.
+  final float[] anchorPose;
+  final float[] anchorMatrix;
+  boolean anchorTracking;
+  // Whether the anchor of the root of the node is tracking. False until the first update.
+  boolean tracking;
+  boolean worldDirty;
+  int worldVersion;
+
+  Mesh mesh;
+  Shader shader;
+  int pass;
+  Shader.UniformHandle modelViewUniform;
+  Shader.UniformHandle modelViewProjectionUniform;
+  // The batch the node is drawn with, if instanced.
+  InstanceBatch batch;
+  final float[] color = {1f, 1f, 1f, 1f};
+  // The bounds of the mesh in world space, if known.
+  final float[] worldBoundingBox = new float[Bounds.BOX_SIZE];
+  final float[] worldBoundingSphere = new float[Bounds.SPHERE_SIZE];
+  // Whether the node is tracking and in the view frustum, as of the last update.
+  boolean visible;
+  final float[] modelViewMatrix = new float[16];
+  final float[] modelViewProjectionMatrix = new float[16];
+  // The versions the model-view matrices were computed from, -1 if never.
+  int modelViewWorldVersion = -1;
+  int modelViewCameraVersion = -1;
+
+  /* package-private */
+  SceneNode(Scene scene, SceneNode parent, Anchor anchor) {
+    this.scene = scene;
+    this.parent = parent;
+    this.anchor = anchor;
+    anchorPose = anchor == null ? null : new float[7];
+    anchorMatrix = anchor == null ? null : new float[16];
+    Mat4.setIdentity(localMatrix, 0);
+  }
+
+  /** Returns the anchor of the node, or null if it is not an anchor node. */
+  public Anchor getAnchor() {
+    return anchor;
+  }
+
+  /** Returns the parent of the node, or null for root nodes. */
+  public SceneNode getParent() {
+    return parent;
+  }
+
+  /**
+   * Sets the transform of the node relative to its parent, or to its anchor or the world for root
+   * nodes. The 16 floats at {@code offset} are copied.
+   */
+  public SceneNode setLocalTransform(float[] matrix, int offset) {
+    System.arraycopy(matrix, offset, localMatrix, 0, 16);
+    scene.markWorldDirty(this);
+    return this;
+  }
+
+  /**
+   * Makes the node draw {@code mesh} with {@code shader} in the given {@link
+   * com.iboson.objectdetection.common.samplerender.RenderQueue} pass, setting its model-view and
+   * model-view-projection matrices to the given uniforms, which may be null if unused.
+   */
+  public SceneNode setRenderable(
+      Mesh mesh,
+      Shader shader,
+      int pass,
+      Shader.UniformHandle modelViewUniform,
+      Shader.UniformHandle modelViewProjectionUniform) {
+    if (this.mesh == null) {
+      scene.addRenderable(this);
+    }
+    this.mesh = mesh;
+    this.shader = shader;
+    this.pass = pass;
+    this.modelViewUniform = modelViewUniform;
+    this.modelViewProjectionUniform = modelViewProjectionUniform;
+    this.batch = null;
+    // The world bounds depend on the mesh.
+    scene.markWorldDirty(this);
+    return this;
+  }
+
+  /**
+   * Makes the node draw as an instance of {@code batch}, in a single draw along with the other
+   * visible nodes of the batch.
+   */
+  public SceneNode setRenderable(InstanceBatch batch) {
+    setRenderable(
+        batch.getMesh(),
+        batch.shader,
+        batch.pass,
+        /* modelViewUniform= */ null,
+        /* modelViewProjectionUniform= */ null);
+    this.batch = batch;
+    return this;
+  }
+
+  /**
+   * Sets the colour the albedo of the node is multiplied with. Only applies to nodes drawn with an
+   * {@link InstanceBatch}; defaults to opaque white.
+   */
+  public SceneNode setColor(float r, float g, float b, float a) {
+    color[0] = r;
+    color[1] = g;
+    color[2] = b;
+    color[3] = a;
+    return this;
+  }
+
+  /**
+   * Returns the world matrix of the node as of the last {@link Scene#update}. The array must not
+   * be modified.
+   */
+  public float[] getWorldMatrix() {
+    return worldMatrix;
+  }
+
+  /**
+   * Returns whether the anchor of the root of the node is tracking, or true if there is none, as of
+   * the last {@link Scene#update}.
+   */
+  public boolean isTracking() {
+    return tracking;
+  }
+
+  /**
+   * Removes the node and its descendants from the scene. The anchor of an anchor node is not
+   * detached.
+   */
+  public void remove() {
+    if (!removed) {
+      scene.remove(this);
+    }
+  }
+}
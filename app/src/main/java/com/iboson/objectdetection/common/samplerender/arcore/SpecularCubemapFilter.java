@@ -22,7 +22,9 @@ import android.media.Image;
 import android.opengl.GLES30;
 import android.util.Log;
 import com.google.ar.core.ImageFormat;
+import com.iboson.objectdetection.common.samplerender.GL;
 import com.iboson.objectdetection.common.samplerender.GLError;
+import com.iboson.objectdetection.common.samplerender.GLState;
 import com.iboson.objectdetection.common.samplerender.Mesh;
 import com.iboson.objectdetection.common.samplerender.SampleRender;
 import com.iboson.objectdetection.common.samplerender.Shader;
@@ -149,6 +151,9 @@ public class SpecularCubemapFilter implements Closeable {
   private final int numberOfImportanceSamples;
   private final int numberOfMipmapLevels;
 
+  private final GL gl;
+  private final GLState glState;
+
   private final Texture radianceCubemap;
   private final Texture ldCubemap;
   // Indexed by attachment chunk.
@@ -176,6 +181,8 @@ public class SpecularCubemapFilter implements Closeable {
     this.resolution = resolution;
     this.numberOfImportanceSamples = numberOfImportanceSamples;
     this.numberOfMipmapLevels = log2(resolution) + 1;
+    this.gl = render.getGl();
+    this.glState = render.getGlState();
 
     try {
       radianceCubemap =
@@ -183,7 +190,13 @@ public class SpecularCubemapFilter implements Closeable {
       ldCubemap =
           new Texture(render, Texture.Target.TEXTURE_CUBE_MAP, Texture.WrapMode.CLAMP_TO_EDGE);
 
-      ChunkIterable chunks = new ChunkIterable(getMaxColorAttachments());
+      // Both cubemaps have a full mipmap chain of half-float faces. Drivers typically pad the RGB
+      // faces of the filtered cubemap to RGBA.
+      long cubemapByteCount = 8L * NUMBER_OF_CUBE_FACES * resolution * resolution * 4 / 3;
+      radianceCubemap.setEstimatedByteCount(cubemapByteCount);
+      ldCubemap.setEstimatedByteCount(cubemapByteCount);
+
+      ChunkIterable chunks = new ChunkIterable(getMaxColorAttachments(gl));
       initializeLdCubemap();
       shaders = createShaders(render, chunks);
       framebuffers = createFramebuffers(chunks);
@@ -206,9 +219,12 @@ public class SpecularCubemapFilter implements Closeable {
   public void close() {
     if (framebuffers != null) {
       for (int[] framebufferChunks : framebuffers) {
-        GLES30.glDeleteFramebuffers(framebufferChunks.length, framebufferChunks, 0);
+        gl.glDeleteFramebuffers(framebufferChunks.length, framebufferChunks, 0);
         GLError.maybeLogGLError(
             Log.WARN, TAG, "Failed to free framebuffers", "glDeleteFramebuffers");
+        for (int framebuffer : framebufferChunks) {
+          glState.onFramebufferDeleted(framebuffer);
+        }
       }
     }
     if (radianceCubemap != null) {
@@ -222,6 +238,9 @@ public class SpecularCubemapFilter implements Closeable {
         shader.close();
       }
     }
+    if (mesh != null) {
+      mesh.close();
+    }
   }
 
   /**
@@ -235,8 +254,7 @@ public class SpecularCubemapFilter implements Closeable {
    */
   public void update(Image[] images) {
     try {
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, radianceCubemap.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind radiance cubemap texture", "glBindTexture");
+      glState.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP, radianceCubemap.getTextureId());
 
       if (images.length != NUMBER_OF_CUBE_FACES) {
         throw new IllegalArgumentException(
@@ -262,7 +280,7 @@ public class SpecularCubemapFilter implements Closeable {
                   + ").");
         }
 
-        GLES30.glTexImage2D(
+        gl.glTexImage2D(
             GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X + i,
             /*level=*/ 0,
             GLES30.GL_RGBA16F,
@@ -275,18 +293,16 @@ public class SpecularCubemapFilter implements Closeable {
         GLError.maybeThrowGLException("Failed to populate cubemap face", "glTexImage2D");
       }
 
-      GLES30.glGenerateMipmap(GLES30.GL_TEXTURE_CUBE_MAP);
+      gl.glGenerateMipmap(GLES30.GL_TEXTURE_CUBE_MAP);
       GLError.maybeThrowGLException("Failed to generate cubemap mipmaps", "glGenerateMipmap");
 
       // Do the filtering operation, filling the mipmaps of ldTexture with the roughness filtered
       // cubemap.
       for (int level = 0; level < numberOfMipmapLevels; ++level) {
         int mipmapResolution = resolution >> level;
-        GLES30.glViewport(0, 0, mipmapResolution, mipmapResolution);
-        GLError.maybeThrowGLException("Failed to set viewport dimensions", "glViewport");
+        glState.viewport(0, 0, mipmapResolution, mipmapResolution);
         for (int chunkIndex = 0; chunkIndex < shaders.length; ++chunkIndex) {
-          GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebuffers[level][chunkIndex]);
-          GLError.maybeThrowGLException("Failed to bind cubemap framebuffer", "glBindFramebuffer");
+          glState.bindFramebuffer(framebuffers[level][chunkIndex]);
           shaders[chunkIndex].setInt("u_RoughnessLevel", level);
           shaders[chunkIndex].lowLevelUse();
           mesh.lowLevelDraw();
@@ -314,12 +330,11 @@ public class SpecularCubemapFilter implements Closeable {
 
   private void initializeLdCubemap() {
     // Initialize mipmap levels of LD cubemap.
-    GLES30.glBindTexture(GLES30.GL_TEXTURE_CUBE_MAP, ldCubemap.getTextureId());
-    GLError.maybeThrowGLException("Could not bind LD cubemap texture", "glBindTexture");
+    glState.bindTexture(GLES30.GL_TEXTURE_CUBE_MAP, ldCubemap.getTextureId());
     for (int level = 0; level < numberOfMipmapLevels; ++level) {
       int mipmapResolution = resolution >> level;
       for (int face = 0; face < NUMBER_OF_CUBE_FACES; ++face) {
-        GLES30.glTexImage2D(
+        gl.glTexImage2D(
             GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face,
             level,
             GLES30.GL_RGB16F,
@@ -383,18 +398,17 @@ public class SpecularCubemapFilter implements Closeable {
     int[][] framebuffers = new int[numberOfMipmapLevels][];
     for (int level = 0; level < numberOfMipmapLevels; ++level) {
       int[] framebufferChunks = new int[chunks.numberOfChunks];
-      GLES30.glGenFramebuffers(framebufferChunks.length, framebufferChunks, 0);
+      gl.glGenFramebuffers(framebufferChunks.length, framebufferChunks, 0);
       GLError.maybeThrowGLException("Could not create cubemap framebuffers", "glGenFramebuffers");
       for (Chunk chunk : chunks) {
         // Set the drawbuffers
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, framebufferChunks[chunk.chunkIndex]);
-        GLError.maybeThrowGLException("Could not bind framebuffer", "glBindFramebuffer");
-        GLES30.glDrawBuffers(chunk.chunkSize, ATTACHMENT_ENUMS, 0);
+        glState.bindFramebuffer(framebufferChunks[chunk.chunkIndex]);
+        gl.glDrawBuffers(chunk.chunkSize, ATTACHMENT_ENUMS, 0);
         GLError.maybeThrowGLException("Could not bind draw buffers", "glDrawBuffers");
         // Since GLES doesn't support glFramebufferTexture, we will use each cubemap face as a
         // different color attachment.
         for (int attachment = 0; attachment < chunk.chunkSize; ++attachment) {
-          GLES30.glFramebufferTexture2D(
+          gl.glFramebufferTexture2D(
               GLES30.GL_FRAMEBUFFER,
               GLES30.GL_COLOR_ATTACHMENT0 + attachment,
               GLES30.GL_TEXTURE_CUBE_MAP_POSITIVE_X + chunk.firstFaceIndex + attachment,
@@ -457,9 +471,9 @@ public class SpecularCubemapFilter implements Closeable {
     return result;
   }
 
-  private static int getMaxColorAttachments() {
+  private static int getMaxColorAttachments(GL gl) {
     int[] result = new int[1];
-    GLES30.glGetIntegerv(GLES30.GL_MAX_COLOR_ATTACHMENTS, result, 0);
+    gl.glGetIntegerv(GLES30.GL_MAX_COLOR_ATTACHMENTS, result, 0);
     GLError.maybeThrowGLException("Failed to get max color attachments", "glGetIntegerv");
     return result[0];
   }
@@ -21,15 +21,15 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.media.Image;
 import android.net.Uri;
 import android.opengl.GLES30;
-import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.view.SurfaceView;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -54,17 +54,35 @@ import com.google.ar.core.TrackingState;
 import com.iboson.objectdetection.common.helpers.CameraPermissionHelper;
 import com.iboson.objectdetection.common.helpers.DepthSettings;
 import com.iboson.objectdetection.common.helpers.DisplayRotationHelper;
+import com.iboson.objectdetection.common.helpers.FramePacingHelper;
 import com.iboson.objectdetection.common.helpers.FullScreenHelper;
 import com.iboson.objectdetection.common.helpers.SnackbarHelper;
 import com.iboson.objectdetection.common.helpers.TrackingStateHelper;
+import com.iboson.objectdetection.common.math.Mat4;
+import com.iboson.objectdetection.common.math.Quaternion;
+import com.iboson.objectdetection.common.samplerender.AndroidGL;
+import com.iboson.objectdetection.common.samplerender.AssetCache;
+import com.iboson.objectdetection.common.samplerender.CpuProfiler;
+import com.iboson.objectdetection.common.samplerender.DirectBufferPool;
+import com.iboson.objectdetection.common.samplerender.DynamicResolution;
+import com.iboson.objectdetection.common.samplerender.FrameBudget;
+import com.iboson.objectdetection.common.samplerender.FrameTaskPool;
 import com.iboson.objectdetection.common.samplerender.Framebuffer;
 import com.iboson.objectdetection.common.samplerender.GLError;
+import com.iboson.objectdetection.common.samplerender.GpuProfiler;
 import com.iboson.objectdetection.common.samplerender.Mesh;
+import com.iboson.objectdetection.common.samplerender.RecordingGL;
+import com.iboson.objectdetection.common.samplerender.RenderGraph;
+import com.iboson.objectdetection.common.samplerender.RenderQueue;
+import com.iboson.objectdetection.common.samplerender.RenderThread;
 import com.iboson.objectdetection.common.samplerender.SampleRender;
 import com.iboson.objectdetection.common.samplerender.Shader;
 import com.iboson.objectdetection.common.samplerender.Texture;
 import com.iboson.objectdetection.common.samplerender.VertexBuffer;
 import com.iboson.objectdetection.common.samplerender.arcore.BackgroundRenderer;
+import com.iboson.objectdetection.common.samplerender.arcore.FrameUniforms;
+import com.iboson.objectdetection.common.samplerender.arcore.InstanceBatch;
+import com.iboson.objectdetection.common.samplerender.arcore.Scene;
 import com.iboson.objectdetection.common.samplerender.arcore.SpecularCubemapFilter;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.NotYetAvailableException;
@@ -75,14 +93,18 @@ import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
 import com.ibosoninnov.objectanchorsdk.ObjectAnchor;
 import com.ibosoninnov.objectanchorsdk.ObjectAnchorEvents;
-import com.ibosoninnov.objectanchorsdk.QuaternionUtil;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -118,19 +140,61 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   private static final float Z_NEAR = 0.1f;
   private static final float Z_FAR = 100f;
 
+  // The point cloud is set at most once per frame, so one region per frame in flight plus the one
+  // being written never stalls.
+  private static final int POINT_CLOUD_STREAMING_REGION_COUNT =
+      RenderThread.MAX_FRAMES_IN_FLIGHT + 1;
+
   private static final int CUBEMAP_RESOLUTION = 16;
   private static final int CUBEMAP_NUMBER_OF_IMPORTANCE_SAMPLES = 32;
 
+  // Render queue passes. The point cloud goes to the screen before the virtual objects.
+  private static final int POINT_CLOUD_PASS = 0;
+  private static final int VIRTUAL_OBJECT_PASS = 1;
+
+  // Bounds of the virtual scene render scale, and target GPU time of the virtual scene and its
+  // composite. The target leaves room within a 10 ms GPU frame, itself leaving room for the system
+  // compositor at 60 Hz, for the background, cubemap filter and other passes that do not scale.
+  private static final float MIN_VIRTUAL_SCENE_SCALE = 0.5f;
+  private static final float MAX_VIRTUAL_SCENE_SCALE = 1f;
+  private static final long TARGET_VIRTUAL_SCENE_GPU_TIME_NANOS = 6_000_000L;
+
+  // The estimated GPU memory of unused assets kept around in case they are needed again.
+  private static final long ASSET_CACHE_BUDGET_BYTES = 32L << 20;
+
+  // How often the GPU time of each pass is logged in debuggable builds.
+  private static final int GPU_PROFILE_LOG_INTERVAL_FRAMES = 300;
+
+  // The tasks submitted to the frame workers every frame: the frame uniforms, and the scene.
+  private static final int FRAME_TASK_COUNT = 2;
+
+  // Per-frame GL work budget checked in debuggable builds. Only the first frames, which set every
+  // uniform for the first time, are expected to allocate uniform storage.
+  private static final FrameBudget FRAME_BUDGET =
+      new FrameBudget()
+          .setMaxCallCount(RecordingGL.Category.DRAW, 64)
+          .setMaxCallCount(RecordingGL.Category.STATE, 512)
+          .setMaxCallCount(RecordingGL.Category.UNIFORM, 256)
+          .setMaxUploadedByteCount(1 << 20)
+          .setMaxUniformAllocationCount(0);
+  private static final int FRAME_BUDGET_WARMUP_FRAMES = 10;
+  private static final int FRAME_BUDGET_LOG_INTERVAL_FRAMES = 60;
+
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
-  private GLSurfaceView surfaceView;
+  private SurfaceView surfaceView;
 
   private boolean installRequested;
 
   private Session session;
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
   private DisplayRotationHelper displayRotationHelper;
+  private FramePacingHelper framePacingHelper;
   private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
   private SampleRender render;
+  // Only set in debuggable builds, to check each frame against FRAME_BUDGET.
+  private RecordingGL recordingGl;
+  private int frameBudgetFrameCount = 0;
+  private int frameBudgetLastLoggedFrame = -FRAME_BUDGET_LOG_INTERVAL_FRAMES;
 
   private BackgroundRenderer backgroundRenderer;
   private Framebuffer virtualSceneFramebuffer;
@@ -146,26 +210,69 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   // was not changed.  Do this using the timestamp since we can't compare PointCloud objects.
   private long lastPointCloudTimestamp = 0;
 
-  // Virtual object (ARCore pawn)
-  private Mesh virtualObjectMesh;
-  private Shader virtualObjectShader;
-  private Texture virtualObjectAlbedoTexture;
-  private Texture virtualObjectAlbedoInstantPlacementTexture;
+  // Assets loaded on first use. Created along with the surface, and trimmed from the UI thread.
+  private volatile AssetCache assetCache;
 
+  // Virtual object (ARCore pawn)
+  private AssetCache.Handle<Mesh> virtualObjectMesh;
+  private AssetCache.Handle<Shader> virtualObjectShader;
+  // Draws the virtual object at every visible anchor at once
+  private InstanceBatch virtualObjectBatch;
+  private AssetCache.Handle<Texture> virtualObjectAlbedoTexture;
+  private AssetCache.Handle<Texture> virtualObjectPbrTexture;
+  // Set when loading the virtual object failed, so that it is not retried every frame. Cleared with
+  // a new surface, and from the UI thread when memory is trimmed, which may have been the cause.
+  private volatile boolean virtualObjectLoadFailed;
+
+  // Guarded by itself, since anchors are detected on the UI thread.
   private final List<Anchor> detectedAnchors = new ArrayList<>();
+  // The detected anchors as of the current frame, only accessed on the GL thread.
+  private final List<Anchor> frameAnchors = new ArrayList<>();
+  // Nodes drawing the virtual object at each detected anchor
+  private final Scene scene = new Scene();
 
   // Environmental HDR
   private Texture dfgTexture;
   private SpecularCubemapFilter cubemapFilter;
 
+  // Camera matrices and light estimate, shared by every shader
+  private FrameUniforms frameUniforms;
+
+  // Compute the frame uniforms and update the scene from the inputs of each frame on worker
+  // threads, while the GL thread streams the camera images and points of the frame.
+  private FrameTaskPool frameTaskPool;
+  private final Runnable updateFrameUniformsTask = this::updateFrameUniforms;
+  private final Runnable updateSceneTask = this::updateScene;
+
+  // Draws of the point cloud and virtual objects, sorted by pass, framebuffer and material
+  private RenderQueue renderQueue;
+
+  // Passes of a frame, and the per-frame state deciding which of them have work
+  private RenderGraph renderGraph;
+  private RenderGraph.Pass virtualSceneCompositePass;
+  private boolean hasCameraImage;
+  private boolean isCameraTracking;
+  private boolean hasVisibleAnchor;
+  private LightEstimate lightEstimate;
+
+  // GPU time of each render pass, and the virtual scene render scale chosen from the time of the
+  // passes it affects
+  private GpuProfiler gpuProfiler;
+  private int virtualSceneGpuScope;
+  private int virtualSceneCompositeGpuScope;
+  private int gpuProfileFrameCount = 0;
+  private final DynamicResolution virtualSceneResolution =
+      new DynamicResolution(
+          MIN_VIRTUAL_SCENE_SCALE, MAX_VIRTUAL_SCENE_SCALE, TARGET_VIRTUAL_SCENE_GPU_TIME_NANOS);
+
+  // Statistics overlay, toggled by tapping the status text
+  private final PerformanceHud performanceHud = new PerformanceHud();
+  private int pointCount;
+
   // Temporary matrix allocated here to reduce number of allocations for each frame.
-  private final float[] modelMatrix = new float[16];
   private final float[] viewMatrix = new float[16];
   private final float[] projectionMatrix = new float[16];
-  private final float[] modelViewMatrix = new float[16]; // view x model
-  private final float[] modelViewProjectionMatrix = new float[16]; // projection x view x model
   private final float[] sphericalHarmonicsCoefficients = new float[9 * 3];
-  private final float[] viewInverseMatrix = new float[16];
   private final float[] worldLightDirection = {0.0f, 0.0f, 0.0f, 0.0f};
   private final float[] viewLightDirection = new float[4]; // view x world light direction
 
@@ -193,28 +300,65 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     scanButton.setOnClickListener(view -> {
       if(objectAnchor != null) {
         scanButton.setEnabled(false);
+        CpuProfiler.instant("scan started");
+        performanceHud.onScanStarted();
         objectAnchor.StartScan();
+        framePacingHelper.setScanning(true);
         statusText.setText("Scanning...");
       }
     });
 
+    statusText.setOnClickListener(view -> performanceHud.toggleVisible());
+    // Long pressing the status exports the recorded CPU timings, to be opened in Perfetto.
+    statusText.setOnLongClickListener(view -> {
+      exportCpuTrace();
+      return true;
+    });
+
     displayRotationHelper = new DisplayRotationHelper(/* context= */ this);
 
     // Set up renderer.
-    render = new SampleRender(surfaceView, this, getAssets());
+    // Checking every GL call for errors stalls the driver; only do so in debuggable builds.
+    boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    if (debuggable) {
+      recordingGl = new RecordingGL(new AndroidGL());
+      render = new SampleRender(surfaceView, recordingGl, this, getAssets());
+    } else {
+      render = new SampleRender(surfaceView, this, getAssets());
+    }
+    render.setGlErrorCheckPolicy(
+        debuggable ? GLError.CheckPolicy.FULL : GLError.CheckPolicy.PER_FRAME);
+    render.getResourceRegistry().setRecordAllocationSites(debuggable);
+    framePacingHelper = new FramePacingHelper(render, this::runOnUiThread);
+    frameTaskPool =
+        new FrameTaskPool("frame worker", FrameTaskPool.getDefaultThreadCount(FRAME_TASK_COUNT));
 
     installRequested = false;
 
     depthSettings.onCreate(this);
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    virtualObjectLoadFailed = false;
+    AssetCache assetCache = this.assetCache;
+    if (assetCache != null) {
+      assetCache.requestTrim();
+    }
+  }
+
   @Override
   protected void onDestroy() {
+    // Stop the render thread before closing the session it uses.
+    render.release();
+    frameTaskPool.close();
     if (session != null) {
       // Explicitly close ARCore Session to release native resources.
       // Review the API reference for important considerations before calling close() in apps with
       // more complicated lifecycle requirements:
       // https://developers.google.com/ar/reference/java/arcore/reference/com/google/ar/core/Session#close()
+      framePacingHelper.onSessionClosed();
       session.close();
       session = null;
     }
@@ -297,7 +441,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       return;
     }
 
-    surfaceView.onResume();
+    render.onResume();
     displayRotationHelper.onResume();
   }
 
@@ -305,14 +449,15 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   public void onPause() {
     super.onPause();
     if (session != null) {
-      // Note that the order matters - GLSurfaceView is paused first so that it does not try
-      // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
+      // Note that the order matters - the renderer is paused first so that it does not try
+      // to query the session. If Session is paused before the renderer, the render thread may
       // still call session.update() and get a SessionPausedException.
       displayRotationHelper.onPause();
-      surfaceView.onPause();
+      render.onPause();
       session.pause();
       if(objectAnchor != null)
         objectAnchor.StopScan();
+      framePacingHelper.setScanning(false);
     }
   }
 
@@ -343,7 +488,18 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     // an IOException.
     try {
       backgroundRenderer = new BackgroundRenderer(render);
+      // The camera texture is new, also after a lost context was recreated, so hand it to the
+      // session again on the next frame.
+      hasSetTextureNames = false;
       virtualSceneFramebuffer = new Framebuffer(render, /* width= */ 1, /* height= */ 1);
+      frameUniforms = new FrameUniforms(render);
+      renderQueue = new RenderQueue(render);
+      // Assets are loaded when first used, e.g. the virtual object when first anchored. Those of a
+      // previous context are gone along with it, and so are the nodes drawing them.
+      scene.clear();
+      releaseVirtualObject();
+      virtualObjectLoadFailed = false;
+      assetCache = new AssetCache(render, ASSET_CACHE_BUDGET_BYTES);
 
       cubemapFilter =
           new SpecularCubemapFilter(
@@ -360,39 +516,51 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       final int dfgChannels = 2;
       final int halfFloatSize = 2;
 
-      ByteBuffer buffer =
-          ByteBuffer.allocateDirect(dfgResolution * dfgResolution * dfgChannels * halfFloatSize);
-      try (InputStream is = getAssets().open("models/dfg.raw")) {
-        is.read(buffer.array());
+      final int dfgByteCount = dfgResolution * dfgResolution * dfgChannels * halfFloatSize;
+
+      ByteBuffer buffer = DirectBufferPool.acquire(dfgByteCount);
+      try {
+        try (ReadableByteChannel channel =
+            Channels.newChannel(getAssets().open("models/dfg.raw"))) {
+          while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+        }
+        buffer.rewind();
+        // SampleRender abstraction leaks here.
+        render.getGlState().bindTexture(GLES30.GL_TEXTURE_2D, dfgTexture.getTextureId());
+        render.getGl().glTexImage2D(
+            GLES30.GL_TEXTURE_2D,
+            /* level= */ 0,
+            GLES30.GL_RG16F,
+            /* width= */ dfgResolution,
+            /* height= */ dfgResolution,
+            /* border= */ 0,
+            GLES30.GL_RG,
+            GLES30.GL_HALF_FLOAT,
+            buffer);
+        GLError.maybeThrowGLException("Failed to populate DFG texture", "glTexImage2D");
+      } finally {
+        DirectBufferPool.release(buffer);
       }
-      // SampleRender abstraction leaks here.
-      GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, dfgTexture.getTextureId());
-      GLError.maybeThrowGLException("Failed to bind DFG texture", "glBindTexture");
-      GLES30.glTexImage2D(
-          GLES30.GL_TEXTURE_2D,
-          /* level= */ 0,
-          GLES30.GL_RG16F,
-          /* width= */ dfgResolution,
-          /* height= */ dfgResolution,
-          /* border= */ 0,
-          GLES30.GL_RG,
-          GLES30.GL_HALF_FLOAT,
-          buffer);
-      GLError.maybeThrowGLException("Failed to populate DFG texture", "glTexImage2D");
+      dfgTexture.setEstimatedByteCount(dfgByteCount);
 
       // Point cloud
       pointCloudShader =
-          Shader.createFromAssets(
-                  render,
-                  "shaders/point_cloud.vert",
-                  "shaders/point_cloud.frag",
-                  /* defines= */ null)
+          FrameUniforms.bind(
+                  Shader.createFromAssets(
+                      render,
+                      "shaders/point_cloud.vert",
+                      "shaders/point_cloud.frag",
+                      /* defines= */ null))
               .setVec4(
                   "u_Color", new float[] {1.0f, 1.0f, 0.0f, 1.0f})
               .setFloat("u_PointSize", 5.0f);
       // three entries per vertex: X, Y, Z
       pointCloudVertexBuffer =
-          new VertexBuffer(render, /* numberOfEntriesPerVertex= */ 4, /* entries= */ null);
+          new VertexBuffer(
+              render,
+              /* numberOfEntriesPerVertex= */ 4,
+              /* entries= */ null,
+              POINT_CLOUD_STREAMING_REGION_COUNT);
       final VertexBuffer[] pointCloudVertexBuffers = {pointCloudVertexBuffer};
       pointCloudMesh =
           new Mesh(
@@ -400,43 +568,11 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
 
 
-      // Virtual object to render (ARCore pawn)
-      virtualObjectAlbedoTexture =
-          Texture.createFromAsset(
-              render,
-              "models/pawn_albedo.png",
-              Texture.WrapMode.CLAMP_TO_EDGE,
-              Texture.ColorFormat.SRGB);
-      virtualObjectAlbedoInstantPlacementTexture =
-          Texture.createFromAsset(
-              render,
-              "models/pawn_albedo_instant_placement.png",
-              Texture.WrapMode.CLAMP_TO_EDGE,
-              Texture.ColorFormat.SRGB);
-      Texture virtualObjectPbrTexture =
-          Texture.createFromAsset(
-              render,
-              "models/pawn_roughness_metallic_ao.png",
-              Texture.WrapMode.CLAMP_TO_EDGE,
-              Texture.ColorFormat.LINEAR);
+      float density = getResources().getDisplayMetrics().density;
+      performanceHud.onSurfaceCreated(
+          render, /* textSize= */ 12 * density, /* x= */ 8 * density, /* y= */ 96 * density);
 
-      virtualObjectMesh = Mesh.createFromAsset(render, "models/pawn.obj");
-      virtualObjectShader =
-          Shader.createFromAssets(
-                  render,
-                  "shaders/environmental_hdr.vert",
-                  "shaders/environmental_hdr.frag",
-                  /* defines= */ new HashMap<String, String>() {
-                    {
-                      put(
-                          "NUMBER_OF_MIPMAP_LEVELS",
-                          Integer.toString(cubemapFilter.getNumberOfMipmapLevels()));
-                    }
-                  })
-              .setTexture("u_AlbedoTexture", virtualObjectAlbedoTexture)
-              .setTexture("u_RoughnessMetallicAmbientOcclusionTexture", virtualObjectPbrTexture)
-              .setTexture("u_Cubemap", cubemapFilter.getFilteredCubemapTexture())
-              .setTexture("u_DfgTexture", dfgTexture);
+      createRenderGraph(render);
     } catch (IOException e) {
       Log.e(TAG, "Failed to read a required asset file", e);
       messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + e);
@@ -451,6 +587,10 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
 
   @Override
   public void onDrawFrame(SampleRender render) {
+    if (recordingGl != null) {
+      checkFrameBudget();
+    }
+    assetCache.update();
     if (session == null) {
       return;
     }
@@ -474,15 +614,26 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
     // camera framerate.
     Frame frame;
+    CpuProfiler.begin("session.update");
     try {
       frame = session.update();
     } catch (CameraNotAvailableException e) {
       Log.e(TAG, "Camera not available during onDrawFrame", e);
       messageSnackbarHelper.showError(this, "Camera not available. Try restarting the app.");
       return;
+    } finally {
+      CpuProfiler.end();
     }
     Camera camera = frame.getCamera();
 
+    // Keep presenting the last frame if nothing changed since it was drawn, along with its visible
+    // content.
+    if (!framePacingHelper.hasFrameChanged(frame) && render.discardFrame()) {
+      framePacingHelper.onFrameDiscarded();
+      framePacingHelper.updateMode(session, isCameraTracking && hasVisibleAnchor);
+      return;
+    }
+
     // Update BackgroundRenderer state to match the depth settings.
     try {
       backgroundRenderer.setUseDepthVisualization(
@@ -497,74 +648,130 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     // used to draw the background camera image.
     backgroundRenderer.updateDisplayGeometry(frame);
 
-    if (camera.getTrackingState() == TrackingState.TRACKING
-        && (depthSettings.useDepthForOcclusion()
-            || depthSettings.depthColorVisualizationEnabled())) {
-      try (Image depthImage = frame.acquireDepthImage16Bits()) {
-        backgroundRenderer.updateCameraDepthTexture(depthImage);
-      } catch (NotYetAvailableException e) {
-        // This normally means that depth data is not available yet. This is normal so we will not
-        // spam the logcat with this.
-      }
-    }
+    // -- Snapshot the inputs of the frame, and hand the CPU work on them to the frame workers
 
-    // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
-    trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
+    // If not tracking, don't draw 3D objects.
+    isCameraTracking = camera.getTrackingState() != TrackingState.PAUSED;
+    if (isCameraTracking) {
+      // Get projection matrix.
+      camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
 
-    // Show a message based on whether tracking has failed, if planes are detected, and if the user
-    // has placed any objects.
-    String message = null;
-    if (camera.getTrackingState() == TrackingState.PAUSED) {
-      if (camera.getTrackingFailureReason() == TrackingFailureReason.NONE) {
-        message = SEARCHING_PLANE_MESSAGE;
-      } else {
-        message = TrackingStateHelper.getTrackingFailureReasonString(camera);
-      }
-    }
-    if (message == null) {
-      messageSnackbarHelper.hide(this);
-    } else {
-      messageSnackbarHelper.showMessage(this, message);
-    }
+      // Get camera matrix.
+      camera.getViewMatrix(viewMatrix, 0);
 
-    // -- Draw background
+      lightEstimate = frame.getLightEstimate();
 
-    if (frame.getTimestamp() != 0) {
-      // Suppress rendering if the camera did not produce the first frame yet. This is to avoid
-      // drawing possible leftover data from previous sessions if the texture is reused.
-      backgroundRenderer.drawBackground(render);
-    }
+      // Give each new anchor a node drawing the virtual object. Loading the object makes GL calls,
+      // so this stays on the GL thread.
+      CpuProfiler.begin("anchor snapshot");
+      try {
+        synchronized (detectedAnchors) {
+          frameAnchors.addAll(detectedAnchors);
+        }
+        for (Anchor anchor : frameAnchors) {
+          if (scene.getAnchorNode(anchor) == null
+              && anchor.getTrackingState() != TrackingState.STOPPED
+              && (virtualObjectShader != null
+                  || (!virtualObjectLoadFailed && loadVirtualObject()))) {
+            scene.createAnchorNode(anchor).setRenderable(virtualObjectBatch);
+          }
+        }
+      } finally {
+        frameAnchors.clear();
+        CpuProfiler.end();
+      }
 
-    // If not tracking, don't draw 3D objects.
-    if (camera.getTrackingState() == TrackingState.PAUSED) {
-      return;
+      // The frame, its light estimate and the anchors remain valid until the next session.update,
+      // and the matrices and scene are left alone until the tasks are awaited below.
+      frameTaskPool.submit(updateFrameUniformsTask);
+      frameTaskPool.submit(updateSceneTask);
     }
 
-    // -- Draw non-occluded virtual objects (planes, point cloud)
-
-    // Get projection matrix.
-    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
+    // The frame workers must be awaited before leaving the frame, even on failure, since they
+    // write state the next frame reuses.
+    try {
+      // -- Meanwhile, stream the images and points of the frame on the GL thread
+
+      if (camera.getTrackingState() == TrackingState.TRACKING
+          && (depthSettings.useDepthForOcclusion()
+              || depthSettings.depthColorVisualizationEnabled())) {
+        CpuProfiler.begin("depth acquire");
+        try (Image depthImage = frame.acquireDepthImage16Bits()) {
+          backgroundRenderer.updateCameraDepthTexture(depthImage);
+        } catch (NotYetAvailableException e) {
+          // This normally means that depth data is not available yet. This is normal so we will
+          // not spam the logcat with this.
+        } finally {
+          CpuProfiler.end();
+        }
+      }
 
-    // Get camera matrix and draw.
-    camera.getViewMatrix(viewMatrix, 0);
+      // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
+      trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
 
-    // Visualize tracked points.
-    // Use try-with-resources to automatically release the point cloud.
-    try (PointCloud pointCloud = frame.acquirePointCloud()) {
-      if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
-        pointCloudVertexBuffer.set(pointCloud.getPoints());
-        lastPointCloudTimestamp = pointCloud.getTimestamp();
+      // Show a message based on whether tracking has failed, if planes are detected, and if the
+      // user has placed any objects.
+      String message = null;
+      if (camera.getTrackingState() == TrackingState.PAUSED) {
+        if (camera.getTrackingFailureReason() == TrackingFailureReason.NONE) {
+          message = SEARCHING_PLANE_MESSAGE;
+        } else {
+          message = TrackingStateHelper.getTrackingFailureReasonString(camera);
+        }
+      }
+      if (message == null) {
+        messageSnackbarHelper.hide(this);
+      } else {
+        messageSnackbarHelper.showMessage(this, message);
       }
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
-      pointCloudShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      render.draw(pointCloudMesh, pointCloudShader);
-    }
 
+      // -- Update the inputs of the render passes
+
+      // Suppress rendering the background if the camera did not produce the first frame yet. This
+      // is to avoid drawing possible leftover data from previous sessions if the texture is reused.
+      hasCameraImage = frame.getTimestamp() != 0;
+
+      if (isCameraTracking) {
+        // Update the tracked points.
+        // Use try-with-resources to automatically release the point cloud.
+        CpuProfiler.begin("point cloud upload");
+        try (PointCloud pointCloud = frame.acquirePointCloud()) {
+          if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
+            FloatBuffer points = pointCloud.getPoints();
+            pointCloudVertexBuffer.set(points);
+            pointCount = points.limit() / 4;
+            lastPointCloudTimestamp = pointCloud.getTimestamp();
+          }
+        } finally {
+          CpuProfiler.end();
+        }
 
-    //input ARCore frame to object anchor
-    if(objectAnchor != null) {
-      objectAnchor.inputSceneData(frame);
+        //input ARCore frame to object anchor
+        if(objectAnchor != null) {
+          CpuProfiler.begin("inputSceneData");
+          try {
+            objectAnchor.inputSceneData(frame);
+          } finally {
+            CpuProfiler.end();
+          }
+        }
+      }
+    } finally {
+      // The results of the frame workers are only read past this point.
+      CpuProfiler.begin("await frame tasks");
+      try {
+        frameTaskPool.await();
+      } finally {
+        CpuProfiler.end();
+      }
     }
+    if (isCameraTracking) {
+      // Update the uniforms shared by every shader this frame with a single upload.
+      frameUniforms.upload();
+      hasVisibleAnchor = scene.hasVisibleRenderables();
+    }
+    // Pace from the content of this frame, so that the frame a new anchor appears in is active.
+    framePacingHelper.updateMode(session, isCameraTracking && hasVisibleAnchor);
 
     // Visualize planes.
     /*planeRenderer.drawPlanes(
@@ -573,49 +780,240 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
         camera.getDisplayOrientedPose(),
         projectionMatrix);*/
 
-    // -- Draw occluded virtual objects
+    // The composite only samples the virtual scene depth when using it for occlusion.
+    virtualSceneCompositePass.setReadAttachments(
+        virtualSceneFramebuffer,
+        depthSettings.useDepthForOcclusion()
+            ? RenderGraph.COLOR | RenderGraph.DEPTH
+            : RenderGraph.COLOR);
+
+    // -- Draw background, point cloud and occluded virtual objects
+    renderGraph.execute(render);
+
+    // Render the virtual scene at a resolution the GPU can sustain from the next frame on. Only the
+    // passes whose cost depends on the scale are measured, on the frames they ran.
+    if (gpuProfiler.hasNewResult(virtualSceneGpuScope)
+        && gpuProfiler.hasNewResult(virtualSceneCompositeGpuScope)
+        && virtualSceneResolution.update(
+            gpuProfiler.getLastTimeNanos(virtualSceneGpuScope)
+                + gpuProfiler.getLastTimeNanos(virtualSceneCompositeGpuScope))) {
+      virtualSceneFramebuffer.setRenderScale(virtualSceneResolution.getScale());
+    }
+    if (recordingGl != null && ++gpuProfileFrameCount % GPU_PROFILE_LOG_INTERVAL_FRAMES == 0) {
+      Log.d(TAG, gpuProfiler.getSummary());
+      Log.d(TAG, render.getResourceRegistry().getSummary());
+      Log.d(TAG, DirectBufferPool.getSummary());
+      Log.d(
+          TAG,
+          "Scene: "
+              + scene.getLastVisibleCount()
+              + " visible objects in "
+              + scene.getLastDrawCount()
+              + " draws");
+    }
 
-    // Update lighting parameters in the shader
-    updateLightEstimation(frame.getLightEstimate(), viewMatrix);
+    // The upload count of a frame is only known once it ends, so report the previous frame's.
+    performanceHud.onFrame(
+        render.getRenderThread() == null ? 0 : render.getRenderThread().getLastFrameCpuTimeNanos(),
+        gpuProfiler.hasNewFrameTime() ? gpuProfiler.getLastFrameTimeNanos() : 0,
+        render.getFrameUploadedByteCount(),
+        pointCount,
+        scene.getLastVisibleCount(),
+        scene.getLastCulledCount(),
+        virtualSceneResolution.getScale(),
+        isCameraTracking && hasVisibleAnchor);
+  }
 
-    // Visualize anchors created by touch.
-    render.clear(virtualSceneFramebuffer, 0f, 0f, 0f, 0f);
-    for (Anchor anchor : detectedAnchors) {
-      if (anchor.getTrackingState() != TrackingState.TRACKING) {
-        continue;
-      }
+  /**
+   * Loads the virtual object, and returns whether it succeeded. Sets {@link
+   * #virtualObjectLoadFailed} if not.
+   */
+  private boolean loadVirtualObject() {
+    try {
+      virtualObjectAlbedoTexture =
+          assetCache.acquireTexture(
+              "models/pawn_albedo.png", Texture.WrapMode.CLAMP_TO_EDGE, Texture.ColorFormat.SRGB);
+      virtualObjectPbrTexture =
+          assetCache.acquireTexture(
+              "models/pawn_roughness_metallic_ao.png",
+              Texture.WrapMode.CLAMP_TO_EDGE,
+              Texture.ColorFormat.LINEAR);
+      virtualObjectMesh = assetCache.acquireMesh("models/pawn.obj");
+      virtualObjectShader =
+          assetCache.acquireShader(
+              "shaders/environmental_hdr.vert",
+              "shaders/environmental_hdr.frag",
+              /* defines= */ new HashMap<String, String>() {
+                {
+                  put(
+                      "NUMBER_OF_MIPMAP_LEVELS",
+                      Integer.toString(cubemapFilter.getNumberOfMipmapLevels()));
+                  put("USE_INSTANCING", "1");
+                }
+              });
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read a required asset file", e);
+      messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + e);
+      releaseVirtualObject();
+      virtualObjectLoadFailed = true;
+      return false;
+    }
+    Shader shader =
+        FrameUniforms.bind(virtualObjectShader.get())
+            .setTexture("u_AlbedoTexture", virtualObjectAlbedoTexture.get())
+            .setTexture("u_RoughnessMetallicAmbientOcclusionTexture", virtualObjectPbrTexture.get())
+            .setTexture("u_Cubemap", cubemapFilter.getFilteredCubemapTexture())
+            .setTexture("u_DfgTexture", dfgTexture);
+    virtualObjectBatch =
+        new InstanceBatch(render, virtualObjectMesh.get(), shader, VIRTUAL_OBJECT_PASS);
+    return true;
+  }
 
-      // Get the current pose of an Anchor in world space. The Anchor pose is updated
-      // during calls to session.update() as ARCore refines its estimate of the world.
-      anchor.getPose().toMatrix(modelMatrix, 0);
+  /** Releases the assets of the virtual object, which may be partially loaded. */
+  private void releaseVirtualObject() {
+    if (virtualObjectBatch != null) {
+      virtualObjectBatch.close();
+      virtualObjectBatch = null;
+    }
+    if (virtualObjectAlbedoTexture != null) {
+      virtualObjectAlbedoTexture.close();
+      virtualObjectAlbedoTexture = null;
+    }
+    if (virtualObjectPbrTexture != null) {
+      virtualObjectPbrTexture.close();
+      virtualObjectPbrTexture = null;
+    }
+    if (virtualObjectMesh != null) {
+      virtualObjectMesh.close();
+      virtualObjectMesh = null;
+    }
+    if (virtualObjectShader != null) {
+      virtualObjectShader.close();
+      virtualObjectShader = null;
+    }
+  }
 
-      // Calculate model/view/projection matrices
-      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+  /** Writes the CPU timings recorded by every thread to a Chrome trace JSON file. */
+  private void exportCpuTrace() {
+    String fileName =
+        "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".json";
+    File file = new File(getExternalFilesDir(/* type= */ null), fileName);
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      CpuProfiler.writeChromeTrace(writer);
+      Toast.makeText(this, "Trace written to " + file, Toast.LENGTH_LONG).show();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write trace", e);
+      Toast.makeText(this, "Failed to write trace", Toast.LENGTH_SHORT).show();
+    }
+  }
+
+  /** Creates the passes of a frame, which are skipped whenever they have nothing to draw. */
+  private void createRenderGraph(SampleRender render) {
+    renderGraph = new RenderGraph();
+    renderGraph
+        .addPass("background", /* target= */ null, backgroundRenderer::drawBackground)
+        .setWorkPredicate(() -> hasCameraImage);
+    renderGraph
+        .addPass("point cloud", /* target= */ null, this::drawPointCloud)
+        .setWorkPredicate(() -> isCameraTracking);
+    // Filter the environmental HDR cubemap used for specular lighting
+    renderGraph
+        .addPass(
+            "cubemap filter",
+            unused -> cubemapFilter.update(lightEstimate.acquireEnvironmentalHdrCubeMap()))
+        .setWorkPredicate(
+            () -> isCameraTracking && lightEstimate.getState() == LightEstimate.State.VALID);
+    RenderGraph.Pass virtualScenePass =
+        renderGraph
+            .addPass("virtual scene", virtualSceneFramebuffer, this::drawVirtualObjects)
+            .setClearColor(0f, 0f, 0f, 0f)
+            .setWorkPredicate(() -> isCameraTracking && hasVisibleAnchor);
+    // Compose the virtual scene with the background. This is skipped along with the virtual scene.
+    virtualSceneCompositePass =
+        renderGraph
+            .addPass(
+                "virtual scene composite",
+                /* target= */ null,
+                unused -> backgroundRenderer.drawVirtualScene(render, virtualSceneFramebuffer))
+            .setReadAttachments(virtualSceneFramebuffer, RenderGraph.COLOR);
+    renderGraph
+        .addPass("hud", /* target= */ null, performanceHud::draw)
+        .setWorkPredicate(performanceHud::isVisible);
+    // Neither the virtual scene nor the depth of the screen are needed once composited.
+    renderGraph
+        .setTransientAttachments(virtualSceneFramebuffer, RenderGraph.COLOR | RenderGraph.DEPTH)
+        .setTransientAttachments(/* framebuffer= */ null, RenderGraph.DEPTH);
+    gpuProfiler = renderGraph.enableGpuProfiling(render);
+    virtualSceneGpuScope = renderGraph.getGpuProfilerScope(virtualScenePass);
+    virtualSceneCompositeGpuScope = renderGraph.getGpuProfilerScope(virtualSceneCompositePass);
+  }
 
-      // Update shader properties and draw
-      virtualObjectShader.setMat4("u_ModelView", modelViewMatrix);
-      virtualObjectShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
+  /** Draws the tracked points to the screen. */
+  private void drawPointCloud(SampleRender render) {
+    renderQueue.add(
+        pointCloudMesh,
+        pointCloudShader,
+        /* framebuffer= */ null,
+        POINT_CLOUD_PASS,
+        /* depth= */ 0f);
+    renderQueue.flush();
+  }
+
+  /** Draws the tracking anchors to the virtual scene framebuffer. */
+  private void drawVirtualObjects(SampleRender render) {
+    // Queue the draws with their own model-view matrices, front to back by view space depth.
+    scene.draw(renderQueue, virtualSceneFramebuffer);
+    renderQueue.flush();
+  }
 
-      render.draw(virtualObjectMesh, virtualObjectShader, virtualSceneFramebuffer);
-    }
 
-    // Compose the virtual scene with the background.
-    backgroundRenderer.drawVirtualScene(render, virtualSceneFramebuffer, Z_NEAR, Z_FAR);
+
+  /** Checks the GL work of the previous frame against FRAME_BUDGET, logging any overrun. */
+  private void checkFrameBudget() {
+    recordingGl.endFrame();
+    if (++frameBudgetFrameCount <= FRAME_BUDGET_WARMUP_FRAMES) {
+      return;
+    }
+    String overrun = FRAME_BUDGET.check(recordingGl, render);
+    if (overrun != null
+        && frameBudgetFrameCount - frameBudgetLastLoggedFrame >= FRAME_BUDGET_LOG_INTERVAL_FRAMES) {
+      Log.w(TAG, overrun);
+      frameBudgetLastLoggedFrame = frameBudgetFrameCount;
+    }
   }
 
+  /** Sets the frame uniforms from the camera and light estimate of the frame. Run by a worker. */
+  private void updateFrameUniforms() {
+    CpuProfiler.begin("frame uniforms");
+    try {
+      frameUniforms.setCamera(viewMatrix, projectionMatrix, Z_NEAR, Z_FAR);
+      updateLightEstimation(lightEstimate, viewMatrix);
+    } finally {
+      CpuProfiler.end();
+    }
+  }
 
+  /**
+   * Updates the nodes whose anchor or camera moved, culls them, and stages their instances. Run by
+   * a worker.
+   */
+  private void updateScene() {
+    CpuProfiler.begin("scene update");
+    try {
+      scene.update(viewMatrix, projectionMatrix);
+      scene.prepareDraw();
+    } finally {
+      CpuProfiler.end();
+    }
+  }
 
-  /** Update state based on the current frame's light estimation. */
+  /** Update the frame uniforms based on the current frame's light estimation. */
   private void updateLightEstimation(LightEstimate lightEstimate, float[] viewMatrix) {
     if (lightEstimate.getState() != LightEstimate.State.VALID) {
-      virtualObjectShader.setBool("u_LightEstimateIsValid", false);
+      frameUniforms.setLightEstimateIsValid(false);
       return;
     }
-    virtualObjectShader.setBool("u_LightEstimateIsValid", true);
-
-    Matrix.invertM(viewInverseMatrix, 0, viewMatrix, 0);
-    virtualObjectShader.setMat4("u_ViewInverse", viewInverseMatrix);
+    frameUniforms.setLightEstimateIsValid(true);
 
     updateMainLight(
         lightEstimate.getEnvironmentalHdrMainLightDirection(),
@@ -623,7 +1021,6 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
         viewMatrix);
     updateSphericalHarmonicsCoefficients(
         lightEstimate.getEnvironmentalHdrAmbientSphericalHarmonics());
-    cubemapFilter.update(lightEstimate.acquireEnvironmentalHdrCubeMap());
   }
 
   private void updateMainLight(float[] direction, float[] intensity, float[] viewMatrix) {
@@ -631,9 +1028,9 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     worldLightDirection[0] = direction[0];
     worldLightDirection[1] = direction[1];
     worldLightDirection[2] = direction[2];
-    Matrix.multiplyMV(viewLightDirection, 0, viewMatrix, 0, worldLightDirection, 0);
-    virtualObjectShader.setVec4("u_ViewLightDirection", viewLightDirection);
-    virtualObjectShader.setVec3("u_LightIntensity", intensity);
+    Mat4.multiplyVector(viewLightDirection, 0, viewMatrix, 0, worldLightDirection, 0);
+    frameUniforms.setViewLightDirection(viewLightDirection);
+    frameUniforms.setLightIntensity(intensity);
   }
 
   private void updateSphericalHarmonicsCoefficients(float[] coefficients) {
@@ -660,8 +1057,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     for (int i = 0; i < 9 * 3; ++i) {
       sphericalHarmonicsCoefficients[i] = coefficients[i] * sphericalHarmonicFactors[i / 3];
     }
-    virtualObjectShader.setVec3Array(
-        "u_SphericalHarmonicsCoefficients", sphericalHarmonicsCoefficients);
+    frameUniforms.setSphericalHarmonicsCoefficients(sphericalHarmonicsCoefficients);
   }
 
   /** Configures the session with feature settings. */
@@ -686,35 +1082,45 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       }
       @Override
       public void onFailed(String status) {
+        CpuProfiler.instant("detection failed");
+        performanceHud.onDetectionResult();
         Log.d(TAG, status);
         runOnUiThread(new Runnable() {
           @Override
           public void run() {
             statusText.setText(status);
             scanButton.setEnabled(true);
+            framePacingHelper.setScanning(false);
             Toast.makeText(HelloArActivity.this, "Detection failed", Toast.LENGTH_SHORT).show();
           }
         });
       }
       @Override
       public void onDetected(float[] transformation) {
+        CpuProfiler.instant("object detected");
+        performanceHud.onDetectionResult();
         runOnUiThread(new Runnable() {
           @Override
           public void run() {
             statusText.setText("Detected");
             scanButton.setEnabled(true);
+            framePacingHelper.setScanning(false);
             Toast.makeText(HelloArActivity.this, "Object found", Toast.LENGTH_SHORT).show();
             float[] pos = new float[]{transformation[3], transformation[7], transformation[11]};
-            float[] rot = QuaternionUtil.fromRotationMatrix(transformation[0], transformation[1], transformation[2],
+            float[] rot = new float[Quaternion.SIZE];
+            Quaternion.setFromRotationMatrix(rot, 0, transformation[0], transformation[1], transformation[2],
                     transformation[4], transformation[5], transformation[6],
                     transformation[8], transformation[9], transformation[10]);
             Pose pose = new Pose(pos, rot);
             Anchor anchor = session.createAnchor(pose);
-            if(detectedAnchors.size() > 0){
-              detectedAnchors.get(0).detach();
-              detectedAnchors.clear();
+            synchronized (detectedAnchors) {
+              if(detectedAnchors.size() > 0){
+                detectedAnchors.get(0).detach();
+                detectedAnchors.clear();
+              }
+              detectedAnchors.add(anchor);
             }
-            detectedAnchors.add(anchor);
+            performanceHud.onAnchorCreated();
           }
         });
       }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.helloar;
+
+import com.iboson.objectdetection.common.samplerender.DirectBufferPool;
+import com.iboson.objectdetection.common.samplerender.ResourceRegistry;
+import com.iboson.objectdetection.common.samplerender.SampleRender;
+import com.iboson.objectdetection.common.samplerender.TextRenderer;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Overlay of frame statistics for field testing: frame rate, CPU and GPU frame times, bytes
+ * uploaded to the GPU, estimated GPU memory, pooled direct buffer memory, tracked point count,
+ * drawn and culled objects, virtual scene render scale, and the latency of the last detection
+ * broken down by stage.
+ *
+ * <p>Statistics are averaged over {@link #REFRESH_INTERVAL_NANOS}, and the text is only laid out
+ * again once per interval, so that drawing the overlay costs a single draw call on most frames.
+ * Nothing is allocated while the overlay is visible.
+ */
+final class PerformanceHud implements Closeable {
+  /** How often the statistics are refreshed. */
+  static final long REFRESH_INTERVAL_NANOS = 250_000_000L;
+
+  private static final int MAX_CHARACTER_COUNT = 512;
+  private static final float NANOS_PER_MILLI = 1_000_000f;
+
+  private TextRenderer textRenderer;
+  private ResourceRegistry resourceRegistry;
+  private volatile boolean visible;
+
+  // Detection timestamps, written by the UI thread and the threads of the ObjectAnchor SDK.
+  private volatile long scanStartNanos;
+  private volatile long detectionNanos;
+  private volatile long anchorCreationNanos;
+
+  // Only accessed on the render thread.
+  private long anchorVisibleNanos;
+  private long lastAnchorCreationNanos;
+  private long intervalStartNanos;
+  private int frameCount;
+  private long cpuTimeSumNanos;
+  private long gpuTimeSumNanos;
+  private int gpuTimeCount;
+  private long uploadedByteSum;
+
+  /**
+   * Creates the GL resources of the overlay. Must be called from {@link
+   * SampleRender.Renderer#onSurfaceCreated}.
+   *
+   * @param textSize The height of the text, in pixels.
+   * @param x The distance of the text from the left edge of the screen, in pixels.
+   * @param y The distance of the text from the top edge of the screen, in pixels.
+   */
+  void onSurfaceCreated(SampleRender render, float textSize, float x, float y) throws IOException {
+    if (textRenderer != null) {
+      textRenderer.close();
+    }
+    textRenderer = new TextRenderer(render, textSize, MAX_CHARACTER_COUNT).setOrigin(x, y);
+    resourceRegistry = render.getResourceRegistry();
+    resetInterval(System.nanoTime());
+  }
+
+  @Override
+  public void close() {
+    if (textRenderer != null) {
+      textRenderer.close();
+      textRenderer = null;
+    }
+  }
+
+  /** Shows the overlay if hidden, hides it otherwise. May be called from any thread. */
+  void toggleVisible() {
+    visible = !visible;
+  }
+
+  /** Returns whether the overlay is shown. */
+  boolean isVisible() {
+    return visible && textRenderer != null;
+  }
+
+  /** Notifies that a scan started. May be called from any thread. */
+  void onScanStarted() {
+    scanStartNanos = System.nanoTime();
+    detectionNanos = 0;
+    anchorCreationNanos = 0;
+  }
+
+  /** Notifies that the SDK reported the result of a scan. May be called from any thread. */
+  void onDetectionResult() {
+    detectionNanos = System.nanoTime();
+  }
+
+  /** Notifies that an anchor was created for a detected object. May be called from any thread. */
+  void onAnchorCreated() {
+    anchorCreationNanos = System.nanoTime();
+  }
+
+  /**
+   * Accumulates the statistics of a drawn frame, and lays out the text again once per refresh
+   * interval. Must be called from {@link SampleRender.Renderer#onDrawFrame}.
+   *
+   * @param cpuTimeNanos The CPU time of the frame, or of the previous one.
+   * @param gpuTimeNanos The GPU time of an earlier frame, or 0 if none was measured this frame.
+   * @param uploadedByteCount The number of bytes uploaded to the GPU during the frame.
+   * @param pointCount The number of tracked points drawn.
+   * @param objectCount The number of virtual objects drawn.
+   * @param culledObjectCount The number of tracking virtual objects culled as off screen.
+   * @param renderScale The render scale of the virtual scene.
+   * @param anchorVisible Whether a detected anchor is drawn.
+   */
+  void onFrame(
+      long cpuTimeNanos,
+      long gpuTimeNanos,
+      long uploadedByteCount,
+      int pointCount,
+      int objectCount,
+      int culledObjectCount,
+      float renderScale,
+      boolean anchorVisible) {
+    long now = System.nanoTime();
+    long anchorCreation = anchorCreationNanos;
+    if (anchorCreation != lastAnchorCreationNanos) {
+      lastAnchorCreationNanos = anchorCreation;
+      anchorVisibleNanos = 0;
+    }
+    if (anchorVisible && anchorCreation != 0 && anchorVisibleNanos == 0) {
+      anchorVisibleNanos = now;
+    }
+    if (!isVisible()) {
+      resetInterval(now);
+      return;
+    }
+
+    frameCount++;
+    cpuTimeSumNanos += cpuTimeNanos;
+    if (gpuTimeNanos > 0) {
+      gpuTimeSumNanos += gpuTimeNanos;
+      gpuTimeCount++;
+    }
+    uploadedByteSum += uploadedByteCount;
+    long elapsedNanos = now - intervalStartNanos;
+    if (elapsedNanos < REFRESH_INTERVAL_NANOS) {
+      return;
+    }
+
+    textRenderer
+        .clear()
+        .append("FPS ")
+        .append(frameCount * 1e9f / elapsedNanos, 1)
+        .append("\nCPU ")
+        .append(cpuTimeSumNanos / NANOS_PER_MILLI / frameCount, 2)
+        .append(" ms  GPU ");
+    if (gpuTimeCount > 0) {
+      textRenderer.append(gpuTimeSumNanos / NANOS_PER_MILLI / gpuTimeCount, 2).append(" ms");
+    } else {
+      textRenderer.append("-");
+    }
+    textRenderer
+        .append("\nUpload ")
+        .append(uploadedByteSum / 1024f / frameCount, 1)
+        .append(" KB/frame\nGPU memory ")
+        .append(resourceRegistry.getTotalLiveByteCount() / (1024f * 1024f), 1)
+        .append(" MB, leaked ")
+        .append(resourceRegistry.getLeakedCount())
+        .append("\nDirect buffers ")
+        .append(DirectBufferPool.getAcquiredByteCount() / 1024)
+        .append(" KB, peak ")
+        .append(DirectBufferPool.getHighWaterByteCount() / 1024)
+        .append(" KB")
+        .append("\nPoints ")
+        .append(pointCount)
+        .append("\nObjects ")
+        .append(objectCount)
+        .append(", culled ")
+        .append(culledObjectCount)
+        .append("\nScale ")
+        .append(renderScale, 2)
+        .append("\nDetection ");
+    appendDetectionLatency(now);
+    resetInterval(now);
+  }
+
+  /** Draws the overlay to the default framebuffer. */
+  void draw(SampleRender render) {
+    textRenderer.draw(render, /* framebuffer= */ null);
+  }
+
+  /** Appends the latency of each stage of the last detection, from the scan to the first frame. */
+  private void appendDetectionLatency(long now) {
+    long scanStart = scanStartNanos;
+    long detection = detectionNanos;
+    long anchorCreation = anchorCreationNanos;
+    if (scanStart == 0) {
+      textRenderer.append("-");
+      return;
+    }
+    if (detection == 0) {
+      textRenderer.append("scanning ").append((now - scanStart) / 1_000_000).append(" ms");
+      return;
+    }
+    textRenderer.append("\n sdk ").append((detection - scanStart) / 1_000_000).append(" ms");
+    if (anchorCreation != 0) {
+      textRenderer
+          .append("\n anchor ")
+          .append((anchorCreation - detection) / 1_000_000)
+          .append(" ms");
+      if (anchorVisibleNanos != 0) {
+        textRenderer
+            .append("\n first frame ")
+            .append((anchorVisibleNanos - anchorCreation) / 1_000_000)
+            .append(" ms\n total ")
+            .append((anchorVisibleNanos - scanStart) / 1_000_000)
+            .append(" ms");
+      }
+    }
+  }
+
+  private void resetInterval(long now) {
+    intervalStartNanos = now;
+    frameCount = 0;
+    cpuTimeSumNanos = 0;
+    gpuTimeSumNanos = 0;
+    gpuTimeCount = 0;
+    uploadedByteSum = 0;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrustumTest {
+  private static final float NEAR = 0.1f;
+  private static final float FAR = 10f;
+
+  private final Frustum frustum = new Frustum();
+
+  @Before
+  public void setUp() {
+    // A 90 degree square frustum looking down -Z from (0, 0, 1), placed at an offset.
+    float[] viewProjection = new float[Mat4.SIZE + 3];
+    float[] projection = new float[Mat4.SIZE];
+    projection[0] = 1f;
+    projection[5] = 1f;
+    projection[10] = (FAR + NEAR) / (NEAR - FAR);
+    projection[11] = -1f;
+    projection[14] = 2f * FAR * NEAR / (NEAR - FAR);
+    float[] view = new float[Mat4.SIZE];
+    Mat4.setPose(view, 0, 0f, 0f, 1f, 0f, 0f, 0f, 1f);
+    Mat4.invertRigid(view, 0, view, 0);
+    Mat4.multiply(viewProjection, 3, projection, 0, view, 0);
+    frustum.set(viewProjection, 3);
+  }
+
+  @Test
+  public void intersectsSphere_inside_returnsTrue() {
+    assertTrue(frustum.intersectsSphere(new float[] {0f, 0f, -2f, 0.5f}));
+  }
+
+  @Test
+  public void intersectsSphere_straddlingSide_returnsTrue() {
+    // At z = -2 the frustum spans 3 to either side; the sphere crosses x = 3.
+    assertTrue(frustum.intersectsSphere(new float[] {3.2f, 0f, -2f, 0.5f}));
+  }
+
+  @Test
+  public void intersectsSphere_outsideEachPlane_returnsFalse() {
+    assertFalse(frustum.intersectsSphere(new float[] {-5f, 0f, -2f, 0.5f}));
+    assertFalse(frustum.intersectsSphere(new float[] {5f, 0f, -2f, 0.5f}));
+    assertFalse(frustum.intersectsSphere(new float[] {0f, -5f, -2f, 0.5f}));
+    assertFalse(frustum.intersectsSphere(new float[] {0f, 5f, -2f, 0.5f}));
+    // Behind the camera, and beyond the far plane.
+    assertFalse(frustum.intersectsSphere(new float[] {0f, 0f, 3f, 0.5f}));
+    assertFalse(frustum.intersectsSphere(new float[] {0f, 0f, -12f, 0.5f}));
+  }
+
+  @Test
+  public void intersectsBox_inside_returnsTrue() {
+    assertTrue(frustum.intersectsBox(new float[] {-0.5f, -0.5f, -2.5f, 0.5f, 0.5f, -1.5f}));
+  }
+
+  @Test
+  public void intersectsBox_containingFrustum_returnsTrue() {
+    assertTrue(frustum.intersectsBox(new float[] {-100f, -100f, -100f, 100f, 100f, 100f}));
+  }
+
+  @Test
+  public void intersectsBox_straddlingNearPlane_returnsTrue() {
+    assertTrue(frustum.intersectsBox(new float[] {-0.5f, -0.5f, 0f, 0.5f, 0.5f, 2f}));
+  }
+
+  @Test
+  public void intersectsBox_outsideEachPlane_returnsFalse() {
+    assertFalse(frustum.intersectsBox(new float[] {-6f, -0.5f, -2.5f, -5f, 0.5f, -1.5f}));
+    assertFalse(frustum.intersectsBox(new float[] {5f, -0.5f, -2.5f, 6f, 0.5f, -1.5f}));
+    assertFalse(frustum.intersectsBox(new float[] {-0.5f, -6f, -2.5f, 0.5f, -5f, -1.5f}));
+    assertFalse(frustum.intersectsBox(new float[] {-0.5f, 5f, -2.5f, 0.5f, 6f, -1.5f}));
+    assertFalse(frustum.intersectsBox(new float[] {-0.5f, -0.5f, 2f, 0.5f, 0.5f, 3f}));
+    assertFalse(frustum.intersectsBox(new float[] {-0.5f, -0.5f, -13f, 0.5f, 0.5f, -12f}));
+  }
+}
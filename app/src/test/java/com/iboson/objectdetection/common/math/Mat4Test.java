@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class Mat4Test {
+  private static final float EPSILON = 1e-5f;
+  private static final int TRIAL_COUNT = 100;
+
+  private final Random random = new Random(0);
+
+  @Test
+  public void invert_timesOriginal_isIdentity() {
+    float[] m = new float[Mat4.SIZE];
+    float[] inverse = new float[Mat4.SIZE];
+    float[] product = new float[Mat4.SIZE];
+    float[] identity = new float[Mat4.SIZE];
+    Mat4.setIdentity(identity, 0);
+    for (int i = 0; i < TRIAL_COUNT; ++i) {
+      setRandomInvertible(m);
+      assertTrue(Mat4.invert(inverse, 0, m, 0));
+      Mat4.multiply(product, 0, inverse, 0, m, 0);
+      assertArrayEquals(identity, product, EPSILON);
+      Mat4.multiply(product, 0, m, 0, inverse, 0);
+      assertArrayEquals(identity, product, EPSILON);
+    }
+  }
+
+  @Test
+  public void invert_singular_returnsFalseAndLeavesResultUnchanged() {
+    float[] m = new float[Mat4.SIZE];
+    Mat4.setIdentity(m, 0);
+    // Make the third column a copy of the first.
+    System.arraycopy(m, 0, m, 8, 4);
+    float[] result = new float[Mat4.SIZE];
+    Arrays.fill(result, 42f);
+
+    assertFalse(Mat4.invert(result, 0, m, 0));
+
+    float[] expected = new float[Mat4.SIZE];
+    Arrays.fill(expected, 42f);
+    assertArrayEquals(expected, result, 0f);
+  }
+
+  @Test
+  public void invertRigid_matchesInvertOnPoses() {
+    float[] pose = new float[Mat4.SIZE];
+    float[] expected = new float[Mat4.SIZE];
+    float[] actual = new float[Mat4.SIZE];
+    for (int i = 0; i < TRIAL_COUNT; ++i) {
+      setRandomPose(pose);
+      assertTrue(Mat4.invert(expected, 0, pose, 0));
+      Mat4.invertRigid(actual, 0, pose, 0);
+      assertArrayEquals(expected, actual, EPSILON);
+    }
+  }
+
+  @Test
+  public void invert_resultAliasesInput_matchesSeparateResult() {
+    float[] m = new float[Mat4.SIZE];
+    setRandomInvertible(m);
+    float[] expected = new float[Mat4.SIZE];
+    assertTrue(Mat4.invert(expected, 0, m, 0));
+
+    assertTrue(Mat4.invert(m, 0, m, 0));
+
+    assertArrayEquals(expected, m, 0f);
+  }
+
+  @Test
+  public void invertRigid_resultAliasesInput_matchesSeparateResult() {
+    float[] m = new float[Mat4.SIZE];
+    setRandomPose(m);
+    float[] expected = new float[Mat4.SIZE];
+    Mat4.invertRigid(expected, 0, m, 0);
+
+    Mat4.invertRigid(m, 0, m, 0);
+
+    assertArrayEquals(expected, m, 0f);
+  }
+
+  @Test
+  public void multiply_resultAliasesEitherInput_matchesSeparateResult() {
+    float[] lhs = new float[Mat4.SIZE];
+    float[] rhs = new float[Mat4.SIZE];
+    setRandomInvertible(lhs);
+    setRandomInvertible(rhs);
+    float[] expected = new float[Mat4.SIZE];
+    Mat4.multiply(expected, 0, lhs, 0, rhs, 0);
+
+    float[] aliasedLhs = lhs.clone();
+    Mat4.multiply(aliasedLhs, 0, aliasedLhs, 0, rhs, 0);
+    float[] aliasedRhs = rhs.clone();
+    Mat4.multiply(aliasedRhs, 0, lhs, 0, aliasedRhs, 0);
+
+    assertArrayEquals(expected, aliasedLhs, 0f);
+    assertArrayEquals(expected, aliasedRhs, 0f);
+  }
+
+  @Test
+  public void multiply_atOffsets_matchesZeroOffsets() {
+    float[] lhs = new float[Mat4.SIZE];
+    float[] rhs = new float[Mat4.SIZE];
+    setRandomInvertible(lhs);
+    setRandomInvertible(rhs);
+    float[] expected = new float[Mat4.SIZE];
+    Mat4.multiply(expected, 0, lhs, 0, rhs, 0);
+
+    // Pack the operands and the result into one array at distinct offsets.
+    float[] packed = new float[3 * Mat4.SIZE];
+    System.arraycopy(lhs, 0, packed, Mat4.SIZE, Mat4.SIZE);
+    System.arraycopy(rhs, 0, packed, 2 * Mat4.SIZE, Mat4.SIZE);
+    Mat4.multiply(packed, 0, packed, Mat4.SIZE, packed, 2 * Mat4.SIZE);
+
+    assertArrayEquals(expected, Arrays.copyOf(packed, Mat4.SIZE), 0f);
+  }
+
+  @Test
+  public void transformPoints_inPlaceWithStride_matchesMultiplyVector() {
+    float[] m = new float[Mat4.SIZE];
+    setRandomPose(m);
+    // Points of (x, y, z, confidence), as in ARCore's point cloud.
+    int count = 8;
+    float[] points = new float[count * 4];
+    for (int i = 0; i < points.length; ++i) {
+      points[i] = random.nextFloat() * 2f - 1f;
+    }
+    float[] expected = points.clone();
+    float[] point = new float[4];
+    for (int i = 0; i < count; ++i) {
+      System.arraycopy(points, i * 4, point, 0, 3);
+      point[3] = 1f;
+      Mat4.multiplyVector(point, 0, m, 0, point, 0);
+      System.arraycopy(point, 0, expected, i * 4, 3);
+    }
+
+    Mat4.transformPoints(m, 0, points, 0, 4, points, 0, 4, count);
+
+    assertArrayEquals(expected, points, EPSILON);
+  }
+
+  /** Sets {@code m} to a random pose scaled and sheared, which is invertible but not rigid. */
+  private void setRandomInvertible(float[] m) {
+    setRandomPose(m);
+    float[] scale = new float[Mat4.SIZE];
+    Mat4.setIdentity(scale, 0);
+    scale[0] = 0.5f + random.nextFloat();
+    scale[5] = 0.5f + random.nextFloat();
+    scale[10] = 0.5f + random.nextFloat();
+    scale[4] = random.nextFloat() * 0.5f;
+    Mat4.multiply(m, 0, m, 0, scale, 0);
+  }
+
+  private void setRandomPose(float[] m) {
+    float[] q = {
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f
+    };
+    Quaternion.normalize(q, 0);
+    Mat4.setPose(
+        m,
+        0,
+        random.nextFloat() * 4f - 2f,
+        random.nextFloat() * 4f - 2f,
+        random.nextFloat() * 4f - 2f,
+        q[0],
+        q[1],
+        q[2],
+        q[3]);
+  }
+}
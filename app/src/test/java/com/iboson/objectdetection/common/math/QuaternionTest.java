@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class QuaternionTest {
+  private static final float EPSILON = 1e-5f;
+  private static final int TRIAL_COUNT = 100;
+
+  private final Random random = new Random(0);
+
+  @Test
+  public void setFromRotationMatrix_ofPoseMatrix_roundTrips() {
+    for (int i = 0; i < TRIAL_COUNT; ++i) {
+      assertRoundTrips(randomUnitQuaternion());
+    }
+  }
+
+  @Test
+  public void setFromRotationMatrix_halfTurns_roundTrips() {
+    // Half turns have a trace of -1, so each takes the branch of its largest diagonal element.
+    assertRoundTrips(new float[] {1f, 0f, 0f, 0f});
+    assertRoundTrips(new float[] {0f, 1f, 0f, 0f});
+    assertRoundTrips(new float[] {0f, 0f, 1f, 0f});
+    float[] q = {1f, 1f, 0f, 0.01f};
+    Quaternion.normalize(q, 0);
+    assertRoundTrips(q);
+  }
+
+  @Test
+  public void multiply_resultAliasesEitherInput_matchesSeparateResult() {
+    float[] lhs = randomUnitQuaternion();
+    float[] rhs = randomUnitQuaternion();
+    float[] expected = new float[Quaternion.SIZE];
+    Quaternion.multiply(expected, 0, lhs, 0, rhs, 0);
+
+    float[] aliasedLhs = lhs.clone();
+    Quaternion.multiply(aliasedLhs, 0, aliasedLhs, 0, rhs, 0);
+    float[] aliasedRhs = rhs.clone();
+    Quaternion.multiply(aliasedRhs, 0, lhs, 0, aliasedRhs, 0);
+
+    assertArrayEquals(expected, aliasedLhs, 0f);
+    assertArrayEquals(expected, aliasedRhs, 0f);
+  }
+
+  @Test
+  public void rotateVector_matchesPoseMatrix() {
+    float[] m = new float[Mat4.SIZE];
+    float[] v = new float[4];
+    float[] expected = new float[4];
+    float[] actual = new float[3];
+    for (int i = 0; i < TRIAL_COUNT; ++i) {
+      float[] q = randomUnitQuaternion();
+      Mat4.setPose(m, 0, 0f, 0f, 0f, q[0], q[1], q[2], q[3]);
+      v[0] = random.nextFloat();
+      v[1] = random.nextFloat();
+      v[2] = random.nextFloat();
+      v[3] = 0f;
+      Mat4.multiplyVector(expected, 0, m, 0, v, 0);
+
+      Quaternion.rotateVector(actual, 0, q, 0, v, 0);
+
+      assertEquals(expected[0], actual[0], EPSILON);
+      assertEquals(expected[1], actual[1], EPSILON);
+      assertEquals(expected[2], actual[2], EPSILON);
+    }
+  }
+
+  @Test
+  public void normalize_zero_leavesZero() {
+    float[] q = new float[Quaternion.SIZE];
+
+    Quaternion.normalize(q, 0);
+
+    assertArrayEquals(new float[Quaternion.SIZE], q, 0f);
+  }
+
+  /** Asserts that {@code q} is recovered, up to sign, from the rotation of its pose matrix. */
+  private static void assertRoundTrips(float[] q) {
+    float[] m = new float[Mat4.SIZE];
+    Mat4.setPose(m, 0, 0f, 0f, 0f, q[0], q[1], q[2], q[3]);
+    float[] actual = new float[Quaternion.SIZE];
+
+    Quaternion.setFromRotationMatrix(
+        actual, 0, m[0], m[4], m[8], m[1], m[5], m[9], m[2], m[6], m[10]);
+
+    // q and -q are the same rotation.
+    float dot = q[0] * actual[0] + q[1] * actual[1] + q[2] * actual[2] + q[3] * actual[3];
+    float sign = dot < 0f ? -1f : 1f;
+    for (int i = 0; i < Quaternion.SIZE; ++i) {
+      assertEquals(q[i], sign * actual[i], EPSILON);
+    }
+  }
+
+  private float[] randomUnitQuaternion() {
+    float[] q = {
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f,
+      random.nextFloat() * 2f - 1f
+    };
+    Quaternion.normalize(q, 0);
+    return q;
+  }
+}
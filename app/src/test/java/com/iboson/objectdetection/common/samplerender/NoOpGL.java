@@ -0,0 +1,358 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link GL} without a context, for running samplerender on the host JVM.
+ *
+ * <p>Calls do nothing, except for returning what a working driver would: new object names, shaders
+ * that compile and programs that link, complete framebuffers, signaled fences, and buffer mappings
+ * backed by host memory. No error is ever raised. Nothing is allocated once the mapping has grown
+ * to the largest range mapped.
+ */
+public class NoOpGL implements GL {
+  private int nextId = 1;
+  private ByteBuffer mapping = ByteBuffer.allocateDirect(0);
+
+  @Override
+  public void glActiveTexture(int texture) {}
+
+  @Override
+  public void glAttachShader(int program, int shader) {}
+
+  @Override
+  public void glBeginQuery(int target, int id) {}
+
+  @Override
+  public void glBindBuffer(int target, int buffer) {}
+
+  @Override
+  public void glBindBufferRange(int target, int index, int buffer, int offset, int size) {}
+
+  @Override
+  public void glBindFramebuffer(int target, int framebuffer) {}
+
+  @Override
+  public void glBindTexture(int target, int texture) {}
+
+  @Override
+  public void glBindVertexArray(int array) {}
+
+  @Override
+  public void glBlendFuncSeparate(int srcRGB, int dstRGB, int srcAlpha, int dstAlpha) {}
+
+  @Override
+  public void glBufferData(int target, int size, Buffer data, int usage) {}
+
+  @Override
+  public void glBufferSubData(int target, int offset, int size, Buffer data) {}
+
+  @Override
+  public int glCheckFramebufferStatus(int target) {
+    return GLES30.GL_FRAMEBUFFER_COMPLETE;
+  }
+
+  @Override
+  public void glClear(int mask) {}
+
+  @Override
+  public void glClearColor(float red, float green, float blue, float alpha) {}
+
+  @Override
+  public int glClientWaitSync(long sync, int flags, long timeout) {
+    return GLES30.GL_ALREADY_SIGNALED;
+  }
+
+  @Override
+  public void glCompileShader(int shader) {}
+
+  @Override
+  public int glCreateProgram() {
+    return nextId++;
+  }
+
+  @Override
+  public int glCreateShader(int type) {
+    return nextId++;
+  }
+
+  @Override
+  public void glDebugMessageCallbackKHR(DebugProc callback) {}
+
+  @Override
+  public void glDebugMessageControlKHR(
+      int source, int type, int severity, int count, int[] ids, int offset, boolean enabled) {}
+
+  @Override
+  public void glDeleteBuffers(int n, int[] buffers, int offset) {}
+
+  @Override
+  public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {}
+
+  @Override
+  public void glDeleteProgram(int program) {}
+
+  @Override
+  public void glDeleteQueries(int n, int[] ids, int offset) {}
+
+  @Override
+  public void glDeleteShader(int shader) {}
+
+  @Override
+  public void glDeleteSync(long sync) {}
+
+  @Override
+  public void glDeleteTextures(int n, int[] textures, int offset) {}
+
+  @Override
+  public void glDeleteVertexArrays(int n, int[] arrays, int offset) {}
+
+  @Override
+  public void glDepthMask(boolean flag) {}
+
+  @Override
+  public void glDisable(int cap) {}
+
+  @Override
+  public void glDrawArrays(int mode, int first, int count) {}
+
+  @Override
+  public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {}
+
+  @Override
+  public void glDrawBuffers(int n, int[] bufs, int offset) {}
+
+  @Override
+  public void glDrawElements(int mode, int count, int type, int offset) {}
+
+  @Override
+  public void glDrawElementsInstanced(
+      int mode, int count, int type, int offset, int instanceCount) {}
+
+  @Override
+  public void glEnable(int cap) {}
+
+  @Override
+  public void glEnableVertexAttribArray(int index) {}
+
+  @Override
+  public void glEndQuery(int target) {}
+
+  @Override
+  public long glFenceSync(int condition, int flags) {
+    return nextId++;
+  }
+
+  @Override
+  public void glFramebufferTexture2D(
+      int target, int attachment, int textarget, int texture, int level) {}
+
+  @Override
+  public void glGenBuffers(int n, int[] buffers, int offset) {
+    generateIds(n, buffers, offset);
+  }
+
+  @Override
+  public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+    generateIds(n, framebuffers, offset);
+  }
+
+  @Override
+  public void glGenQueries(int n, int[] ids, int offset) {
+    generateIds(n, ids, offset);
+  }
+
+  @Override
+  public void glGenTextures(int n, int[] textures, int offset) {
+    generateIds(n, textures, offset);
+  }
+
+  @Override
+  public void glGenVertexArrays(int n, int[] arrays, int offset) {
+    generateIds(n, arrays, offset);
+  }
+
+  @Override
+  public void glGenerateMipmap(int target) {}
+
+  @Override
+  public String glGetActiveUniform(
+      int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+    return "";
+  }
+
+  @Override
+  public int glGetDebugMessageLogKHR(
+      int count,
+      int bufSize,
+      int[] sources,
+      int sourcesOffset,
+      int[] types,
+      int typesOffset,
+      int[] ids,
+      int idsOffset,
+      int[] severities,
+      int severitiesOffset,
+      int[] lengths,
+      int lengthsOffset,
+      byte[] messageLog,
+      int messageLogOffset) {
+    return 0;
+  }
+
+  @Override
+  public int glGetError() {
+    return GLES30.GL_NO_ERROR;
+  }
+
+  @Override
+  public void glGetIntegerv(int pname, int[] params, int offset) {}
+
+  @Override
+  public String glGetProgramInfoLog(int program) {
+    return "";
+  }
+
+  @Override
+  public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+    // Programs link, and report no active uniforms so that every uniform is looked up by name.
+    params[offset] = pname == GLES30.GL_LINK_STATUS ? GLES30.GL_TRUE : 0;
+  }
+
+  @Override
+  public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {}
+
+  @Override
+  public String glGetShaderInfoLog(int shader) {
+    return "";
+  }
+
+  @Override
+  public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+    params[offset] = pname == GLES30.GL_COMPILE_STATUS ? GLES30.GL_TRUE : 0;
+  }
+
+  @Override
+  public String glGetString(int name) {
+    return "";
+  }
+
+  @Override
+  public int glGetUniformBlockIndex(int program, String uniformBlockName) {
+    return GLES30.GL_INVALID_INDEX;
+  }
+
+  @Override
+  public int glGetUniformLocation(int program, String name) {
+    return 0;
+  }
+
+  @Override
+  public void glInvalidateFramebuffer(
+      int target, int numAttachments, int[] attachments, int offset) {}
+
+  @Override
+  public void glLinkProgram(int program) {}
+
+  @Override
+  public Buffer glMapBufferRange(int target, int offset, int length, int access) {
+    if (mapping.capacity() < length) {
+      mapping = ByteBuffer.allocateDirect(length);
+    }
+    mapping.clear();
+    mapping.limit(length);
+    return mapping;
+  }
+
+  @Override
+  public void glShaderSource(int shader, String string) {}
+
+  @Override
+  public void glTexImage2D(
+      int target,
+      int level,
+      int internalformat,
+      int width,
+      int height,
+      int border,
+      int format,
+      int type,
+      Buffer pixels) {}
+
+  @Override
+  public void glTexParameteri(int target, int pname, int param) {}
+
+  @Override
+  public void glUniform1fv(int location, int count, float[] v, int offset) {}
+
+  @Override
+  public void glUniform1i(int location, int x) {}
+
+  @Override
+  public void glUniform1iv(int location, int count, int[] v, int offset) {}
+
+  @Override
+  public void glUniform2fv(int location, int count, float[] v, int offset) {}
+
+  @Override
+  public void glUniform3fv(int location, int count, float[] v, int offset) {}
+
+  @Override
+  public void glUniform4fv(int location, int count, float[] v, int offset) {}
+
+  @Override
+  public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding) {}
+
+  @Override
+  public void glUniformMatrix2fv(
+      int location, int count, boolean transpose, float[] value, int offset) {}
+
+  @Override
+  public void glUniformMatrix3fv(
+      int location, int count, boolean transpose, float[] value, int offset) {}
+
+  @Override
+  public void glUniformMatrix4fv(
+      int location, int count, boolean transpose, float[] value, int offset) {}
+
+  @Override
+  public boolean glUnmapBuffer(int target) {
+    return true;
+  }
+
+  @Override
+  public void glUseProgram(int program) {}
+
+  @Override
+  public void glVertexAttribDivisor(int index, int divisor) {}
+
+  @Override
+  public void glVertexAttribPointer(
+      int index, int size, int type, boolean normalized, int stride, int offset) {}
+
+  @Override
+  public void glViewport(int x, int y, int width, int height) {}
+
+  private void generateIds(int n, int[] ids, int offset) {
+    for (int i = 0; i < n; ++i) {
+      ids[offset + i] = nextId++;
+    }
+  }
+}
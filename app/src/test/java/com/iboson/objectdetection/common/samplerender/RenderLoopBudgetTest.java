@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import android.opengl.GLES30;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the per-frame GL calls, uploads and heap allocations of the low level paths every draw
+ * goes through against {@link FrameBudget}s.
+ *
+ * <p>The budgets include the calls {@link SampleRender} itself makes to clear the default
+ * framebuffer before it is first drawn to in a frame; {@link RecordingGL} counts the clear as an
+ * upload.
+ */
+public class RenderLoopBudgetTest {
+  private static final int WARMUP_FRAME_COUNT = 3;
+  private static final int MEASURED_FRAME_COUNT = 10;
+  private static final int VERTEX_COUNT = 64;
+
+  private static final String VERTEX_SHADER =
+      "#version 300 es\n"
+          + "uniform mat4 u_ModelViewProjection;\n"
+          + "layout(location = 0) in vec4 a_Position;\n"
+          + "void main() { gl_Position = u_ModelViewProjection * a_Position; }\n";
+  private static final String FRAGMENT_SHADER =
+      "#version 300 es\n"
+          + "precision mediump float;\n"
+          + "uniform sampler2D u_Texture;\n"
+          + "uniform vec4 u_Color;\n"
+          + "out vec4 o_FragColor;\n"
+          + "void main() { o_FragColor = u_Color * texture(u_Texture, vec2(0.5)); }\n";
+
+  private RenderLoopHarness harness;
+  private SampleRender render;
+  private Shader shader;
+  private Shader.UniformHandle modelViewProjectionHandle;
+  private final float[] modelViewProjection = new float[16];
+
+  @Before
+  public void setUp() {
+    harness = new RenderLoopHarness(/* assets= */ null);
+    render = harness.getRender();
+    Texture texture = new Texture(render, Texture.Target.TEXTURE_2D, Texture.WrapMode.REPEAT);
+    shader =
+        new Shader(render, VERTEX_SHADER, FRAGMENT_SHADER, /* defines= */ null)
+            .setTexture("u_Texture", texture)
+            .setVec4("u_Color", new float[] {1f, 1f, 1f, 1f});
+    modelViewProjectionHandle = shader.getUniformHandle("u_ModelViewProjection");
+    shader.setMat4(modelViewProjectionHandle, modelViewProjection);
+  }
+
+  @Test
+  public void shaderUse_unchangedUniforms_uploadsNothing() {
+    harness.assertFramesWithinBudget(
+        shader::lowLevelUse,
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.UNIFORM, 0)
+            .setMaxUploadedByteCount(0)
+            .setMaxUniformAllocationCount(0),
+        /* maxAllocatedByteCount= */ 0);
+  }
+
+  @Test
+  public void shaderUse_changedUniform_uploadsOnlyThatUniform() {
+    harness.assertFramesWithinBudget(
+        () -> {
+          modelViewProjection[12] += 1f;
+          shader.setMat4(modelViewProjectionHandle, modelViewProjection).lowLevelUse();
+        },
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.UNIFORM, 1)
+            .setMaxUniformAllocationCount(0),
+        /* maxAllocatedByteCount= */ 0);
+  }
+
+  @Test
+  public void meshDraw_issuesOneDrawCall() {
+    Mesh mesh = createMesh();
+    harness.assertFramesWithinBudget(
+        () -> {
+          shader.lowLevelUse();
+          mesh.lowLevelDraw();
+        },
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.DRAW, 1)
+            .setMaxCallCount(RecordingGL.Category.UNIFORM, 0)
+            .setMaxCallCount(RecordingGL.Category.RESOURCE, 0)
+            .setMaxUploadedByteCount(0),
+        /* maxAllocatedByteCount= */ 0);
+  }
+
+  @Test
+  public void gpuBufferSet_sameSize_updatesInPlace() {
+    FloatBuffer positions = createPositions();
+    GpuBuffer buffer =
+        new GpuBuffer(render, GLES30.GL_ARRAY_BUFFER, GpuBuffer.FLOAT_SIZE, positions);
+    harness.assertFramesWithinBudget(
+        () -> buffer.set(positions),
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        // The clear and one glBufferSubData of the entries, without reallocating the buffer.
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.UPLOAD, 2)
+            .setMaxCallCount(RecordingGL.Category.RESOURCE, 0)
+            .setMaxUploadedByteCount(positions.capacity() * GpuBuffer.FLOAT_SIZE),
+        /* maxAllocatedByteCount= */ 0);
+  }
+
+  @Test
+  public void gpuBufferSet_streamed_writesMappedRegion() {
+    FloatBuffer positions = createPositions();
+    GpuBuffer buffer =
+        new GpuBuffer(
+            render,
+            GLES30.GL_ARRAY_BUFFER,
+            GpuBuffer.FLOAT_SIZE,
+            positions,
+            /* regionCount= */ 3);
+    harness.assertFramesWithinBudget(
+        () -> buffer.set(positions),
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        // The clear, then mapping and unmapping the next region, without reallocating regions:
+        // the only resource calls fence the previous region and delete the next one's old fence.
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.UPLOAD, 3)
+            .setMaxCallCount(RecordingGL.Category.RESOURCE, 2)
+            .setMaxUploadedByteCount(positions.capacity() * GpuBuffer.FLOAT_SIZE),
+        // Writing through the mapping takes a typed view of it.
+        /* maxAllocatedByteCount= */ 64);
+  }
+
+  @Test
+  public void instancedDraw_streamed_issuesOneDrawCall() {
+    Mesh mesh = createMesh();
+    int[] entriesPerAttribute = {4, 4, 4, 4};
+    InstanceBuffer instances =
+        new InstanceBuffer(render, mesh, entriesPerAttribute, /* streamingRegionCount= */ 3);
+    FloatBuffer instanceData =
+        ByteBuffer.allocateDirect(8 * 16 * GpuBuffer.FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    harness.assertFramesWithinBudget(
+        () -> {
+          instances.set(instanceData);
+          shader.lowLevelUse();
+          mesh.lowLevelDrawInstanced(instances);
+        },
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        // One draw whatever the instance count, and one region fenced per set.
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.DRAW, 1)
+            .setMaxCallCount(RecordingGL.Category.RESOURCE, 2)
+            .setMaxUploadedByteCount(instanceData.capacity() * GpuBuffer.FLOAT_SIZE),
+        // Writing through the mapping takes a typed view of it.
+        /* maxAllocatedByteCount= */ 64);
+  }
+
+  private Mesh createMesh() {
+    IntBuffer indices =
+        ByteBuffer.allocateDirect(VERTEX_COUNT * GpuBuffer.INT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asIntBuffer();
+    for (int i = 0; i < VERTEX_COUNT; ++i) {
+      indices.put(i);
+    }
+    return new Mesh(
+        render,
+        Mesh.PrimitiveMode.TRIANGLES,
+        new IndexBuffer(render, indices),
+        new VertexBuffer[] {new VertexBuffer(render, 3, createPositions())});
+  }
+
+  private static FloatBuffer createPositions() {
+    FloatBuffer positions =
+        ByteBuffer.allocateDirect(VERTEX_COUNT * 3 * GpuBuffer.FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    for (int i = 0; i < positions.capacity(); ++i) {
+      positions.put(i);
+    }
+    return positions;
+  }
+}
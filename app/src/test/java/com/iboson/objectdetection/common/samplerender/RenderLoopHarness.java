@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import android.content.res.AssetManager;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs frames of a {@link SampleRender} on the host JVM, over a {@link RecordingGL} wrapping a
+ * {@link NoOpGL}, and checks each of them against a {@link FrameBudget} and a heap allocation
+ * budget.
+ *
+ * <p>Heap allocation is measured per thread with {@link
+ * com.sun.management.ThreadMXBean#getThreadAllocatedBytes}, which HotSpot supports but ART does
+ * not, so this only runs off-device. Code run before the JIT compiles it allocates at least as much
+ * as compiled code, so the measure errs on the strict side.
+ */
+public class RenderLoopHarness implements SampleRender.Renderer {
+  /** The size of the default framebuffer. */
+  public static final int VIEWPORT_WIDTH = 1080;
+  public static final int VIEWPORT_HEIGHT = 1920;
+
+  private static final int CALIBRATION_COUNT = 16;
+
+  private final RecordingGL gl = new RecordingGL(new NoOpGL());
+  private final SampleRender render;
+  private final com.sun.management.ThreadMXBean threadMXBean;
+  // The bytes allocated by measuring an empty frame, subtracted from every measure.
+  private final long measurementByteCount;
+
+  private Runnable frame;
+  private long frameAllocatedByteCount;
+
+  /**
+   * Creates a context whose surface is created and sized, loading assets from {@code assets},
+   * which may be null if none are loaded.
+   */
+  public RenderLoopHarness(AssetManager assets) {
+    threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("Thread allocation counting is not supported by this JVM");
+    }
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    long minByteCount = Long.MAX_VALUE;
+    for (int i = 0; i < CALIBRATION_COUNT; ++i) {
+      long start = getAllocatedByteCount();
+      minByteCount = Math.min(minByteCount, getAllocatedByteCount() - start);
+    }
+    measurementByteCount = minByteCount;
+
+    render = new SampleRender(gl, this, assets);
+    render.dispatchSurfaceCreated();
+    render.dispatchSurfaceChanged(VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+  }
+
+  /** Returns the context frames are run in. */
+  public SampleRender getRender() {
+    return render;
+  }
+
+  /** Returns the GL recording the calls of each frame. */
+  public RecordingGL getGl() {
+    return gl;
+  }
+
+  /** Runs {@code frame} as the body of {@link SampleRender.Renderer#onDrawFrame}. */
+  public void runFrame(Runnable frame) {
+    this.frame = frame;
+    try {
+      render.dispatchDrawFrame();
+    } finally {
+      this.frame = null;
+      gl.endFrame();
+    }
+  }
+
+  /**
+   * Runs {@code warmupFrameCount} frames, then {@code measuredFrameCount} frames each checked
+   * against {@code budget} and {@code maxAllocatedByteCount}, failing on the first over budget.
+   */
+  public void assertFramesWithinBudget(
+      Runnable frame,
+      int warmupFrameCount,
+      int measuredFrameCount,
+      FrameBudget budget,
+      long maxAllocatedByteCount) {
+    for (int i = 0; i < warmupFrameCount; ++i) {
+      runFrame(frame);
+    }
+    for (int i = 0; i < measuredFrameCount; ++i) {
+      runFrame(frame);
+      String overrun = budget.check(gl, render);
+      if (overrun != null) {
+        fail("Frame " + (warmupFrameCount + i) + ": " + overrun);
+      }
+      if (frameAllocatedByteCount > maxAllocatedByteCount) {
+        fail(
+            "Frame "
+                + (warmupFrameCount + i)
+                + " allocated "
+                + frameAllocatedByteCount
+                + " heap bytes > "
+                + maxAllocatedByteCount);
+      }
+    }
+  }
+
+  /** Returns the heap bytes allocated by the frame body during the last {@link #runFrame}. */
+  public long getFrameAllocatedByteCount() {
+    return frameAllocatedByteCount;
+  }
+
+  @Override
+  public void onSurfaceCreated(SampleRender render) {}
+
+  @Override
+  public void onSurfaceChanged(SampleRender render, int width, int height) {}
+
+  @Override
+  public void onDrawFrame(SampleRender render) {
+    assertNotNull("Frames must be run with runFrame", frame);
+    long start = getAllocatedByteCount();
+    frame.run();
+    frameAllocatedByteCount = Math.max(0, getAllocatedByteCount() - start - measurementByteCount);
+  }
+
+  private long getAllocatedByteCount() {
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
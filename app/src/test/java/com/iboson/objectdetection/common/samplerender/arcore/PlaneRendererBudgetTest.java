@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.samplerender.arcore;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.res.AssetManager;
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import com.iboson.objectdetection.common.samplerender.FrameBudget;
+import com.iboson.objectdetection.common.samplerender.RecordingGL;
+import com.iboson.objectdetection.common.samplerender.RenderLoopHarness;
+import com.iboson.objectdetection.common.samplerender.SampleRender;
+import com.iboson.objectdetection.common.samplerender.Texture;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the per-frame GL calls and uploads of {@link PlaneRenderer#drawPlanes} against a {@link
+ * FrameBudget}.
+ *
+ * <p>Heap allocation is not budgeted here: the planes are Mockito mocks, which allocate on every
+ * call.
+ */
+public class PlaneRendererBudgetTest {
+  private static final int WARMUP_FRAME_COUNT = 3;
+  private static final int MEASURED_FRAME_COUNT = 10;
+  private static final int VISIBLE_PLANE_COUNT = 3;
+
+  // A square boundary polygon of 1m sides, as (x, z) pairs in the plane's frame.
+  private static final float[] BOUNDARY = {-0.5f, -0.5f, 0.5f, -0.5f, 0.5f, 0.5f, -0.5f, 0.5f};
+
+  private final List<Plane> planes = new ArrayList<>();
+  private final float[] projectionMatrix = new float[16];
+  private RenderLoopHarness harness;
+  private SampleRender render;
+  private PlaneRenderer planeRenderer;
+
+  @Before
+  public void setUp() throws IOException {
+    // Gradle runs unit tests from the module directory.
+    AssetManager assets = mock(AssetManager.class);
+    when(assets.open(anyString()))
+        .thenAnswer(
+            invocation ->
+                new FileInputStream(new File("src/main/assets", invocation.getArgument(0))));
+    harness = new RenderLoopHarness(assets);
+    render = harness.getRender();
+    planeRenderer =
+        new PlaneRenderer(
+            render, new Texture(render, Texture.Target.TEXTURE_2D, Texture.WrapMode.REPEAT));
+
+    // The camera is at the origin looking down -Z, with horizontal planes a meter below it.
+    for (int i = 0; i < VISIBLE_PLANE_COUNT; ++i) {
+      planes.add(createPlane(TrackingState.TRACKING, 0f, -1f, -2f - i));
+    }
+    planes.add(createPlane(TrackingState.PAUSED, 0f, -1f, -2f));
+    // Above the camera, so seen from below.
+    planes.add(createPlane(TrackingState.TRACKING, 0f, 1f, -2f));
+    // Behind the camera.
+    planes.add(createPlane(TrackingState.TRACKING, 0f, -1f, 5f));
+
+    setPerspective(projectionMatrix, /* fovyDegrees= */ 60f, /* near= */ 0.1f, /* far= */ 100f);
+  }
+
+  @Test
+  public void drawPlanes_issuesOneDrawPerVisiblePlane() {
+    harness.assertFramesWithinBudget(
+        () -> planeRenderer.drawPlanes(render, planes, Pose.IDENTITY, projectionMatrix),
+        WARMUP_FRAME_COUNT,
+        MEASURED_FRAME_COUNT,
+        new FrameBudget()
+            .setMaxCallCount(RecordingGL.Category.DRAW, VISIBLE_PLANE_COUNT)
+            // The model, model view projection, UV and normal uniforms of each plane.
+            .setMaxCallCount(RecordingGL.Category.UNIFORM, 4 * VISIBLE_PLANE_COUNT)
+            // The clear, then mapping and unmapping the vertex and index regions of each plane.
+            .setMaxCallCount(RecordingGL.Category.UPLOAD, 1 + 4 * VISIBLE_PLANE_COUNT)
+            // A fence and the deletion of an old one per region set.
+            .setMaxCallCount(RecordingGL.Category.RESOURCE, 4 * VISIBLE_PLANE_COUNT)
+            .setMaxUploadedByteCount(VISIBLE_PLANE_COUNT * getPlaneByteCount())
+            .setMaxUniformAllocationCount(0),
+        /* maxAllocatedByteCount= */ Long.MAX_VALUE);
+
+    assertEquals(VISIBLE_PLANE_COUNT, planeRenderer.getLastVisibleCount());
+    assertEquals(1, planeRenderer.getLastCulledCount());
+  }
+
+  /** Returns the bytes uploaded to draw a plane with {@link #BOUNDARY}. */
+  private static int getPlaneByteCount() {
+    int boundaryVertexCount = BOUNDARY.length / 2;
+    // An outer and an inner ring of (x, z, alpha) vertices, drawn with 3 indices per vertex.
+    int vertexByteCount = boundaryVertexCount * 2 * 3 * Float.BYTES;
+    int indexByteCount = boundaryVertexCount * 3 * Integer.BYTES;
+    // Two mat4, a mat2 and a vec3.
+    int uniformByteCount = (2 * 16 + 4 + 3) * Float.BYTES;
+    return vertexByteCount + indexByteCount + uniformByteCount;
+  }
+
+  private static Plane createPlane(TrackingState trackingState, float x, float y, float z) {
+    Plane plane = mock(Plane.class);
+    when(plane.getTrackingState()).thenReturn(trackingState);
+    when(plane.getCenterPose())
+        .thenReturn(new Pose(new float[] {x, y, z}, new float[] {0f, 0f, 0f, 1f}));
+    when(plane.getExtentX()).thenReturn(1f);
+    when(plane.getExtentZ()).thenReturn(1f);
+    when(plane.getPolygon()).thenReturn(FloatBuffer.wrap(BOUNDARY));
+    return plane;
+  }
+
+  /** Sets {@code matrix} to a column-major perspective projection for the harness viewport. */
+  private static void setPerspective(float[] matrix, float fovyDegrees, float near, float far) {
+    float aspect = (float) RenderLoopHarness.VIEWPORT_WIDTH / RenderLoopHarness.VIEWPORT_HEIGHT;
+    float f = 1f / (float) Math.tan(Math.toRadians(fovyDegrees) / 2);
+    Arrays.fill(matrix, 0f);
+    matrix[0] = f / aspect;
+    matrix[5] = f;
+    matrix[10] = (far + near) / (near - far);
+    matrix[11] = -1f;
+    matrix[14] = 2f * far * near / (near - far);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.iboson.objectdetection.common.math;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Mat4} against the algorithms of {@link android.opengl.Matrix} it replaces.
+ *
+ * <p>{@code multiplyMM} and {@code multiplyMV} are native on Android, so the reference methods
+ * below are Java ports of their loops. These measure the arithmetic on the host JVM only, not the
+ * JNI transitions the Android methods also pay.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mat4Benchmark {
+  // About the number of points of an ARCore point cloud.
+  private static final int POINT_COUNT = 1024;
+
+  private final float[] lhs = new float[Mat4.SIZE];
+  private final float[] rhs = new float[Mat4.SIZE];
+  private final float[] pose = new float[Mat4.SIZE];
+  private final float[] result = new float[Mat4.SIZE];
+  // Points of (x, y, z, confidence), as in ARCore's point cloud.
+  private final float[] points = new float[POINT_COUNT * 4];
+  private final float[] transformedPoints = new float[POINT_COUNT * 4];
+  private final float[] point = new float[4];
+  private final float[] transformedPoint = new float[4];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int i = 0; i < Mat4.SIZE; ++i) {
+      lhs[i] = random.nextFloat();
+      rhs[i] = random.nextFloat();
+    }
+    float[] q = {random.nextFloat(), random.nextFloat(), random.nextFloat(), random.nextFloat()};
+    Quaternion.normalize(q, 0);
+    Mat4.setPose(pose, 0, 1f, 2f, 3f, q[0], q[1], q[2], q[3]);
+    for (int i = 0; i < points.length; ++i) {
+      points[i] = random.nextFloat();
+    }
+  }
+
+  @Benchmark
+  public float[] multiply() {
+    Mat4.multiply(result, 0, lhs, 0, rhs, 0);
+    return result;
+  }
+
+  @Benchmark
+  public float[] multiplyReference() {
+    multiplyMM(result, lhs, rhs);
+    return result;
+  }
+
+  @Benchmark
+  public float[] invert() {
+    Mat4.invert(result, 0, pose, 0);
+    return result;
+  }
+
+  @Benchmark
+  public float[] invertRigid() {
+    Mat4.invertRigid(result, 0, pose, 0);
+    return result;
+  }
+
+  @Benchmark
+  public float[] transformPoints() {
+    Mat4.transformPoints(pose, 0, points, 0, 4, transformedPoints, 0, 4, POINT_COUNT);
+    return transformedPoints;
+  }
+
+  /** Transforms the points one at a time through {@code multiplyMV}, as with the Android API. */
+  @Benchmark
+  public float[] transformPointsReference() {
+    for (int i = 0; i < POINT_COUNT; ++i) {
+      System.arraycopy(points, i * 4, point, 0, 3);
+      point[3] = 1f;
+      multiplyMV(transformedPoint, pose, point);
+      System.arraycopy(transformedPoint, 0, transformedPoints, i * 4, 3);
+    }
+    return transformedPoints;
+  }
+
+  /** The loop of the native {@code android.opengl.Matrix.multiplyMM}. */
+  private static void multiplyMM(float[] r, float[] lhs, float[] rhs) {
+    for (int i = 0; i < 4; ++i) {
+      float rhsI0 = rhs[4 * i];
+      float ri0 = lhs[0] * rhsI0;
+      float ri1 = lhs[1] * rhsI0;
+      float ri2 = lhs[2] * rhsI0;
+      float ri3 = lhs[3] * rhsI0;
+      for (int j = 1; j < 4; ++j) {
+        float rhsIj = rhs[4 * i + j];
+        ri0 += lhs[4 * j] * rhsIj;
+        ri1 += lhs[4 * j + 1] * rhsIj;
+        ri2 += lhs[4 * j + 2] * rhsIj;
+        ri3 += lhs[4 * j + 3] * rhsIj;
+      }
+      r[4 * i] = ri0;
+      r[4 * i + 1] = ri1;
+      r[4 * i + 2] = ri2;
+      r[4 * i + 3] = ri3;
+    }
+  }
+
+  /** The arithmetic of the native {@code android.opengl.Matrix.multiplyMV}. */
+  private static void multiplyMV(float[] r, float[] lhs, float[] rhs) {
+    for (int i = 0; i < 4; ++i) {
+      r[i] = lhs[i] * rhs[0] + lhs[4 + i] * rhs[1] + lhs[8 + i] * rhs[2] + lhs[12 + i] * rhs[3];
+    }
+  }
+}